@@ -15,20 +15,30 @@
  */
 package com.quantiply.samza.serde;
 
+import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
 import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
 import org.apache.avro.Schema;
+import org.apache.samza.SamzaException;
 import org.apache.samza.serializers.Serde;
 import io.confluent.kafka.serializers.KafkaAvroDecoder;
 import io.confluent.kafka.serializers.KafkaAvroEncoder;
 import kafka.utils.VerifiableProperties;
 
+import java.io.IOException;
+
 public class AvroSerde implements Serde<Object> {
+    private static final int DEFAULT_MAX_SCHEMAS_PER_SUBJECT = 1000;
     private final KafkaAvroEncoder encoder;
     private final KafkaAvroDecoder decoder;
+    private final SchemaRegistryClient decoderRegistry;
 
     public AvroSerde(VerifiableProperties encoderProps, VerifiableProperties decoderProps) {
         encoder = new KafkaAvroEncoder(encoderProps);
-        decoder = new KafkaAvroDecoder(decoderProps);
+        //Same client the decoder would create for itself so that schema lookups share its cache
+        decoderRegistry = new CachedSchemaRegistryClient(decoderProps.getString("schema.registry.url"),
+                decoderProps.getInt("max.schemas.per.subject", DEFAULT_MAX_SCHEMAS_PER_SUBJECT));
+        decoder = new KafkaAvroDecoder(decoderRegistry, decoderProps);
     }
 
     /**
@@ -37,6 +47,18 @@ public class AvroSerde implements Serde<Object> {
     public AvroSerde(SchemaRegistryClient srClient, VerifiableProperties decoderProps) {
         encoder = new KafkaAvroEncoder(srClient);
         decoder = new KafkaAvroDecoder(srClient, decoderProps);
+        decoderRegistry = srClient;
+    }
+
+    /**
+     * Writer schema registered under the id in the message header
+     */
+    public Schema getSchema(int id) {
+        try {
+            return decoderRegistry.getByID(id);
+        } catch (IOException | RestClientException e) {
+            throw new SamzaException("Error fetching schema for id " + id, e);
+        }
     }
 
     @Override
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ *
+ * Bounded, lock-free hand-off between exactly one producer thread and one consumer thread.
+ *
+ * Slots are allocated up front and reused so passing a message does not allocate. The producer
+ * claims a free slot, fills it in and publishes it. The consumer polls the next published slot,
+ * reads it and releases it back to the producer. A slot must not be touched after it has been
+ * published (producer) or released (consumer) - copy out anything that needs to live longer.
+ *
+ * Waiting (buffer full for the producer, empty for the consumer) spins briefly, then yields, then
+ * parks until the other side wakes it up or the wait times out, so an idle consumer neither burns
+ * a core nor wakes up on a timer. publish() and release() are volatile writes so that a side that
+ * has just registered to park is always seen and unparked. Timed waits return null on timeout so
+ * callers can check on the other side (e.g. that it is still alive) and wait again.
+ *
+ * Using it from more than one producer or more than one consumer thread is not supported.
+ *
+ */
+public class SPSCRingBuffer<T> {
+    private static final int SPIN_TRIES = 100;
+    private final T[] slots;
+    private final int mask;
+    /* Next position to publish - written by the producer only */
+    private final Sequence tail = new Sequence();
+    /* Next position to consume - written by the consumer only */
+    private final Sequence head = new Sequence();
+    /* Thread parked waiting on the other side, if any - written rarely so fine to share a line */
+    private volatile Thread producerWaiter;
+    private volatile Thread consumerWaiter;
+
+    /**
+     * Position counter padded out to its own cache line, together with its owner's last seen
+     * position of the other side (to avoid reading the shared counter on every call), so the
+     * producer and consumer do not invalidate each other's line on every publish and release
+     */
+    @SuppressWarnings("unused")
+    private static class Sequence extends AtomicLong {
+        long otherCache;
+        long p1, p2, p3, p4, p5, p6;
+    }
+
+    /**
+     *
+     * @param minCapacity Minimum number of slots. Rounded up to the next power of 2
+     * @param slotFactory Creates the slots
+     */
+    @SuppressWarnings("unchecked")
+    public SPSCRingBuffer(int minCapacity, Supplier<T> slotFactory) {
+        if (minCapacity < 1 || minCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("Ring buffer capacity must be between 1 and 2^30: " + minCapacity);
+        }
+        int capacity = Integer.highestOneBit(minCapacity);
+        if (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.slots = (T[]) new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = slotFactory.get();
+        }
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Approximate number of published slots not yet released by the consumer
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * Producer: claims the next free slot without waiting
+     *
+     * @return the slot to fill in or null if the buffer is full
+     */
+    public T tryClaim() {
+        long pos = tail.get();
+        if (pos - tail.otherCache >= slots.length) {
+            tail.otherCache = head.get();
+            if (pos - tail.otherCache >= slots.length) {
+                return null;
+            }
+        }
+        return slots[(int) pos & mask];
+    }
+
+    /**
+     * Producer: claims the next free slot, waiting for the consumer to release one if the buffer is full
+     *
+     * @return the slot to fill in or null on timeout
+     */
+    public T claim(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+        int idle = 0;
+        T slot;
+        while ((slot = tryClaim()) == null) {
+            if (!idle(idle++, deadlineNs, true)) {
+                return null;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Producer: makes the claimed slot visible to the consumer
+     */
+    public void publish() {
+        tail.set(tail.get() + 1);
+        Thread waiter = consumerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Consumer: returns the next published slot without waiting
+     *
+     * @return the slot or null if the buffer is empty
+     */
+    public T tryPoll() {
+        long pos = head.get();
+        if (pos >= head.otherCache) {
+            head.otherCache = tail.get();
+            if (pos >= head.otherCache) {
+                return null;
+            }
+        }
+        return slots[(int) pos & mask];
+    }
+
+    /**
+     * Consumer: returns the next published slot, waiting for the producer if the buffer is empty
+     *
+     * The slot stays owned by the consumer until release() is called
+     *
+     * @return the slot or null on timeout
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+        int idle = 0;
+        T slot;
+        while ((slot = tryPoll()) == null) {
+            if (!idle(idle++, deadlineNs, false)) {
+                return null;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Consumer: waits as long as it takes for the next published slot
+     */
+    public T take() throws InterruptedException {
+        int idle = 0;
+        T slot;
+        while ((slot = tryPoll()) == null) {
+            idle(idle++, Long.MAX_VALUE, false);
+        }
+        return slot;
+    }
+
+    /**
+     * Consumer: hands the polled slot back to the producer
+     */
+    public void release() {
+        head.set(head.get() + 1);
+        Thread waiter = producerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Spin, then yield, then park until woken by the other side or the deadline
+     *
+     * @return false if the deadline has passed
+     */
+    private boolean idle(int iteration, long deadlineNs, boolean isProducer) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long remainingNs = deadlineNs == Long.MAX_VALUE ? Long.MAX_VALUE : deadlineNs - System.nanoTime();
+        if (remainingNs <= 0) {
+            return false;
+        }
+        if (iteration < SPIN_TRIES) {
+            return true;
+        }
+        if (iteration < 2 * SPIN_TRIES) {
+            Thread.yield();
+            return true;
+        }
+        //Register before checking again so a publish or release in between is not missed
+        Thread current = Thread.currentThread();
+        if (isProducer) {
+            producerWaiter = current;
+        }
+        else {
+            consumerWaiter = current;
+        }
+        try {
+            boolean ready = isProducer ? tail.get() - head.get() < slots.length : head.get() < tail.get();
+            if (!ready) {
+                if (remainingNs == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                }
+                else {
+                    LockSupport.parkNanos(this, remainingNs);
+                }
+            }
+        }
+        finally {
+            if (isProducer) {
+                producerWaiter = null;
+            }
+            else {
+                consumerWaiter = null;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ *
+ * Bounded FIFO of byte[] records kept in memory-mapped segment files rather than on the heap.
+ *
+ * Records are appended to the last segment, each one prefixed with its length. When a record does not
+ * fit in what is left of the segment, the segment is sealed and a new one is started. Segments are
+ * deleted as soon as all their records have been read so disk use follows the size of the queue.
+ * A record larger than the segment size gets a segment of its own.
+ *
+ * The queue is not durable - the files live in a directory of their own under the given parent and are
+ * removed on close. It only moves data out of the heap while it waits, the page cache decides when it
+ * actually goes to disk.
+ *
+ * Not thread safe.
+ *
+ */
+public class MappedSegmentQueue implements Closeable {
+    private static final int LENGTH_BYTES = 4;
+    /* Written in place of a length when the rest of the segment is unused */
+    private static final int END_OF_SEGMENT = -1;
+    private final Path dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentId = 0;
+    private long sizeBytes = 0;
+    private long count = 0;
+
+    private static class Segment {
+        final Path path;
+        final MappedByteBuffer buf;
+        int readPos = 0;
+
+        Segment(Path path, MappedByteBuffer buf) {
+            this.path = path;
+            this.buf = buf;
+        }
+    }
+
+    /**
+     *
+     * @param parentDir Directory to create the queue's own directory in
+     * @param prefix Prefix of the queue's directory name
+     * @param segmentBytes Size of each segment file
+     * @param maxBytes Maximum total size of the records (including their length prefix)
+     */
+    public MappedSegmentQueue(Path parentDir, String prefix, int segmentBytes, long maxBytes) throws IOException {
+        if (segmentBytes <= LENGTH_BYTES) {
+            throw new IllegalArgumentException("Segment size must be more than " + LENGTH_BYTES + " bytes: " + segmentBytes);
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Max bytes must be positive: " + maxBytes);
+        }
+        Files.createDirectories(parentDir);
+        this.dir = Files.createTempDirectory(parentDir, prefix);
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Appends the record unless it would take the queue over max bytes
+     *
+     * @return false if the queue is too full to take the record
+     */
+    public boolean offer(byte[] record) throws IOException {
+        long recordBytes = LENGTH_BYTES + (long) record.length;
+        if (sizeBytes + recordBytes > maxBytes) {
+            return false;
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.buf.remaining() < recordBytes) {
+            if (segment != null && segment.buf.remaining() >= LENGTH_BYTES) {
+                segment.buf.putInt(END_OF_SEGMENT);
+            }
+            segment = newSegment(Math.max(segmentBytes, (int) recordBytes));
+        }
+        segment.buf.putInt(record.length);
+        segment.buf.put(record);
+        sizeBytes += recordBytes;
+        count++;
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest record or null if the queue is empty
+     */
+    public byte[] poll() throws IOException {
+        if (count == 0) {
+            return null;
+        }
+        Segment segment = segments.peekFirst();
+        int length = getNextLength(segment);
+        if (length == END_OF_SEGMENT) {
+            deleteSegment(segments.removeFirst());
+            segment = segments.peekFirst();
+            length = getNextLength(segment);
+        }
+        byte[] record = new byte[length];
+        ByteBuffer src = segment.buf.duplicate();
+        src.position(segment.readPos + LENGTH_BYTES);
+        src.get(record);
+        segment.readPos += LENGTH_BYTES + length;
+        sizeBytes -= LENGTH_BYTES + length;
+        count--;
+        //Drop fully read segments right away unless the writer is still appending to it
+        if (segment != segments.peekLast() && getNextLength(segment) == END_OF_SEGMENT) {
+            deleteSegment(segments.removeFirst());
+        }
+        else if (count == 0) {
+            //Start over at the beginning of the segment
+            segment.readPos = 0;
+            segment.buf.clear();
+        }
+        return record;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Number of records in the queue
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Bytes used by the records in the queue (including their length prefix)
+     */
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Drops all records and removes the queue's files
+     */
+    @Override
+    public void close() throws IOException {
+        while (!segments.isEmpty()) {
+            deleteSegment(segments.removeFirst());
+        }
+        sizeBytes = 0;
+        count = 0;
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * Length of the record at the read position. The segment's writes all come before its reads so
+     * anything past what has been written reads as the end of the segment
+     */
+    private int getNextLength(Segment segment) {
+        if (segment.readPos + LENGTH_BYTES > segment.buf.position()) {
+            return END_OF_SEGMENT;
+        }
+        return segment.buf.getInt(segment.readPos);
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        Path path = dir.resolve(String.format("%020d.seg", nextSegmentId++));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //The mapping stays valid after the channel is closed
+            Segment segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            segments.addLast(segment);
+            return segment;
+        }
+    }
+
+    /**
+     * The mapping itself is released when the buffer is garbage collected. Unlinking the file means
+     * the pages never need to be written back
+     */
+    private void deleteSegment(Segment segment) throws IOException {
+        Files.deleteIfExists(segment.path);
+    }
+}
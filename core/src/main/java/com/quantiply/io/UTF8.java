@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.io;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for sizing newline delimited UTF-8 request bodies
+ */
+public class UTF8 {
+    /* Separator between records (and bulk action lines) */
+    public static final byte[] NEWLINE = "\n".getBytes(StandardCharsets.UTF_8);
+
+    private UTF8() {}
+
+    /**
+     * Number of bytes needed to encode the string as UTF-8 - avoids encoding it just to get the size.
+     * Unpaired surrogates count as the 3 byte replacement, as String.getBytes() encodes them
+     */
+    public static long getLength(CharSequence str) {
+        long size = 0;
+        for (int i = 0, len = str.length(); i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                size++;
+            }
+            else if (c < 0x800) {
+                size += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                size += 4;
+                i++;
+            }
+            else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+}
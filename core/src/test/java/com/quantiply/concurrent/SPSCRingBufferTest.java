@@ -0,0 +1,147 @@
+package com.quantiply.concurrent;
+
+import org.junit.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class SPSCRingBufferTest {
+
+    static class Slot {
+        long value;
+    }
+
+    @Test
+    public void testCapacityIsRoundedUp() {
+        assertEquals(1, new SPSCRingBuffer<>(1, Slot::new).capacity());
+        assertEquals(8, new SPSCRingBuffer<>(5, Slot::new).capacity());
+        assertEquals(8, new SPSCRingBuffer<>(8, Slot::new).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new SPSCRingBuffer<>(0, Slot::new);
+    }
+
+    @Test
+    public void testSlotsAreReused() {
+        SPSCRingBuffer<Slot> ring = new SPSCRingBuffer<>(2, Slot::new);
+        Slot first = ring.tryClaim();
+        first.value = 1;
+        ring.publish();
+        Slot second = ring.tryClaim();
+        second.value = 2;
+        ring.publish();
+        assertNotSame(first, second);
+        assertNull("Buffer should be full", ring.tryClaim());
+        assertEquals(2, ring.size());
+
+        assertEquals(1, ring.tryPoll().value);
+        ring.release();
+        assertSame(first, ring.tryClaim());
+        assertEquals(2, ring.tryPoll().value);
+        ring.release();
+        assertNull("Buffer should be empty", ring.tryPoll());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void testUnpublishedSlotIsNotVisible() {
+        SPSCRingBuffer<Slot> ring = new SPSCRingBuffer<>(4, Slot::new);
+        ring.tryClaim().value = 1;
+        assertNull(ring.tryPoll());
+        ring.publish();
+        assertEquals(1, ring.tryPoll().value);
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        SPSCRingBuffer<Slot> ring = new SPSCRingBuffer<>(1, Slot::new);
+        assertNull(ring.poll(10, TimeUnit.MILLISECONDS));
+        ring.claim(10, TimeUnit.MILLISECONDS);
+        ring.publish();
+        assertNull(ring.claim(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void testInterrupt() throws Exception {
+        SPSCRingBuffer<Slot> ring = new SPSCRingBuffer<>(1, Slot::new);
+        Thread.currentThread().interrupt();
+        ring.take();
+    }
+
+    @Test
+    public void testPublishWakesParkedConsumer() throws Exception {
+        SPSCRingBuffer<Slot> ring = new SPSCRingBuffer<>(1, Slot::new);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Thread> thread = executor.submit(Thread::currentThread);
+            Future<Long> consumer = executor.submit(() -> ring.poll(30, TimeUnit.SECONDS).value);
+            waitUntilParked(thread.get());
+            ring.tryClaim().value = 7;
+            ring.publish();
+            assertEquals(7L, consumer.get(5, TimeUnit.SECONDS).longValue());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReleaseWakesParkedProducer() throws Exception {
+        SPSCRingBuffer<Slot> ring = new SPSCRingBuffer<>(1, Slot::new);
+        ring.tryClaim();
+        ring.publish();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Thread> thread = executor.submit(Thread::currentThread);
+            Future<Slot> producer = executor.submit(() -> ring.claim(30, TimeUnit.SECONDS));
+            waitUntilParked(thread.get());
+            ring.tryPoll();
+            ring.release();
+            assertNotNull(producer.get(5, TimeUnit.SECONDS));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void waitUntilParked(Thread thread) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue("Thread never parked", System.currentTimeMillis() < deadlineMs);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testHandOff() throws Exception {
+        int count = 1000000;
+        SPSCRingBuffer<Slot> ring = new SPSCRingBuffer<>(64, Slot::new);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> consumer = executor.submit(() -> {
+                long sum = 0;
+                long expected = 0;
+                for (int i = 0; i < count; i++) {
+                    Slot slot = ring.take();
+                    assertEquals(expected++, slot.value);
+                    sum += slot.value;
+                    ring.release();
+                }
+                return sum;
+            });
+            for (int i = 0; i < count; i++) {
+                Slot slot = ring.claim(10, TimeUnit.SECONDS);
+                assertNotNull(slot);
+                slot.value = i;
+                ring.publish();
+            }
+            assertEquals((long) count * (count - 1) / 2, consumer.get(30, TimeUnit.SECONDS).longValue());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.quantiply.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class MappedSegmentQueueTest {
+
+    private Path parentDir;
+
+    @Before
+    public void setUp() throws Exception {
+        parentDir = Files.createTempDirectory("spill-test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(parentDir);
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String str(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFifo() throws Exception {
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(parentDir, "test", 64, 1024)) {
+            assertTrue(queue.isEmpty());
+            assertNull(queue.poll());
+            for (int i = 0; i < 20; i++) {
+                assertTrue(queue.offer(bytes("record-" + i)));
+            }
+            assertEquals(20, queue.size());
+            assertTrue("Records should span segments", queue.getSegmentCount() > 1);
+            for (int i = 0; i < 20; i++) {
+                assertEquals("record-" + i, str(queue.poll()));
+            }
+            assertTrue(queue.isEmpty());
+            assertEquals(0, queue.getSizeBytes());
+            assertEquals(1, queue.getSegmentCount());
+        }
+    }
+
+    @Test
+    public void testInterleaved() throws Exception {
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(parentDir, "test", 32, 1024)) {
+            int next = 0;
+            for (int i = 0; i < 50; i++) {
+                queue.offer(bytes("a" + i));
+                queue.offer(bytes("b" + i));
+                assertEquals(next % 2 == 0 ? "a" + next / 2 : "b" + next / 2, str(queue.poll()));
+                next++;
+            }
+            while (!queue.isEmpty()) {
+                assertEquals(next % 2 == 0 ? "a" + next / 2 : "b" + next / 2, str(queue.poll()));
+                next++;
+            }
+            assertEquals(100, next);
+            assertTrue("Read segments should be dropped", queue.getSegmentCount() <= 1);
+        }
+    }
+
+    @Test
+    public void testEmptyAndLargeRecords() throws Exception {
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(parentDir, "test", 16, 1024)) {
+            byte[] large = new byte[100];
+            large[99] = 7;
+            assertTrue(queue.offer(new byte[0]));
+            assertTrue(queue.offer(large));
+            assertTrue(queue.offer(bytes("x")));
+            assertEquals(0, queue.poll().length);
+            assertArrayEquals(large, queue.poll());
+            assertEquals("x", str(queue.poll()));
+        }
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(parentDir, "test", 64, 20)) {
+            assertTrue(queue.offer(new byte[6]));
+            assertTrue(queue.offer(new byte[6]));
+            assertEquals(20, queue.getSizeBytes());
+            assertFalse(queue.offer(new byte[0]));
+            queue.poll();
+            assertTrue(queue.offer(new byte[6]));
+        }
+    }
+
+    @Test
+    public void testCloseRemovesFiles() throws Exception {
+        MappedSegmentQueue queue = new MappedSegmentQueue(parentDir, "test", 16, 1024);
+        Path dir = queue.getDirectory();
+        assertEquals(parentDir, dir.getParent());
+        queue.offer(bytes("abcdefgh"));
+        queue.offer(bytes("abcdefgh"));
+        assertEquals(2, Files.list(dir).count());
+        queue.close();
+        assertFalse(Files.exists(dir));
+        assertTrue(queue.isEmpty());
+    }
+}
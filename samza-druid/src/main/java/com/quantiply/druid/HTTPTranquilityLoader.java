@@ -15,11 +15,13 @@
  */
 package com.quantiply.druid;
 
+import com.quantiply.concurrent.SPSCRingBuffer;
+import com.quantiply.io.UTF8;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
@@ -28,16 +30,14 @@ import org.apache.samza.serializers.JsonSerdeFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 public class HTTPTranquilityLoader {
 
@@ -45,11 +45,17 @@ public class HTTPTranquilityLoader {
     public final int connectTimeoutMs;
 
     public HTTPClientConfig(int connectTimeoutMs, int readTimeoutMs) {
+      this(connectTimeoutMs, readTimeoutMs, false);
+    }
+
+    public HTTPClientConfig(int connectTimeoutMs, int readTimeoutMs, boolean gzip) {
       this.connectTimeoutMs = connectTimeoutMs;
       this.readTimeoutMs = readTimeoutMs;
+      this.gzip = gzip;
     }
 
     public final int readTimeoutMs;
+    public final boolean gzip;
   }
 
   public static class WriterConfig {
@@ -58,17 +64,19 @@ public class HTTPTranquilityLoader {
     public final HTTPClientConfig httpClientConfig;
     public final int flushMaxRecords;
     public final Optional<Integer> flushMaxIntervalMs;
+    public final Optional<Long> flushMaxBytes;
 
-    public WriterConfig(String name, String tranquilityServerUrl, HTTPClientConfig httpClientConfig, int flushMaxRecords, Optional<Integer> flushMaxIntervalMs) {
+    public WriterConfig(String name, String tranquilityServerUrl, HTTPClientConfig httpClientConfig, int flushMaxRecords, Optional<Integer> flushMaxIntervalMs, Optional<Long> flushMaxBytes) {
       this.name = name;
       this.tranquilityServerUrl = tranquilityServerUrl;
       this.httpClientConfig =  httpClientConfig;
       this.flushMaxRecords = flushMaxRecords;
       this.flushMaxIntervalMs = flushMaxIntervalMs;
+      this.flushMaxBytes = flushMaxBytes;
     }
   }
 
-  public enum TriggerType { MAX_RECORDS, MAX_INTERVAL, FLUSH_CMD }
+  public enum TriggerType { MAX_RECORDS, MAX_BYTES, MAX_INTERVAL, FLUSH_CMD }
 
   public static class Response {
     public final int received;
@@ -84,12 +92,28 @@ public class HTTPTranquilityLoader {
     public final Response response;
     public final TriggerType triggerType;
     public final long waitMs;
+    public final long batchBytes;
+    public final long compressedBytes;
+    /* From the flush trigger until the server responded */
+    public final long triggerToAckMs;
     public final List<SourcedIndexRequest> requests;
 
-    public BulkReport(Response response, TriggerType triggerType, long waitMs, List<SourcedIndexRequest> requests) {
+    public BulkReport(Response response, TriggerType triggerType, long waitMs, long batchBytes, List<SourcedIndexRequest> requests) {
+      this(response, triggerType, waitMs, batchBytes, 0L, requests);
+    }
+
+    public BulkReport(Response response, TriggerType triggerType, long waitMs, long batchBytes, long compressedBytes, List<SourcedIndexRequest> requests) {
+      this(response, triggerType, waitMs, batchBytes, compressedBytes, 0L, requests);
+    }
+
+    public BulkReport(Response response, TriggerType triggerType, long waitMs, long batchBytes, long compressedBytes, long triggerToAckMs,
+                      List<SourcedIndexRequest> requests) {
       this.response = response;
       this.triggerType = triggerType;
       this.waitMs = waitMs;
+      this.batchBytes = batchBytes;
+      this.compressedBytes = compressedBytes;
+      this.triggerToAckMs = triggerToAckMs;
       this.requests = requests;
     }
   }
@@ -116,34 +140,175 @@ public class HTTPTranquilityLoader {
     }
   }
 
-  protected enum WriterCommandType { ADD_RECORD, FLUSH }
+  /**
+   * Request body that streams the batched records to the connection, newline delimited
+   *
+   * With gzip, records are compressed as they are written (chunked) so the batch
+   * is never copied into a separate body buffer, compressed or not
+   */
+  protected static class RecordsEntity extends AbstractHttpEntity {
+    protected static final int GZIP_BUFFER_BYTES = 8192;
+    protected final List<SourcedIndexRequest> records;
+    protected final long rawBytes;
+    protected final boolean gzip;
+    protected long compressedBytes = 0;
+
+    public RecordsEntity(List<SourcedIndexRequest> records, long rawBytes, boolean gzip) {
+      this.records = records;
+      this.rawBytes = rawBytes;
+      this.gzip = gzip;
+      setContentType("application/json");
+      if (gzip) {
+        setContentEncoding("gzip");
+        setChunked(true);
+      }
+    }
 
-  protected static class WriterCommand {
+    @Override
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    @Override
+    public long getContentLength() {
+      return gzip ? -1 : rawBytes;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writeTo(out);
+      return new ByteArrayInputStream(out.toByteArray());
+    }
 
-    public static WriterCommand getAddCmd(SourcedIndexRequest req) {
-      return new WriterCommand(WriterCommandType.ADD_RECORD, req, null);
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      if (!gzip) {
+        writeRecords(out);
+        out.flush();
+        return;
+      }
+      CountingOutputStream countingOut = new CountingOutputStream(out);
+      //Closing the gzip stream releases the deflater but leaves the connection's stream open
+      try (GZIPOutputStream gzipOut = new GZIPOutputStream(countingOut, GZIP_BUFFER_BYTES)) {
+        writeRecords(gzipOut);
+      }
+      compressedBytes = countingOut.count;
     }
 
-    public static WriterCommand getFlushCmd() {
-      return new WriterCommand(WriterCommandType.FLUSH, null, new CompletableFuture<>());
+    protected void writeRecords(OutputStream out) throws IOException {
+      for (SourcedIndexRequest req : records) {
+        out.write(req.request.record);
+        out.write(UTF8.NEWLINE);
+      }
     }
 
-    public WriterCommand(WriterCommandType type, SourcedIndexRequest request, CompletableFuture<Void> flushCompletedFuture) {
-      this.type = type;
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+
+    /**
+     * Bytes written by the last writeTo() when compressing
+     */
+    public long getCompressedBytes() {
+      return compressedBytes;
+    }
+  }
+
+  protected static class CountingOutputStream extends FilterOutputStream {
+    protected long count = 0;
+
+    public CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.flush();
+    }
+  }
+
+  /**
+   * Backpressure between the client thread and the writer thread
+   *
+   * Called from both threads so implementations must be thread safe
+   */
+  public interface QueueListener {
+    /**
+     * The client thread had to wait for room in the command queue. Not called when there was room right away
+     */
+    void onBlocked(long blockedMs);
+
+    /**
+     * Sampled by the writer about once a second
+     *
+     * @param queueDepth Commands waiting for the writer
+     * @param busyRatio Fraction of the time since the last sample that the writer was not waiting for commands
+     */
+    void onWriterStats(int queueDepth, double busyRatio);
+  }
+
+  protected enum WriterCommandType { ADD_RECORD, FLUSH }
+
+  /**
+   * Reusable slot of the writer command ring buffer
+   *
+   * Filled in by the client thread. The writer thread copies out what it needs and clears
+   * the slot before releasing it
+   */
+  protected static class WriterCommand {
+    public WriterCommandType type;
+    public String source;
+    public IndexRequest request;
+    public CompletableFuture<Void> flushCompletedFuture;
+
+    public void setAddCmd(String source, IndexRequest request) {
+      this.type = WriterCommandType.ADD_RECORD;
+      this.source = source;
       this.request = request;
+      this.flushCompletedFuture = null;
+    }
+
+    public void setFlushCmd(CompletableFuture<Void> flushCompletedFuture) {
+      this.type = WriterCommandType.FLUSH;
+      this.source = null;
+      this.request = null;
       this.flushCompletedFuture = flushCompletedFuture;
     }
 
-    public final WriterCommandType type;
-    public final SourcedIndexRequest request;
-    public final CompletableFuture<Void> flushCompletedFuture;
+    public SourcedIndexRequest getSourcedRequest() {
+      return new SourcedIndexRequest(source, request);
+    }
+
+    /* Drop references so that records can be garbage collected while the slot is idle */
+    public void clear() {
+      this.type = null;
+      this.source = null;
+      this.request = null;
+      this.flushCompletedFuture = null;
+    }
   }
 
   protected static final int SHUTDOWN_WAIT_MS = 100;
+  protected static final long WRITER_STATS_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
   protected final String dataSource;
   protected final Writer writer;
-  protected final ArrayBlockingQueue<WriterCommand> writerCmdQueue;
+  protected final SPSCRingBuffer<WriterCommand> writerCmdRing;
   protected final ExecutorService writerExecSvc;
+  protected final Optional<QueueListener> queueListener;
   protected Future<Void> writerFuture = null;
   protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
 
@@ -154,17 +319,30 @@ public class HTTPTranquilityLoader {
    *
    * Error handling:
    *   - connection/protocol errors are handled here and considered fatal - they are detected on blocking operations
-   *      - addAction (when cmd queue is full)
+   *      - addAction (when cmd ring buffer is full)
    *      - flush
    *   - API errors are checked here and are also considered fatal
    *   - No internal retry support - restart the process to retry
+   *
+   * Threading:
+   *   - commands are handed to the writer thread through a pre-allocated, lock-free {@link SPSCRingBuffer}
+   *   - addAction and flush must always be called from the same thread
+   *
+   * Backpressure:
+   *   - with a queueListener, time the client thread is blocked on a full command queue is reported along
+   *     with samples of the queue depth and how busy the writer is
    */
   public HTTPTranquilityLoader(String dataSource, WriterConfig config, Optional<Consumer<BulkReport>> onFlushOpt) {
+    this(dataSource, config, onFlushOpt, Optional.empty());
+  }
+
+  public HTTPTranquilityLoader(String dataSource, WriterConfig config, Optional<Consumer<BulkReport>> onFlushOpt, Optional<QueueListener> queueListener) {
     this.dataSource = dataSource;
-    this.writerCmdQueue = new ArrayBlockingQueue<>(config.flushMaxRecords);
+    this.queueListener = queueListener;
+    this.writerCmdRing = new SPSCRingBuffer<>(config.flushMaxRecords, WriterCommand::new);
     final String name = config.name;
     this.writerExecSvc = Executors.newFixedThreadPool(1, r -> new Thread(r, name + " Tranquility Writer"));
-    this.writer = new Writer(config, writerCmdQueue, onFlushOpt);
+    this.writer = new Writer(config, writerCmdRing, onFlushOpt);
   }
 
   /**
@@ -178,8 +356,8 @@ public class HTTPTranquilityLoader {
 //    if (logger.isTraceEnabled()) {
 //      logger.trace(String.format("Add index request: dataSource %s, time %s, record %s", dataSource, req.eventTsMs, new String(req.record)));
 //    }
-    WriterCommand addCmd = WriterCommand.getAddCmd(new SourcedIndexRequest(source, req));
-    sendCmd(addCmd);
+    claimCmdSlot().setAddCmd(source, req);
+    writerCmdRing.publish();
   }
 
   /**
@@ -188,14 +366,15 @@ public class HTTPTranquilityLoader {
    * Error contract: will throw an Exception if a fatal errors occur in the writer thread
    */
   public void flush() throws Throwable {
-    WriterCommand flushCmd = WriterCommand.getFlushCmd();
-    sendCmd(flushCmd);
+    CompletableFuture<Void> flushCompletedFuture = new CompletableFuture<>();
+    claimCmdSlot().setFlushCmd(flushCompletedFuture);
+    writerCmdRing.publish();
     try {
       //Wait on flush to complete - may block if writer is dead so we must periodically check
       boolean waiting = true;
       while (waiting) {
         try {
-          flushCmd.flushCompletedFuture.get(100, TimeUnit.MILLISECONDS);
+          flushCompletedFuture.get(100, TimeUnit.MILLISECONDS);
           waiting = false;
         }
         catch (TimeoutException e) {
@@ -208,7 +387,7 @@ public class HTTPTranquilityLoader {
         Try for a clean shutdown by waiting a little longer on the flush
        */
       try {
-        flushCmd.flushCompletedFuture.get(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS);
+        flushCompletedFuture.get(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS);
       } catch (Exception retryEx) {
         throw new IOException("Error trying to flush to Tranquility server on shutdown", e);
       }
@@ -248,12 +427,33 @@ public class HTTPTranquilityLoader {
     }
   }
 
-  protected void sendCmd(WriterCommand cmd) throws Throwable {
+  /**
+   * Claims the next command slot. The caller must fill it in and publish it
+   */
+  protected WriterCommand claimCmdSlot() throws Throwable {
+    WriterCommand slot = writerCmdRing.tryClaim();
+    if (slot != null) {
+      return slot;
+    }
+    long blockedStartNs = System.nanoTime();
+    try {
+      return waitForCmdSlot();
+    }
+    finally {
+      if (queueListener.isPresent()) {
+        queueListener.get().onBlocked(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - blockedStartNs));
+      }
+    }
+  }
+
+  protected WriterCommand waitForCmdSlot() throws Throwable {
     try {
-      //May block if queue is full so we must periodically check that writer is alive
-      while (!writerCmdQueue.offer(cmd, 100, TimeUnit.MILLISECONDS)) {
+      //May block if ring buffer is full so we must periodically check that writer is alive
+      WriterCommand slot;
+      while ((slot = writerCmdRing.claim(100, TimeUnit.MILLISECONDS)) == null) {
         checkWriter();
       }
+      return slot;
     }
     catch (ExecutionException e) {
       logger.error("Tranquility writer died", e.getCause());
@@ -264,9 +464,11 @@ public class HTTPTranquilityLoader {
         Try for a clean shutdown by waiting a little longer to enqueue the message
        */
       try {
-        if (!writerCmdQueue.offer(cmd, SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) {
+        WriterCommand slot = writerCmdRing.claim(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS);
+        if (slot == null) {
           throw new IOException("Timed out trying to pass message to Tranquility writer on shutdown");
         }
+        return slot;
       }
       catch (InterruptedException e) {
         throw new IOException("Interrupted passing message to Tranquility writer", e);
@@ -283,19 +485,22 @@ public class HTTPTranquilityLoader {
    * and throw exception.
    */
   protected class Writer implements Callable<Void> {
-    protected final byte[] newLineBytes = "\n".getBytes(StandardCharsets.UTF_8);
     protected final CloseableHttpClient httpClient;
     protected final WriterConfig config;
     protected final Optional<Consumer<BulkReport>> onFlushOpt;
-    protected final BlockingQueue<WriterCommand> cmdQueue;
+    protected final SPSCRingBuffer<WriterCommand> cmdRing;
     protected final JsonSerde jsonSerde;
     protected long lastFlushTsMs;
-    protected final List<WriterCommand> requests;
+    protected List<SourcedIndexRequest> requests;
+    protected long requestBytes = 0;
+    /* Writer busy/idle time since the last stats sample */
+    protected long statsStartNs = System.nanoTime();
+    protected long idleNs = 0;
     protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
 
-    public Writer(WriterConfig config, BlockingQueue<WriterCommand> cmdQueue, Optional<Consumer<BulkReport>> onFlushOpt) {
+    public Writer(WriterConfig config, SPSCRingBuffer<WriterCommand> cmdRing, Optional<Consumer<BulkReport>> onFlushOpt) {
       this.config = config;
-      this.cmdQueue = cmdQueue;
+      this.cmdRing = cmdRing;
       this.onFlushOpt = onFlushOpt;
       this.requests = new ArrayList<>(config.flushMaxRecords);
       httpClient = HttpClients.createDefault();
@@ -335,10 +540,14 @@ public class HTTPTranquilityLoader {
             flush(TriggerType.MAX_INTERVAL);
           }
           else if (cmd.type.equals(WriterCommandType.ADD_RECORD)) {
-            handleAddCmd(cmd);
+            SourcedIndexRequest req = cmd.getSourcedRequest();
+            release(cmd);
+            handleAddCmd(req);
           }
           else if (cmd.type.equals(WriterCommandType.FLUSH)) {
-            handleFlushCmd(cmd);
+            CompletableFuture<Void> flushCompletedFuture = cmd.flushCompletedFuture;
+            release(cmd);
+            handleFlushCmd(flushCompletedFuture);
           }
           else {
             throw new IllegalStateException("Unknown cmd type: " + cmd.type);
@@ -356,18 +565,55 @@ public class HTTPTranquilityLoader {
     }
 
     protected WriterCommand poll() throws InterruptedException {
+      if (!queueListener.isPresent()) {
+        return waitForCmd();
+      }
+      long idleStartNs = System.nanoTime();
+      try {
+        return waitForCmd();
+      }
+      finally {
+        onIdle(idleStartNs, System.nanoTime());
+      }
+    }
+
+    protected WriterCommand waitForCmd() throws InterruptedException {
       if (config.flushMaxIntervalMs.isPresent()) {
         long msSinceLastFlush = System.currentTimeMillis() - lastFlushTsMs;
         long msUntilFlush = Math.max(0, config.flushMaxIntervalMs.get().longValue() - msSinceLastFlush);
         if (msUntilFlush == 0) {
           return null;
         }
-        return cmdQueue.poll(msUntilFlush, TimeUnit.MILLISECONDS);
+        return cmdRing.poll(msUntilFlush, TimeUnit.MILLISECONDS);
+      }
+      return cmdRing.take();
+    }
+
+    /**
+     * Adds to the idle time and reports the stats once the interval is up
+     */
+    protected void onIdle(long idleStartNs, long idleEndNs) {
+      idleNs += idleEndNs - idleStartNs;
+      long intervalNs = idleEndNs - statsStartNs;
+      if (intervalNs >= WRITER_STATS_INTERVAL_NS) {
+        double busyRatio = Math.max(0.0, (double) (intervalNs - idleNs) / intervalNs);
+        queueListener.get().onWriterStats(cmdRing.size(), busyRatio);
+        statsStartNs = idleEndNs;
+        idleNs = 0;
       }
-      return cmdQueue.take();
+    }
+
+    /**
+     * Hands the slot back to the client thread. Must be done before anything that may block
+     * (e.g. a flush) so that the client can keep adding
+     */
+    protected void release(WriterCommand cmd) {
+      cmd.clear();
+      cmdRing.release();
     }
 
     protected void flush(TriggerType triggerType) throws IOException {
+      long triggerTsMs = System.currentTimeMillis();
       if (requests.size() == 0) {
         if (logger.isTraceEnabled()) {
           logger.trace("No records to flush for " + triggerType);
@@ -376,29 +622,30 @@ public class HTTPTranquilityLoader {
         return;
       }
 
-      List<SourcedIndexRequest> sourcedReqs = null;
-      if (onFlushOpt.isPresent()) {
-        //This must be done before the list is cleared in the finally block
-        sourcedReqs = requests.stream().map(cmd -> cmd.request).collect(Collectors.toList());
-      }
+      //The batch is handed over with the BulkReport so start a new list rather than clearing it
+      List<SourcedIndexRequest> sourcedReqs = requests;
+      requests = new ArrayList<>(config.flushMaxRecords);
 
       if (logger.isTraceEnabled()) {
-        logger.trace(String.format("Flushing %s records", requests.size()));
+        logger.trace(String.format("Flushing %s records", sourcedReqs.size()));
       }
       long waitMs = 0;
+      long batchBytes = requestBytes;
+      RecordsEntity entity = new RecordsEntity(sourcedReqs, requestBytes, config.httpClientConfig.gzip);
       Response response;
       try {
         long startMs = System.currentTimeMillis();
-        response = sendToServer();
+        response = sendToServer(entity);
         waitMs = System.currentTimeMillis() - startMs;
       }
       finally {
-        requests.clear();
+        requestBytes = 0;
         lastFlushTsMs = System.currentTimeMillis();
       }
       //Callback flush listener on success
       if (onFlushOpt.isPresent()) {
-        onFlushOpt.get().accept(new BulkReport(response, triggerType, waitMs, sourcedReqs));
+        onFlushOpt.get().accept(new BulkReport(response, triggerType, waitMs, batchBytes, entity.getCompressedBytes(),
+            System.currentTimeMillis() - triggerTsMs, sourcedReqs));
       }
     }
 
@@ -406,13 +653,9 @@ public class HTTPTranquilityLoader {
      *
      * Tranquility protocol: https://github.com/druid-io/tranquility/blob/master/docs/server.md
      */
-    protected Response sendToServer() throws IOException {
-      assert requests.size() > 0;
-
+    protected Response sendToServer(HttpEntity entity) throws IOException {
       HttpPost httpPost = new HttpPost(config.tranquilityServerUrl + dataSource);
-      ByteArrayEntity entity = new ByteArrayEntity(getBody());
       httpPost.setEntity(entity);
-      httpPost.setHeader("Content-type", "application/json");
 
       try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
         int statusCode = response.getStatusLine().getStatusCode();
@@ -437,42 +680,39 @@ public class HTTPTranquilityLoader {
       }
     }
 
-    protected byte[] getBody() {
-      int size4Records = requests.stream().mapToInt(cmd -> cmd.request.request.record.length).sum();
-      int size = size4Records + newLineBytes.length*requests.size();
-
-      ByteBuffer buffer = ByteBuffer.wrap(new byte[size]);
-      for (WriterCommand cmd : requests) {
-        buffer.put(cmd.request.request.record);
-        buffer.put(newLineBytes);
-      }
-      return buffer.array();
-    }
-
     /**
      * Informs main thread of any errors via Future and by dying
      */
-    protected void handleFlushCmd(WriterCommand cmd) throws Exception {
+    protected void handleFlushCmd(CompletableFuture<Void> flushCompletedFuture) throws Exception {
       logger.trace("Received flush cmd");
       try {
         flush(TriggerType.FLUSH_CMD);
-        cmd.flushCompletedFuture.complete(null);
+        flushCompletedFuture.complete(null);
       }
       catch (Exception e) {
-        cmd.flushCompletedFuture.completeExceptionally(e);
+        flushCompletedFuture.completeExceptionally(e);
         throw e;
       }
     }
 
-    protected void handleAddCmd(WriterCommand cmd) throws IOException {
-      requests.add(cmd);
+    protected void handleAddCmd(SourcedIndexRequest req) throws IOException {
+      long recordBytes = req.request.record.length + UTF8.NEWLINE.length;
+      //Send what we have if this record would take the request over the size limit
+      if (config.flushMaxBytes.isPresent() && requests.size() > 0 && requestBytes + recordBytes > config.flushMaxBytes.get()) {
+        flush(TriggerType.MAX_BYTES);
+      }
+      requests.add(req);
+      requestBytes += recordBytes;
 //      if (logger.isTraceEnabled()) {
 //        logger.trace(String.format("Received add: source %s, count %s",
-//                cmd.request.source, requests.size()));
+//                req.source, requests.size()));
 //      }
       if (requests.size() >= config.flushMaxRecords) {
         flush(TriggerType.MAX_RECORDS);
       }
+      else if (config.flushMaxBytes.isPresent() && requestBytes >= config.flushMaxBytes.get()) {
+        flush(TriggerType.MAX_BYTES);
+      }
     }
 
   }
@@ -31,14 +31,21 @@ public class HTTPTranquilityLoaderFactory {
   }
 
   public HTTPTranquilityLoader getBulkLoader(String systemName, Consumer<HTTPTranquilityLoader.BulkReport> onFlush) {
+    return getBulkLoader(systemName, onFlush, Optional.empty());
+  }
+
+  public HTTPTranquilityLoader getBulkLoader(String systemName, Consumer<HTTPTranquilityLoader.BulkReport> onFlush,
+                                             Optional<HTTPTranquilityLoader.QueueListener> queueListener) {
     HTTPTranquilityLoader.WriterConfig loaderConf = new HTTPTranquilityLoader.WriterConfig(
         systemName,
         config.getHTTPURL(),
-        new HTTPTranquilityLoader.HTTPClientConfig(config.getConnectTimeoutMs(), config.getReadTimeoutMs()),
+        new HTTPTranquilityLoader.HTTPClientConfig(config.getConnectTimeoutMs(), config.getReadTimeoutMs(),
+            config.getCompression().equals(TranquilityConfig.Compression.GZIP)),
         config.getBulkFlushMaxActions(),
-        config.getBulkFlushIntervalMS()
+        config.getBulkFlushIntervalMS(),
+        config.getBulkFlushMaxBytes()
     );
-    return new HTTPTranquilityLoader(config.getDatasource(), loaderConf, Optional.of(onFlush));
+    return new HTTPTranquilityLoader(config.getDatasource(), loaderConf, Optional.of(onFlush), queueListener);
   }
 
 }
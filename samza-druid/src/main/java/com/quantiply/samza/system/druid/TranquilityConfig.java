@@ -25,14 +25,19 @@ import java.util.Map;
 import java.util.Optional;
 
 public class TranquilityConfig extends MapConfig {
+
+  public enum Compression { NONE, GZIP }
+
   private static final Logger LOGGER = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
 
   public static final String CONFIG_KEY_DATASOURCE = "datasource";
   public static final String CONFIG_KEY_FLUSH_MAX_ACTIONS = "flush.max.records";
   public static final String CONFIG_KEY_FLUSH_INTERVALS_MS = "flush.interval.ms";
+  public static final String CONFIG_KEY_FLUSH_MAX_BYTES = "flush.max.bytes";
   public static final String CONFIG_KEY_HTTP_URL = "http.url";
   public static final String CONFIG_KEY_HTTP_CONNECT_TIMEOUT_MS = "http.connect.timeout.ms";
   public static final String CONFIG_KEY_HTTP_READ_TIMEOUT_MS = "http.read.timeout.ms";
+  public static final String CONFIG_KEY_HTTP_COMPRESSION = "http.compression";
   public static final String CONFIG_KEY_EVENT_TIME_EXTRACTOR_FACTORY = "event.time.extractor.factory";
 
   private final String systemName;
@@ -72,6 +77,11 @@ public class TranquilityConfig extends MapConfig {
     return getInt(CONFIG_KEY_HTTP_READ_TIMEOUT_MS, 60000);
   }
 
+  public Compression getCompression() {
+    String compressionStr = get(CONFIG_KEY_HTTP_COMPRESSION, "none").toUpperCase();
+    return Compression.valueOf(compressionStr);
+  }
+
   public int getBulkFlushMaxActions() {
     return getInt(CONFIG_KEY_FLUSH_MAX_ACTIONS, 1000);
   }
@@ -88,6 +98,18 @@ public class TranquilityConfig extends MapConfig {
     }
   }
 
+  public Optional<Long> getBulkFlushMaxBytes() {
+    if (containsKey(CONFIG_KEY_FLUSH_MAX_BYTES)) {
+      long maxBytes = getLong(CONFIG_KEY_FLUSH_MAX_BYTES);
+      if (maxBytes <= 0) {
+        throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_FLUSH_MAX_BYTES));
+      }
+      return Optional.of(maxBytes);
+    } else {
+      return Optional.empty();
+    }
+  }
+
   private void logAllSettings(Config config) {
     StringBuilder b = new StringBuilder();
     b.append("Tranquility (HTTP) System settings: ");
@@ -40,7 +40,8 @@ public class TranquilitySystemProducer implements SystemProducer {
                                    TranquilitySystemProducerMetrics metrics) {
     this.systemName = systemName;
     this.eventTsExtractor = eventTsExtractor;
-    this.bulkLoader = bulkLoaderFactory.getBulkLoader(systemName, new FlushListener(metrics, systemName));
+    this.bulkLoader = bulkLoaderFactory.getBulkLoader(systemName, new FlushListener(metrics, systemName),
+        Optional.of(new QueueListener(metrics)));
   }
 
   @Override
@@ -136,10 +137,20 @@ public class TranquilitySystemProducer implements SystemProducer {
       metrics.bulkSendSuccess.inc();
       metrics.bulkSendBatchSize.update(report.requests.size());
       metrics.bulkSendWaitMs.update(report.waitMs);
+      if (report.triggerToAckMs > 0) {
+        metrics.triggerToAckMs.update(report.triggerToAckMs);
+      }
+      metrics.bulkSendBatchBytes.update(report.batchBytes);
+      if (report.compressedBytes > 0) {
+        metrics.bulkSendCompressedBytes.update(report.compressedBytes);
+      }
       switch (report.triggerType) {
         case MAX_RECORDS:
           metrics.triggerMaxRecords.inc();
           break;
+        case MAX_BYTES:
+          metrics.triggerMaxBytes.inc();
+          break;
         case MAX_INTERVAL:
           metrics.triggerMaxInterval.inc();
           break;
@@ -162,5 +173,26 @@ public class TranquilitySystemProducer implements SystemProducer {
 
   }
 
-}
+  /**
+   * Backpressure metrics, runs in the task and writer threads
+   */
+  protected static class QueueListener implements HTTPTranquilityLoader.QueueListener {
+    protected final TranquilitySystemProducerMetrics metrics;
+
+    public QueueListener(TranquilitySystemProducerMetrics metrics) {
+      this.metrics = metrics;
+    }
 
+    @Override
+    public void onBlocked(long blockedMs) {
+      metrics.cmdBlockedMs.update(blockedMs);
+    }
+
+    @Override
+    public void onWriterStats(int queueDepth, double busyRatio) {
+      metrics.cmdQueueDepth.set(queueDepth);
+      metrics.writerBusyRatio.set(busyRatio);
+    }
+  }
+
+}
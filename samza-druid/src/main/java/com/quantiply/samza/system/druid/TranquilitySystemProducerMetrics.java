@@ -19,19 +19,27 @@ import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.quantiply.samza.MetricAdaptor;
 import org.apache.samza.metrics.Counter;
+import org.apache.samza.metrics.Gauge;
 import org.apache.samza.metrics.MetricsRegistry;
 
 public class TranquilitySystemProducerMetrics {
   public final Counter bulkSendSuccess;
   public final Histogram bulkSendBatchSize;
   public final Histogram bulkSendWaitMs;
+  public final Histogram bulkSendBatchBytes;
+  public final Histogram bulkSendCompressedBytes;
   public final Counter triggerFlushCmd;
   public final Counter triggerMaxRecords;
+  public final Counter triggerMaxBytes;
   public final Counter triggerMaxInterval;
   public final Histogram lagFromReceiveMs;
   public final Histogram lagFromOriginMs;
   public final Counter sent;
   public final Counter dropped;
+  public final Gauge<Integer> cmdQueueDepth;
+  public final Histogram cmdBlockedMs;
+  public final Gauge<Double> writerBusyRatio;
+  public final Histogram triggerToAckMs;
   private final MetricsRegistry registry;
   private final String group;
   private final String systemName;
@@ -46,19 +54,30 @@ public class TranquilitySystemProducerMetrics {
     bulkSendSuccess = newCounter("bulk-send-success");
     bulkSendBatchSize = newHistogram(adaptor, "bulk-send-batch-size");
     bulkSendWaitMs = newHistogram(adaptor, "bulk-send-wait-ms");
+    bulkSendBatchBytes = newHistogram(adaptor, "bulk-send-batch-bytes");
+    bulkSendCompressedBytes = newHistogram(adaptor, "bulk-send-compressed-bytes");
     triggerFlushCmd = newCounter("bulk-send-trigger-flush-cmd");
     triggerMaxRecords = newCounter("bulk-send-trigger-max-records");
+    triggerMaxBytes = newCounter("bulk-send-trigger-max-bytes");
     triggerMaxInterval = newCounter("bulk-send-trigger-max-interval");
     lagFromReceiveMs = newHistogram(adaptor, "lag-from-receive-ms");
     lagFromOriginMs = newHistogram(adaptor, "lag-from-origin-ms");
     sent = newCounter("sent");
     dropped = newCounter("dropped");
+    cmdQueueDepth = newGauge("bulk-send-cmd-queue-depth", 0);
+    cmdBlockedMs = newHistogram(adaptor, "bulk-send-cmd-blocked-ms");
+    writerBusyRatio = newGauge("bulk-send-writer-busy-ratio", 0.0);
+    triggerToAckMs = newHistogram(adaptor, "bulk-send-trigger-to-ack-ms");
   }
 
   private Histogram newHistogram(MetricAdaptor adaptor, String name) {
     return adaptor.histogram((systemName + "-" + name).toLowerCase());
   }
 
+  private <T> Gauge<T> newGauge(String name, T value) {
+    return registry.newGauge(group, (systemName + "-" + name).toLowerCase(), value);
+  }
+
   private Counter newCounter(String name) {
     return registry.newCounter(group, (systemName + "-" + name).toLowerCase());
   }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Actions of one bulk request along with the receive and event time of every action added to it
+ *
+ * Meant to be cleared and reused between requests (see {@link ActionBatchPool}) so that steady state batching
+ * does not allocate. Times are kept in primitive arrays, one entry per action added including the ones merged
+ * into others by coalescing, so that lag can be reported without going through the requests.
+ *
+ * Not thread safe. Filled in by the writer thread and read by the thread that reports the bulk result
+ */
+public class ActionBatch {
+  /* Event time of actions that don't have one */
+  public static final long NO_EVENT_TS = Long.MIN_VALUE;
+  protected final List<HTTPBulkLoader.SourcedActionRequest> requests;
+  protected long[] receivedTsMs;
+  protected long[] eventTsMs;
+  protected int actionCount = 0;
+
+  public ActionBatch(int initialCapacity) {
+    int capacity = Math.max(initialCapacity, 1);
+    this.requests = new ArrayList<>(capacity);
+    this.receivedTsMs = new long[capacity];
+    this.eventTsMs = new long[capacity];
+  }
+
+  /**
+   * Batch of the requests with the times of their actions, including coalesced ones
+   */
+  public static ActionBatch of(List<HTTPBulkLoader.SourcedActionRequest> requests) {
+    ActionBatch batch = new ActionBatch(requests.size());
+    for (HTTPBulkLoader.SourcedActionRequest req : requests) {
+      batch.add(req);
+      batch.addTimes(req.request);
+      for (HTTPBulkLoader.ActionRequest coalesced : req.coalesced) {
+        batch.addTimes(coalesced);
+      }
+    }
+    return batch;
+  }
+
+  public ActionBatch copy() {
+    ActionBatch copy = new ActionBatch(Math.max(requests.size(), actionCount));
+    copy.requests.addAll(requests);
+    System.arraycopy(receivedTsMs, 0, copy.receivedTsMs, 0, actionCount);
+    System.arraycopy(eventTsMs, 0, copy.eventTsMs, 0, actionCount);
+    copy.actionCount = actionCount;
+    return copy;
+  }
+
+  public void add(HTTPBulkLoader.SourcedActionRequest req) {
+    requests.add(req);
+  }
+
+  public void set(int position, HTTPBulkLoader.SourcedActionRequest req) {
+    requests.set(position, req);
+  }
+
+  public HTTPBulkLoader.SourcedActionRequest get(int position) {
+    return requests.get(position);
+  }
+
+  /**
+   * Number of requests in the batch - coalesced actions are not counted
+   */
+  public int size() {
+    return requests.size();
+  }
+
+  public List<HTTPBulkLoader.SourcedActionRequest> getRequests() {
+    return requests;
+  }
+
+  /**
+   * Records the times of an action added to the batch
+   */
+  public void addTimes(HTTPBulkLoader.ActionRequest req) {
+    if (actionCount == receivedTsMs.length) {
+      receivedTsMs = Arrays.copyOf(receivedTsMs, actionCount * 2);
+      eventTsMs = Arrays.copyOf(eventTsMs, actionCount * 2);
+    }
+    Long eventTs = req.key.getEventTsUnixMs();
+    receivedTsMs[actionCount] = req.receivedTsMs;
+    eventTsMs[actionCount] = eventTs == null ? NO_EVENT_TS : eventTs;
+    actionCount++;
+  }
+
+  /**
+   * Number of actions added to the batch, including coalesced ones
+   */
+  public int getActionCount() {
+    return actionCount;
+  }
+
+  public long getReceivedTsMs(int i) {
+    return receivedTsMs[i];
+  }
+
+  /**
+   * @return NO_EVENT_TS if the action did not have an event time
+   */
+  public long getEventTsMs(int i) {
+    return eventTsMs[i];
+  }
+
+  /**
+   * Number of action times the batch can hold without growing
+   */
+  public int capacity() {
+    return receivedTsMs.length;
+  }
+
+  /* Drop references so that documents can be garbage collected while the batch is pooled */
+  public void clear() {
+    requests.clear();
+    actionCount = 0;
+  }
+}
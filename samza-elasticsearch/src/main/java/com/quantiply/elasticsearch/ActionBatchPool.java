@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of action batches, one for the batch being filled and one per in-flight request
+ *
+ * Batches are released by sender or I/O threads and acquired by the writer. Batches that have grown to hold more
+ * than MAX_POOLED_CAPACITY_FACTOR times the initial capacity (coalescing can add many actions per request) are
+ * released to the GC instead of being kept around
+ */
+public class ActionBatchPool {
+  protected static final int MAX_POOLED_CAPACITY_FACTOR = 4;
+  protected final BlockingQueue<ActionBatch> batches;
+  protected final int initialCapacity;
+
+  public ActionBatchPool(int maxPooledBatches, int initialCapacity) {
+    this.batches = new ArrayBlockingQueue<>(maxPooledBatches);
+    this.initialCapacity = initialCapacity;
+  }
+
+  public ActionBatch acquire() {
+    ActionBatch batch = batches.poll();
+    return batch == null ? new ActionBatch(initialCapacity) : batch;
+  }
+
+  public void release(ActionBatch batch) {
+    batch.clear();
+    if (batch.capacity() <= (long) initialCapacity * MAX_POOLED_CAPACITY_FACTOR) {
+      batches.offer(batch);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.quantiply.rico.elasticsearch.Action;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Merges actions on the same document (index/type/id/routing) within a batch
+ *
+ *   - INDEX replaces any earlier action - the last write wins
+ *   - DELETE replaces any earlier action
+ *   - UPDATE is merged into an UPDATE right before it. Partial documents are merged the same way
+ *     Elasticsearch does it: objects recursively, anything else is replaced by the later value
+ *   - an UPDATE after an INDEX or DELETE is kept as a separate action
+ *
+ * Actions with an explicit version are never merged since Elasticsearch may reject some of them.
+ * Neither are actions without an id or updates with anything other than a partial doc (e.g. a script)
+ *
+ * Tracks the position of the latest action for each document in the current batch
+ *
+ * Not thread safe - only used by the writer thread
+ */
+public class ActionCoalescer {
+  protected final Map<String, Integer> positions = new HashMap<>();
+  protected final JsonParser jsonParser = new JsonParser();
+
+  /**
+   * Position of the latest action on the document in the batch or -1 if none
+   */
+  public int getPosition(String docKey) {
+    Integer position = positions.get(docKey);
+    return position == null ? -1 : position;
+  }
+
+  public void setPosition(String docKey, int position) {
+    positions.put(docKey, position);
+  }
+
+  /**
+   * Call when a new batch is started
+   */
+  public void clear() {
+    positions.clear();
+  }
+
+  public boolean isCoalescable(HTTPBulkLoader.ActionRequest req) {
+    return req.key.getId() != null && req.key.getVersion() == null;
+  }
+
+  /**
+   * Returns a single action with the effect of prev followed by next or null if they must both be sent
+   */
+  public HTTPBulkLoader.ActionRequest merge(HTTPBulkLoader.ActionRequest prev, HTTPBulkLoader.ActionRequest next) {
+    if (!isCoalescable(prev) || !isCoalescable(next)) {
+      return null;
+    }
+    switch (next.key.getAction()) {
+      case INDEX:
+      case DELETE:
+        return next;
+      case UPDATE:
+        if (prev.key.getAction() != Action.UPDATE) {
+          return null;
+        }
+        String document = mergeUpdateDocs(prev.getDocument(), next.getDocument());
+        if (document == null) {
+          return null;
+        }
+        return new HTTPBulkLoader.ActionRequest(next.key, next.index, next.docType, next.receivedTsMs, document);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Merges two {"doc":{...}} update bodies. Returns null if either one is anything else
+   */
+  protected String mergeUpdateDocs(String prevDoc, String nextDoc) {
+    JsonObject prevPartial = getPartialDoc(prevDoc);
+    JsonObject nextPartial = getPartialDoc(nextDoc);
+    if (prevPartial == null || nextPartial == null) {
+      return null;
+    }
+    mergeObjects(prevPartial, nextPartial);
+    JsonObject update = new JsonObject();
+    update.add("doc", prevPartial);
+    return update.toString();
+  }
+
+  protected JsonObject getPartialDoc(String document) {
+    if (document == null) {
+      return null;
+    }
+    try {
+      JsonElement update = jsonParser.parse(document);
+      if (!update.isJsonObject() || update.getAsJsonObject().entrySet().size() != 1) {
+        return null;
+      }
+      JsonElement doc = update.getAsJsonObject().get("doc");
+      return doc != null && doc.isJsonObject() ? doc.getAsJsonObject() : null;
+    }
+    catch (JsonParseException e) {
+      return null;
+    }
+  }
+
+  protected void mergeObjects(JsonObject target, JsonObject source) {
+    for (Map.Entry<String, JsonElement> entry : source.entrySet()) {
+      JsonElement existing = target.get(entry.getKey());
+      if (existing != null && existing.isJsonObject() && entry.getValue().isJsonObject()) {
+        mergeObjects(existing.getAsJsonObject(), entry.getValue().getAsJsonObject());
+      }
+      else {
+        target.add(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+/**
+ * Additive increase/multiplicative decrease (AIMD) of the number of actions per bulk request
+ *
+ *   - grows by increaseActions after each full batch that Elasticsearch acknowledged within the target latency
+ *   - shrinks by decreaseFactor when a batch is slower than the target or has rejected (429/503) items
+ *   - stays between minActions and maxActions
+ *
+ * Batches smaller than the current size (e.g. sent on the flush interval) only ever shrink the size
+ * since their latency says little about how a full batch would do
+ *
+ * Updated from sender threads and read from the writer thread
+ */
+public class AdaptiveBatchSizer {
+  protected final long targetLatencyMs;
+  protected final int minActions;
+  protected final int maxActions;
+  protected final int increaseActions;
+  protected final double decreaseFactor;
+  protected volatile int batchSize;
+
+  public AdaptiveBatchSizer(HTTPBulkLoader.AdaptiveConfig config, int maxActions) {
+    this.targetLatencyMs = config.targetLatencyMs;
+    this.minActions = Math.min(config.minActions, maxActions);
+    this.maxActions = maxActions;
+    this.increaseActions = config.increaseActions;
+    this.decreaseFactor = config.decreaseFactor;
+    this.batchSize = this.minActions;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public synchronized void onResponse(int actions, long esWaitMs, int rejectedActions) {
+    if (rejectedActions > 0 || esWaitMs > targetLatencyMs) {
+      batchSize = Math.max(minActions, (int) (batchSize * decreaseFactor));
+    }
+    else if (actions >= batchSize) {
+      batchSize = Math.min(maxActions, batchSize + increaseActions);
+    }
+  }
+}
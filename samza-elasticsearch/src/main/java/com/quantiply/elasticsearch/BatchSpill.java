@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import com.quantiply.io.MappedSegmentQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Bulk requests of a {@link HTTPBulkLoader} that could not be sent right away, in a {@link MappedSegmentQueue}
+ *
+ * Batches are kept in the order they were spilled along with their sequence numbers. The oldest one is read
+ * back and held until the writer can send it. Files are removed on close
+ *
+ * Only used by the writer thread
+ */
+public class BatchSpill implements Closeable {
+  protected final MappedSegmentQueue queue;
+  protected final SpilledBatchCodec codec = new SpilledBatchCodec();
+  /* Oldest spilled batch once it has been read back, until it is removed */
+  protected SpilledBatchCodec.SpilledBatch head = null;
+  /* Sequence numbers of the spilled batches, in the same order */
+  protected final Deque<Long> batchSeqs = new ArrayDeque<>();
+  protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
+
+  public BatchSpill(HTTPBulkLoader.SpillConfig config, String name) throws IOException {
+    this.queue = new MappedSegmentQueue(config.dir, name.replaceAll("[^A-Za-z0-9_.-]", "_") + "-", config.segmentBytes, config.maxBytes);
+    logger.info("Spilling bulk requests to " + queue.getDirectory());
+  }
+
+  public boolean isEmpty() {
+    return head == null && queue.isEmpty();
+  }
+
+  public byte[] encode(List<HTTPBulkLoader.SourcedActionRequest> batch, long batchBytes, HTTPBulkLoader.TriggerType triggerType, long triggerTsMs) throws IOException {
+    return codec.encode(batch, batchBytes, triggerType, triggerTsMs);
+  }
+
+  /**
+   * Adds the encoded batch at the end
+   *
+   * @return false if the spill is full
+   */
+  public boolean offer(byte[] record, long batchSeq) throws IOException {
+    if (!queue.offer(record)) {
+      return false;
+    }
+    batchSeqs.addLast(batchSeq);
+    if (head == null && queue.size() == 1) {
+      logger.info("Elasticsearch is falling behind. Spilling bulk requests");
+    }
+    return true;
+  }
+
+  /**
+   * The oldest spilled batch, read back from the queue the first time. Must not be empty
+   */
+  public SpilledBatchCodec.SpilledBatch peek() throws IOException {
+    if (head == null) {
+      head = codec.decode(queue.poll());
+    }
+    return head;
+  }
+
+  /**
+   * Removes the oldest spilled batch once it has been sent
+   *
+   * @return its sequence number
+   */
+  public long remove() {
+    head = null;
+    long batchSeq = batchSeqs.removeFirst();
+    if (isEmpty()) {
+      logger.info("Elasticsearch caught up. All spilled bulk requests have been sent");
+    }
+    return batchSeq;
+  }
+
+  @Override
+  public void close() throws IOException {
+    head = null;
+    batchSeqs.clear();
+    queue.close();
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer for building bulk request bodies
+ *
+ * Meant to be reset and reused between requests so that steady state encoding does not allocate.
+ * Strings are encoded as UTF-8 directly into the buffer.
+ *
+ * Not thread safe
+ */
+public class BulkBuffer {
+  protected static final byte[] HEX = "0123456789abcdef".getBytes();
+  protected byte[] buf;
+  protected int count = 0;
+
+  public BulkBuffer(int initialCapacity) {
+    this.buf = new byte[initialCapacity];
+  }
+
+  public void reset() {
+    count = 0;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public int capacity() {
+    return buf.length;
+  }
+
+  /**
+   * Backing array - only the first size() bytes are valid
+   */
+  public byte[] array() {
+    return buf;
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buf, count);
+  }
+
+  public void write(int b) {
+    ensureCapacity(count + 1);
+    buf[count++] = (byte) b;
+  }
+
+  public void write(byte[] b) {
+    write(b, 0, b.length);
+  }
+
+  public void write(byte[] b, int off, int len) {
+    ensureCapacity(count + len);
+    System.arraycopy(b, off, buf, count, len);
+    count += len;
+  }
+
+  public void writeLong(long value) {
+    writeASCII(Long.toString(value));
+  }
+
+  /**
+   * Writes characters that are known to be 7-bit ASCII
+   */
+  public void writeASCII(CharSequence str) {
+    int len = str.length();
+    ensureCapacity(count + len);
+    for (int i = 0; i < len; i++) {
+      buf[count++] = (byte) str.charAt(i);
+    }
+  }
+
+  /**
+   * Encodes the string as UTF-8 without creating an intermediate byte array
+   *
+   * Unpaired surrogates are written as '?' (same as String.getBytes())
+   */
+  public void writeUTF8(CharSequence str) {
+    int len = str.length();
+    //At most 3 bytes per char (surrogate pairs take 4 bytes for 2 chars)
+    ensureCapacity(count + len * 3);
+    for (int i = 0; i < len; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        buf[count++] = (byte) c;
+      }
+      else {
+        i = writeMultiByte(str, i, c);
+      }
+    }
+  }
+
+  /**
+   * Writes the string as a quoted JSON string, encoded as UTF-8
+   */
+  public void writeJSONString(CharSequence str) {
+    int len = str.length();
+    //At most 6 bytes per char (\\u00XX)
+    ensureCapacity(count + len * 6 + 2);
+    buf[count++] = '"';
+    for (int i = 0; i < len; i++) {
+      char c = str.charAt(i);
+      if (c >= 0x80) {
+        i = writeMultiByte(str, i, c);
+      }
+      else if (c == '"' || c == '\\') {
+        buf[count++] = '\\';
+        buf[count++] = (byte) c;
+      }
+      else if (c < 0x20) {
+        writeEscapedControl(c);
+      }
+      else {
+        buf[count++] = (byte) c;
+      }
+    }
+    buf[count++] = '"';
+  }
+
+  protected void writeEscapedControl(char c) {
+    buf[count++] = '\\';
+    switch (c) {
+      case '\n':
+        buf[count++] = 'n';
+        break;
+      case '\r':
+        buf[count++] = 'r';
+        break;
+      case '\t':
+        buf[count++] = 't';
+        break;
+      case '\b':
+        buf[count++] = 'b';
+        break;
+      case '\f':
+        buf[count++] = 'f';
+        break;
+      default:
+        buf[count++] = 'u';
+        buf[count++] = '0';
+        buf[count++] = '0';
+        buf[count++] = HEX[c >> 4];
+        buf[count++] = HEX[c & 0xF];
+    }
+  }
+
+  /*
+   * Caller must have ensured capacity. Returns the index of the last char consumed
+   */
+  protected int writeMultiByte(CharSequence str, int i, char c) {
+    if (c < 0x800) {
+      buf[count++] = (byte) (0xC0 | (c >> 6));
+      buf[count++] = (byte) (0x80 | (c & 0x3F));
+    }
+    else if (Character.isSurrogate(c)) {
+      if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, str.charAt(i + 1));
+        buf[count++] = (byte) (0xF0 | (cp >> 18));
+        buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        buf[count++] = (byte) (0x80 | (cp & 0x3F));
+        return i + 1;
+      }
+      buf[count++] = '?';
+    }
+    else {
+      buf[count++] = (byte) (0xE0 | (c >> 12));
+      buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      buf[count++] = (byte) (0x80 | (c & 0x3F));
+    }
+    return i;
+  }
+
+  protected void ensureCapacity(int minCapacity) {
+    if (minCapacity > buf.length) {
+      int newCapacity = Math.max(buf.length << 1, minCapacity);
+      buf = Arrays.copyOf(buf, newCapacity);
+    }
+  }
+}
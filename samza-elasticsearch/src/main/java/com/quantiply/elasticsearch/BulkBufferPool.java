@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of request body buffers, one per concurrent request
+ *
+ * Buffers that have grown larger than MAX_POOLED_BUFFER_BYTES are released to the GC instead of being kept around
+ */
+public class BulkBufferPool {
+  protected static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+  protected static final int MAX_POOLED_BUFFER_BYTES = 32 * 1024 * 1024;
+  protected final BlockingQueue<BulkBuffer> buffers;
+
+  public BulkBufferPool(int maxPooledBuffers) {
+    this.buffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+  }
+
+  public BulkBuffer acquire() {
+    BulkBuffer buf = buffers.poll();
+    return buf == null ? new BulkBuffer(INITIAL_BUFFER_BYTES) : buf;
+  }
+
+  public void release(BulkBuffer buf) {
+    if (buf.capacity() <= MAX_POOLED_BUFFER_BYTES) {
+      buf.reset();
+      buffers.offer(buf);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import io.searchbox.core.BulkResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Number of bulk response items by operation and status
+ *
+ * Summarizes a response for metrics without an object per item. A bulk response only has a handful
+ * of distinct operation/status pairs so they are kept in a small list
+ *
+ * Not thread safe
+ */
+public class BulkItemCounts {
+
+  public static class Count {
+    public final String operation;
+    public final int status;
+    protected int count;
+
+    public Count(String operation, int status) {
+      this.operation = operation;
+      this.status = status;
+    }
+
+    public int getCount() {
+      return count;
+    }
+  }
+
+  protected final List<Count> counts = new ArrayList<>(4);
+  protected int total = 0;
+
+  public static BulkItemCounts of(BulkResult result) {
+    BulkItemCounts counts = new BulkItemCounts();
+    if (result != null) {
+      result.getItems().forEach(item -> counts.add(item.operation, item.status));
+    }
+    return counts;
+  }
+
+  public void add(String operation, int status) {
+    add(operation, status, 1);
+  }
+
+  /**
+   * Adds n items. n may be negative to take back items that were counted already
+   */
+  public void add(String operation, int status, int n) {
+    getCount(operation, status).count += n;
+    total += n;
+  }
+
+  public void addAll(BulkItemCounts other) {
+    for (Count count : other.counts) {
+      add(count.operation, count.status, count.count);
+    }
+  }
+
+  public int get(String operation, int status) {
+    for (Count count : counts) {
+      if (count.status == status && count.operation.equals(operation)) {
+        return count.count;
+      }
+    }
+    return 0;
+  }
+
+  public int getTotal() {
+    return total;
+  }
+
+  public List<Count> getCounts() {
+    return Collections.unmodifiableList(counts);
+  }
+
+  protected Count getCount(String operation, int status) {
+    for (Count count : counts) {
+      if (count.status == status && count.operation.equals(operation)) {
+        return count;
+      }
+    }
+    Count count = new Count(operation, status);
+    counts.add(count);
+    return count;
+  }
+}
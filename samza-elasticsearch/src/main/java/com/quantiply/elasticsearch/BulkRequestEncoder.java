@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import com.quantiply.rico.elasticsearch.VersionType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes actions in the newline delimited format of the Elasticsearch bulk API
+ *
+ *    {"index":{"_index":"...","_type":"...","_id":"...","_version":1,"_version_type":"external","_routing":"...","_parent":"..."}}
+ *    {...document...}
+ *
+ * Metadata is written field by field and documents are copied as UTF-8 straight into
+ * the output buffer so no intermediate Strings are built. Byte documents are copied as is.
+ * Produces the same body as JEST.
+ */
+public class BulkRequestEncoder {
+  protected static final byte[] INDEX_FIELD = bytes(",\"_index\":");
+  protected static final byte[] TYPE_FIELD = bytes(",\"_type\":");
+  protected static final byte[] ID_FIELD = bytes(",\"_id\":");
+  protected static final byte[] VERSION_FIELD = bytes(",\"_version\":");
+  protected static final byte[] VERSION_TYPE_FIELD = bytes(",\"_version_type\":");
+  protected static final byte[] ROUTING_FIELD = bytes(",\"_routing\":");
+  protected static final byte[] PARENT_FIELD = bytes(",\"_parent\":");
+  protected static final byte[] METADATA_END = bytes("}}\n");
+  protected static final Map<Action, byte[]> ACTION_START = new EnumMap<>(Action.class);
+  protected static final Map<VersionType, byte[]> VERSION_TYPES = new EnumMap<>(VersionType.class);
+
+  static {
+    for (Action action : Action.values()) {
+      ACTION_START.put(action, bytes("{\"" + action.toString().toLowerCase() + "\":{"));
+    }
+    for (VersionType versionType : VersionType.values()) {
+      VERSION_TYPES.put(versionType, bytes("\"" + versionType.toString().toLowerCase() + "\""));
+    }
+  }
+
+  public void encode(List<HTTPBulkLoader.SourcedActionRequest> batch, BulkBuffer buf) {
+    for (HTTPBulkLoader.SourcedActionRequest req : batch) {
+      encode(req.request, buf);
+    }
+  }
+
+  public void encode(HTTPBulkLoader.ActionRequest req, BulkBuffer buf) {
+    ActionRequestKey key = req.key;
+    Action action = key.getAction();
+    byte[] actionStart = ACTION_START.get(action);
+    if (actionStart == null) {
+      throw new IllegalStateException("Unknown action: " + action);
+    }
+    buf.write(actionStart);
+    //Every field is written with a leading comma so skip it for the first one
+    buf.write(INDEX_FIELD, 1, INDEX_FIELD.length - 1);
+    buf.writeJSONString(req.index);
+    buf.write(TYPE_FIELD);
+    buf.writeJSONString(req.docType);
+    if (key.getId() != null) {
+      buf.write(ID_FIELD);
+      buf.writeJSONString(key.getId());
+    }
+    if (key.getVersion() != null) {
+      buf.write(VERSION_FIELD);
+      buf.writeLong(key.getVersion());
+    }
+    if (key.getVersionType() != null) {
+      buf.write(VERSION_TYPE_FIELD);
+      buf.write(VERSION_TYPES.get(key.getVersionType()));
+    }
+    if (key.getRouting() != null) {
+      buf.write(ROUTING_FIELD);
+      buf.writeJSONString(key.getRouting());
+    }
+    if (key.getParent() != null) {
+      buf.write(PARENT_FIELD);
+      buf.writeJSONString(key.getParent());
+    }
+    buf.write(METADATA_END);
+    if (action != Action.DELETE && req.documentBytes != null) {
+      if (req.partialDoc) {
+        buf.write(HTTPBulkLoader.ActionRequest.PARTIAL_DOC_PREFIX);
+      }
+      buf.write(req.documentBytes);
+      if (req.partialDoc) {
+        buf.write(HTTPBulkLoader.ActionRequest.PARTIAL_DOC_SUFFIX);
+      }
+      buf.write('\n');
+    }
+    else if (action != Action.DELETE && req.document != null) {
+      buf.writeUTF8(req.document);
+      buf.write('\n');
+    }
+  }
+
+  protected static byte[] bytes(String str) {
+    return str.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP entity for an encoded bulk request body
+ *
+ * When gzip is enabled, the buffer is compressed as it is written to the connection
+ * (chunked) so a compressed copy of the batch is never held in memory
+ */
+public class BulkRequestEntity extends AbstractHttpEntity {
+  protected static final int GZIP_BUFFER_BYTES = 8192;
+  protected final BulkBuffer buf;
+  protected final boolean gzip;
+  protected long compressedBytes = 0;
+
+  public BulkRequestEntity(BulkBuffer buf, ContentType contentType, boolean gzip) {
+    this.buf = buf;
+    this.gzip = gzip;
+    setContentType(contentType.toString());
+    if (gzip) {
+      setContentEncoding("gzip");
+      setChunked(true);
+    }
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return gzip ? -1 : buf.size();
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    if (!gzip) {
+      return new ByteArrayInputStream(buf.array(), 0, buf.size());
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTo(out);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    if (!gzip) {
+      out.write(buf.array(), 0, buf.size());
+      out.flush();
+      return;
+    }
+    CountingOutputStream countingOut = new CountingOutputStream(out);
+    //Closing the gzip stream releases the deflater but leaves the connection's stream open
+    try (GZIPOutputStream gzipOut = new GZIPOutputStream(countingOut, GZIP_BUFFER_BYTES)) {
+      gzipOut.write(buf.array(), 0, buf.size());
+    }
+    compressedBytes = countingOut.count;
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+
+  /**
+   * Bytes written by the last writeTo() when compressing
+   */
+  public long getCompressedBytes() {
+    return compressedBytes;
+  }
+
+  protected static class CountingOutputStream extends FilterOutputStream {
+    protected long count = 0;
+
+    public CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.flush();
+    }
+  }
+}
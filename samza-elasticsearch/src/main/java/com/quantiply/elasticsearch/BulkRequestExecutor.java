@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import io.searchbox.core.BulkResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sends the bulk requests of a {@link HTTPBulkLoader} through its {@link CircuitBreaker}, if it has one
+ *
+ * With a breaker, connection errors and server errors (5xx without item results) are not fatal. The request is
+ * resent with the retry backoff as the breaker allows. While it is half-open, only the first probeActions of the
+ * request are sent and the rest follow once the probe gets through. With a diverter, requests go to it instead
+ * of waiting while the breaker is open
+ *
+ * With an async transport, each response is handed over from the transport's I/O thread to the loader's
+ * response thread, which also runs the waits and resends
+ *
+ * Thread safe
+ */
+public class BulkRequestExecutor {
+  /* How often a request waiting on an open circuit breaker checks it again */
+  protected static final long BREAKER_CHECK_MS = 100;
+  protected final BulkTransport transport;
+  protected final Optional<CircuitBreaker> circuitBreaker;
+  protected final Optional<Consumer<HTTPBulkLoader.ActionRequest>> diverter;
+  protected final HTTPBulkLoader.RetryConfig retry;
+  /* Only set for async transports */
+  protected final ScheduledExecutorService responseExecSvc;
+  protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
+
+  public BulkRequestExecutor(BulkTransport transport, Optional<CircuitBreaker> circuitBreaker,
+                             Optional<Consumer<HTTPBulkLoader.ActionRequest>> diverter, HTTPBulkLoader.RetryConfig retry,
+                             ScheduledExecutorService responseExecSvc) {
+    this.transport = transport;
+    this.circuitBreaker = circuitBreaker;
+    this.diverter = diverter;
+    this.retry = retry;
+    this.responseExecSvc = responseExecSvc;
+  }
+
+  /**
+   * Executes the request, resending it until Elasticsearch responds without a server error if there is a breaker.
+   * Adds the time spent in each request to the retry state
+   */
+  public JoinedBulkResponse execute(List<HTTPBulkLoader.SourcedActionRequest> sourcedReqs, BulkRetrier.State state) throws Exception {
+    if (!circuitBreaker.isPresent()) {
+      long esStartMs = System.currentTimeMillis();
+      try {
+        return new JoinedBulkResponse(sourcedReqs, transport.execute(sourcedReqs));
+      }
+      finally {
+        state.esWaitMs += System.currentTimeMillis() - esStartMs;
+      }
+    }
+    CircuitBreaker breaker = circuitBreaker.get();
+    int attempts = 0;
+    while (true) {
+      while (!breaker.tryAcquire(System.currentTimeMillis())) {
+        if (diverter.isPresent() && breaker.getState(System.currentTimeMillis()) == CircuitBreaker.State.OPEN) {
+          return divert(sourcedReqs);
+        }
+        Thread.sleep(BREAKER_CHECK_MS);
+      }
+      List<HTTPBulkLoader.SourcedActionRequest> probeReqs = getProbeRequests(sourcedReqs, breaker);
+      long esStartMs = System.currentTimeMillis();
+      BulkTransport.Response response = null;
+      try {
+        response = transport.execute(probeReqs);
+      }
+      catch (IOException | RuntimeException e) {
+        logger.warn("Elasticsearch request failed: " + e.getMessage());
+      }
+      long latencyMs = System.currentTimeMillis() - esStartMs;
+      state.esWaitMs += latencyMs;
+      if (response != null) {
+        if (!isServerError(response.bulkResult)) {
+          breaker.onSuccess(latencyMs, System.currentTimeMillis());
+          if (probeReqs.size() == sourcedReqs.size() || !JoinedBulkResponse.hasItemResults(response, probeReqs.size())) {
+            return new JoinedBulkResponse(sourcedReqs, response);
+          }
+          List<HTTPBulkLoader.SourcedActionRequest> restReqs = sourcedReqs.subList(probeReqs.size(), sourcedReqs.size());
+          return new JoinedBulkResponse(probeReqs, response).append(execute(restReqs, state));
+        }
+        logger.warn(String.format("Elasticsearch server error %s: %s", response.bulkResult.getResponseCode(), response.bulkResult.getErrorMessage()));
+      }
+      breaker.onFailure(System.currentTimeMillis());
+      Thread.sleep(getFailureBackoffMs(++attempts));
+    }
+  }
+
+  /**
+   * Same as execute() for async transports. The future completes on the response thread
+   */
+  public CompletableFuture<JoinedBulkResponse> executeAsync(List<HTTPBulkLoader.SourcedActionRequest> sourcedReqs, BulkRetrier.State state) {
+    if (!circuitBreaker.isPresent()) {
+      long esStartMs = System.currentTimeMillis();
+      return handOff(transport.executeAsync(sourcedReqs)).thenApply(response -> {
+        state.esWaitMs += System.currentTimeMillis() - esStartMs;
+        return new JoinedBulkResponse(sourcedReqs, response);
+      });
+    }
+    CompletableFuture<JoinedBulkResponse> result = new CompletableFuture<>();
+    executeAsync(sourcedReqs, state, circuitBreaker.get(), 0, result);
+    return result;
+  }
+
+  protected void executeAsync(List<HTTPBulkLoader.SourcedActionRequest> sourcedReqs, BulkRetrier.State state, CircuitBreaker breaker,
+                              int attempts, CompletableFuture<JoinedBulkResponse> result) {
+    if (!breaker.tryAcquire(System.currentTimeMillis())) {
+      if (diverter.isPresent() && breaker.getState(System.currentTimeMillis()) == CircuitBreaker.State.OPEN) {
+        try {
+          result.complete(divert(sourcedReqs));
+        }
+        catch (RuntimeException e) {
+          result.completeExceptionally(e);
+        }
+        return;
+      }
+      scheduleExecuteAsync(sourcedReqs, state, breaker, attempts, result, BREAKER_CHECK_MS);
+      return;
+    }
+    List<HTTPBulkLoader.SourcedActionRequest> probeReqs = getProbeRequests(sourcedReqs, breaker);
+    long esStartMs = System.currentTimeMillis();
+    CompletableFuture<BulkTransport.Response> sent;
+    try {
+      sent = handOff(transport.executeAsync(probeReqs));
+    }
+    catch (RuntimeException e) {
+      sent = new CompletableFuture<>();
+      sent.completeExceptionally(e);
+    }
+    sent.whenComplete((response, error) -> {
+      long latencyMs = System.currentTimeMillis() - esStartMs;
+      state.esWaitMs += latencyMs;
+      if (error == null && !isServerError(response.bulkResult)) {
+        breaker.onSuccess(latencyMs, System.currentTimeMillis());
+        try {
+          if (probeReqs.size() == sourcedReqs.size() || !JoinedBulkResponse.hasItemResults(response, probeReqs.size())) {
+            result.complete(new JoinedBulkResponse(sourcedReqs, response));
+            return;
+          }
+          JoinedBulkResponse probe = new JoinedBulkResponse(probeReqs, response);
+          executeAsync(sourcedReqs.subList(probeReqs.size(), sourcedReqs.size()), state).whenComplete((rest, restError) -> {
+            if (restError != null) {
+              result.completeExceptionally(restError);
+              return;
+            }
+            try {
+              result.complete(probe.append(rest));
+            }
+            catch (RuntimeException e) {
+              result.completeExceptionally(e);
+            }
+          });
+        }
+        catch (RuntimeException e) {
+          result.completeExceptionally(e);
+        }
+        return;
+      }
+      if (error != null) {
+        logger.warn("Elasticsearch request failed: " + error.getMessage());
+      }
+      else {
+        logger.warn(String.format("Elasticsearch server error %s: %s", response.bulkResult.getResponseCode(), response.bulkResult.getErrorMessage()));
+      }
+      breaker.onFailure(System.currentTimeMillis());
+      scheduleExecuteAsync(sourcedReqs, state, breaker, attempts + 1, result, getFailureBackoffMs(attempts + 1));
+    });
+  }
+
+  protected void scheduleExecuteAsync(List<HTTPBulkLoader.SourcedActionRequest> sourcedReqs, BulkRetrier.State state, CircuitBreaker breaker,
+                                      int attempts, CompletableFuture<JoinedBulkResponse> result, long delayMs) {
+    try {
+      responseExecSvc.schedule(() -> executeAsync(sourcedReqs, state, breaker, attempts, result), delayMs, TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException e) {
+      //Shutting down
+      result.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Completes the returned future on the response thread rather than the transport's I/O thread,
+   * which must not run the listener, retry or divert logic
+   */
+  protected <T> CompletableFuture<T> handOff(CompletableFuture<T> sent) {
+    CompletableFuture<T> handedOff = new CompletableFuture<>();
+    sent.whenComplete((value, error) -> {
+      try {
+        responseExecSvc.execute(() -> {
+          if (error != null) {
+            handedOff.completeExceptionally(error);
+          }
+          else {
+            handedOff.complete(value);
+          }
+        });
+      }
+      catch (RejectedExecutionException e) {
+        //Shutting down
+        handedOff.completeExceptionally(e);
+      }
+    });
+    return handedOff;
+  }
+
+  /**
+   * Hands the requests to the diverter instead of waiting for the breaker. They all succeed without items,
+   * counted under DIVERTED_OPERATION
+   */
+  protected JoinedBulkResponse divert(List<HTTPBulkLoader.SourcedActionRequest> sourcedReqs) {
+    for (HTTPBulkLoader.SourcedActionRequest sourcedReq : sourcedReqs) {
+      diverter.get().accept(sourcedReq.request);
+    }
+    logger.warn(String.format("Circuit breaker is open. Diverted %s actions", sourcedReqs.size()));
+    BulkItemCounts itemCounts = new BulkItemCounts();
+    itemCounts.add(HTTPBulkLoader.DIVERTED_OPERATION, HTTPBulkLoader.STATUS_OK, sourcedReqs.size());
+    BulkResult result = new JoinedBulkResponse.ItemsBulkResult(HTTPBulkLoader.STATUS_OK, Collections.emptyList());
+    return new JoinedBulkResponse(sourcedReqs, new BulkTransport.Response(result, itemCounts, 0L, 0L));
+  }
+
+  /**
+   * The part of the request to send while the breaker is half-open - all of it otherwise
+   */
+  protected List<HTTPBulkLoader.SourcedActionRequest> getProbeRequests(List<HTTPBulkLoader.SourcedActionRequest> sourcedReqs, CircuitBreaker breaker) {
+    int probeActions = breaker.getConfig().probeActions;
+    if (sourcedReqs.size() <= probeActions || breaker.getState(System.currentTimeMillis()) != CircuitBreaker.State.HALF_OPEN) {
+      return sourcedReqs;
+    }
+    return sourcedReqs.subList(0, probeActions);
+  }
+
+  /**
+   * The whole request failed on the Elasticsearch side, so it may succeed later
+   */
+  protected boolean isServerError(BulkResult result) {
+    return result.getItems().isEmpty() && result.getResponseCode() >= HTTPBulkLoader.STATUS_SERVER_ERROR;
+  }
+
+  protected long getFailureBackoffMs(int attempt) {
+    return retry.backoffMs > 0 ? retry.getBackoffMs(attempt) : BREAKER_CHECK_MS;
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses bulk responses into a JEST {@link BulkResult} by streaming through the body
+ *
+ * Requests are sent with FILTER_PATH so that Elasticsearch only returns the fields used here. Every item's
+ * operation and status is tallied in {@link BulkItemCounts}. Items are only kept in the result when the
+ * response has errors. When errors is false, which is the common case, no object is built per item and
+ * the result's items are empty
+ *
+ * Non-2xx responses are small so they are left to JEST to work out the error message
+ *
+ * Thread safe
+ */
+public class BulkResponseParser {
+  public static final String FILTER_PATH = "took,errors,items.*._index,items.*._type,items.*._id,items.*.status,items.*.error";
+  /* Same message that JEST sets */
+  protected static final String ITEMS_FAILED_MSG = "One or more of the items in the Bulk request failed, check BulkResult.getItems() for more information.";
+  /* Only used to parse error responses */
+  protected static final Bulk BULK_RESULT_FACTORY = new Bulk.Builder().build();
+  protected final Gson gson = new Gson();
+  protected final JsonParser jsonParser = new JsonParser();
+
+  public BulkResult parse(HttpResponse response, BulkItemCounts counts) throws IOException {
+    int statusCode = response.getStatusLine().getStatusCode();
+    HttpEntity entity = response.getEntity();
+    if (statusCode / 100 != 2 || entity == null) {
+      String body = entity == null ? "" : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+      return BULK_RESULT_FACTORY.createNewElasticSearchResult(body, statusCode, response.getStatusLine().getReasonPhrase(), gson);
+    }
+    try (Reader reader = new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8)) {
+      return parse(new JsonReader(reader), statusCode, counts);
+    }
+  }
+
+  protected BulkResult parse(JsonReader reader, int statusCode, BulkItemCounts counts) throws IOException {
+    JsonObject json = new JsonObject();
+    JsonArray items = new JsonArray();
+    Boolean errors = null;
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "took":
+            json.addProperty("took", reader.nextLong());
+            break;
+          case "errors":
+            errors = reader.nextBoolean();
+            json.addProperty("errors", errors);
+            break;
+          case "items":
+            //Elasticsearch writes errors before the items. Keep them if it didn't
+            readItems(reader, counts, errors == null || errors ? items : null);
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+    }
+    catch (IllegalStateException | NumberFormatException e) {
+      throw new IOException("Invalid bulk response", e);
+    }
+    json.add("items", items);
+
+    BulkResult result = new BulkResult(gson);
+    result.setResponseCode(statusCode);
+    result.setJsonObject(json);
+    boolean succeeded = !Boolean.TRUE.equals(errors);
+    result.setSucceeded(succeeded);
+    if (!succeeded) {
+      result.setErrorMessage(ITEMS_FAILED_MSG);
+    }
+    return result;
+  }
+
+  /**
+   * Counts each item. If items is not null, they are also added to it in the same form as the response
+   */
+  protected void readItems(JsonReader reader, BulkItemCounts counts, JsonArray items) throws IOException {
+    reader.beginArray();
+    while (reader.hasNext()) {
+      reader.beginObject();
+      String operation = reader.nextName();
+      if (items == null) {
+        counts.add(operation, readStatus(reader));
+      }
+      else {
+        JsonObject values = jsonParser.parse(reader).getAsJsonObject();
+        counts.add(operation, values.has("status") ? values.get("status").getAsInt() : 0);
+        JsonObject item = new JsonObject();
+        item.add(operation, values);
+        items.add(item);
+      }
+      reader.endObject();
+    }
+    reader.endArray();
+  }
+
+  protected int readStatus(JsonReader reader) throws IOException {
+    int status = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("status")) {
+        status = reader.nextInt();
+      }
+      else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return status;
+  }
+}
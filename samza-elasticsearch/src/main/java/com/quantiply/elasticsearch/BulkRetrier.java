@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Sends a bulk request and resends the items Elasticsearch rejected with 429 (too many requests) or
+ * 503 (unavailable), with exponential backoff, up to maxRetries times
+ *
+ * The results of each resend take the place of the rejected items in the request's {@link JoinedBulkResponse}.
+ * Blocking sends sleep through the backoff in the calling thread. Async sends wait on the loader's response thread
+ *
+ * Thread safe
+ */
+public class BulkRetrier {
+
+  /**
+   * Result of a bulk request so far, as rejected items are resent
+   */
+  public static class State {
+    public JoinedBulkResponse response;
+    public int retries = 0;
+    public int retriedItems = 0;
+    public long backoffMs = 0;
+    /* Time spent in requests to Elasticsearch. Backoff and waiting on the circuit breaker are left out */
+    public long esWaitMs = 0;
+  }
+
+  protected final HTTPBulkLoader.RetryConfig config;
+  protected final BulkRequestExecutor requestExecutor;
+  /* Only set for async transports */
+  protected final ScheduledExecutorService responseExecSvc;
+  protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
+
+  public BulkRetrier(HTTPBulkLoader.RetryConfig config, BulkRequestExecutor requestExecutor, ScheduledExecutorService responseExecSvc) {
+    this.config = config;
+    this.requestExecutor = requestExecutor;
+    this.responseExecSvc = responseExecSvc;
+  }
+
+  public State send(List<HTTPBulkLoader.SourcedActionRequest> sourcedReqs) throws Exception {
+    State state = new State();
+    state.response = requestExecutor.execute(sourcedReqs, state);
+    List<Integer> retryable;
+    while (!(retryable = nextRetry(state)).isEmpty()) {
+      Thread.sleep(state.backoffMs);
+      List<HTTPBulkLoader.SourcedActionRequest> retryReqs = retryable.stream().map(sourcedReqs::get).collect(Collectors.toList());
+      state.response.replace(retryable, requestExecutor.execute(retryReqs, state));
+    }
+    return state;
+  }
+
+  /**
+   * Same as send() for async transports - nothing here blocks
+   */
+  public CompletableFuture<State> sendAsync(List<HTTPBulkLoader.SourcedActionRequest> sourcedReqs) {
+    State state = new State();
+    return requestExecutor.executeAsync(sourcedReqs, state).thenCompose(response -> {
+      state.response = response;
+      return retryAsync(sourcedReqs, state);
+    });
+  }
+
+  protected CompletableFuture<State> retryAsync(List<HTTPBulkLoader.SourcedActionRequest> sourcedReqs, State state) {
+    List<Integer> retryable = nextRetry(state);
+    if (retryable.isEmpty()) {
+      return CompletableFuture.completedFuture(state);
+    }
+    List<HTTPBulkLoader.SourcedActionRequest> retryReqs = retryable.stream().map(sourcedReqs::get).collect(Collectors.toList());
+    CompletableFuture<JoinedBulkResponse> retried = new CompletableFuture<>();
+    responseExecSvc.schedule(() -> {
+      try {
+        requestExecutor.executeAsync(retryReqs, state).whenComplete((retryResponse, error) -> {
+          if (error != null) {
+            retried.completeExceptionally(error);
+          }
+          else {
+            retried.complete(retryResponse);
+          }
+        });
+      }
+      catch (RuntimeException e) {
+        retried.completeExceptionally(e);
+      }
+    }, state.backoffMs, TimeUnit.MILLISECONDS);
+    return retried.thenCompose(retryResponse -> {
+      state.response.replace(retryable, retryResponse);
+      return retryAsync(sourcedReqs, state);
+    });
+  }
+
+  /**
+   * Positions of the items to resend next, if any. Counts the retry and picks its backoff
+   */
+  protected List<Integer> nextRetry(State state) {
+    if (state.retries >= config.maxRetries) {
+      return Collections.emptyList();
+    }
+    List<Integer> retryable = state.response.getPositions(this::isRetryable);
+    if (!retryable.isEmpty()) {
+      state.retries++;
+      state.retriedItems += retryable.size();
+      state.backoffMs = config.getBackoffMs(state.retries);
+      logger.warn(String.format("Elasticsearch rejected %s actions. Retry %s of %s in %s ms",
+          retryable.size(), state.retries, config.maxRetries, state.backoffMs));
+    }
+    return retryable;
+  }
+
+  protected boolean isRetryable(int status) {
+    return status == HTTPBulkLoader.STATUS_TOO_MANY_REQUESTS || status == HTTPBulkLoader.STATUS_SERVICE_UNAVAILABLE;
+  }
+}
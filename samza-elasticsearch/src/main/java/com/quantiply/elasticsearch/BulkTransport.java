@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import io.searchbox.core.BulkResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends a batch of actions to the Elasticsearch bulk API
+ *
+ * Implementations must be safe to call from multiple sender threads at once
+ */
+public interface BulkTransport extends Closeable {
+
+  /**
+   * Whether actions must be converted to JEST actions before they are sent
+   */
+  default boolean usesJestActions() {
+    return false;
+  }
+
+  /**
+   * Whether executeAsync() returns without waiting on Elasticsearch. If so, the loader keeps requests
+   * in flight without a sender thread for each of them
+   */
+  default boolean isAsync() {
+    return false;
+  }
+
+  class Response {
+    public final BulkResult bulkResult;
+    /* Counts of all items in the response, including ones that are not in the bulk result */
+    public final BulkItemCounts itemCounts;
+    /* Size of the request body before compression, 0 if unknown */
+    public final long rawBytes;
+    /* Size of the request body sent when compressed, 0 if not compressed or unknown */
+    public final long compressedBytes;
+
+    public Response(BulkResult bulkResult) {
+      this(bulkResult, 0L, 0L);
+    }
+
+    public Response(BulkResult bulkResult, long rawBytes, long compressedBytes) {
+      this(bulkResult, BulkItemCounts.of(bulkResult), rawBytes, compressedBytes);
+    }
+
+    public Response(BulkResult bulkResult, BulkItemCounts itemCounts, long rawBytes, long compressedBytes) {
+      this.bulkResult = bulkResult;
+      this.itemCounts = itemCounts;
+      this.rawBytes = rawBytes;
+      this.compressedBytes = compressedBytes;
+    }
+  }
+
+  /**
+   * Executes the bulk request
+   *
+   * Error contract: throws IOException on connection/protocol errors. API errors are reported in the result
+   */
+  Response execute(List<HTTPBulkLoader.SourcedActionRequest> batch) throws IOException;
+
+  /**
+   * Starts the bulk request. Blocking transports run it in the calling thread
+   *
+   * Error contract: the future fails with IOException on connection/protocol errors. API errors are reported in the result.
+   * Callbacks on the future may run on the transport's I/O thread and must not block
+   */
+  default CompletableFuture<Response> executeAsync(List<HTTPBulkLoader.SourcedActionRequest> batch) {
+    CompletableFuture<Response> future = new CompletableFuture<>();
+    try {
+      future.complete(execute(batch));
+    }
+    catch (IOException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+}
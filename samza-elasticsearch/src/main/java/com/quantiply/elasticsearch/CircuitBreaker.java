@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Optional;
+
+/**
+ * Stops sending bulk requests while Elasticsearch is failing or too slow and probes until it recovers
+ *
+ * States:
+ *   - closed: requests go through. failureThreshold bad requests in a row open the breaker. A request is bad if it
+ *     failed or, with latencyThresholdMs, took longer than that to respond
+ *   - open: nothing goes through for openMs
+ *   - half-open: one probe request at a time goes through (the bulk loader keeps them to probeActions actions). A good
+ *     one closes the breaker, a bad one opens it again
+ *
+ * Callers pass in the time so that the state can be tested without waiting. Thread safe
+ */
+public class CircuitBreaker {
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  public static class Config {
+    public final int failureThreshold;
+    public final Optional<Long> latencyThresholdMs;
+    public final long openMs;
+    public final int probeActions;
+
+    public Config(int failureThreshold, Optional<Long> latencyThresholdMs, long openMs, int probeActions) {
+      this.failureThreshold = failureThreshold;
+      this.latencyThresholdMs = latencyThresholdMs;
+      this.openMs = openMs;
+      this.probeActions = probeActions;
+    }
+  }
+
+  /**
+   * Called with the breaker locked so implementations must not call back into it
+   */
+  public interface Listener {
+    void onStateChange(State state);
+  }
+
+  protected final Config config;
+  protected final Optional<Listener> listener;
+  protected State state = State.CLOSED;
+  protected int badRequests = 0;
+  protected long openedTsMs = 0L;
+  protected boolean probing = false;
+  protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
+
+  public CircuitBreaker(Config config, Optional<Listener> listener) {
+    this.config = config;
+    this.listener = listener;
+  }
+
+  public Config getConfig() {
+    return config;
+  }
+
+  public synchronized State getState(long tsNowMs) {
+    updateState(tsNowMs);
+    return state;
+  }
+
+  /**
+   * @return true if a request may be sent now. When half-open, the outcome of the probe must be reported before
+   * another request is let through
+   */
+  public synchronized boolean tryAcquire(long tsNowMs) {
+    updateState(tsNowMs);
+    switch (state) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if (!probing) {
+          probing = true;
+          return true;
+        }
+        return false;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Elasticsearch responded. A response slower than latencyThresholdMs still counts against it
+   */
+  public synchronized void onSuccess(long latencyMs, long tsNowMs) {
+    if (config.latencyThresholdMs.isPresent() && latencyMs > config.latencyThresholdMs.get()) {
+      onBadRequest(tsNowMs);
+      return;
+    }
+    probing = false;
+    badRequests = 0;
+    if (state == State.HALF_OPEN) {
+      logger.info("Elasticsearch recovered. Closing the circuit breaker");
+      setState(State.CLOSED);
+    }
+  }
+
+  /**
+   * The request failed or Elasticsearch responded with a server error
+   */
+  public synchronized void onFailure(long tsNowMs) {
+    onBadRequest(tsNowMs);
+  }
+
+  protected void onBadRequest(long tsNowMs) {
+    probing = false;
+    badRequests++;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && badRequests >= config.failureThreshold)) {
+      logger.warn(String.format("Elasticsearch is failing or slow (%s bad requests in a row). Opening the circuit breaker for %s ms",
+          badRequests, config.openMs));
+      openedTsMs = tsNowMs;
+      setState(State.OPEN);
+    }
+  }
+
+  protected void updateState(long tsNowMs) {
+    if (state == State.OPEN && tsNowMs - openedTsMs >= config.openMs) {
+      setState(State.HALF_OPEN);
+    }
+  }
+
+  protected void setState(State next) {
+    state = next;
+    listener.ifPresent(l -> l.onStateChange(next));
+  }
+}
@@ -15,7 +15,8 @@
  */
 package com.quantiply.elasticsearch;
 
-import com.google.gson.Gson;
+import com.quantiply.concurrent.SPSCRingBuffer;
+import com.quantiply.io.UTF8;
 import com.quantiply.rico.elasticsearch.ActionRequestKey;
 import io.searchbox.action.BulkableAction;
 import io.searchbox.client.JestClient;
@@ -25,101 +26,463 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
 public class HTTPBulkLoader {
 
+  public static class RetryConfig {
+    public final int maxRetries;
+    public final long backoffMs;
+    public final long maxBackoffMs;
+
+    public RetryConfig(int maxRetries, long backoffMs, long maxBackoffMs) {
+      this.maxRetries = maxRetries;
+      this.backoffMs = backoffMs;
+      this.maxBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * Exponential backoff with jitter - waits between half and all of backoffMs * 2^(retry - 1), capped at maxBackoffMs
+     */
+    public long getBackoffMs(int retry) {
+      long maxMs = Math.min(maxBackoffMs, backoffMs << Math.min(retry - 1, 30));
+      long halfMs = maxMs / 2;
+      return halfMs + ThreadLocalRandom.current().nextLong(maxMs - halfMs + 1);
+    }
+  }
+
+  public static final RetryConfig NO_RETRIES = new RetryConfig(0, 0L, 0L);
+
+  public static class AdaptiveConfig {
+    public final long targetLatencyMs;
+    public final int minActions;
+    public final int increaseActions;
+    public final double decreaseFactor;
+
+    public AdaptiveConfig(long targetLatencyMs, int minActions, int increaseActions, double decreaseFactor) {
+      this.targetLatencyMs = targetLatencyMs;
+      this.minActions = minActions;
+      this.increaseActions = increaseActions;
+      this.decreaseFactor = decreaseFactor;
+    }
+  }
+
+  public static class SpillConfig {
+    public final Path dir;
+    public final long maxBytes;
+    public final int segmentBytes;
+
+    public SpillConfig(Path dir, long maxBytes, int segmentBytes) {
+      this.dir = dir;
+      this.maxBytes = maxBytes;
+      this.segmentBytes = segmentBytes;
+    }
+  }
+
   public static class Config {
     public final String name;
     public final int flushMaxActions;
     public final Optional<Integer> flushMaxIntervalMs;
+    public final Optional<Long> flushMaxBytes;
+    public final int maxInFlight;
+    public final RetryConfig retry;
+    public final Optional<AdaptiveConfig> adaptive;
+    /* Merge actions on the same document within a batch (see {@link ActionCoalescer}) */
+    public final boolean coalesce;
+    /* Batches that can't be sent right away are written to disk rather than blocking the writer */
+    public final Optional<SpillConfig> spill;
+    /* Failed requests are resent until Elasticsearch recovers rather than failing the writer */
+    public final Optional<CircuitBreaker.Config> circuitBreaker;
 
     public Config(String name, int flushMaxActions, Optional<Integer> flushMaxIntervalMs) {
-      this.name = name;
-      this.flushMaxActions = flushMaxActions;
-      this.flushMaxIntervalMs = flushMaxIntervalMs;
+      this(new Builder(name, flushMaxActions).flushMaxIntervalMs(flushMaxIntervalMs));
+    }
+
+    private Config(Builder builder) {
+      this.name = builder.name;
+      this.flushMaxActions = builder.flushMaxActions;
+      this.flushMaxIntervalMs = builder.flushMaxIntervalMs;
+      this.flushMaxBytes = builder.flushMaxBytes;
+      this.maxInFlight = builder.maxInFlight;
+      this.retry = builder.retry;
+      this.adaptive = builder.adaptive;
+      this.coalesce = builder.coalesce;
+      this.spill = builder.spill;
+      this.circuitBreaker = builder.circuitBreaker;
+    }
+
+    /**
+     * Defaults to one request in flight, no retries and every optional feature off
+     */
+    public static class Builder {
+      private final String name;
+      private final int flushMaxActions;
+      private Optional<Integer> flushMaxIntervalMs = Optional.empty();
+      private Optional<Long> flushMaxBytes = Optional.empty();
+      private int maxInFlight = 1;
+      private RetryConfig retry = NO_RETRIES;
+      private Optional<AdaptiveConfig> adaptive = Optional.empty();
+      private boolean coalesce = false;
+      private Optional<SpillConfig> spill = Optional.empty();
+      private Optional<CircuitBreaker.Config> circuitBreaker = Optional.empty();
+
+      public Builder(String name, int flushMaxActions) {
+        this.name = name;
+        this.flushMaxActions = flushMaxActions;
+      }
+
+      public Builder flushMaxIntervalMs(Optional<Integer> flushMaxIntervalMs) {
+        this.flushMaxIntervalMs = flushMaxIntervalMs;
+        return this;
+      }
+
+      public Builder flushMaxBytes(Optional<Long> flushMaxBytes) {
+        this.flushMaxBytes = flushMaxBytes;
+        return this;
+      }
+
+      public Builder maxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+      }
+
+      public Builder retry(RetryConfig retry) {
+        this.retry = retry;
+        return this;
+      }
+
+      public Builder adaptive(Optional<AdaptiveConfig> adaptive) {
+        this.adaptive = adaptive;
+        return this;
+      }
+
+      public Builder coalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+        return this;
+      }
+
+      public Builder spill(Optional<SpillConfig> spill) {
+        this.spill = spill;
+        return this;
+      }
+
+      public Builder circuitBreaker(Optional<CircuitBreaker.Config> circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+      }
+
+      public Config build() {
+        return new Config(this);
+      }
     }
   }
 
-  public enum TriggerType { MAX_ACTIONS, MAX_INTERVAL, FLUSH_CMD }
+  public enum TriggerType { MAX_ACTIONS, MAX_BYTES, MAX_INTERVAL, FLUSH_CMD }
 
+  /**
+   * Result of a bulk request, passed to onFlush
+   *
+   * The batch (and requests) are reused once onFlush returns. Use copy() to keep the report
+   */
   public static class BulkReport {
+    /* Items are only populated if there were errors - use itemCounts for totals */
     public final BulkResult bulkResult;
+    /* Actions handed to the diverter are counted under DIVERTED_OPERATION */
+    public final BulkItemCounts itemCounts;
     public final TriggerType triggerType;
+    /* Time spent in requests to Elasticsearch, summed over retries. Backoff and circuit breaker waits are left out */
     public final long esWaitMs;
+    public final long batchBytes;
+    public final long rawBytes;
+    public final long compressedBytes;
+    public final int retries;
+    public final int retriedItems;
+    /* Max actions per request when this batch completed - changes over time in adaptive mode */
+    public final int maxActions;
+    /* From the flush trigger until the response was received, including any time waiting to be sent and retries */
+    public final long triggerToAckMs;
     public final List<SourcedActionRequest> requests;
+    /* Receive and event times of every action written, including coalesced ones */
+    public final ActionBatch batch;
 
-    public BulkReport(BulkResult bulkResult, TriggerType triggerType, long esWaitMs, List<SourcedActionRequest> requests) {
+    public BulkReport(BulkResult bulkResult, BulkItemCounts itemCounts, TriggerType triggerType, long esWaitMs, long batchBytes,
+                      long rawBytes, long compressedBytes, int retries, int retriedItems, int maxActions, long triggerToAckMs,
+                      ActionBatch batch) {
       this.bulkResult = bulkResult;
+      this.itemCounts = itemCounts;
       this.triggerType = triggerType;
       this.esWaitMs = esWaitMs;
-      this.requests = requests;
+      this.batchBytes = batchBytes;
+      this.rawBytes = rawBytes;
+      this.compressedBytes = compressedBytes;
+      this.retries = retries;
+      this.retriedItems = retriedItems;
+      this.maxActions = maxActions;
+      this.triggerToAckMs = triggerToAckMs;
+      this.requests = batch.getRequests();
+      this.batch = batch;
+    }
+
+    /**
+     * Copy with its own batch that stays valid after onFlush returns
+     */
+    public BulkReport copy() {
+      return new BulkReport(bulkResult, itemCounts, triggerType, esWaitMs, batchBytes, rawBytes, compressedBytes, retries,
+          retriedItems, maxActions, triggerToAckMs, batch.copy());
+    }
+
+    /**
+     * For reports made outside the writer, e.g. in tests. Counters not set are 0 and itemCounts defaults to the
+     * counts of bulkResult
+     */
+    public static class Builder {
+      private final BulkResult bulkResult;
+      private final TriggerType triggerType;
+      private final ActionBatch batch;
+      private Optional<BulkItemCounts> itemCounts = Optional.empty();
+      private long esWaitMs;
+      private long batchBytes;
+      private long rawBytes;
+      private long compressedBytes;
+      private int retries;
+      private int retriedItems;
+      private int maxActions;
+      private long triggerToAckMs;
+
+      public Builder(BulkResult bulkResult, TriggerType triggerType, List<SourcedActionRequest> requests) {
+        this.bulkResult = bulkResult;
+        this.triggerType = triggerType;
+        this.batch = ActionBatch.of(requests);
+      }
+
+      public Builder itemCounts(BulkItemCounts itemCounts) {
+        this.itemCounts = Optional.of(itemCounts);
+        return this;
+      }
+
+      public Builder esWaitMs(long esWaitMs) {
+        this.esWaitMs = esWaitMs;
+        return this;
+      }
+
+      public Builder batchBytes(long batchBytes) {
+        this.batchBytes = batchBytes;
+        return this;
+      }
+
+      public Builder rawBytes(long rawBytes) {
+        this.rawBytes = rawBytes;
+        return this;
+      }
+
+      public Builder compressedBytes(long compressedBytes) {
+        this.compressedBytes = compressedBytes;
+        return this;
+      }
+
+      public Builder retries(int retries, int retriedItems) {
+        this.retries = retries;
+        this.retriedItems = retriedItems;
+        return this;
+      }
+
+      public Builder maxActions(int maxActions) {
+        this.maxActions = maxActions;
+        return this;
+      }
+
+      public Builder triggerToAckMs(long triggerToAckMs) {
+        this.triggerToAckMs = triggerToAckMs;
+        return this;
+      }
+
+      public BulkReport build() {
+        return new BulkReport(bulkResult, itemCounts.orElseGet(() -> BulkItemCounts.of(bulkResult)), triggerType, esWaitMs,
+            batchBytes, rawBytes, compressedBytes, retries, retriedItems, maxActions, triggerToAckMs, batch);
+      }
     }
   }
 
+  /**
+   * The document is either a String or UTF-8 JSON bytes. Bytes are copied straight into the bulk request
+   * by the native encoder, which saves decoding and holding each document as a String while it is in flight.
+   * For partial updates given as bytes, the {"doc": ...} wrapper is written around them when encoding
+   * rather than concatenated into a new document.
+   *
+   * JEST actions and update coalescing still need a String so they use getDocument()
+   */
   public static class ActionRequest {
+    public static final byte[] PARTIAL_DOC_PREFIX = "{\"doc\":".getBytes(StandardCharsets.UTF_8);
+    public static final byte[] PARTIAL_DOC_SUFFIX = "}".getBytes(StandardCharsets.UTF_8);
     public final ActionRequestKey key;
     public final String index;
     public final String docType;
     public final long receivedTsMs;
-    //rhoover - would be better if we could use byte[] but Jest only supports String or Object
+    /* Null if the document was given as bytes */
     public final String document;
+    /* Null if the document was given as a String */
+    public final byte[] documentBytes;
+    /* documentBytes is the partial document of an update */
+    public final boolean partialDoc;
 
     public ActionRequest(ActionRequestKey key, String index, String docType, long receivedTsMs, String document) {
+      this(key, index, docType, receivedTsMs, document, null, false);
+    }
+
+    public ActionRequest(ActionRequestKey key, String index, String docType, long receivedTsMs, byte[] documentBytes, boolean partialDoc) {
+      this(key, index, docType, receivedTsMs, null, documentBytes, partialDoc);
+    }
+
+    protected ActionRequest(ActionRequestKey key, String index, String docType, long receivedTsMs, String document, byte[] documentBytes, boolean partialDoc) {
       this.key = key;
       this.index = index;
       this.docType = docType;
       this.receivedTsMs = receivedTsMs;
       this.document = document;
+      this.documentBytes = documentBytes;
+      this.partialDoc = partialDoc;
+    }
+
+    public boolean hasDocument() {
+      return document != null || documentBytes != null;
+    }
+
+    /**
+     * The document as a String, including the update wrapper for partial documents. Decodes the bytes on every call
+     */
+    public String getDocument() {
+      if (documentBytes == null) {
+        return document;
+      }
+      String doc = new String(documentBytes, StandardCharsets.UTF_8);
+      return partialDoc ? "{\"doc\":" + doc + "}" : doc;
+    }
+
+    /**
+     * Size of the document as UTF-8, including the update wrapper for partial documents
+     */
+    public long getDocumentLength() {
+      if (documentBytes == null) {
+        return document == null ? 0 : UTF8.getLength(document);
+      }
+      return documentBytes.length + (partialDoc ? PARTIAL_DOC_PREFIX.length + PARTIAL_DOC_SUFFIX.length : 0);
     }
   }
 
   public static class SourcedActionRequest {
     public final ActionRequest request;
+    /* Only set when the transport uses JEST actions */
     public final BulkableAction<DocumentResult> action;
     public final String source;
+    /* Earlier requests on the same document that were merged into this one */
+    public final List<ActionRequest> coalesced;
 
     public SourcedActionRequest(String source, ActionRequest request, BulkableAction<DocumentResult> action) {
+      this(source, request, action, Collections.emptyList());
+    }
+
+    public SourcedActionRequest(String source, ActionRequest request, BulkableAction<DocumentResult> action, List<ActionRequest> coalesced) {
       this.request = request;
       this.source = source;
       this.action = action;
+      this.coalesced = coalesced;
     }
   }
 
-  protected enum WriterCommandType { ADD_ACTION, FLUSH }
+  /**
+   * Backpressure between the client thread and the writer thread
+   *
+   * Called from both threads so implementations must be thread safe
+   */
+  public interface QueueListener {
+    /**
+     * The client thread had to wait for room in the command queue. Not called when there was room right away
+     */
+    void onBlocked(long blockedMs);
+
+    /**
+     * Sampled by the writer about once a second
+     *
+     * @param queueDepth Commands waiting for the writer
+     * @param busyRatio Fraction of the time since the last sample that the writer was not waiting for commands
+     */
+    void onWriterStats(int queueDepth, double busyRatio);
+  }
+
+  protected enum WriterCommandType { ADD_ACTION, FLUSH, FLUSH_ASYNC }
 
+  /**
+   * Reusable slot of the writer command ring buffer
+   *
+   * Filled in by the client thread. The writer thread copies out what it needs and clears
+   * the slot before releasing it
+   */
   protected static class WriterCommand {
+    public WriterCommandType type;
+    public String source;
+    public ActionRequest request;
+    public CompletableFuture<Void> flushCompletedFuture;
+
+    public void setAddCmd(String source, ActionRequest request) {
+      this.type = WriterCommandType.ADD_ACTION;
+      this.source = source;
+      this.request = request;
+      this.flushCompletedFuture = null;
+    }
 
-    public static WriterCommand getAddCmd(SourcedActionRequest req) {
-      return new WriterCommand(WriterCommandType.ADD_ACTION, req, null);
+    public void setFlushCmd(CompletableFuture<Void> flushCompletedFuture) {
+      setFlushCmd(WriterCommandType.FLUSH, flushCompletedFuture);
     }
 
-    public static WriterCommand getFlushCmd() {
-      return new WriterCommand(WriterCommandType.FLUSH, null, new CompletableFuture<>());
+    public void setFlushAsyncCmd(CompletableFuture<Void> flushCompletedFuture) {
+      setFlushCmd(WriterCommandType.FLUSH_ASYNC, flushCompletedFuture);
     }
 
-    public WriterCommand(WriterCommandType type, SourcedActionRequest request, CompletableFuture<Void> flushCompletedFuture) {
+    protected void setFlushCmd(WriterCommandType type, CompletableFuture<Void> flushCompletedFuture) {
       this.type = type;
-      this.request = request;
+      this.source = null;
+      this.request = null;
       this.flushCompletedFuture = flushCompletedFuture;
     }
 
-    public final WriterCommandType type;
-    public final SourcedActionRequest request;
-    public final CompletableFuture<Void> flushCompletedFuture;
+    /* Drop references so that documents can be garbage collected while the slot is idle */
+    public void clear() {
+      this.type = null;
+      this.source = null;
+      this.request = null;
+      this.flushCompletedFuture = null;
+    }
   }
 
+  /* Item count operation for the actions diverted while the circuit breaker was open */
+  public static final String DIVERTED_OPERATION = "divert";
   protected static final int SHUTDOWN_WAIT_MS = 100;
+  protected static final long WRITER_STATS_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+  protected static final int STATUS_TOO_MANY_REQUESTS = 429;
+  protected static final int STATUS_SERVICE_UNAVAILABLE = 503;
+  protected static final int STATUS_SERVER_ERROR = 500;
+  protected static final int STATUS_OK = 200;
+  /* Rough size of the bulk metadata line, not counting index, type and id */
+  protected static final int ACTION_METADATA_BYTES = 64;
+  /* ,"_routing":"" and ,"_parent":"" */
+  protected static final int ROUTING_METADATA_BYTES = 14;
+  protected static final int PARENT_METADATA_BYTES = 13;
+  protected final BulkTransport transport;
   protected final Writer writer;
-  protected final ArrayBlockingQueue<WriterCommand> writerCmdQueue;
+  protected final SPSCRingBuffer<WriterCommand> writerCmdRing;
   protected final ExecutorService writerExecSvc;
+  /* Only one of these is used - sender threads for blocking transports, a response thread for async ones */
+  protected final ExecutorService senderExecSvc;
+  protected final ScheduledExecutorService responseExecSvc;
+  protected final Optional<QueueListener> queueListener;
+  protected final Optional<CircuitBreaker> circuitBreaker;
+  protected final BulkRetrier retrier;
   protected Future<Void> writerFuture = null;
   protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
 
@@ -128,25 +491,112 @@ public class HTTPBulkLoader {
    *
    * Methods in this class run in the client's thread
    *
-   * JEST client's lifecycle is manage externally (i.e. must be closed elsewhere)
+   * Transport (and JEST client) lifecycle is managed externally (i.e. must be closed elsewhere)
    * so that it may be shared by multiple instances
    *
    * Error handling:
    *   - connection/protocol errors are handled here and considered fatal - they are detected on blocking operations
-   *      - addAction (when cmd queue is full)
+   *      - addAction (when cmd ring buffer is full)
    *      - flush
    *   - API errors are not checked here. Clients can check them in the onFlush callback and throw exception if fatal
-   *   - No internal retry support - restart the process to retry
+   *   - Items rejected with 429 (too many requests) or 503 (unavailable) are resent with exponential backoff
+   *     up to config.retry.maxRetries times (see {@link BulkRetrier}). Items still failing after that are reported in the
+   *     onFlush callback
+   *   - No other internal retry support - restart the process to retry
+   *
+   * Threading:
+   *   - commands are handed to the writer thread through a pre-allocated, lock-free {@link SPSCRingBuffer}
+   *   - addAction and flush must always be called from the same thread
+   *
+   * Adaptive batch size:
+   *   - with config.adaptive set, the number of actions per request is tuned by {@link AdaptiveBatchSizer}
+   *     between adaptive.minActions and config.flushMaxActions based on Elasticsearch latency and rejections
+   *
+   * Coalescing:
+   *   - with config.coalesce set, actions on the same document within a batch are merged by {@link ActionCoalescer}
+   *     before they are sent. Merged requests are still reported in BulkReport (see SourcedActionRequest.coalesced)
+   *
+   * Pipelining:
+   *   - the writer hands bulk requests to a pool of config.maxInFlight sender threads and keeps
+   *     batching (and converting actions) while they wait on Elasticsearch. With the default of 1,
+   *     this double buffers: one batch is in flight while the next one fills, so at most two
+   *     batches are held in memory
+   *   - batches come from an {@link ActionBatchPool} and go back to it once the flush listener has been called,
+   *     so a BulkReport is only valid during onFlush
+   *   - a bulk request is held back while it contains a document (index/type/id/routing) that is part of
+   *     another in-flight request so that actions on the same document are applied in order
+   *   - flush still waits until all in-flight requests have been acknowledged
+   *   - flushAsync returns right away. Its future completes once every bulk request started before it
+   *     (including spilled ones) has been acknowledged, while the writer keeps taking new actions. Requests
+   *     can complete out of order so each batch gets a sequence number and the future waits for the
+   *     oldest one still in flight to be past the flush
+   *   - with an async transport (see {@link BulkTransport#isAsync()}), there are no sender threads. The writer
+   *     starts each request and the transport hands the response over to a single response thread, which
+   *     does the rest: reporting to onFlush, resending rejected items after the backoff, circuit breaker waits
+   *     and diverting. Nothing runs on the transport's I/O thread
+   *
+   * Backpressure:
+   *   - with a queueListener, time the client thread is blocked on a full command queue is reported along
+   *     with samples of the queue depth and how busy the writer is. BulkReport.triggerToAckMs covers the rest
+   *     of the way, from the flush trigger until Elasticsearch responded
+   *
+   * Spilling:
+   *   - with config.spill set, a batch that can't be sent right away (all config.maxInFlight slots are taken
+   *     or it shares a document with an in-flight request) is written to a {@link BatchSpill} instead of
+   *     blocking the writer. The writer keeps taking actions off the command queue while Elasticsearch is slow
+   *     and the batches wait off the heap
+   *   - spilled batches are sent in order as slots free up. Once anything is spilled, every new batch goes behind
+   *     it until the spill is empty so that actions are still applied in order
+   *   - flush sends all spilled batches and waits for them like any other in-flight request so it still
+   *     means everything added so far has been acknowledged
+   *   - when spill.maxBytes is reached, the writer blocks until the oldest spilled batch can be sent
+   *   - the spill is not durable. Its files are removed when the writer stops. Anything in it was never
+   *     covered by a flush so it is sent again from the last checkpoint after a restart
+   *
+   * Circuit breaker:
+   *   - with config.circuitBreaker set, connection errors and server errors (5xx without item results) are not fatal.
+   *     The request is resent (with the retry backoff) as the {@link CircuitBreaker} allows, which holds requests back
+   *     while it is open and lets one small probe request through at a time while it is half-open
+   *     (see {@link BulkRequestExecutor})
+   *   - while the breaker is not closed, batches are cut at circuitBreaker.probeActions. Larger requests held from
+   *     before it opened only send their first probeActions as the probe and the rest once it gets through
+   *   - requests waiting on the breaker hold their in-flight slots so the writer (and then addAction) blocks once
+   *     they are all taken, or spills if that is set. Callers can check isCircuitOpen() to do something else instead
+   *   - with a diverter, requests go to it instead of waiting while the breaker is open (not half-open). That covers batches held,
+   *     spilled or being retried when it opened so flush does not wait out the outage. They are done once diverted and
+   *     counted under DIVERTED_OPERATION. The diverter is called from the sender threads (or the response thread)
    */
   public HTTPBulkLoader(Config config, JestClient client, Optional<Consumer<BulkReport>> onFlushOpt) {
-    this.writerCmdQueue = new ArrayBlockingQueue<>(config.flushMaxActions);
+    this(config, new JestBulkTransport(client), onFlushOpt);
+  }
+
+  public HTTPBulkLoader(Config config, BulkTransport transport, Optional<Consumer<BulkReport>> onFlushOpt) {
+    this(config, transport, onFlushOpt, Optional.empty(), Optional.empty(), Optional.empty());
+  }
+
+  public HTTPBulkLoader(Config config, BulkTransport transport, Optional<Consumer<BulkReport>> onFlushOpt, Optional<QueueListener> queueListener,
+                        Optional<CircuitBreaker.Listener> breakerListener, Optional<Consumer<ActionRequest>> diverter) {
+    this.transport = transport;
+    this.queueListener = queueListener;
+    this.circuitBreaker = config.circuitBreaker.map(breakerConf -> new CircuitBreaker(breakerConf, breakerListener));
+    this.writerCmdRing = new SPSCRingBuffer<>(config.flushMaxActions, WriterCommand::new);
     final String name = config.name;
     this.writerExecSvc = Executors.newFixedThreadPool(1, r -> new Thread(r, name + " Elasticsearch Writer"));
-    this.writer = new Writer(config, client, writerCmdQueue, onFlushOpt);
+    if (transport.isAsync()) {
+      this.senderExecSvc = null;
+      this.responseExecSvc = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, name + " Elasticsearch Response"));
+    }
+    else {
+      this.senderExecSvc = Executors.newFixedThreadPool(config.maxInFlight, r -> new Thread(r, name + " Elasticsearch Sender"));
+      this.responseExecSvc = null;
+    }
+    BulkRequestExecutor requestExecutor = new BulkRequestExecutor(transport, circuitBreaker, diverter, config.retry, responseExecSvc);
+    this.retrier = new BulkRetrier(config.retry, requestExecutor, responseExecSvc);
+    this.writer = new Writer(config, transport, writerCmdRing, onFlushOpt);
   }
 
   /**
-   * Converts request to JEST API and passes it to writer thread
+   * Passes request to writer thread
    *
    * May block if internal buffer is full
    *
@@ -156,9 +606,8 @@ public class HTTPBulkLoader {
 //    if (logger.isTraceEnabled()) {
 //      logger.trace(String.format("Add action: key %s, index %s/%s, doc %s", req.key, req.index, req.docType, req.document));
 //    }
-    BulkableAction<DocumentResult> action = convertToJestAction(req);
-    WriterCommand addCmd = WriterCommand.getAddCmd(new SourcedActionRequest(source, req, action));
-    sendCmd(addCmd);
+    claimCmdSlot().setAddCmd(source, req);
+    writerCmdRing.publish();
   }
 
   /**
@@ -167,14 +616,15 @@ public class HTTPBulkLoader {
    * Error contract: will throw an Exception if a fatal errors occur in the writer thread
    */
   public void flush() throws Throwable {
-    WriterCommand flushCmd = WriterCommand.getFlushCmd();
-    sendCmd(flushCmd);
+    CompletableFuture<Void> flushCompletedFuture = new CompletableFuture<>();
+    claimCmdSlot().setFlushCmd(flushCompletedFuture);
+    writerCmdRing.publish();
     try {
       //Wait on flush to complete - may block if writer is dead so we must periodically check
       boolean waiting = true;
       while (waiting) {
         try {
-          flushCmd.flushCompletedFuture.get(100, TimeUnit.MILLISECONDS);
+          flushCompletedFuture.get(100, TimeUnit.MILLISECONDS);
           waiting = false;
         }
         catch (TimeoutException e) {
@@ -187,7 +637,7 @@ public class HTTPBulkLoader {
         Try for a clean shutdown by waiting a little longer on the flush
        */
       try {
-        flushCmd.flushCompletedFuture.get(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS);
+        flushCompletedFuture.get(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS);
       } catch (Exception retryEx) {
         throw new IOException("Error trying to flush to Elasticsearch on shutdown", e);
       }
@@ -197,6 +647,34 @@ public class HTTPBulkLoader {
     }
   }
 
+  /**
+   * Issue flush request to writer thread without waiting for it
+   *
+   * The future completes when every action added before the flush has been acknowledged or completes
+   * exceptionally if the writer fails first. Actions added after the flush may already be in flight by then
+   *
+   * Error contract: will throw an Exception if the writer thread has already died
+   */
+  public CompletableFuture<Void> flushAsync() throws Throwable {
+    CompletableFuture<Void> flushCompletedFuture = new CompletableFuture<>();
+    try {
+      if (writerFuture.isDone()) {
+        checkWriter();
+      }
+    }
+    catch (ExecutionException e) {
+      throw e.getCause();
+    }
+    claimCmdSlot().setFlushAsyncCmd(flushCompletedFuture);
+    writerCmdRing.publish();
+    //The writer may have stopped since the check above and failed the queued flushes before this one was added
+    Exception stoppedError = writer.stoppedError;
+    if (stoppedError != null) {
+      flushCompletedFuture.completeExceptionally(stoppedError);
+    }
+    return flushCompletedFuture;
+  }
+
   /**
    * Start writer thread
    */
@@ -204,13 +682,23 @@ public class HTTPBulkLoader {
     writerFuture = writerExecSvc.submit(writer);
   }
 
+  /**
+   * Whether the circuit breaker is open - requests are held back until it is time to probe Elasticsearch again
+   */
+  public boolean isCircuitOpen() {
+    return circuitBreaker.isPresent() && circuitBreaker.get().getState(System.currentTimeMillis()) == CircuitBreaker.State.OPEN;
+  }
+
   /**
    * Signal writer thread to shutdown
    */
   public void stop() {
     writerExecSvc.shutdownNow();
+    ExecutorService requestExecSvc = senderExecSvc != null ? senderExecSvc : responseExecSvc;
+    requestExecSvc.shutdownNow();
     try {
       writerExecSvc.awaitTermination(1, TimeUnit.MINUTES);
+      requestExecSvc.awaitTermination(1, TimeUnit.MINUTES);
     } catch (InterruptedException e) {
       logger.info("Interrupted waiting for Elasticsearch writer shutdown");
     }
@@ -253,24 +741,50 @@ public class HTTPBulkLoader {
     if (req.key.getVersion() != null) {
       setParameter.accept(Parameters.VERSION, req.key.getVersion());
     }
+    if (req.key.getRouting() != null) {
+      setParameter.accept(Parameters.ROUTING, req.key.getRouting().toString());
+    }
+    if (req.key.getParent() != null) {
+      setParameter.accept(Parameters.PARENT, req.key.getParent().toString());
+    }
     return build.get();
   }
 
   protected BulkableAction<DocumentResult> getIndexAction(ActionRequest req) {
-    Index.Builder b = new Index.Builder(req.document);
+    Index.Builder b = new Index.Builder(req.getDocument());
     return getAction(req, b::id, b::index, b::type, b::setParameter, b::build);
   }
 
   protected BulkableAction<DocumentResult> getUpdateAction(ActionRequest req) {
-    Update.Builder b = new Update.Builder(req.document);
+    Update.Builder b = new Update.Builder(req.getDocument());
     return getAction(req, b::id, b::index, b::type, b::setParameter, b::build);
   }
 
   protected BulkableAction<DocumentResult> getDeleteAction(ActionRequest req) {
-    Delete.Builder b = new Delete.Builder(req.document);
+    Delete.Builder b = new Delete.Builder(req.getDocument());
     return getAction(req, b::id, b::index, b::type, b::setParameter, b::build);
   }
 
+  /**
+   * Estimated size of the action in the bulk request body
+   */
+  protected static long getActionBytes(ActionRequest req) {
+    long size = ACTION_METADATA_BYTES + UTF8.getLength(req.index) + UTF8.getLength(req.docType);
+    if (req.key.getId() != null) {
+      size += UTF8.getLength(req.key.getId());
+    }
+    if (req.key.getRouting() != null) {
+      size += ROUTING_METADATA_BYTES + UTF8.getLength(req.key.getRouting());
+    }
+    if (req.key.getParent() != null) {
+      size += PARENT_METADATA_BYTES + UTF8.getLength(req.key.getParent());
+    }
+    if (req.hasDocument()) {
+      size += req.getDocumentLength() + UTF8.NEWLINE.length;
+    }
+    return size;
+  }
+
   protected void checkWriter() throws ExecutionException, InterruptedException {
     if (writerFuture.isDone() || writerFuture.isCancelled()) {
       logger.error("Elasticsearch writer has died");
@@ -282,12 +796,33 @@ public class HTTPBulkLoader {
     }
   }
 
-  protected void sendCmd(WriterCommand cmd) throws Throwable {
+  /**
+   * Claims the next command slot. The caller must fill it in and publish it
+   */
+  protected WriterCommand claimCmdSlot() throws Throwable {
+    WriterCommand slot = writerCmdRing.tryClaim();
+    if (slot != null) {
+      return slot;
+    }
+    long blockedStartNs = System.nanoTime();
     try {
-      //May block if queue is full so we must periodically check that writer is alive
-      while (!writerCmdQueue.offer(cmd, 100, TimeUnit.MILLISECONDS)) {
+      return waitForCmdSlot();
+    }
+    finally {
+      if (queueListener.isPresent()) {
+        queueListener.get().onBlocked(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - blockedStartNs));
+      }
+    }
+  }
+
+  protected WriterCommand waitForCmdSlot() throws Throwable {
+    try {
+      //May block if ring buffer is full so we must periodically check that writer is alive
+      WriterCommand slot;
+      while ((slot = writerCmdRing.claim(100, TimeUnit.MILLISECONDS)) == null) {
         checkWriter();
       }
+      return slot;
     }
     catch (ExecutionException e) {
       logger.error("Elasticsearch writer died", e.getCause());
@@ -298,9 +833,11 @@ public class HTTPBulkLoader {
         Try for a clean shutdown by waiting a little longer to enqueue the message
        */
       try {
-        if (!writerCmdQueue.offer(cmd, SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) {
+        WriterCommand slot = writerCmdRing.claim(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS);
+        if (slot == null) {
           throw new IOException("Timed out trying to pass message to Elasticsearch writer on shutdown");
         }
+        return slot;
       }
       catch (InterruptedException e) {
         throw new IOException("Interrupted passing message to Elasticsearch writer", e);
@@ -308,6 +845,19 @@ public class HTTPBulkLoader {
     }
   }
 
+  /**
+   * Async flush waiting on all batches with a lower sequence number
+   */
+  protected static class FlushMarker {
+    public final long batchSeq;
+    public final CompletableFuture<Void> future;
+
+    public FlushMarker(long batchSeq, CompletableFuture<Void> future) {
+      this.batchSeq = batchSeq;
+      this.future = future;
+    }
+  }
+
   /**
    *
    * Writer thread callable - handles all communication with Elasticsearch
@@ -317,32 +867,68 @@ public class HTTPBulkLoader {
    * and throw exception.
    */
   protected class Writer implements Callable<Void> {
+    protected static final long IN_FLIGHT_CHECK_MS = 100;
+    /* Poll timeout while there are spilled batches to send as slots free up */
+    protected static final long SPILL_CHECK_MS = 5;
     protected final Config config;
-    protected final JestClient client;
+    protected final BulkTransport transport;
     protected final Optional<Consumer<BulkReport>> onFlushOpt;
-    protected final BlockingQueue<WriterCommand> cmdQueue;
+    protected final SPSCRingBuffer<WriterCommand> cmdRing;
+    protected final Optional<AdaptiveBatchSizer> batchSizer;
+    protected final Optional<ActionCoalescer> coalescer;
+    protected Optional<BatchSpill> spill = Optional.empty();
+    /* Sequence number of the next batch dispatched */
+    protected long nextBatchSeq = 0;
     protected long lastFlushTsMs;
-    protected final List<WriterCommand> requests;
+    /* Batch being filled */
+    protected ActionBatch requests;
+    protected final ActionBatchPool batchPool;
+    protected long requestBytes = 0;
+    /* Writer busy/idle time since the last stats sample */
+    protected long statsStartNs = System.nanoTime();
+    protected long idleNs = 0;
+    /* In-flight bookkeeping for pipelined sends - guarded by inFlightLock */
+    protected final Object inFlightLock = new Object();
+    protected final Map<String, Integer> inFlightDocs = new HashMap<>();
+    protected int inFlightRequests = 0;
+    /* Sequence numbers of the batches dispatched (in flight or spilled) but not acknowledged yet */
+    protected final TreeSet<Long> pendingBatches = new TreeSet<>();
+    protected final Deque<FlushMarker> flushMarkers = new ArrayDeque<>();
+    protected Exception senderError = null;
+    /* Set before the queued flushes are failed when the writer stops */
+    protected volatile Exception stoppedError = null;
     protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
 
-    public Writer(Config config, JestClient client, BlockingQueue<WriterCommand> cmdQueue, Optional<Consumer<BulkReport>> onFlushOpt) {
+    public Writer(Config config, BulkTransport transport, SPSCRingBuffer<WriterCommand> cmdRing, Optional<Consumer<BulkReport>> onFlushOpt) {
       this.config = config;
-      this.cmdQueue = cmdQueue;
-      this.client = client;
+      this.cmdRing = cmdRing;
+      this.transport = transport;
       this.onFlushOpt = onFlushOpt;
-      this.requests = new ArrayList<>(config.flushMaxActions);
+      //One being filled, the in-flight ones and the spilled one being read back
+      this.batchPool = new ActionBatchPool(config.maxInFlight + 2, config.flushMaxActions);
+      this.requests = batchPool.acquire();
+      this.batchSizer = config.adaptive.map(adaptive -> new AdaptiveBatchSizer(adaptive, config.flushMaxActions));
+      this.coalescer = config.coalesce ? Optional.of(new ActionCoalescer()) : Optional.empty();
     }
 
     @Override
     public Void call() throws Exception {
       logger.info("ES writer started");
+      Exception error = null;
       try {
+        openSpill();
         doCall();
       }
       catch (Exception e) {
         logger.error("ES writer dying...");
+        error = e;
         throw e;
       }
+      finally {
+        closeSpill();
+        stoppedError = error != null ? error : new IllegalStateException("Elasticsearch writer stopped before the flush completed");
+        failFlushes(stoppedError);
+      }
       logger.info("ES writer is ending");
       return null;
     }
@@ -351,15 +937,29 @@ public class HTTPBulkLoader {
       lastFlushTsMs = System.currentTimeMillis();
       while (true) {
         try {
+          checkSenders();
+          drainSpill(false);
           WriterCommand cmd = poll();
           if (cmd == null) {
-            flush(TriggerType.MAX_INTERVAL);
+            if (isFlushIntervalExpired()) {
+              flush(TriggerType.MAX_INTERVAL);
+            }
           }
           else if (cmd.type.equals(WriterCommandType.ADD_ACTION)) {
-            handleAddCmd(cmd);
+            String source = cmd.source;
+            ActionRequest req = cmd.request;
+            release(cmd);
+            handleAddCmd(source, req);
           }
           else if (cmd.type.equals(WriterCommandType.FLUSH)) {
-            handleFlushCmd(cmd);
+            CompletableFuture<Void> flushCompletedFuture = cmd.flushCompletedFuture;
+            release(cmd);
+            handleFlushCmd(flushCompletedFuture);
+          }
+          else if (cmd.type.equals(WriterCommandType.FLUSH_ASYNC)) {
+            CompletableFuture<Void> flushCompletedFuture = cmd.flushCompletedFuture;
+            release(cmd);
+            handleFlushAsyncCmd(flushCompletedFuture);
           }
           else {
             throw new IllegalStateException("Unknown cmd type: " + cmd.type);
@@ -377,18 +977,72 @@ public class HTTPBulkLoader {
     }
 
     protected WriterCommand poll() throws InterruptedException {
+      if (!queueListener.isPresent()) {
+        return waitForCmd();
+      }
+      long idleStartNs = System.nanoTime();
+      try {
+        return waitForCmd();
+      }
+      finally {
+        onIdle(idleStartNs, System.nanoTime());
+      }
+    }
+
+    protected WriterCommand waitForCmd() throws InterruptedException {
+      //Wake up periodically to check for sender errors and sooner to send spilled batches
+      long timeoutMs = isSpillEmpty() ? IN_FLIGHT_CHECK_MS : SPILL_CHECK_MS;
       if (config.flushMaxIntervalMs.isPresent()) {
-        long msSinceLastFlush = System.currentTimeMillis() - lastFlushTsMs;
-        long msUntilFlush = Math.max(0, config.flushMaxIntervalMs.get().longValue() - msSinceLastFlush);
+        long msUntilFlush = getMsUntilFlush();
         if (msUntilFlush == 0) {
           return null;
         }
-        return cmdQueue.poll(msUntilFlush, TimeUnit.MILLISECONDS);
+        return cmdRing.poll(Math.min(msUntilFlush, timeoutMs), TimeUnit.MILLISECONDS);
+      }
+      return cmdRing.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds to the idle time and reports the stats once the interval is up
+     */
+    protected void onIdle(long idleStartNs, long idleEndNs) {
+      idleNs += idleEndNs - idleStartNs;
+      long intervalNs = idleEndNs - statsStartNs;
+      if (intervalNs >= WRITER_STATS_INTERVAL_NS) {
+        double busyRatio = Math.max(0.0, (double) (intervalNs - idleNs) / intervalNs);
+        queueListener.get().onWriterStats(cmdRing.size(), busyRatio);
+        statsStartNs = idleEndNs;
+        idleNs = 0;
       }
-      return cmdQueue.take();
     }
 
-    protected void flush(TriggerType triggerType) throws IOException {
+    /**
+     * Hands the slot back to the client thread. Must be done before anything that may block
+     * (e.g. a flush) so that the client can keep adding
+     */
+    protected void release(WriterCommand cmd) {
+      cmd.clear();
+      cmdRing.release();
+    }
+
+    protected long getMsUntilFlush() {
+      long msSinceLastFlush = System.currentTimeMillis() - lastFlushTsMs;
+      return Math.max(0, config.flushMaxIntervalMs.get().longValue() - msSinceLastFlush);
+    }
+
+    protected boolean isFlushIntervalExpired() {
+      return config.flushMaxIntervalMs.isPresent() && getMsUntilFlush() == 0;
+    }
+
+    protected int getMaxActions() {
+      int maxActions = batchSizer.isPresent() ? batchSizer.get().getBatchSize() : config.flushMaxActions;
+      if (circuitBreaker.isPresent() && circuitBreaker.get().getState(System.currentTimeMillis()) != CircuitBreaker.State.CLOSED) {
+        return Math.min(maxActions, circuitBreaker.get().getConfig().probeActions);
+      }
+      return maxActions;
+    }
+
+    protected void flush(TriggerType triggerType) throws Exception {
       if (requests.size() == 0) {
         if (logger.isTraceEnabled()) {
           logger.trace("No records to flush for " + triggerType);
@@ -397,69 +1051,449 @@ public class HTTPBulkLoader {
         return;
       }
 
-      List<SourcedActionRequest> sourcedReqs = null;
-      if (onFlushOpt.isPresent()) {
-        //This must be done before the list is cleared in the finally block
-        sourcedReqs = requests.stream().map(cmd -> cmd.request).collect(Collectors.toList());
-      }
-
       if (logger.isTraceEnabled()) {
         logger.trace(String.format("Flushing %s actions", requests.size()));
       }
-      BulkResult bulkResult = null;
-      long esWaitMs = 0;
-      try {
-        long esStartMs = System.currentTimeMillis();
-        Bulk bulkRequest = getBulkRequest();
-        if (logger.isTraceEnabled()) {
-          String bulkStr = bulkRequest.getData(new Gson());
-          logger.trace(bulkStr);
-        }
-        bulkResult = client.execute(bulkRequest);
-        esWaitMs = System.currentTimeMillis() - esStartMs;
-      } finally {
-        requests.clear();
-        lastFlushTsMs = System.currentTimeMillis();
+      long batchBytes = requestBytes;
+      requestBytes = 0;
+      //The batch goes back to the pool once it has been sent
+      ActionBatch batch = requests;
+      requests = batchPool.acquire();
+      if (coalescer.isPresent()) {
+        coalescer.get().clear();
+      }
+      lastFlushTsMs = System.currentTimeMillis();
+      dispatch(batch, batchBytes, triggerType, lastFlushTsMs);
+    }
+
+    /**
+     * Executes the bulk request, retrying rejected items, and reports the result to the flush listener
+     *
+     * Runs in a sender thread. Retries happen here rather than
+     * through the command queue so that flush still covers them and no later action on the same
+     * document can overtake a retried one
+     */
+    protected void send(ActionBatch sourcedReqs, long batchBytes, TriggerType triggerType, long triggerTsMs) throws Exception {
+      onBulkResponse(sourcedReqs, retrier.send(sourcedReqs.getRequests()), batchBytes, triggerType, triggerTsMs);
+    }
+
+    /**
+     * Same as send() for async transports - nothing here blocks. The returned future completes on the
+     * response thread once the result has been reported to the flush listener
+     */
+    protected CompletableFuture<Void> sendAsync(ActionBatch sourcedReqs, long batchBytes, TriggerType triggerType, long triggerTsMs) {
+      return retrier.sendAsync(sourcedReqs.getRequests()).thenAccept(state ->
+          onBulkResponse(sourcedReqs, state, batchBytes, triggerType, triggerTsMs));
+    }
+
+    protected void onBulkResponse(ActionBatch sourcedReqs, BulkRetrier.State state, long batchBytes, TriggerType triggerType, long triggerTsMs) {
+      if (batchSizer.isPresent()) {
+        batchSizer.get().onResponse(sourcedReqs.size(), state.esWaitMs, state.retriedItems);
       }
       //Callback flush listener
       if (onFlushOpt.isPresent()) {
-        onFlushOpt.get().accept(new BulkReport(bulkResult, triggerType, esWaitMs, sourcedReqs));
+        BulkTransport.Response response = state.response.toResponse();
+        onFlushOpt.get().accept(new BulkReport(response.bulkResult, response.itemCounts, triggerType, state.esWaitMs, batchBytes,
+            response.rawBytes, response.compressedBytes, state.retries, state.retriedItems, getMaxActions(),
+            System.currentTimeMillis() - triggerTsMs, sourcedReqs));
       }
     }
 
-    protected Bulk getBulkRequest() {
-      Bulk.Builder bulkReqBuilder = new Bulk.Builder();
-      for (WriterCommand cmd : requests) {
-        bulkReqBuilder.addAction(cmd.request.action);
+    /**
+     * Hands the batch to a sender thread (or starts it on an async transport) once there is
+     * a free slot and none of its documents are part of another in-flight request
+     *
+     * With a spill, the batch is spilled instead of waiting
+     */
+    protected void dispatch(ActionBatch batch, long batchBytes, TriggerType triggerType, long triggerTsMs) throws Exception {
+      Set<String> docKeys = getInFlightKeys(batch.getRequests());
+      long batchSeq = nextBatchSeq++;
+      synchronized (inFlightLock) {
+        pendingBatches.add(batchSeq);
       }
-      return bulkReqBuilder.build();
+      if (spill.isPresent()) {
+        if (!drainSpill(false) || !acquireSlot(docKeys, false)) {
+          spillBatch(batch, docKeys, batchSeq, batchBytes, triggerType, triggerTsMs);
+          return;
+        }
+      }
+      else {
+        acquireSlot(docKeys, true);
+      }
+      start(batch, docKeys, batchSeq, batchBytes, triggerType, triggerTsMs);
+    }
+
+    protected Set<String> getInFlightKeys(List<SourcedActionRequest> batch) {
+      //With a single request in flight, the previous one is always done before the next is sent
+      return config.maxInFlight > 1 ? getDocKeys(batch) : Collections.emptySet();
+    }
+
+    /**
+     * Takes an in-flight slot for the documents once there is one free and none of them are part
+     * of another in-flight request
+     *
+     * @return false if the slot is not available right away and block is false
+     */
+    protected boolean acquireSlot(Set<String> docKeys, boolean block) throws Exception {
+      synchronized (inFlightLock) {
+        while (inFlightRequests >= config.maxInFlight || isAnyInFlight(docKeys)) {
+          checkSenders();
+          if (!block) {
+            return false;
+          }
+          inFlightLock.wait(IN_FLIGHT_CHECK_MS);
+        }
+        checkSenders();
+        docKeys.forEach(key -> inFlightDocs.merge(key, 1, Integer::sum));
+        inFlightRequests++;
+        return true;
+      }
+    }
+
+    /**
+     * Sends the batch in the slot taken for it
+     */
+    protected void start(ActionBatch batch, Set<String> docKeys, long batchSeq, long batchBytes, TriggerType triggerType, long triggerTsMs) {
+      if (transport.isAsync()) {
+        sendAsync(batch, batchBytes, triggerType, triggerTsMs).whenComplete((result, error) -> {
+          batchPool.release(batch);
+          onSendComplete(docKeys, batchSeq, getException(error));
+        });
+        return;
+      }
+      senderExecSvc.submit(() -> {
+        Exception error = null;
+        try {
+          send(batch, batchBytes, triggerType, triggerTsMs);
+        }
+        catch (Exception e) {
+          error = e;
+        }
+        finally {
+          batchPool.release(batch);
+          onSendComplete(docKeys, batchSeq, error);
+        }
+      });
+    }
+
+    protected void openSpill() throws IOException {
+      if (config.spill.isPresent()) {
+        spill = Optional.of(new BatchSpill(config.spill.get(), config.name));
+      }
+    }
+
+    protected void closeSpill() {
+      if (spill.isPresent()) {
+        try {
+          spill.get().close();
+        }
+        catch (IOException e) {
+          logger.warn("Error removing spill files", e);
+        }
+        spill = Optional.empty();
+      }
+    }
+
+    protected boolean isSpillEmpty() {
+      return !spill.isPresent() || spill.get().isEmpty();
+    }
+
+    /**
+     * Adds the batch at the end of the spill. If the spill is full, blocks until spilled batches
+     * have been sent to make room. A batch bigger than the whole spill is sent directly once the spill is empty
+     */
+    protected void spillBatch(ActionBatch batch, Set<String> docKeys, long batchSeq, long batchBytes, TriggerType triggerType, long triggerTsMs) throws Exception {
+      byte[] record = spill.get().encode(batch.getRequests(), batchBytes, triggerType, triggerTsMs);
+      while (!spill.get().offer(record, batchSeq)) {
+        if (isSpillEmpty()) {
+          acquireSlot(docKeys, true);
+          start(batch, docKeys, batchSeq, batchBytes, triggerType, triggerTsMs);
+          return;
+        }
+        sendNextSpilled(true);
+      }
+      batchPool.release(batch);
+    }
+
+    /**
+     * Sends spilled batches in order while there are free slots for them (or until they are all sent if block is true)
+     *
+     * @return true if the spill is empty
+     */
+    protected boolean drainSpill(boolean block) throws Exception {
+      while (!isSpillEmpty()) {
+        if (!sendNextSpilled(block)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Sends the oldest spilled batch
+     *
+     * @return false if it could not be sent right away and block is false
+     */
+    protected boolean sendNextSpilled(boolean block) throws Exception {
+      SpilledBatchCodec.SpilledBatch next = spill.get().peek();
+      Set<String> docKeys = getInFlightKeys(next.requests);
+      if (!acquireSlot(docKeys, block)) {
+        return false;
+      }
+      long batchSeq = spill.get().remove();
+      start(toBatch(next.requests), docKeys, batchSeq, next.batchBytes, next.triggerType, next.triggerTsMs);
+      return true;
+    }
+
+    /**
+     * Puts spilled requests back in a pooled batch, converting them to JEST actions if the transport needs them
+     */
+    protected ActionBatch toBatch(List<SourcedActionRequest> spilled) {
+      ActionBatch batch = batchPool.acquire();
+      for (SourcedActionRequest req : spilled) {
+        batch.add(transport.usesJestActions() ?
+            new SourcedActionRequest(req.source, req.request, convertToJestAction(req.request), req.coalesced) : req);
+        batch.addTimes(req.request);
+        for (ActionRequest coalesced : req.coalesced) {
+          batch.addTimes(coalesced);
+        }
+      }
+      return batch;
+    }
+
+    protected Exception getException(Throwable error) {
+      if (error instanceof CompletionException && error.getCause() != null) {
+        error = error.getCause();
+      }
+      if (error == null || error instanceof Exception) {
+        return (Exception) error;
+      }
+      return new ExecutionException(error);
+    }
+
+    protected Set<String> getDocKeys(List<SourcedActionRequest> batch) {
+      Set<String> docKeys = new HashSet<>(batch.size());
+      for (SourcedActionRequest req : batch) {
+        docKeys.add(getDocKey(req.request));
+      }
+      return docKeys;
+    }
+
+    protected void onSendComplete(Set<String> docKeys, long batchSeq, Exception error) {
+      List<FlushMarker> completed;
+      synchronized (inFlightLock) {
+        docKeys.forEach(key -> inFlightDocs.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null));
+        inFlightRequests--;
+        pendingBatches.remove(batchSeq);
+        if (error != null && senderError == null) {
+          logger.error("Elasticsearch sender failed", error);
+          senderError = error;
+        }
+        completed = removeCompletedFlushMarkers();
+        inFlightLock.notifyAll();
+      }
+      completeFlushMarkers(completed);
+    }
+
+    /**
+     * Async flushes that no longer wait on any batch. Must hold inFlightLock
+     */
+    protected List<FlushMarker> removeCompletedFlushMarkers() {
+      if (flushMarkers.isEmpty()) {
+        return Collections.emptyList();
+      }
+      List<FlushMarker> completed = new ArrayList<>();
+      while (!flushMarkers.isEmpty() &&
+          (senderError != null || pendingBatches.isEmpty() || pendingBatches.first() >= flushMarkers.peekFirst().batchSeq)) {
+        completed.add(flushMarkers.removeFirst());
+      }
+      return completed;
+    }
+
+    /**
+     * Completes the futures outside of inFlightLock since they run the caller's callbacks
+     */
+    protected void completeFlushMarkers(List<FlushMarker> completed) {
+      Exception error;
+      synchronized (inFlightLock) {
+        error = senderError;
+      }
+      for (FlushMarker marker : completed) {
+        if (error != null) {
+          marker.future.completeExceptionally(error);
+        }
+        else {
+          marker.future.complete(null);
+        }
+      }
+    }
+
+    /**
+     * Fails the pending async flushes and any flush commands still queued so that nobody waits on a dead writer
+     */
+    protected void failFlushes(Exception error) {
+      List<FlushMarker> failed;
+      synchronized (inFlightLock) {
+        failed = new ArrayList<>(flushMarkers);
+        flushMarkers.clear();
+      }
+      failed.forEach(marker -> marker.future.completeExceptionally(error));
+      WriterCommand cmd;
+      while ((cmd = cmdRing.tryPoll()) != null) {
+        CompletableFuture<Void> flushCompletedFuture = cmd.flushCompletedFuture;
+        release(cmd);
+        if (flushCompletedFuture != null) {
+          flushCompletedFuture.completeExceptionally(error);
+        }
+      }
+    }
+
+    protected boolean isAnyInFlight(Set<String> docKeys) {
+      if (inFlightDocs.isEmpty()) {
+        return false;
+      }
+      for (String key : docKeys) {
+        if (inFlightDocs.containsKey(key)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Blocks until all in-flight requests have been acknowledged
+     */
+    protected void awaitInFlight() throws Exception {
+      synchronized (inFlightLock) {
+        while (inFlightRequests > 0) {
+          checkSenders();
+          inFlightLock.wait(IN_FLIGHT_CHECK_MS);
+        }
+        checkSenders();
+      }
+    }
+
+    /**
+     * Rethrows the first error from a sender thread so that the writer dies
+     */
+    protected void checkSenders() throws Exception {
+      synchronized (inFlightLock) {
+        if (senderError != null) {
+          throw senderError;
+        }
+      }
+    }
+
+    /**
+     * The same id with different routing is a different document, possibly on another shard.
+     * Child documents are routed by their parent unless routing is given
+     */
+    protected String getDocKey(ActionRequest req) {
+      CharSequence routing = req.key.getRouting() != null ? req.key.getRouting() : req.key.getParent();
+      String docKey = req.index + "/" + req.docType + "/" + req.key.getId();
+      return routing == null ? docKey : docKey + "?" + routing;
     }
 
     /**
      * Informs main thread of any errors via Future and by dying
      */
-    protected void handleFlushCmd(WriterCommand cmd) throws Exception {
+    protected void handleFlushCmd(CompletableFuture<Void> flushCompletedFuture) throws Exception {
       logger.trace("Received flush cmd");
       try {
         flush(TriggerType.FLUSH_CMD);
-        cmd.flushCompletedFuture.complete(null);
+        drainSpill(true);
+        awaitInFlight();
+        flushCompletedFuture.complete(null);
+      }
+      catch (Exception e) {
+        flushCompletedFuture.completeExceptionally(e);
+        throw e;
+      }
+    }
+
+    /**
+     * Sends the current batch and returns without waiting for it. The future completes once
+     * all batches dispatched so far have been acknowledged
+     */
+    protected void handleFlushAsyncCmd(CompletableFuture<Void> flushCompletedFuture) throws Exception {
+      logger.trace("Received async flush cmd");
+      try {
+        flush(TriggerType.FLUSH_CMD);
       }
       catch (Exception e) {
-        cmd.flushCompletedFuture.completeExceptionally(e);
+        flushCompletedFuture.completeExceptionally(e);
         throw e;
       }
+      List<FlushMarker> completed;
+      synchronized (inFlightLock) {
+        flushMarkers.addLast(new FlushMarker(nextBatchSeq, flushCompletedFuture));
+        completed = removeCompletedFlushMarkers();
+      }
+      completeFlushMarkers(completed);
     }
 
-    protected void handleAddCmd(WriterCommand cmd) throws IOException {
-      requests.add(cmd);
+    /**
+     * Converts the request to JEST API (if the transport needs it) here so that it overlaps with in-flight sends
+     */
+    protected void handleAddCmd(String source, ActionRequest request) throws Exception {
+      if (coalescer.isPresent() && coalesce(source, request)) {
+        requests.addTimes(request);
+        if (config.flushMaxBytes.isPresent() && requestBytes >= config.flushMaxBytes.get()) {
+          flush(TriggerType.MAX_BYTES);
+        }
+        return;
+      }
+      BulkableAction<DocumentResult> action = transport.usesJestActions() ? convertToJestAction(request) : null;
+      SourcedActionRequest req = new SourcedActionRequest(source, request, action);
+      long actionBytes = config.flushMaxBytes.isPresent() ? getActionBytes(request) : 0;
+      //Send what we have if this action would take the request over the size limit
+      if (config.flushMaxBytes.isPresent() && requests.size() > 0 && requestBytes + actionBytes > config.flushMaxBytes.get()) {
+        flush(TriggerType.MAX_BYTES);
+      }
+      requests.add(req);
+      requests.addTimes(request);
+      requestBytes += actionBytes;
+      if (coalescer.isPresent() && coalescer.get().isCoalescable(request)) {
+        coalescer.get().setPosition(getDocKey(request), requests.size() - 1);
+      }
 //      if (logger.isTraceEnabled()) {
 //        logger.trace(String.format("Received add: source %s, action %s, count %s",
-//                cmd.request.source, cmd.request.action.getBulkMethodName(), requests.size()));
+//                req.source, req.request.key.getAction(), requests.size()));
 //      }
-      if (requests.size() >= config.flushMaxActions) {
+      if (requests.size() >= getMaxActions()) {
         flush(TriggerType.MAX_ACTIONS);
       }
+      else if (config.flushMaxBytes.isPresent() && requestBytes >= config.flushMaxBytes.get()) {
+        flush(TriggerType.MAX_BYTES);
+      }
     }
 
+    /**
+     * Merges the request into an earlier action on the same document in the batch if possible. The merged
+     * action takes the earlier one's place and keeps the merged requests so that they can be reported
+     */
+    protected boolean coalesce(String source, ActionRequest request) {
+      if (!coalescer.get().isCoalescable(request)) {
+        return false;
+      }
+      int position = coalescer.get().getPosition(getDocKey(request));
+      if (position < 0) {
+        return false;
+      }
+      SourcedActionRequest prev = requests.get(position);
+      ActionRequest merged = coalescer.get().merge(prev.request, request);
+      if (merged == null) {
+        return false;
+      }
+      List<ActionRequest> coalesced = new ArrayList<>(prev.coalesced.size() + 1);
+      coalesced.addAll(prev.coalesced);
+      coalesced.add(prev.request);
+      BulkableAction<DocumentResult> action = transport.usesJestActions() ? convertToJestAction(merged) : null;
+      requests.set(position, new SourcedActionRequest(source, merged, action, coalesced));
+      if (config.flushMaxBytes.isPresent()) {
+        requestBytes += getActionBytes(merged) - getActionBytes(prev.request);
+      }
+      return true;
+    }
   }
 }
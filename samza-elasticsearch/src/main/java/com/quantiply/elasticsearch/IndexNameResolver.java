@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+
+/**
+ * Resolves the name of a date partitioned index from the partition timestamp
+ *
+ * The formatter is compiled once. The last name is cached along with the range of timestamps [bucketStartMs, bucketEndMs)
+ * that format to it so that consecutive messages for the same day (or hour) only cost two comparisons.
+ *
+ * The bucket is the local date-time truncated to the finest field in the date format, e.g. days for yyyy.MM.dd. Its bounds
+ * are converted back to instants in the zone so DST transitions are handled:
+ *   - a bucket starting in a gap starts when the gap ends (a 23h day)
+ *   - in an overlap, the bounds keep the timestamp's own offset where they can (a 25h day, or an hour repeated as two buckets)
+ *
+ * Formats with zone/offset fields or fields finer than seconds are not cached.
+ *
+ * Not thread safe. Each task has its own, as does the {@link IndexPreCreator}.
+ */
+public class IndexNameResolver {
+  protected final String prefix;
+  protected final Optional<DateTimeFormatter> dateFormat;
+  protected final ZoneId zone;
+  protected final Optional<ChronoUnit> bucketUnit;
+  protected long bucketStartMs = Long.MAX_VALUE;
+  protected long bucketEndMs = Long.MIN_VALUE;
+  protected String bucketIndex = null;
+
+  public IndexNameResolver(String prefix, Optional<String> dateFormat, ZoneId zone) {
+    this.prefix = prefix;
+    this.dateFormat = dateFormat.map(DateTimeFormatter::ofPattern);
+    this.zone = zone;
+    this.bucketUnit = dateFormat.flatMap(IndexNameResolver::getBucketUnit);
+  }
+
+  public String getIndex(long tsMs) {
+    if (!dateFormat.isPresent()) {
+      return prefix;
+    }
+    if (tsMs >= bucketStartMs && tsMs < bucketEndMs) {
+      return bucketIndex;
+    }
+    ZonedDateTime dateTime = Instant.ofEpochMilli(tsMs).atZone(zone);
+    //ES index names must be lowercase
+    String index = prefix + dateTime.format(dateFormat.get()).toLowerCase();
+    if (bucketUnit.isPresent()) {
+      LocalDateTime start = truncate(dateTime.toLocalDateTime(), bucketUnit.get());
+      long startMs = ZonedDateTime.ofLocal(start, zone, dateTime.getOffset()).toInstant().toEpochMilli();
+      long endMs = ZonedDateTime.ofLocal(start.plus(1, bucketUnit.get()), zone, dateTime.getOffset()).toInstant().toEpochMilli();
+      if (tsMs >= startMs && tsMs < endMs) {
+        bucketStartMs = startMs;
+        bucketEndMs = endMs;
+        bucketIndex = index;
+      }
+    }
+    return index;
+  }
+
+  protected static LocalDateTime truncate(LocalDateTime dateTime, ChronoUnit unit) {
+    switch (unit) {
+      case YEARS:
+        return dateTime.withDayOfYear(1).truncatedTo(ChronoUnit.DAYS);
+      case MONTHS:
+        return dateTime.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS);
+      default:
+        return dateTime.truncatedTo(unit);
+    }
+  }
+
+  /**
+   * Finest unit of the date fields in the pattern or empty if names should not be cached.
+   * Week fields use days since weeks don't start on a fixed day in every locale
+   */
+  protected static Optional<ChronoUnit> getBucketUnit(String pattern) {
+    ChronoUnit finest = ChronoUnit.YEARS;
+    boolean quoted = false;
+    for (char c : pattern.toCharArray()) {
+      if (c == '\'') {
+        quoted = !quoted;
+        continue;
+      }
+      if (quoted || !Character.isLetter(c)) {
+        continue;
+      }
+      ChronoUnit unit;
+      switch (c) {
+        case 'G': case 'u': case 'y':
+          unit = ChronoUnit.YEARS;
+          break;
+        case 'Q': case 'q': case 'M': case 'L':
+          unit = ChronoUnit.MONTHS;
+          break;
+        case 'Y': case 'w': case 'W': case 'D': case 'd': case 'F': case 'E': case 'e': case 'c':
+          unit = ChronoUnit.DAYS;
+          break;
+        case 'a': case 'h': case 'K': case 'k': case 'H':
+          unit = ChronoUnit.HOURS;
+          break;
+        case 'm':
+          unit = ChronoUnit.MINUTES;
+          break;
+        case 's':
+          unit = ChronoUnit.SECONDS;
+          break;
+        default:
+          return Optional.empty();
+      }
+      if (unit.compareTo(finest) < 0) {
+        finest = unit;
+      }
+    }
+    return Optional.of(finest);
+  }
+}
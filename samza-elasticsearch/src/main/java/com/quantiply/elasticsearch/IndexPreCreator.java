@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.indices.CreateIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates date partitioned indexes before the first action is written to them
+ *
+ * Otherwise, the first bulk request after each rollover waits while Elasticsearch creates the index and
+ * applies the templates, which shows up as a latency spike and rejections every day (or hour).
+ *
+ * Every checkIntervalMs, a background thread works out the index names for now and for leadTimeMs from now
+ * for each pattern and creates the ones that are not known to exist yet. An index that already exists counts
+ * as created. Patterns are {@link IndexNameResolver}s, as used by ESPushTask to name the indexes it writes to,
+ * so the names always match. They are only used from the background thread.
+ *
+ * Indexes known to exist are cached so that each one is only created once. Errors are logged and retried on
+ * the next check - Elasticsearch still creates the index on the first write if it comes to that
+ *
+ * The JEST client is owned by the pre-creator and shut down on stop
+ */
+public class IndexPreCreator {
+
+  /**
+   * Called from the background thread
+   */
+  public interface Listener {
+    void onCreated(String index);
+
+    void onFailed(String index);
+  }
+
+  protected static final int MAX_KNOWN_INDEXES = 1024;
+  protected static final int STATUS_BAD_REQUEST = 400;
+  protected final List<IndexNameResolver> patterns;
+  protected final JestClient client;
+  protected final long leadTimeMs;
+  protected final long checkIntervalMs;
+  protected final Optional<Listener> listener;
+  /* Oldest names are dropped first - they are long past their bucket */
+  protected final Set<String> knownIndexes = Collections.newSetFromMap(Collections.synchronizedMap(
+      new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_KNOWN_INDEXES;
+        }
+      }));
+  protected ScheduledExecutorService execSvc = null;
+  protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
+
+  public IndexPreCreator(List<IndexNameResolver> patterns, JestClient client, long leadTimeMs, long checkIntervalMs, Optional<Listener> listener) {
+    this.patterns = patterns;
+    this.client = client;
+    this.leadTimeMs = leadTimeMs;
+    this.checkIntervalMs = checkIntervalMs;
+    this.listener = listener;
+  }
+
+  public void start() {
+    execSvc = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "Elasticsearch Index Pre-creator"));
+    execSvc.scheduleWithFixedDelay(() -> check(System.currentTimeMillis()), 0L, checkIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() {
+    if (execSvc != null) {
+      execSvc.shutdownNow();
+      try {
+        execSvc.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        logger.info("Interrupted waiting for index pre-creator shutdown");
+      }
+    }
+    client.shutdownClient();
+  }
+
+  /**
+   * Creates the current and upcoming index for each pattern if needed
+   */
+  public void check(long tsNowMs) {
+    for (IndexNameResolver pattern : patterns) {
+      ensure(pattern.getIndex(tsNowMs));
+      ensure(pattern.getIndex(tsNowMs + leadTimeMs));
+    }
+  }
+
+  /**
+   * @return true if the index exists
+   */
+  protected boolean ensure(String index) {
+    if (knownIndexes.contains(index)) {
+      return true;
+    }
+    try {
+      JestResult result = client.execute(new CreateIndex.Builder(index).build());
+      if (result.isSucceeded()) {
+        logger.info("Created index " + index);
+        knownIndexes.add(index);
+        listener.ifPresent(l -> l.onCreated(index));
+        return true;
+      }
+      if (isAlreadyExists(result)) {
+        knownIndexes.add(index);
+        return true;
+      }
+      logger.warn(String.format("Error creating index %s: %s", index, result.getErrorMessage()));
+    }
+    catch (IOException | RuntimeException e) {
+      logger.warn(String.format("Error creating index %s: %s", index, e.getMessage()));
+    }
+    listener.ifPresent(l -> l.onFailed(index));
+    return false;
+  }
+
+  /**
+   * Error type is index_already_exists_exception in 2.x, resource_already_exists_exception in later versions
+   * and IndexAlreadyExistsException in 1.x
+   */
+  protected boolean isAlreadyExists(JestResult result) {
+    String error = result.getErrorMessage();
+    return result.getResponseCode() == STATUS_BAD_REQUEST && error != null &&
+        (error.contains("already_exists") || error.contains("AlreadyExists"));
+  }
+}
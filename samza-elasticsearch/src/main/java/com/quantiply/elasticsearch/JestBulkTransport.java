@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Bulk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sends bulk requests with JEST
+ *
+ * Actions are converted to JEST actions in the writer thread as they are added (or read back
+ * from the spill) and JEST builds the request body as a String in the thread sending it
+ */
+public class JestBulkTransport implements BulkTransport {
+  protected final JestClient client;
+  protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
+
+  public JestBulkTransport(JestClient client) {
+    this.client = client;
+  }
+
+  @Override
+  public boolean usesJestActions() {
+    return true;
+  }
+
+  @Override
+  public Response execute(List<HTTPBulkLoader.SourcedActionRequest> batch) throws IOException {
+    Bulk bulkRequest = getBulkRequest(batch);
+    if (logger.isTraceEnabled()) {
+      String bulkStr = bulkRequest.getData(new Gson());
+      logger.trace(bulkStr);
+    }
+    return new Response(client.execute(bulkRequest));
+  }
+
+  protected Bulk getBulkRequest(List<HTTPBulkLoader.SourcedActionRequest> batch) {
+    Bulk.Builder bulkReqBuilder = new Bulk.Builder();
+    for (HTTPBulkLoader.SourcedActionRequest req : batch) {
+      bulkReqBuilder.addAction(req.action);
+    }
+    return bulkReqBuilder.build();
+  }
+
+  @Override
+  public void close() throws IOException {
+    client.shutdownClient();
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.core.BulkResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Result of each action in a bulk request that may have been sent in parts - a circuit breaker probe and the
+ * rest of the request, or the rejected actions that were resent
+ *
+ * While a single response covers the whole request, it is used as is. Once parts are joined, each action has
+ * the item parsed from its part's response and counts are added up from each part's {@link BulkItemCounts}.
+ * Nothing is read back from or written to the response JSON
+ *   - a part that succeeded without returning its items (see {@link BulkResponseParser}) is counted as a whole
+ *     and its actions take the HTTP status of the response. If every part did, the result has no items either
+ *   - a part rejected as a whole has an item with its HTTP status and error for each action
+ *
+ * Not thread safe
+ */
+public class JoinedBulkResponse {
+
+  /**
+   * Bulk result with the items given rather than parsed from the response JSON, which it does not have
+   */
+  public static class ItemsBulkResult extends BulkResult {
+    protected final List<BulkResultItem> items;
+
+    public ItemsBulkResult(int responseCode, List<BulkResultItem> items) {
+      super(GSON);
+      this.items = items;
+      boolean errors = items.stream().anyMatch(item -> item.error != null);
+      setResponseCode(responseCode);
+      setSucceeded(!errors);
+      if (errors) {
+        setErrorMessage(BulkResponseParser.ITEMS_FAILED_MSG);
+      }
+    }
+
+    @Override
+    public List<BulkResultItem> getItems() {
+      return items;
+    }
+
+    @Override
+    public List<BulkResultItem> getFailedItems() {
+      return items.stream().filter(item -> item.error != null).collect(Collectors.toList());
+    }
+  }
+
+  protected static final Gson GSON = new Gson();
+  /* Outer instance for the items made here. It holds nothing they use */
+  protected static final BulkResult ITEM_OWNER = new BulkResult(GSON);
+  protected List<HTTPBulkLoader.SourcedActionRequest> requests;
+  /* Response to the whole request, until another part is joined */
+  protected BulkTransport.Response whole;
+  /* Items of the whole response once needed, parsed once since JEST parses them on every call */
+  protected List<BulkResult.BulkResultItem> wholeItems = null;
+  /* One per action once parts are joined */
+  protected List<BulkResult.BulkResultItem> items = null;
+  protected BulkItemCounts itemCounts = null;
+  /* Every part succeeded without returning its items */
+  protected boolean itemsOmitted;
+  /* Of the first response, once parts are joined */
+  protected int responseCode;
+  protected long rawBytes;
+  protected long compressedBytes;
+
+  public JoinedBulkResponse(List<HTTPBulkLoader.SourcedActionRequest> requests, BulkTransport.Response response) {
+    this.requests = requests;
+    this.whole = response;
+    this.rawBytes = response.rawBytes;
+    this.compressedBytes = response.compressedBytes;
+  }
+
+  /**
+   * Whether the response has a result for each action, even if items were left out because none failed. If the
+   * whole request was rejected instead, nothing was written and the response stands for all of it
+   */
+  public static boolean hasItemResults(BulkTransport.Response response, int size) {
+    return !response.bulkResult.getItems().isEmpty() || isItemsOmitted(response, size);
+  }
+
+  /**
+   * Whether the response succeeded without returning its items (see {@link BulkResponseParser})
+   */
+  public static boolean isItemsOmitted(BulkTransport.Response response, int size) {
+    BulkResult result = response.bulkResult;
+    return result.isSucceeded() && result.getItems().isEmpty() && response.itemCounts.getTotal() == size && size > 0;
+  }
+
+  public int size() {
+    return requests.size();
+  }
+
+  /**
+   * Item status of the action, or the HTTP status of its response if the response has no items
+   */
+  public int getStatus(int position) {
+    if (whole == null) {
+      return items.get(position).status;
+    }
+    return getWholeItems().isEmpty() ? whole.bulkResult.getResponseCode() : wholeItems.get(position).status;
+  }
+
+  /**
+   * Positions of the actions with a matching status
+   */
+  public List<Integer> getPositions(IntPredicate status) {
+    if (whole != null && getWholeItems().isEmpty()) {
+      return status.test(whole.bulkResult.getResponseCode()) ? IntStream.range(0, size()).boxed().collect(Collectors.toList()) : Collections.emptyList();
+    }
+    List<Integer> positions = new ArrayList<>();
+    for (int i = 0; i < size(); i++) {
+      if (status.test(getStatus(i))) {
+        positions.add(i);
+      }
+    }
+    return positions;
+  }
+
+  /**
+   * Adds the response to the requests that came after these
+   */
+  public JoinedBulkResponse append(JoinedBulkResponse rest) {
+    split();
+    rest.split();
+    List<HTTPBulkLoader.SourcedActionRequest> joined = new ArrayList<>(requests.size() + rest.requests.size());
+    joined.addAll(requests);
+    joined.addAll(rest.requests);
+    requests = joined;
+    items.addAll(rest.items);
+    itemCounts.addAll(rest.itemCounts);
+    itemsOmitted &= rest.itemsOmitted;
+    rawBytes += rest.rawBytes;
+    compressedBytes += rest.compressedBytes;
+    return this;
+  }
+
+  /**
+   * Takes the results of the resent actions at their positions, given in order. Only failed actions are resent so
+   * their items were kept and their counts can be taken back one by one
+   */
+  public void replace(List<Integer> positions, JoinedBulkResponse resent) {
+    if (positions.size() == size() && resent.whole != null) {
+      //Everything was resent in one request
+      whole = resent.whole;
+      wholeItems = resent.wholeItems;
+      items = null;
+      itemCounts = null;
+      return;
+    }
+    split();
+    resent.split();
+    for (int i = 0; i < positions.size(); i++) {
+      int position = positions.get(i);
+      BulkResult.BulkResultItem item = items.get(position);
+      itemCounts.add(item.operation, item.status, -1);
+      items.set(position, resent.items.get(i));
+    }
+    itemCounts.addAll(resent.itemCounts);
+    itemsOmitted = false;
+  }
+
+  /**
+   * The joined response. Bytes are those of the first request and its parts, resent actions are left out
+   */
+  public BulkTransport.Response toResponse() {
+    if (whole != null) {
+      if (whole.rawBytes == rawBytes && whole.compressedBytes == compressedBytes) {
+        return whole;
+      }
+      return new BulkTransport.Response(whole.bulkResult, whole.itemCounts, rawBytes, compressedBytes);
+    }
+    BulkResult result = new ItemsBulkResult(responseCode, itemsOmitted ? Collections.emptyList() : items);
+    return new BulkTransport.Response(result, itemCounts, rawBytes, compressedBytes);
+  }
+
+  /**
+   * Switches from the whole response to an item per action
+   */
+  protected void split() {
+    if (whole == null) {
+      return;
+    }
+    BulkResult result = whole.bulkResult;
+    responseCode = result.getResponseCode();
+    itemsOmitted = isItemsOmitted(whole, size());
+    itemCounts = new BulkItemCounts();
+    if (!getWholeItems().isEmpty()) {
+      items = new ArrayList<>(wholeItems);
+      itemCounts.addAll(whole.itemCounts);
+    }
+    else {
+      items = new ArrayList<>(size());
+      if (itemsOmitted) {
+        itemCounts.addAll(whole.itemCounts);
+      }
+      String error = result.isSucceeded() ? null : result.getErrorMessage();
+      for (HTTPBulkLoader.SourcedActionRequest sourcedReq : requests) {
+        BulkResult.BulkResultItem item = getItem(sourcedReq.request, responseCode, error);
+        items.add(item);
+        if (!itemsOmitted) {
+          itemCounts.add(item.operation, item.status);
+        }
+      }
+    }
+    whole = null;
+    wholeItems = null;
+  }
+
+  protected List<BulkResult.BulkResultItem> getWholeItems() {
+    if (wholeItems == null) {
+      wholeItems = whole.bulkResult.getItems();
+      if (!wholeItems.isEmpty() && wholeItems.size() != size()) {
+        throw new IllegalStateException(String.format("Expected %s items in bulk response but got %s", size(), wholeItems.size()));
+      }
+    }
+    return wholeItems;
+  }
+
+  protected BulkResult.BulkResultItem getItem(HTTPBulkLoader.ActionRequest req, int status, String error) {
+    String id = req.key.getId() == null ? null : req.key.getId().toString();
+    return ITEM_OWNER.new BulkResultItem(req.key.getAction().toString().toLowerCase(), req.index, req.docType, id, status, error);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import io.searchbox.core.BulkResult;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Sends bulk requests by encoding actions directly into a pooled byte buffer and POSTing it to /_bulk
+ *
+ * Avoids JEST's String building for the request body. The response is streamed into a JEST {@link BulkResult}
+ * so that it can be handled the same way as with the {@link JestBulkTransport} (see {@link BulkResponseParser})
+ *
+ * With gzip enabled, the body is compressed while it is streamed to the connection.
+ *
+ * One buffer is pooled per concurrent request (see {@link BulkBufferPool})
+ *
+ * Requests are spread over the nodes by the {@link NodeSelector}. If a request fails with an I/O error, the node
+ * is ejected. If the connection could not be made (see {@link NodeSelector#isConnectError}), the same body is sent
+ * to the next node, up to once per node. Any other error (e.g. a read timeout) is thrown right away since the node
+ * may have applied some of the actions. Whether to resend them is left to the loader (see the circuit breaker)
+ *
+ * HTTP client's lifecycle is owned by this transport
+ */
+public class NDJSONBulkTransport implements BulkTransport {
+  public static final ContentType CONTENT_TYPE = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+  protected final NodeSelector nodes;
+  protected final CloseableHttpClient httpClient;
+  protected final BulkRequestEncoder encoder;
+  protected final BulkResponseParser parser;
+  protected final BulkBufferPool bufferPool;
+  protected final boolean gzip;
+  protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
+
+  public NDJSONBulkTransport(String url, CloseableHttpClient httpClient, int maxPooledBuffers) {
+    this(url, httpClient, maxPooledBuffers, false);
+  }
+
+  public NDJSONBulkTransport(String url, CloseableHttpClient httpClient, int maxPooledBuffers, boolean gzip) {
+    this(new NodeSelector(url), httpClient, maxPooledBuffers, gzip);
+  }
+
+  public NDJSONBulkTransport(NodeSelector nodes, CloseableHttpClient httpClient, int maxPooledBuffers, boolean gzip) {
+    this.nodes = nodes;
+    this.httpClient = httpClient;
+    this.encoder = new BulkRequestEncoder();
+    this.parser = new BulkResponseParser();
+    this.bufferPool = new BulkBufferPool(maxPooledBuffers);
+    this.gzip = gzip;
+  }
+
+  @Override
+  public Response execute(List<HTTPBulkLoader.SourcedActionRequest> batch) throws IOException {
+    BulkBuffer buf = acquireBuffer();
+    try {
+      encoder.encode(batch, buf);
+      if (logger.isTraceEnabled()) {
+        logger.trace(new String(buf.array(), 0, buf.size(), StandardCharsets.UTF_8));
+      }
+      BulkRequestEntity entity = new BulkRequestEntity(buf, CONTENT_TYPE, gzip);
+      IOException error = null;
+      for (int attempt = 0; attempt < nodes.getNodes().size(); attempt++) {
+        NodeSelector.Node node = nodes.acquire();
+        HttpPost post = new HttpPost(node.bulkUrl);
+        post.setEntity(entity);
+        long startMs = System.currentTimeMillis();
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+          BulkItemCounts counts = new BulkItemCounts();
+          BulkResult result = parser.parse(response, counts);
+          nodes.onSuccess(node, System.currentTimeMillis() - startMs);
+          return new Response(result, counts, buf.size(), entity.getCompressedBytes());
+        }
+        catch (IOException e) {
+          nodes.onFailure(node);
+          logger.warn(String.format("Bulk request to %s failed: %s", node.url, e.getMessage()));
+          if (!NodeSelector.isConnectError(e)) {
+            throw e;
+          }
+          error = e;
+        }
+      }
+      throw error;
+    }
+    finally {
+      releaseBuffer(buf);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+
+  protected BulkBuffer acquireBuffer() {
+    return bufferPool.acquire();
+  }
+
+  protected void releaseBuffer(BulkBuffer buf) {
+    bufferPool.release(buf);
+  }
+
+  /**
+   * Bulk endpoint that only returns the response fields that {@link BulkResponseParser} reads
+   */
+  protected static String getBulkUrl(String url) {
+    return (url.endsWith("/") ? url.substring(0, url.length() - 1) : url) + "/_bulk?filter_path=" + BulkResponseParser.FILTER_PATH;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import io.searchbox.core.BulkResult;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Sends bulk requests with a non-blocking (NIO) HTTP client
+ *
+ * Encodes the body the same way as {@link NDJSONBulkTransport} but does not wait on the response. The
+ * client's I/O reactor completes the returned future so any number of requests can be in flight
+ * without a thread for each of them
+ *
+ * The request buffer is returned to the pool once the response has been received
+ *
+ * Node selection and fail over work the same way as in {@link NDJSONBulkTransport}
+ *
+ * HTTP client's lifecycle is owned by this transport
+ */
+public class NIOBulkTransport implements BulkTransport {
+  protected final NodeSelector nodes;
+  protected final CloseableHttpAsyncClient httpClient;
+  protected final BulkRequestEncoder encoder;
+  protected final BulkResponseParser parser;
+  protected final BulkBufferPool bufferPool;
+  protected final boolean gzip;
+  protected Logger logger = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
+
+  public NIOBulkTransport(String url, CloseableHttpAsyncClient httpClient, int maxPooledBuffers, boolean gzip) {
+    this(new NodeSelector(url), httpClient, maxPooledBuffers, gzip);
+  }
+
+  public NIOBulkTransport(NodeSelector nodes, CloseableHttpAsyncClient httpClient, int maxPooledBuffers, boolean gzip) {
+    this.nodes = nodes;
+    this.httpClient = httpClient;
+    this.encoder = new BulkRequestEncoder();
+    this.parser = new BulkResponseParser();
+    this.bufferPool = new BulkBufferPool(maxPooledBuffers);
+    this.gzip = gzip;
+    if (!httpClient.isRunning()) {
+      httpClient.start();
+    }
+  }
+
+  @Override
+  public boolean isAsync() {
+    return true;
+  }
+
+  @Override
+  public Response execute(List<HTTPBulkLoader.SourcedActionRequest> batch) throws IOException {
+    try {
+      return executeAsync(batch).get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting on bulk response");
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Bulk request failed", e.getCause());
+    }
+  }
+
+  @Override
+  public CompletableFuture<Response> executeAsync(List<HTTPBulkLoader.SourcedActionRequest> batch) {
+    CompletableFuture<Response> future = new CompletableFuture<>();
+    BulkBuffer buf = bufferPool.acquire();
+    try {
+      encoder.encode(batch, buf);
+      if (logger.isTraceEnabled()) {
+        logger.trace(new String(buf.array(), 0, buf.size(), StandardCharsets.UTF_8));
+      }
+      BulkRequestEntity entity = new BulkRequestEntity(buf, NDJSONBulkTransport.CONTENT_TYPE, gzip);
+      send(buf, entity, nodes.getNodes().size(), future);
+    }
+    catch (RuntimeException e) {
+      bufferPool.release(buf);
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Sends the body to the next node. On connect errors, tries again on another node while attempts are left
+   */
+  protected void send(BulkBuffer buf, BulkRequestEntity entity, int attemptsLeft, CompletableFuture<Response> future) {
+    NodeSelector.Node node = nodes.acquire();
+    HttpPost post = new HttpPost(node.bulkUrl);
+    post.setEntity(entity);
+    long startMs = System.currentTimeMillis();
+    httpClient.execute(post, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse response) {
+        try {
+          BulkItemCounts counts = new BulkItemCounts();
+          BulkResult result = parser.parse(response, counts);
+          nodes.onSuccess(node, System.currentTimeMillis() - startMs);
+          future.complete(new Response(result, counts, buf.size(), entity.getCompressedBytes()));
+        }
+        catch (Exception e) {
+          nodes.onFailure(node);
+          future.completeExceptionally(e);
+        }
+        finally {
+          bufferPool.release(buf);
+        }
+      }
+
+      @Override
+      public void failed(Exception e) {
+        nodes.onFailure(node);
+        logger.warn(String.format("Bulk request to %s failed: %s", node.url, e.getMessage()));
+        if (attemptsLeft > 1 && NodeSelector.isConnectError(e)) {
+          try {
+            send(buf, entity, attemptsLeft - 1, future);
+            return;
+          }
+          catch (RuntimeException retryEx) {
+            e = retryEx;
+          }
+        }
+        bufferPool.release(buf);
+        future.completeExceptionally(e instanceof IOException ? e : new IOException("Bulk request failed", e));
+      }
+
+      @Override
+      public void cancelled() {
+        nodes.onFailure(node);
+        bufferPool.release(buf);
+        future.completeExceptionally(new IOException("Bulk request was cancelled"));
+      }
+    });
+  }
+
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+}
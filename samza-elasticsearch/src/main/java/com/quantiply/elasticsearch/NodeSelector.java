@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the Elasticsearch node for each bulk request
+ *
+ *   - ROUND_ROBIN cycles through the healthy nodes, LEAST_LOADED picks the healthy node with the
+ *     fewest requests in flight
+ *   - a node whose request failed with an I/O error (e.g. a timeout) is ejected for ejectMs
+ *   - once that has passed, a single request is let through to re-probe it. It's back in rotation if that
+ *     succeeds and ejected again if not
+ *   - if every node is ejected, the one that is due back first is used anyway
+ *
+ * Safe to use from multiple sender threads and I/O callbacks
+ */
+public class NodeSelector {
+
+  public enum Strategy { ROUND_ROBIN, LEAST_LOADED }
+
+  public interface Listener {
+    void onResponse(String url, long latencyMs);
+
+    void onEjected(String url);
+  }
+
+  public static class Node {
+    public final String url;
+    public final String bulkUrl;
+    protected final AtomicInteger inFlight = new AtomicInteger(0);
+    protected final AtomicBoolean probing = new AtomicBoolean(false);
+    /* 0 when healthy */
+    protected volatile long ejectedUntilMs = 0;
+
+    public Node(String url) {
+      this.url = url;
+      this.bulkUrl = NDJSONBulkTransport.getBulkUrl(url);
+    }
+
+    public int getInFlight() {
+      return inFlight.get();
+    }
+
+    public boolean isEjected() {
+      return ejectedUntilMs > 0;
+    }
+  }
+
+  protected final List<Node> nodes;
+  protected final Strategy strategy;
+  protected final long ejectMs;
+  protected final Optional<Listener> listener;
+  protected final AtomicInteger nextNode = new AtomicInteger(0);
+
+  public NodeSelector(String url) {
+    this(Collections.singletonList(url), Strategy.ROUND_ROBIN, 0L, Optional.empty());
+  }
+
+  public NodeSelector(List<String> urls, Strategy strategy, long ejectMs, Optional<Listener> listener) {
+    if (urls.isEmpty()) {
+      throw new IllegalArgumentException("At least one Elasticsearch node is required");
+    }
+    List<Node> nodes = new ArrayList<>(urls.size());
+    urls.forEach(url -> nodes.add(new Node(url)));
+    this.nodes = Collections.unmodifiableList(nodes);
+    this.strategy = strategy;
+    this.ejectMs = ejectMs;
+    this.listener = listener;
+  }
+
+  public List<Node> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Picks a node for the next request. The caller must report how it went with onSuccess() or onFailure()
+   */
+  public Node acquire() {
+    long nowMs = System.currentTimeMillis();
+    int size = nodes.size();
+    int start = Math.floorMod(nextNode.getAndIncrement(), size);
+    Node selected = null;
+    for (int i = 0; i < size; i++) {
+      Node node = nodes.get((start + i) % size);
+      if (node.isEjected() && (node.ejectedUntilMs > nowMs || !node.probing.compareAndSet(false, true))) {
+        continue;
+      }
+      if (node.isEjected()) {
+        //Won the probe - use it right away so that a recovered node is noticed
+        selected = node;
+        break;
+      }
+      if (strategy.equals(Strategy.ROUND_ROBIN)) {
+        selected = node;
+        break;
+      }
+      if (selected == null || node.inFlight.get() < selected.inFlight.get()) {
+        selected = node;
+      }
+    }
+    if (selected == null) {
+      selected = getFirstDueBack();
+    }
+    selected.inFlight.incrementAndGet();
+    return selected;
+  }
+
+  public void onSuccess(Node node, long latencyMs) {
+    node.inFlight.decrementAndGet();
+    node.ejectedUntilMs = 0;
+    node.probing.set(false);
+    if (listener.isPresent()) {
+      listener.get().onResponse(node.url, latencyMs);
+    }
+  }
+
+  public void onFailure(Node node) {
+    node.inFlight.decrementAndGet();
+    if (nodes.size() > 1) {
+      node.ejectedUntilMs = System.currentTimeMillis() + ejectMs;
+      if (listener.isPresent()) {
+        listener.get().onEjected(node.url);
+      }
+    }
+    node.probing.set(false);
+  }
+
+  /**
+   * True if the request failed while connecting, before any of it was sent. Only then is it safe to send the same
+   * body to another node - after a read timeout or a reset connection the node may already have applied it
+   */
+  public static boolean isConnectError(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof ConnectException || t instanceof ConnectTimeoutException || t instanceof NoRouteToHostException ||
+          t instanceof UnknownHostException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  protected Node getFirstDueBack() {
+    Node first = nodes.get(0);
+    for (Node node : nodes) {
+      if (node.ejectedUntilMs < first.ejectedUntilMs) {
+        first = node;
+      }
+    }
+    return first;
+  }
+}
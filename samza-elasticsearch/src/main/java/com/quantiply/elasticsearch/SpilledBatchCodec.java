@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.elasticsearch;
+
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encodes a batch of requests for the spill queue (see {@link HTTPBulkLoader}) and decodes it back
+ *
+ * Keys are written as Avro binary. Everything else is length prefixed. JEST actions are not written,
+ * they are converted again when the batch is read back
+ *
+ * Only used by the writer thread
+ */
+public class SpilledBatchCodec {
+
+  public static class SpilledBatch {
+    public final List<HTTPBulkLoader.SourcedActionRequest> requests;
+    public final long batchBytes;
+    public final HTTPBulkLoader.TriggerType triggerType;
+    public final long triggerTsMs;
+
+    public SpilledBatch(List<HTTPBulkLoader.SourcedActionRequest> requests, long batchBytes, HTTPBulkLoader.TriggerType triggerType, long triggerTsMs) {
+      this.requests = requests;
+      this.batchBytes = batchBytes;
+      this.triggerType = triggerType;
+      this.triggerTsMs = triggerTsMs;
+    }
+  }
+
+  protected static final int NULL_LENGTH = -1;
+  protected static final HTTPBulkLoader.TriggerType[] TRIGGER_TYPES = HTTPBulkLoader.TriggerType.values();
+  protected final SpecificDatumWriter<ActionRequestKey> keyWriter = new SpecificDatumWriter<>(ActionRequestKey.class);
+  protected final SpecificDatumReader<ActionRequestKey> keyReader = new SpecificDatumReader<>(ActionRequestKey.class);
+  protected final ByteArrayOutputStream keyBytes = new ByteArrayOutputStream(64);
+  protected BinaryEncoder keyEncoder = null;
+  protected BinaryDecoder keyDecoder = null;
+
+  public byte[] encode(List<HTTPBulkLoader.SourcedActionRequest> batch, long batchBytes, HTTPBulkLoader.TriggerType triggerType, long triggerTsMs) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, Math.max(1024L, batchBytes + batchBytes / 4)));
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(triggerType.ordinal());
+    out.writeLong(triggerTsMs);
+    out.writeLong(batchBytes);
+    out.writeInt(batch.size());
+    for (HTTPBulkLoader.SourcedActionRequest req : batch) {
+      writeString(out, req.source);
+      writeRequest(out, req.request);
+      out.writeInt(req.coalesced.size());
+      for (HTTPBulkLoader.ActionRequest coalesced : req.coalesced) {
+        writeRequest(out, coalesced);
+      }
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decoded requests have no JEST action - the caller must add it if the transport needs it
+   */
+  public SpilledBatch decode(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    HTTPBulkLoader.TriggerType triggerType = TRIGGER_TYPES[in.readByte()];
+    long triggerTsMs = in.readLong();
+    long batchBytes = in.readLong();
+    int size = in.readInt();
+    List<HTTPBulkLoader.SourcedActionRequest> batch = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      String source = readString(in);
+      HTTPBulkLoader.ActionRequest request = readRequest(in);
+      int coalescedCount = in.readInt();
+      List<HTTPBulkLoader.ActionRequest> coalesced = coalescedCount == 0 ? Collections.emptyList() : new ArrayList<>(coalescedCount);
+      for (int j = 0; j < coalescedCount; j++) {
+        coalesced.add(readRequest(in));
+      }
+      batch.add(new HTTPBulkLoader.SourcedActionRequest(source, request, null, coalesced));
+    }
+    return new SpilledBatch(batch, batchBytes, triggerType, triggerTsMs);
+  }
+
+  protected void writeRequest(DataOutputStream out, HTTPBulkLoader.ActionRequest req) throws IOException {
+    keyBytes.reset();
+    keyEncoder = EncoderFactory.get().binaryEncoder(keyBytes, keyEncoder);
+    keyWriter.write(req.key, keyEncoder);
+    keyEncoder.flush();
+    out.writeInt(keyBytes.size());
+    keyBytes.writeTo(out);
+    writeString(out, req.index);
+    writeString(out, req.docType);
+    out.writeLong(req.receivedTsMs);
+    writeDocument(out, req);
+  }
+
+  protected HTTPBulkLoader.ActionRequest readRequest(DataInputStream in) throws IOException {
+    byte[] key = new byte[in.readInt()];
+    in.readFully(key);
+    keyDecoder = DecoderFactory.get().binaryDecoder(key, keyDecoder);
+    ActionRequestKey actionKey = keyReader.read(null, keyDecoder);
+    String index = readString(in);
+    String docType = readString(in);
+    long receivedTsMs = in.readLong();
+    byte[] document = readBytes(in);
+    return new HTTPBulkLoader.ActionRequest(actionKey, index, docType, receivedTsMs, document, false);
+  }
+
+  /**
+   * Written in the same form as a String, with the update wrapper included. Read back as bytes
+   */
+  protected void writeDocument(DataOutputStream out, HTTPBulkLoader.ActionRequest req) throws IOException {
+    if (req.documentBytes == null) {
+      writeString(out, req.document);
+      return;
+    }
+    out.writeInt((int) req.getDocumentLength());
+    if (req.partialDoc) {
+      out.write(HTTPBulkLoader.ActionRequest.PARTIAL_DOC_PREFIX);
+    }
+    out.write(req.documentBytes);
+    if (req.partialDoc) {
+      out.write(HTTPBulkLoader.ActionRequest.PARTIAL_DOC_SUFFIX);
+    }
+  }
+
+  protected void writeString(DataOutputStream out, String str) throws IOException {
+    if (str == null) {
+      out.writeInt(NULL_LENGTH);
+      return;
+    }
+    byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(utf8.length);
+    out.write(utf8);
+  }
+
+  protected String readString(DataInputStream in) throws IOException {
+    byte[] utf8 = readBytes(in);
+    return utf8 == null ? null : new String(utf8, StandardCharsets.UTF_8);
+  }
+
+  protected byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length == NULL_LENGTH) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.samza.system.elasticsearch;
+
+import com.quantiply.elasticsearch.HTTPBulkLoader;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import org.apache.samza.serializers.Serde;
+import org.apache.samza.system.OutgoingMessageEnvelope;
+import org.apache.samza.system.SystemProducer;
+import org.apache.samza.system.SystemStream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends actions to a Kafka stream instead of Elasticsearch while the circuit breaker is open
+ *
+ * Goes through a Kafka system producer the same way the ErrorHandler sends dropped messages. Each action is written as
+ * a JSON object with the ActionRequestKey fields, index, type and document so that it can be replayed later. The
+ * document id is the message key so actions on the same document stay in order within the stream.
+ *
+ * Later actions on a document may reach Elasticsearch before the diverted ones are replayed so replay with external
+ * versions or only where order does not matter
+ *
+ * Called from the task thread and from the bulk loader threads for requests they were holding when the breaker opened
+ */
+public class ActionDiverter {
+  public static final String SYSTEM_PRODUCER_SOURCE = "rico-es-circuit-breaker";
+  protected final String systemName;
+  protected final SystemProducer producer;
+  protected final SystemStream stream;
+  protected final Serde<Object> serde;
+
+  public ActionDiverter(String systemName, SystemProducer producer, SystemStream stream, Serde<Object> serde) {
+    this.systemName = systemName;
+    this.producer = producer;
+    this.stream = stream;
+    this.serde = serde;
+  }
+
+  public void start() {
+    producer.register(SYSTEM_PRODUCER_SOURCE);
+    producer.start();
+  }
+
+  public synchronized void divert(HTTPBulkLoader.ActionRequest req) {
+    ActionRequestKey key = req.key;
+    Map<String, Object> msg = new HashMap<>();
+    msg.put("system", systemName);
+    msg.put("index", req.index);
+    msg.put("type", req.docType);
+    msg.put("action", key.getAction().toString().toLowerCase());
+    if (key.getId() != null) {
+      msg.put("id", key.getId().toString());
+    }
+    if (key.getVersion() != null) {
+      msg.put("version", key.getVersion());
+    }
+    if (key.getVersionType() != null) {
+      msg.put("version_type", key.getVersionType().toString().toLowerCase());
+    }
+    if (key.getPartitionTsUnixMs() != null) {
+      msg.put("partition_ts_unix_ms", key.getPartitionTsUnixMs());
+    }
+    if (key.getEventTsUnixMs() != null) {
+      msg.put("event_ts_unix_ms", key.getEventTsUnixMs());
+    }
+    if (key.getRouting() != null) {
+      msg.put("routing", key.getRouting().toString());
+    }
+    if (key.getParent() != null) {
+      msg.put("parent", key.getParent().toString());
+    }
+    msg.put("received_ts_unix_ms", req.receivedTsMs);
+    msg.put("document", req.getDocument());
+    byte[] msgKey = key.getId() == null ? null : key.getId().toString().getBytes(StandardCharsets.UTF_8);
+    producer.send(SYSTEM_PRODUCER_SOURCE, new OutgoingMessageEnvelope(stream, msgKey, serde.toBytes(msg)));
+  }
+
+  public synchronized void flush() {
+    producer.flush(SYSTEM_PRODUCER_SOURCE);
+  }
+
+  public void stop() {
+    flush();
+    producer.stop();
+  }
+}
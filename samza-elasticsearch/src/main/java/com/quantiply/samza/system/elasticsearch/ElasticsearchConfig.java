@@ -25,8 +25,13 @@ import org.apache.samza.config.MapConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  * Elasticsearch configuration class to read elasticsearch specific configuration from Samza.
@@ -35,10 +40,49 @@ public class ElasticsearchConfig extends MapConfig {
 
   public enum AuthType { NONE, BASIC }
 
+  public enum BulkEncoder { NATIVE, JEST }
+
+  public enum Compression { NONE, GZIP }
+
+  public enum HttpClientType { BLOCKING, NIO }
+
+  public enum NodeSelection { ROUND_ROBIN, LEAST_LOADED }
+
+  public enum CircuitBreakerPolicy { BLOCK, DIVERT }
+
   private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchConfig.class);
 
   public static final String CONFIG_KEY_FLUSH_MAX_ACTIONS = "flush.max.actions";
   public static final String CONFIG_KEY_FLUSH_INTERVALS_MS = "flush.interval.ms";
+  public static final String CONFIG_KEY_FLUSH_MAX_BYTES = "flush.max.bytes";
+  public static final String CONFIG_KEY_FLUSH_ADAPTIVE_TARGET_LATENCY_MS = "flush.adaptive.target.latency.ms";
+  public static final String CONFIG_KEY_FLUSH_ADAPTIVE_MIN_ACTIONS = "flush.adaptive.min.actions";
+  public static final String CONFIG_KEY_FLUSH_ADAPTIVE_INCREASE_ACTIONS = "flush.adaptive.increase.actions";
+  public static final String CONFIG_KEY_FLUSH_ADAPTIVE_DECREASE_FACTOR = "flush.adaptive.decrease.factor";
+  public static final String CONFIG_KEY_FLUSH_ASYNC = "flush.async";
+  public static final String CONFIG_KEY_BULK_MAX_INFLIGHT = "bulk.max.inflight";
+  public static final String CONFIG_KEY_BULK_ENCODER = "bulk.encoder";
+  public static final String CONFIG_KEY_BULK_RETRY_MAX = "bulk.retry.max";
+  public static final String CONFIG_KEY_BULK_RETRY_BACKOFF_MS = "bulk.retry.backoff.ms";
+  public static final String CONFIG_KEY_BULK_RETRY_BACKOFF_MAX_MS = "bulk.retry.backoff.max.ms";
+  public static final String CONFIG_KEY_BULK_COALESCE = "bulk.coalesce";
+  public static final String CONFIG_KEY_BULK_SPILL_DIR = "bulk.spill.dir";
+  public static final String CONFIG_KEY_BULK_SPILL_MAX_BYTES = "bulk.spill.max.bytes";
+  public static final String CONFIG_KEY_BULK_SPILL_SEGMENT_BYTES = "bulk.spill.segment.bytes";
+  public static final String CONFIG_KEY_CIRCUIT_BREAKER = "circuit.breaker";
+  public static final String CONFIG_KEY_CIRCUIT_BREAKER_FAILURES = "circuit.breaker.failures";
+  public static final String CONFIG_KEY_CIRCUIT_BREAKER_LATENCY_MS = "circuit.breaker.latency.ms";
+  public static final String CONFIG_KEY_CIRCUIT_BREAKER_OPEN_MS = "circuit.breaker.open.ms";
+  public static final String CONFIG_KEY_CIRCUIT_BREAKER_PROBE_ACTIONS = "circuit.breaker.probe.actions";
+  public static final String CONFIG_KEY_CIRCUIT_BREAKER_POLICY = "circuit.breaker.policy";
+  public static final String CONFIG_KEY_CIRCUIT_BREAKER_DIVERT_STREAM = "circuit.breaker.divert.stream";
+  public static final String CONFIG_KEY_INDEX_GROUPS = "index.groups";
+  public static final String CONFIG_KEY_INDEX_PRECREATE = "index.precreate";
+  public static final String CONFIG_KEY_INDEX_PRECREATE_LEAD_MS = "index.precreate.lead.ms";
+  public static final String CONFIG_KEY_INDEX_PRECREATE_CHECK_MS = "index.precreate.check.ms";
+  public static final String CONFIG_KEY_INDEX_PRECREATE_FACTORY = "index.precreate.factory";
+  public static final String CONFIG_KEY_INDEX_GROUP_PREFIX = "index.group.%s.";
+  public static final String CONFIG_KEY_INDEX_GROUP_INDEX_PREFIX = "index.group.%s.index.prefix";
 
   public static final String CONFIG_KEY_HTTP_URL = "http.url";
   public static final String CONFIG_KEY_HTTP_AUTH_TYPE = "http.auth.type";
@@ -46,6 +90,10 @@ public class ElasticsearchConfig extends MapConfig {
   public static final String CONFIG_KEY_HTTP_AUTH_BASIC_PASSWORD = "http.auth.basic.password";
   public static final String CONFIG_KEY_HTTP_CONNECT_TIMEOUT_MS = "http.connect.timeout.ms";
   public static final String CONFIG_KEY_HTTP_READ_TIMEOUT_MS = "http.read.timeout.ms";
+  public static final String CONFIG_KEY_HTTP_COMPRESSION = "http.compression";
+  public static final String CONFIG_KEY_HTTP_CLIENT = "http.client";
+  public static final String CONFIG_KEY_HTTP_NODE_SELECTION = "http.node.selection";
+  public static final String CONFIG_KEY_HTTP_NODE_EJECT_MS = "http.node.eject.ms";
 
   public ElasticsearchConfig(String name, Config config) {
     super(config.subset("systems." + name + "."));
@@ -53,8 +101,39 @@ public class ElasticsearchConfig extends MapConfig {
     logAllSettings(this);
   }
 
+  protected ElasticsearchConfig(Map<String, String> config) {
+    super(config);
+  }
+
   public String getHTTPURL() {
-    return get(CONFIG_KEY_HTTP_URL, "http://localhost:9200");
+    return getHTTPURLs().get(0);
+  }
+
+  /**
+   * Comma separated list of node URLs
+   */
+  public List<String> getHTTPURLs() {
+    List<String> urls = Arrays.stream(get(CONFIG_KEY_HTTP_URL, "http://localhost:9200").split(","))
+        .map(String::trim)
+        .filter(url -> !url.isEmpty())
+        .collect(Collectors.toList());
+    if (urls.isEmpty()) {
+      throw new ConfigException(String.format("%s must contain at least one URL", CONFIG_KEY_HTTP_URL));
+    }
+    return urls;
+  }
+
+  public NodeSelection getNodeSelection() {
+    String selectionStr = get(CONFIG_KEY_HTTP_NODE_SELECTION, "round_robin").toUpperCase();
+    return NodeSelection.valueOf(selectionStr);
+  }
+
+  public long getNodeEjectMs() {
+    long ejectMs = getLong(CONFIG_KEY_HTTP_NODE_EJECT_MS, 30000L);
+    if (ejectMs <= 0) {
+      throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_HTTP_NODE_EJECT_MS));
+    }
+    return ejectMs;
   }
 
   public AuthType getAuthType() {
@@ -78,6 +157,20 @@ public class ElasticsearchConfig extends MapConfig {
     return getInt(CONFIG_KEY_HTTP_READ_TIMEOUT_MS, 60000);
   }
 
+  public Compression getCompression() {
+    String compressionStr = get(CONFIG_KEY_HTTP_COMPRESSION, "none").toUpperCase();
+    return Compression.valueOf(compressionStr);
+  }
+
+  public HttpClientType getHttpClientType() {
+    String clientStr = get(CONFIG_KEY_HTTP_CLIENT, "blocking").toUpperCase();
+    HttpClientType clientType = HttpClientType.valueOf(clientStr);
+    if (clientType.equals(HttpClientType.NIO) && getBulkEncoder().equals(BulkEncoder.JEST)) {
+      throw new ConfigException(String.format("%s nio requires %s native", CONFIG_KEY_HTTP_CLIENT, CONFIG_KEY_BULK_ENCODER));
+    }
+    return clientType;
+  }
+
   public int getBulkFlushMaxActions() {
     return getInt(CONFIG_KEY_FLUSH_MAX_ACTIONS, 1000);
   }
@@ -94,6 +187,275 @@ public class ElasticsearchConfig extends MapConfig {
     }
   }
 
+  public Optional<Long> getBulkFlushMaxBytes() {
+    if (containsKey(CONFIG_KEY_FLUSH_MAX_BYTES)) {
+      long maxBytes = getLong(CONFIG_KEY_FLUSH_MAX_BYTES);
+      if (maxBytes <= 0) {
+        throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_FLUSH_MAX_BYTES));
+      }
+      return Optional.of(maxBytes);
+    } else {
+      return Optional.empty();
+    }
+  }
+
+  public Optional<Long> getAdaptiveTargetLatencyMs() {
+    if (containsKey(CONFIG_KEY_FLUSH_ADAPTIVE_TARGET_LATENCY_MS)) {
+      long latencyMs = getLong(CONFIG_KEY_FLUSH_ADAPTIVE_TARGET_LATENCY_MS);
+      if (latencyMs <= 0) {
+        throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_FLUSH_ADAPTIVE_TARGET_LATENCY_MS));
+      }
+      return Optional.of(latencyMs);
+    } else {
+      return Optional.empty();
+    }
+  }
+
+  public int getAdaptiveMinActions() {
+    int minActions = getInt(CONFIG_KEY_FLUSH_ADAPTIVE_MIN_ACTIONS, Math.max(1, getBulkFlushMaxActions() / 10));
+    if (minActions <= 0 || minActions > getBulkFlushMaxActions()) {
+      throw new ConfigException(String.format("%s must be > 0 and <= %s", CONFIG_KEY_FLUSH_ADAPTIVE_MIN_ACTIONS, CONFIG_KEY_FLUSH_MAX_ACTIONS));
+    }
+    return minActions;
+  }
+
+  public int getAdaptiveIncreaseActions() {
+    int increaseActions = getInt(CONFIG_KEY_FLUSH_ADAPTIVE_INCREASE_ACTIONS, Math.max(1, getBulkFlushMaxActions() / 20));
+    if (increaseActions <= 0) {
+      throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_FLUSH_ADAPTIVE_INCREASE_ACTIONS));
+    }
+    return increaseActions;
+  }
+
+  public double getAdaptiveDecreaseFactor() {
+    double factor = getDouble(CONFIG_KEY_FLUSH_ADAPTIVE_DECREASE_FACTOR, 0.5);
+    if (factor <= 0.0 || factor >= 1.0) {
+      throw new ConfigException(String.format("%s must be > 0 and < 1", CONFIG_KEY_FLUSH_ADAPTIVE_DECREASE_FACTOR));
+    }
+    return factor;
+  }
+
+  /**
+   * Return from flush without waiting for Elasticsearch. Checkpoints are held back by {@link GatedCheckpointManager} instead
+   */
+  public boolean getFlushAsync() {
+    return getBoolean(CONFIG_KEY_FLUSH_ASYNC, false);
+  }
+
+  public int getBulkMaxInFlight() {
+    int maxInFlight = getInt(CONFIG_KEY_BULK_MAX_INFLIGHT, 1);
+    if (maxInFlight <= 0) {
+      throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_BULK_MAX_INFLIGHT));
+    }
+    return maxInFlight;
+  }
+
+  public BulkEncoder getBulkEncoder() {
+    String encoderStr = get(CONFIG_KEY_BULK_ENCODER, "native").toUpperCase();
+    return BulkEncoder.valueOf(encoderStr);
+  }
+
+  public int getBulkRetryMax() {
+    int maxRetries = getInt(CONFIG_KEY_BULK_RETRY_MAX, 3);
+    if (maxRetries < 0) {
+      throw new ConfigException(String.format("%s must be >= 0", CONFIG_KEY_BULK_RETRY_MAX));
+    }
+    return maxRetries;
+  }
+
+  public long getBulkRetryBackoffMs() {
+    long backoffMs = getLong(CONFIG_KEY_BULK_RETRY_BACKOFF_MS, 100L);
+    if (backoffMs <= 0) {
+      throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_BULK_RETRY_BACKOFF_MS));
+    }
+    return backoffMs;
+  }
+
+  public long getBulkRetryBackoffMaxMs() {
+    long maxBackoffMs = getLong(CONFIG_KEY_BULK_RETRY_BACKOFF_MAX_MS, 10000L);
+    if (maxBackoffMs < getBulkRetryBackoffMs()) {
+      throw new ConfigException(String.format("%s must be >= %s", CONFIG_KEY_BULK_RETRY_BACKOFF_MAX_MS, CONFIG_KEY_BULK_RETRY_BACKOFF_MS));
+    }
+    return maxBackoffMs;
+  }
+
+  public boolean getBulkCoalesce() {
+    return getBoolean(CONFIG_KEY_BULK_COALESCE, false);
+  }
+
+  /**
+   * Directory for the spill files. Spilling is off if not set
+   */
+  public Optional<String> getBulkSpillDir() {
+    if (containsKey(CONFIG_KEY_BULK_SPILL_DIR)) {
+      return Optional.of(get(CONFIG_KEY_BULK_SPILL_DIR));
+    }
+    return Optional.empty();
+  }
+
+  public long getBulkSpillMaxBytes() {
+    long maxBytes = getLong(CONFIG_KEY_BULK_SPILL_MAX_BYTES, 1024L * 1024L * 1024L);
+    if (maxBytes <= 0) {
+      throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_BULK_SPILL_MAX_BYTES));
+    }
+    return maxBytes;
+  }
+
+  public int getBulkSpillSegmentBytes() {
+    int segmentBytes = getInt(CONFIG_KEY_BULK_SPILL_SEGMENT_BYTES, 64 * 1024 * 1024);
+    if (segmentBytes < 1024) {
+      throw new ConfigException(String.format("%s must be >= 1024", CONFIG_KEY_BULK_SPILL_SEGMENT_BYTES));
+    }
+    return segmentBytes;
+  }
+
+  /**
+   * Keep resending failed bulk requests and hold requests back while Elasticsearch is failing or slow
+   */
+  public boolean getCircuitBreaker() {
+    return getBoolean(CONFIG_KEY_CIRCUIT_BREAKER, false);
+  }
+
+  /**
+   * Bad requests in a row that open the circuit breaker
+   */
+  public int getCircuitBreakerFailures() {
+    int failures = getInt(CONFIG_KEY_CIRCUIT_BREAKER_FAILURES, 5);
+    if (failures <= 0) {
+      throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_CIRCUIT_BREAKER_FAILURES));
+    }
+    return failures;
+  }
+
+  /**
+   * Requests slower than this count as bad
+   */
+  public Optional<Long> getCircuitBreakerLatencyMs() {
+    if (containsKey(CONFIG_KEY_CIRCUIT_BREAKER_LATENCY_MS)) {
+      long latencyMs = getLong(CONFIG_KEY_CIRCUIT_BREAKER_LATENCY_MS);
+      if (latencyMs <= 0) {
+        throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_CIRCUIT_BREAKER_LATENCY_MS));
+      }
+      return Optional.of(latencyMs);
+    }
+    return Optional.empty();
+  }
+
+  public long getCircuitBreakerOpenMs() {
+    long openMs = getLong(CONFIG_KEY_CIRCUIT_BREAKER_OPEN_MS, 30000L);
+    if (openMs <= 0) {
+      throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_CIRCUIT_BREAKER_OPEN_MS));
+    }
+    return openMs;
+  }
+
+  /**
+   * Max actions per request while probing
+   */
+  public int getCircuitBreakerProbeActions() {
+    int probeActions = getInt(CONFIG_KEY_CIRCUIT_BREAKER_PROBE_ACTIONS, Math.min(10, getBulkFlushMaxActions()));
+    if (probeActions <= 0 || probeActions > getBulkFlushMaxActions()) {
+      throw new ConfigException(String.format("%s must be > 0 and <= %s", CONFIG_KEY_CIRCUIT_BREAKER_PROBE_ACTIONS, CONFIG_KEY_FLUSH_MAX_ACTIONS));
+    }
+    return probeActions;
+  }
+
+  /**
+   * What the producer does with new actions while the circuit breaker is open
+   */
+  public CircuitBreakerPolicy getCircuitBreakerPolicy() {
+    String policyStr = get(CONFIG_KEY_CIRCUIT_BREAKER_POLICY, "block").toUpperCase();
+    return CircuitBreakerPolicy.valueOf(policyStr);
+  }
+
+  /**
+   * Kafka stream for the actions diverted while the circuit breaker is open
+   */
+  public String getCircuitBreakerDivertStream() {
+    String stream = get(CONFIG_KEY_CIRCUIT_BREAKER_DIVERT_STREAM);
+    if (stream == null || stream.trim().isEmpty()) {
+      throw new ConfigException(String.format("%s must be set when %s is divert", CONFIG_KEY_CIRCUIT_BREAKER_DIVERT_STREAM, CONFIG_KEY_CIRCUIT_BREAKER_POLICY));
+    }
+    return stream.trim();
+  }
+
+  /**
+   * Names of the index groups that get their own bulk loader
+   */
+  public List<String> getIndexGroups() {
+    if (!containsKey(CONFIG_KEY_INDEX_GROUPS)) {
+      return Collections.emptyList();
+    }
+    return Arrays.stream(get(CONFIG_KEY_INDEX_GROUPS).split(","))
+        .map(String::trim)
+        .filter(group -> !group.isEmpty())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Indexes whose name starts with this prefix belong to the group. Defaults to the group name
+   */
+  public String getIndexGroupIndexPrefix(String group) {
+    return get(String.format(CONFIG_KEY_INDEX_GROUP_INDEX_PREFIX, group), group);
+  }
+
+  /**
+   * Settings for an index group - index.group.<group>.<key> overrides <key>
+   */
+  public ElasticsearchConfig getIndexGroupConfig(String group) {
+    Map<String, String> groupConfig = new HashMap<>(this);
+    groupConfig.putAll(subset(String.format(CONFIG_KEY_INDEX_GROUP_PREFIX, group)));
+    return new ElasticsearchConfig(groupConfig);
+  }
+
+  /**
+   * Create the upcoming date partitioned indexes ahead of time
+   */
+  public boolean getIndexPreCreate() {
+    return getBoolean(CONFIG_KEY_INDEX_PRECREATE, false);
+  }
+
+  /**
+   * How long before the next index is due to create it
+   */
+  public long getIndexPreCreateLeadMs() {
+    long leadMs = getLong(CONFIG_KEY_INDEX_PRECREATE_LEAD_MS, 900000L);
+    if (leadMs <= 0) {
+      throw new ConfigException(String.format("%s must be > 0", CONFIG_KEY_INDEX_PRECREATE_LEAD_MS));
+    }
+    return leadMs;
+  }
+
+  public long getIndexPreCreateCheckMs() {
+    long checkMs = getLong(CONFIG_KEY_INDEX_PRECREATE_CHECK_MS, 60000L);
+    if (checkMs <= 0 || checkMs >= getIndexPreCreateLeadMs()) {
+      throw new ConfigException(String.format("%s must be > 0 and < %s", CONFIG_KEY_INDEX_PRECREATE_CHECK_MS, CONFIG_KEY_INDEX_PRECREATE_LEAD_MS));
+    }
+    return checkMs;
+  }
+
+  /**
+   * Class name of the {@link IndexPatternFactory} for the indexes to create
+   */
+  public String getIndexPreCreateFactory() {
+    String factoryClass = get(CONFIG_KEY_INDEX_PRECREATE_FACTORY);
+    if (factoryClass == null || factoryClass.trim().isEmpty()) {
+      throw new ConfigException(String.format("%s must be set when %s is true", CONFIG_KEY_INDEX_PRECREATE_FACTORY, CONFIG_KEY_INDEX_PRECREATE));
+    }
+    return factoryClass.trim();
+  }
+
+  /**
+   * Max requests in flight over all bulk loaders, which share the HTTP connection pool
+   */
+  public int getBulkMaxInFlightTotal() {
+    int maxInFlight = getBulkMaxInFlight();
+    for (String group : getIndexGroups()) {
+      maxInFlight += getIndexGroupConfig(group).getBulkMaxInFlight();
+    }
+    return maxInFlight;
+  }
+
   private void logAllSettings(Config config) {
     StringBuilder b = new StringBuilder();
     b.append("Elasticsearch (HTTP) System settings: ");
@@ -19,15 +19,39 @@
 
 package com.quantiply.samza.system.elasticsearch;
 
+import com.quantiply.elasticsearch.BulkTransport;
 import com.quantiply.elasticsearch.HTTPBulkLoader;
+import com.quantiply.elasticsearch.IndexNameResolver;
+import com.quantiply.elasticsearch.IndexPreCreator;
+import com.quantiply.elasticsearch.JestBulkTransport;
+import com.quantiply.elasticsearch.NDJSONBulkTransport;
+import com.quantiply.elasticsearch.NIOBulkTransport;
+import com.quantiply.elasticsearch.NodeSelector;
+import com.quantiply.samza.ConfigConst;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestClientFactory;
 import io.searchbox.client.config.HttpClientConfig;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
 import org.apache.samza.SamzaException;
 import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
 import org.apache.samza.metrics.MetricsRegistry;
+import org.apache.samza.metrics.MetricsRegistryMap;
+import org.apache.samza.serializers.JsonSerdeFactory;
 import org.apache.samza.system.*;
 
+import java.util.List;
+import java.util.Optional;
 import java.util.function.Function;
 
 /**
@@ -49,11 +73,17 @@ public class ElasticsearchSystemFactory implements SystemFactory {
   @Override
   public SystemProducer getProducer(String name, Config config, MetricsRegistry metricsRegistry) {
     ElasticsearchConfig elasticsearchConfig = new ElasticsearchConfig(name, config);
-    return new ElasticsearchSystemProducer(name,
-                                           getBulkLoaderFactory(elasticsearchConfig),
-                                           getClient(elasticsearchConfig),
-                                           MSG_TO_ACTION,
-                                           new ElasticsearchSystemProducerMetrics(name, metricsRegistry));
+    validateFlushAsync(name, elasticsearchConfig, config);
+    ElasticsearchSystemProducerMetrics metrics = new ElasticsearchSystemProducerMetrics(name, metricsRegistry);
+    return new ElasticsearchSystemProducer.Builder(name,
+                                                   getBulkLoaderFactory(elasticsearchConfig),
+                                                   getTransport(elasticsearchConfig, Optional.of(getNodeListener(metrics))),
+                                                   MSG_TO_ACTION,
+                                                   metrics)
+        .pendingFlushes(PendingFlushes.forContainer(config))
+        .indexPreCreator(getIndexPreCreator(elasticsearchConfig, config, metrics))
+        .diverter(getActionDiverter(name, elasticsearchConfig, config))
+        .build();
   }
 
   @Override
@@ -62,28 +92,173 @@ public class ElasticsearchSystemFactory implements SystemFactory {
   }
 
 
+  /**
+   * Samza checkpoints as soon as flush returns so an async flush is only at least once if the checkpoint
+   * is held back until it has been acknowledged
+   */
+  protected static void validateFlushAsync(String name, ElasticsearchConfig esConfig, Config config) {
+    String checkpointFactory = config.get(GatedCheckpointManagerFactory.CONFIG_KEY_CHECKPOINT_FACTORY);
+    if (esConfig.getFlushAsync() &&
+        (checkpointFactory == null || !checkpointFactory.trim().equals(GatedCheckpointManagerFactory.class.getName()))) {
+      throw new ConfigException(String.format("systems.%s.%s requires %s=%s", name, ElasticsearchConfig.CONFIG_KEY_FLUSH_ASYNC,
+          GatedCheckpointManagerFactory.CONFIG_KEY_CHECKPOINT_FACTORY, GatedCheckpointManagerFactory.class.getName()));
+    }
+  }
+
   protected static HTTPBulkLoaderFactory getBulkLoaderFactory(ElasticsearchConfig config) {
     return new HTTPBulkLoaderFactory(config);
   }
 
+  protected static BulkTransport getTransport(ElasticsearchConfig config) {
+    return getTransport(config, Optional.empty());
+  }
+
+  protected static BulkTransport getTransport(ElasticsearchConfig config, Optional<NodeSelector.Listener> nodeListener) {
+    switch (config.getBulkEncoder()) {
+      case JEST:
+        return new JestBulkTransport(getClient(config));
+      case NATIVE:
+        boolean gzip = config.getCompression().equals(ElasticsearchConfig.Compression.GZIP);
+        NodeSelector nodes = getNodeSelector(config, nodeListener);
+        if (config.getHttpClientType().equals(ElasticsearchConfig.HttpClientType.NIO)) {
+          return new NIOBulkTransport(nodes, getAsyncHttpClient(config), config.getBulkMaxInFlightTotal(), gzip);
+        }
+        return new NDJSONBulkTransport(nodes, getHttpClient(config), config.getBulkMaxInFlightTotal(), gzip);
+      default:
+        throw new IllegalStateException("Unknown bulk encoder: " + config.getBulkEncoder());
+    }
+  }
+
+  protected static NodeSelector getNodeSelector(ElasticsearchConfig config, Optional<NodeSelector.Listener> nodeListener) {
+    NodeSelector.Strategy strategy = NodeSelector.Strategy.valueOf(config.getNodeSelection().name());
+    return new NodeSelector(config.getHTTPURLs(), strategy, config.getNodeEjectMs(), nodeListener);
+  }
+
+  protected static Optional<ActionDiverter> getActionDiverter(String name, ElasticsearchConfig esConfig, Config config) {
+    if (!esConfig.getCircuitBreaker() || !esConfig.getCircuitBreakerPolicy().equals(ElasticsearchConfig.CircuitBreakerPolicy.DIVERT)) {
+      return Optional.empty();
+    }
+    SystemStream stream = new SystemStream(ConfigConst.DEFAULT_SYSTEM_NAME, esConfig.getCircuitBreakerDivertStream());
+    SystemProducer producer = ConfigConst.DEFAULT_SYSTEM_FACTORY.getProducer(ConfigConst.DEFAULT_SYSTEM_NAME, config, new MetricsRegistryMap());
+    return Optional.of(new ActionDiverter(name, producer, stream, new JsonSerdeFactory().getSerde(ActionDiverter.SYSTEM_PRODUCER_SOURCE, config)));
+  }
+
+  protected static Optional<IndexPreCreator> getIndexPreCreator(ElasticsearchConfig esConfig, Config config, ElasticsearchSystemProducerMetrics metrics) {
+    if (!esConfig.getIndexPreCreate()) {
+      return Optional.empty();
+    }
+    List<IndexNameResolver> patterns = getIndexPatternFactory(esConfig).getIndexPatterns(config);
+    if (patterns.isEmpty()) {
+      throw new SamzaException(String.format("%s is set but no index is date partitioned", ElasticsearchConfig.CONFIG_KEY_INDEX_PRECREATE));
+    }
+    IndexPreCreator.Listener listener = new IndexPreCreator.Listener() {
+      @Override
+      public void onCreated(String index) {
+        metrics.indexesPreCreated.inc();
+      }
+
+      @Override
+      public void onFailed(String index) {
+        metrics.indexPreCreateFailures.inc();
+      }
+    };
+    return Optional.of(new IndexPreCreator(patterns, getClient(esConfig), esConfig.getIndexPreCreateLeadMs(),
+        esConfig.getIndexPreCreateCheckMs(), Optional.of(listener)));
+  }
+
+  @SuppressWarnings("unchecked")
+  protected static IndexPatternFactory getIndexPatternFactory(ElasticsearchConfig esConfig) {
+    String factoryClass = esConfig.getIndexPreCreateFactory();
+    try {
+      Class<IndexPatternFactory> klass = (Class<IndexPatternFactory>) Class.forName(factoryClass);
+      return klass.newInstance();
+    } catch (ClassNotFoundException e) {
+      throw new ConfigException("Index pattern factory class not found: " + factoryClass);
+    } catch (InstantiationException e) {
+      throw new ConfigException("Could not instantiate index pattern factory class: " + factoryClass);
+    } catch (IllegalAccessException e) {
+      throw new ConfigException("Could not access index pattern factory class: " + factoryClass);
+    }
+  }
+
+  protected static NodeSelector.Listener getNodeListener(ElasticsearchSystemProducerMetrics metrics) {
+    return new NodeSelector.Listener() {
+      @Override
+      public void onResponse(String url, long latencyMs) {
+        metrics.nodeWaitMs(url).update(latencyMs);
+      }
+
+      @Override
+      public void onEjected(String url) {
+        metrics.nodeEjections.inc();
+      }
+    };
+  }
+
+  protected static CloseableHttpClient getHttpClient(ElasticsearchConfig config) {
+    //Pooled connection manager re-establishes connections after they go stale
+    HttpClientBuilder builder = HttpClients.custom()
+        .setDefaultRequestConfig(getRequestConfig(config))
+        .setMaxConnTotal(config.getBulkMaxInFlightTotal())
+        .setMaxConnPerRoute(config.getBulkMaxInFlightTotal());
+    if (config.getAuthType().equals(ElasticsearchConfig.AuthType.BASIC)) {
+      builder.setDefaultCredentialsProvider(getCredentialsProvider(config));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Non-blocking client - a single I/O reactor thread serves all in-flight requests
+   */
+  protected static CloseableHttpAsyncClient getAsyncHttpClient(ElasticsearchConfig config) {
+    HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+        .setDefaultRequestConfig(getRequestConfig(config))
+        .setMaxConnTotal(config.getBulkMaxInFlightTotal())
+        .setMaxConnPerRoute(config.getBulkMaxInFlightTotal());
+    if (config.getAuthType().equals(ElasticsearchConfig.AuthType.BASIC)) {
+      builder.setDefaultCredentialsProvider(getCredentialsProvider(config));
+    }
+    return builder.build();
+  }
+
+  protected static RequestConfig getRequestConfig(ElasticsearchConfig config) {
+    return RequestConfig.custom()
+        .setConnectTimeout(config.getConnectTimeoutMs())
+        .setSocketTimeout(config.getReadTimeoutMs())
+        .build();
+  }
+
+  protected static CredentialsProvider getCredentialsProvider(ElasticsearchConfig config) {
+    validateBasicAuth(config);
+    CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+    credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(config.getBasicAuthUser(), config.getBasicAuthPassword()));
+    return credentialsProvider;
+  }
+
   protected static JestClient getClient(ElasticsearchConfig config) {
     JestClientFactory jestFactory = new JestClientFactory();
-    HttpClientConfig.Builder httpClientBuilder = new HttpClientConfig.Builder(config.getHTTPURL());
+    //JEST round-robins over the nodes itself but does not track their health
+    HttpClientConfig.Builder httpClientBuilder = new HttpClientConfig.Builder(config.getHTTPURLs());
     //Although we have a single writer thread per system producer, we set multiThreaded as true so that Jest
     //will used a pooled connection manager which re-establishes connections after they go stale
     httpClientBuilder.multiThreaded(true);
+    httpClientBuilder.maxTotalConnection(config.getBulkMaxInFlightTotal());
+    httpClientBuilder.defaultMaxTotalConnectionPerRoute(config.getBulkMaxInFlightTotal());
     httpClientBuilder.connTimeout(config.getConnectTimeoutMs());
     httpClientBuilder.readTimeout(config.getReadTimeoutMs());
+    httpClientBuilder.requestCompressionEnabled(config.getCompression().equals(ElasticsearchConfig.Compression.GZIP));
     if (config.getAuthType().equals(ElasticsearchConfig.AuthType.BASIC)) {
-      String user = config.getBasicAuthUser();
-      String password = config.getBasicAuthPassword();
-      if (user == null || password == null) {
-        throw new SamzaException("Please specify a user and password for HTTP basic auth");
-      }
-      httpClientBuilder.defaultCredentials(user, password);
+      validateBasicAuth(config);
+      httpClientBuilder.defaultCredentials(config.getBasicAuthUser(), config.getBasicAuthPassword());
     }
     jestFactory.setHttpClientConfig(httpClientBuilder.build());
     return jestFactory.getObject();
   }
 
+  protected static void validateBasicAuth(ElasticsearchConfig config) {
+    if (config.getBasicAuthUser() == null || config.getBasicAuthPassword() == null) {
+      throw new SamzaException("Please specify a user and password for HTTP basic auth");
+    }
+  }
+
 }
@@ -19,8 +19,12 @@
 
 package com.quantiply.samza.system.elasticsearch;
 
+import com.quantiply.elasticsearch.ActionBatch;
+import com.quantiply.elasticsearch.BulkItemCounts;
+import com.quantiply.elasticsearch.BulkTransport;
+import com.quantiply.elasticsearch.CircuitBreaker;
 import com.quantiply.elasticsearch.HTTPBulkLoader;
-import io.searchbox.client.JestClient;
+import com.quantiply.elasticsearch.IndexPreCreator;
 import io.searchbox.core.BulkResult;
 import org.apache.samza.SamzaException;
 import org.apache.samza.system.OutgoingMessageEnvelope;
@@ -30,8 +34,17 @@ import org.apache.samza.util.SystemClock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -50,30 +63,153 @@ import java.util.stream.Collectors;
  * to avoid the extra machinery of a bulk loader per task, each with their own writer threads.
  * </p>
  *
+ * <p>
+ * With index groups configured, actions on the indexes of each group go through a separate
+ * {@link HTTPBulkLoader} with its own batches, writer thread, flush triggers and in-flight limit so that a slow
+ * index does not hold up the others. Indexes that match no group share the default bulk loader. An index
+ * belongs to the group with the longest matching index name prefix.
+ * </p>
+ *
+ * <p>
+ * With flush.async set, flush() sends what is batched and returns without waiting for Elasticsearch. The flush
+ * is added to {@link PendingFlushes} so that the {@link GatedCheckpointManager} can hold the checkpoint back until
+ * it has been acknowledged. A failed async flush is thrown from the next send() or flush().
+ * </p>
+ *
+ * <p>
+ * With an {@link IndexPreCreator}, upcoming date partitioned indexes are created in the background before
+ * the first action is written to them.
+ * </p>
+ *
+ * <p>
+ * With the circuit breaker on, bulk loaders keep resending failed requests until Elasticsearch recovers instead
+ * of failing the task. New actions block while it is open unless there is an {@link ActionDiverter}, in which case
+ * actions for a bulk loader whose breaker is open go to the divert stream, as do the requests the bulk loader was
+ * holding when it opened. It is flushed after the bulk loaders so that it covers those too. After an async flush,
+ * that is done on a thread of its own since the Kafka flush blocks and the bulk loader flushes complete on the
+ * bulk loaders' response threads.
+ * </p>
+ *
  * */
 public class ElasticsearchSystemProducer implements SystemProducer {
   private Logger LOGGER = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
+  /* Metrics name for the indexes that are not in any group */
+  public static final String DEFAULT_INDEX_GROUP = "default";
+  /* Time based indexes keep adding names so only the most recently used are kept */
+  protected static final int MAX_CACHED_INDEXES = 1000;
 
   private final String systemName;
   private final HTTPBulkLoader bulkLoader;
-  private final JestClient client;
+  /* Index name prefix -> bulk loader, longest prefix first */
+  private final List<Map.Entry<String, HTTPBulkLoader>> groupLoaders = new ArrayList<>();
+  /* Index name -> bulk loader, least recently used evicted. Only touched by the task thread */
+  protected final Map<String, HTTPBulkLoader> loadersByIndex = new LinkedHashMap<String, HTTPBulkLoader>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, HTTPBulkLoader> eldest) {
+      return size() > MAX_CACHED_INDEXES;
+    }
+  };
+  private final List<HTTPBulkLoader> allLoaders = new ArrayList<>();
+  private final BulkTransport transport;
   private final Function<OutgoingMessageEnvelope, HTTPBulkLoader.ActionRequest> msgToAction;
+  private final boolean flushAsync;
+  private final PendingFlushes pendingFlushes;
+  private final Optional<IndexPreCreator> indexPreCreator;
+  private final Optional<ActionDiverter> diverter;
+  /* Flushes the diverter once the bulk loaders are done with an async flush */
+  private final Optional<ExecutorService> divertFlushExecSvc;
+  private final ElasticsearchSystemProducerMetrics metrics;
+  /* First async flush failure, set by the writer threads */
+  private volatile Throwable asyncFlushError = null;
+
+  public static class Builder {
+    private final String systemName;
+    private final HTTPBulkLoaderFactory bulkLoaderFactory;
+    private final BulkTransport transport;
+    private final Function<OutgoingMessageEnvelope,HTTPBulkLoader.ActionRequest> msgToAction;
+    private final ElasticsearchSystemProducerMetrics metrics;
+    private PendingFlushes pendingFlushes = new PendingFlushes();
+    private Optional<IndexPreCreator> indexPreCreator = Optional.empty();
+    private Optional<ActionDiverter> diverter = Optional.empty();
 
-  public ElasticsearchSystemProducer(String systemName,
-                                     HTTPBulkLoaderFactory bulkLoaderFactory,
-                                     JestClient client,
-                                     Function<OutgoingMessageEnvelope,HTTPBulkLoader.ActionRequest> msgToAction,
-                                     ElasticsearchSystemProducerMetrics metrics) {
+    public Builder(String systemName,
+                   HTTPBulkLoaderFactory bulkLoaderFactory,
+                   BulkTransport transport,
+                   Function<OutgoingMessageEnvelope,HTTPBulkLoader.ActionRequest> msgToAction,
+                   ElasticsearchSystemProducerMetrics metrics) {
+      this.systemName = systemName;
+      this.bulkLoaderFactory = bulkLoaderFactory;
+      this.transport = transport;
+      this.msgToAction = msgToAction;
+      this.metrics = metrics;
+    }
+
+    public Builder pendingFlushes(PendingFlushes pendingFlushes) {
+      this.pendingFlushes = pendingFlushes;
+      return this;
+    }
+
+    public Builder indexPreCreator(Optional<IndexPreCreator> indexPreCreator) {
+      this.indexPreCreator = indexPreCreator;
+      return this;
+    }
+
+    public Builder diverter(Optional<ActionDiverter> diverter) {
+      this.diverter = diverter;
+      return this;
+    }
+
+    public ElasticsearchSystemProducer build() {
+      return new ElasticsearchSystemProducer(this);
+    }
+  }
+
+  private ElasticsearchSystemProducer(Builder builder) {
+    final String systemName = builder.systemName;
+    final HTTPBulkLoaderFactory bulkLoaderFactory = builder.bulkLoaderFactory;
+    final BulkTransport transport = builder.transport;
+    final ElasticsearchSystemProducerMetrics metrics = builder.metrics;
+    final Optional<ActionDiverter> diverter = builder.diverter;
     this.systemName = systemName;
-    this.client = client;
-    this.msgToAction = msgToAction;
-    this.bulkLoader = bulkLoaderFactory.getBulkLoader(systemName, client, new FlushListener(metrics, systemName));
+    this.indexPreCreator = builder.indexPreCreator;
+    this.diverter = diverter;
+    this.transport = transport;
+    this.msgToAction = builder.msgToAction;
+    this.flushAsync = bulkLoaderFactory.isFlushAsync();
+    this.pendingFlushes = builder.pendingFlushes;
+    this.divertFlushExecSvc = flushAsync ? diverter.map(d -> Executors.newSingleThreadExecutor(
+        r -> new Thread(r, systemName + " Elasticsearch Divert Flush"))) : Optional.empty();
+    Optional<Consumer<HTTPBulkLoader.ActionRequest>> divert = diverter.map(d -> d::divert);
+    Map<String, String> indexGroups = bulkLoaderFactory.getIndexGroups();
+    if (indexGroups.isEmpty()) {
+      this.bulkLoader = bulkLoaderFactory.getBulkLoader(systemName, transport, new FlushListener(metrics, systemName),
+          Optional.of(new QueueListener(metrics)), Optional.of(new BreakerListener(metrics)), divert);
+    }
+    else {
+      this.bulkLoader = bulkLoaderFactory.getBulkLoader(systemName, transport,
+          new FlushListener(metrics, systemName, Optional.of(metrics.indexGroup(DEFAULT_INDEX_GROUP))),
+          Optional.of(new QueueListener(metrics, Optional.of(metrics.indexGroup(DEFAULT_INDEX_GROUP)))),
+          Optional.of(new BreakerListener(metrics)), divert);
+      indexGroups.forEach((group, indexPrefix) -> {
+        HTTPBulkLoader loader = bulkLoaderFactory.getBulkLoader(systemName, group, transport,
+            new FlushListener(metrics, systemName, Optional.of(metrics.indexGroup(group))),
+            Optional.of(new QueueListener(metrics, Optional.of(metrics.indexGroup(group)))),
+            Optional.of(new BreakerListener(metrics)), divert);
+        groupLoaders.add(new AbstractMap.SimpleImmutableEntry<>(indexPrefix, loader));
+        allLoaders.add(loader);
+      });
+      groupLoaders.sort((a, b) -> b.getKey().length() - a.getKey().length());
+    }
+    allLoaders.add(0, bulkLoader);
+    this.metrics = metrics;
   }
 
   @Override
   public void start() {
     LOGGER.info("Starting Elasticsearch system producer");
-    bulkLoader.start();
+    diverter.ifPresent(ActionDiverter::start);
+    allLoaders.forEach(HTTPBulkLoader::start);
+    indexPreCreator.ifPresent(IndexPreCreator::start);
   }
 
   @Override
@@ -84,10 +220,25 @@ public class ElasticsearchSystemProducer implements SystemProducer {
       flushAll();
     }
     catch (Throwable e) {}
-    LOGGER.debug("Stopping the writer thread");
-    bulkLoader.stop();
+    LOGGER.debug("Stopping the writer threads");
+    allLoaders.forEach(HTTPBulkLoader::stop);
+    indexPreCreator.ifPresent(IndexPreCreator::stop);
+    divertFlushExecSvc.ifPresent(execSvc -> {
+      execSvc.shutdown();
+      try {
+        execSvc.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        LOGGER.info("Interrupted waiting for the divert stream flush");
+      }
+    });
+    diverter.ifPresent(ActionDiverter::stop);
     LOGGER.debug("Closing the connection");
-    client.shutdownClient();
+    try {
+      transport.close();
+    }
+    catch (IOException e) {
+      LOGGER.warn("Error closing the connection", e);
+    }
   }
 
   @Override
@@ -96,7 +247,15 @@ public class ElasticsearchSystemProducer implements SystemProducer {
   @Override
   public void send(final String source, final OutgoingMessageEnvelope envelope) {
     try {
-      bulkLoader.addAction(source, msgToAction.apply(envelope));
+      checkAsyncFlush();
+      HTTPBulkLoader.ActionRequest req = msgToAction.apply(envelope);
+      HTTPBulkLoader loader = getBulkLoader(req.index);
+      if (diverter.isPresent() && loader.isCircuitOpen()) {
+        diverter.get().divert(req);
+        metrics.divertedActions.inc();
+        return;
+      }
+      loader.addAction(source, req);
     }
     catch (Throwable e) {
       String message = String.format("Error writing to Elasticsearch system %s.", systemName);
@@ -107,7 +266,26 @@ public class ElasticsearchSystemProducer implements SystemProducer {
 
   @Override
   public void flush(final String source) {
-    flushAll();
+    if (flushAsync) {
+      flushAllAsync();
+    }
+    else {
+      flushAll();
+    }
+  }
+
+  protected HTTPBulkLoader getBulkLoader(String index) {
+    if (groupLoaders.isEmpty()) {
+      return bulkLoader;
+    }
+    return loadersByIndex.computeIfAbsent(index, name -> {
+      for (Map.Entry<String, HTTPBulkLoader> group : groupLoaders) {
+        if (name.startsWith(group.getKey())) {
+          return group.getValue();
+        }
+      }
+      return bulkLoader;
+    });
   }
 
   /**
@@ -116,7 +294,10 @@ public class ElasticsearchSystemProducer implements SystemProducer {
    */
   public void flushAll() {
     try {
-      bulkLoader.flush();
+      for (HTTPBulkLoader loader : allLoaders) {
+        loader.flush();
+      }
+      diverter.ifPresent(ActionDiverter::flush);
       LOGGER.info(String.format("Flushed Elasticsearch system %s", systemName));
     }
     catch (Throwable e) {
@@ -126,12 +307,54 @@ public class ElasticsearchSystemProducer implements SystemProducer {
     }
   }
 
+  /**
+   * Starts a flush on all bulk loaders and returns the handle that completes once they are all acknowledged
+   *
+   * Error contract:
+   *    this method will throw an Exception if an earlier async flush failed or a writer has died
+   */
+  public CompletableFuture<Void> flushAllAsync() {
+    try {
+      checkAsyncFlush();
+      CompletableFuture<?>[] flushes = new CompletableFuture<?>[allLoaders.size()];
+      for (int i = 0; i < flushes.length; i++) {
+        flushes[i] = allLoaders.get(i).flushAsync();
+      }
+      CompletableFuture<Void> flush = CompletableFuture.allOf(flushes);
+      if (diverter.isPresent()) {
+        //Diverted requests are only known once the bulk loaders are done
+        flush = flush.thenRunAsync(diverter.get()::flush, divertFlushExecSvc.get());
+      }
+      flush.whenComplete((result, e) -> {
+        if (e != null) {
+          asyncFlushError = e;
+        }
+        else {
+          LOGGER.debug(String.format("Flushed Elasticsearch system %s", systemName));
+        }
+      });
+      pendingFlushes.add(flush);
+      return flush;
+    }
+    catch (Throwable e) {
+      String message = String.format("Error writing to Elasticsearch system %s", systemName);
+      LOGGER.error(message, e);
+      throw new SamzaException(message, e);
+    }
+  }
+
+  protected void checkAsyncFlush() throws Throwable {
+    if (asyncFlushError != null) {
+      throw asyncFlushError;
+    }
+  }
+
   /**
    *
    * Callback for ES metrics, runs in the writer thread
    *
-   * Throws exception for any non-ignorable errors - will stop the producer. Retries are
-   * accomplished by restarting the job
+   * Throws exception for any non-ignorable errors - will stop the producer. Rejected (429/503)
+   * items have already been retried by the bulk loader. Other retries are accomplished by restarting the job
    *
    */
   protected static class FlushListener implements Consumer<HTTPBulkLoader.BulkReport> {
@@ -139,15 +362,27 @@ public class ElasticsearchSystemProducer implements SystemProducer {
     protected final int STATUS_CONFLICT = 409;
     protected final int STATUS_INDEX_DOC_INSERTED = 201;
     protected final ElasticsearchSystemProducerMetrics metrics;
+    protected final Optional<ElasticsearchSystemProducerMetrics.IndexGroupMetrics> groupMetrics;
     protected final String systemName;
     protected final Clock clock;
 
     public FlushListener(ElasticsearchSystemProducerMetrics metrics, String systemName) {
-      this(metrics, systemName, new SystemClock());
+      this(metrics, systemName, Optional.empty());
+    }
+
+    public FlushListener(ElasticsearchSystemProducerMetrics metrics, String systemName,
+                         Optional<ElasticsearchSystemProducerMetrics.IndexGroupMetrics> groupMetrics) {
+      this(metrics, systemName, groupMetrics, new SystemClock());
     }
 
     public FlushListener(ElasticsearchSystemProducerMetrics metrics, String systemName, Clock clock) {
+      this(metrics, systemName, Optional.empty(), clock);
+    }
+
+    public FlushListener(ElasticsearchSystemProducerMetrics metrics, String systemName,
+                         Optional<ElasticsearchSystemProducerMetrics.IndexGroupMetrics> groupMetrics, Clock clock) {
       this.metrics = metrics;
+      this.groupMetrics = groupMetrics;
       this.systemName = systemName;
       this.clock = clock;
     }
@@ -156,19 +391,23 @@ public class ElasticsearchSystemProducer implements SystemProducer {
     public void accept(HTTPBulkLoader.BulkReport report) {
       long tsNowMs = clock.currentTimeMillis();
       BulkResult result = report.bulkResult;
+      metrics.retries.inc(report.retries);
+      metrics.retriedItems.inc(report.retriedItems);
       if (!result.isSucceeded()) {
         if (result.getItems().size() == 0) {
+          metrics.failedItems.inc(report.requests.size());
           throw new SamzaException("Elasticsearch API error: " + result.getErrorMessage());
         }
         //Ignore version conflicts
         List<BulkResult.BulkResultItem> fatal = result.getFailedItems().stream().filter(item -> item.status != STATUS_CONFLICT).collect(Collectors.toList());
         if (fatal.size() > 0) {
+          metrics.failedItems.inc(fatal.size());
           fatal.forEach(item -> logger.error(String.format("Error: index %s/%s, id %s, status %s, error %s",
               item.index, item.type, item.id, item.status, item.error)));
           throw new SamzaException(String.format("Elasticsearch bulk result contained %s errors", fatal.size()));
         }
       }
-      logger.debug(String.format("Wrote %s actions to Elasticsearch system %s", result.getItems().size(), systemName));
+      logger.debug(String.format("Wrote %s actions to Elasticsearch system %s", report.itemCounts.getTotal(), systemName));
       updateSuccessMetrics(report, tsNowMs);
     }
 
@@ -176,10 +415,33 @@ public class ElasticsearchSystemProducer implements SystemProducer {
       metrics.bulkSendSuccess.inc();
       metrics.bulkSendBatchSize.update(report.requests.size());
       metrics.bulkSendWaitMs.update(report.esWaitMs);
+      if (report.triggerToAckMs > 0) {
+        metrics.triggerToAckMs.update(report.triggerToAckMs);
+      }
+      if (groupMetrics.isPresent()) {
+        groupMetrics.get().bulkSendSuccess.inc();
+        groupMetrics.get().bulkSendWaitMs.update(report.esWaitMs);
+        groupMetrics.get().actions.inc(report.requests.size());
+      }
+      if (report.maxActions > 0) {
+        metrics.effectiveMaxActions.set(report.maxActions);
+      }
+      if (report.batchBytes > 0) {
+        metrics.bulkSendBatchBytes.update(report.batchBytes);
+      }
+      if (report.rawBytes > 0) {
+        metrics.bulkSendRawBytes.update(report.rawBytes);
+      }
+      if (report.compressedBytes > 0) {
+        metrics.bulkSendCompressedBytes.update(report.compressedBytes);
+      }
       switch (report.triggerType) {
         case MAX_ACTIONS:
           metrics.triggerMaxActions.inc();
           break;
+        case MAX_BYTES:
+          metrics.triggerMaxBytes.inc();
+          break;
         case MAX_INTERVAL:
           metrics.triggerMaxInterval.inc();
           break;
@@ -188,35 +450,45 @@ public class ElasticsearchSystemProducer implements SystemProducer {
           break;
       }
 
-      int i = 0;
-      for (Iterator<BulkResult.BulkResultItem> it = report.bulkResult.getItems().iterator(); it.hasNext(); i++) {
-        BulkResult.BulkResultItem item = it.next();
-        if (item.status == STATUS_CONFLICT) {
-          metrics.conflicts.inc();
+      for (BulkItemCounts.Count count : report.itemCounts.getCounts()) {
+        if (count.operation.equals(HTTPBulkLoader.DIVERTED_OPERATION)) {
+          metrics.divertedActions.inc(count.getCount());
+        }
+        else if (count.status == STATUS_CONFLICT) {
+          metrics.conflicts.inc(count.getCount());
         }
         else {
-          switch (item.operation) {
+          switch (count.operation) {
             case "index":
-              if (item.status == STATUS_INDEX_DOC_INSERTED) {
-                metrics.inserts.inc();
+              if (count.status == STATUS_INDEX_DOC_INSERTED) {
+                metrics.inserts.inc(count.getCount());
               }
               else {
-                metrics.updates.inc();
+                metrics.updates.inc(count.getCount());
               }
               break;
             case "create":
-              metrics.inserts.inc();
+              metrics.inserts.inc(count.getCount());
               break;
             case "update":
-              metrics.updates.inc();
+              metrics.updates.inc(count.getCount());
               break;
             case "delete":
-              metrics.deletes.inc();
+              metrics.deletes.inc(count.getCount());
           }
         }
-        metrics.lagFromReceiveMs.update(tsNowMs - report.requests.get(i).request.receivedTsMs);
-        Long eventTsMs = report.requests.get(i).request.key.getEventTsUnixMs();
-        if (eventTsMs != null) {
+      }
+
+      //Times cover the requests merged into others too since they were written as well
+      ActionBatch batch = report.batch;
+      int coalesced = batch.getActionCount() - batch.size();
+      if (coalesced > 0) {
+        metrics.coalescedActions.inc(coalesced);
+      }
+      for (int i = 0; i < batch.getActionCount(); i++) {
+        metrics.lagFromReceiveMs.update(tsNowMs - batch.getReceivedTsMs(i));
+        long eventTsMs = batch.getEventTsMs(i);
+        if (eventTsMs != ActionBatch.NO_EVENT_TS) {
           metrics.lagFromOriginMs.update(tsNowMs - eventTsMs);
         }
       }
@@ -224,4 +496,65 @@ public class ElasticsearchSystemProducer implements SystemProducer {
 
   }
 
+  /**
+   * Circuit breaker state changes, runs in any thread that checks the breaker
+   */
+  protected static class BreakerListener implements CircuitBreaker.Listener {
+    protected final ElasticsearchSystemProducerMetrics metrics;
+
+    public BreakerListener(ElasticsearchSystemProducerMetrics metrics) {
+      this.metrics = metrics;
+    }
+
+    @Override
+    public void onStateChange(CircuitBreaker.State state) {
+      switch (state) {
+        case OPEN:
+          metrics.circuitBreakerOpened.inc();
+          break;
+        case CLOSED:
+          metrics.circuitBreakerClosed.inc();
+          break;
+      }
+    }
+  }
+
+  /**
+   * Backpressure metrics for a bulk loader, runs in the task and writer threads
+   *
+   * Time blocked on the command queue adds up over all bulk loaders since they share the task thread. With
+   * index groups, each loader (including the default one) reports its queue depth and busy ratio to its group's gauges
+   */
+  protected static class QueueListener implements HTTPBulkLoader.QueueListener {
+    protected final ElasticsearchSystemProducerMetrics metrics;
+    protected final Optional<ElasticsearchSystemProducerMetrics.IndexGroupMetrics> groupMetrics;
+
+    public QueueListener(ElasticsearchSystemProducerMetrics metrics) {
+      this(metrics, Optional.empty());
+    }
+
+    public QueueListener(ElasticsearchSystemProducerMetrics metrics,
+                         Optional<ElasticsearchSystemProducerMetrics.IndexGroupMetrics> groupMetrics) {
+      this.metrics = metrics;
+      this.groupMetrics = groupMetrics;
+    }
+
+    @Override
+    public void onBlocked(long blockedMs) {
+      metrics.cmdBlockedMs.update(blockedMs);
+    }
+
+    @Override
+    public void onWriterStats(int queueDepth, double busyRatio) {
+      if (groupMetrics.isPresent()) {
+        groupMetrics.get().cmdQueueDepth.set(queueDepth);
+        groupMetrics.get().writerBusyRatio.set(busyRatio);
+      }
+      else {
+        metrics.cmdQueueDepth.set(queueDepth);
+        metrics.writerBusyRatio.set(busyRatio);
+      }
+    }
+  }
+
 }
@@ -4,14 +4,23 @@ import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.quantiply.samza.MetricAdaptor;
 import org.apache.samza.metrics.Counter;
+import org.apache.samza.metrics.Gauge;
 import org.apache.samza.metrics.MetricsRegistry;
 
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class ElasticsearchSystemProducerMetrics {
     public final Counter bulkSendSuccess;
     public final Histogram bulkSendBatchSize;
     public final Histogram bulkSendWaitMs;
+    public final Histogram bulkSendBatchBytes;
+    public final Histogram bulkSendRawBytes;
+    public final Histogram bulkSendCompressedBytes;
     public final Counter triggerFlushCmd;
     public final Counter triggerMaxActions;
+    public final Counter triggerMaxBytes;
     public final Counter triggerMaxInterval;
     public final Histogram lagFromReceiveMs;
     public final Histogram lagFromOriginMs;
@@ -19,6 +28,24 @@ public class ElasticsearchSystemProducerMetrics {
     public final Counter updates;
     public final Counter deletes;
     public final Counter conflicts;
+    public final Counter retries;
+    public final Counter retriedItems;
+    public final Counter failedItems;
+    public final Counter coalescedActions;
+    public final Gauge<Integer> effectiveMaxActions;
+    public final Counter nodeEjections;
+    public final Gauge<Integer> cmdQueueDepth;
+    public final Histogram cmdBlockedMs;
+    public final Gauge<Double> writerBusyRatio;
+    public final Histogram triggerToAckMs;
+    public final Counter indexesPreCreated;
+    public final Counter indexPreCreateFailures;
+    public final Counter circuitBreakerOpened;
+    public final Counter circuitBreakerClosed;
+    public final Counter divertedActions;
+    private final Map<String, Histogram> nodeWaitMs = new ConcurrentHashMap<>();
+    private final Map<String, IndexGroupMetrics> indexGroups = new ConcurrentHashMap<>();
+    private final MetricAdaptor adaptor;
     private final MetricsRegistry registry;
     private final String group;
     private final String systemName;
@@ -28,13 +55,17 @@ public class ElasticsearchSystemProducerMetrics {
         this.registry = registry;
         this.systemName = systemName;
 
-        MetricAdaptor adaptor = new MetricAdaptor(new MetricRegistry(), registry, group);
+        adaptor = new MetricAdaptor(new MetricRegistry(), registry, group);
         
         bulkSendSuccess = newCounter("bulk-send-success");
         bulkSendBatchSize = newHistogram(adaptor, "bulk-send-batch-size");
         bulkSendWaitMs = newHistogram(adaptor, "bulk-send-wait-ms");
+        bulkSendBatchBytes = newHistogram(adaptor, "bulk-send-batch-bytes");
+        bulkSendRawBytes = newHistogram(adaptor, "bulk-send-raw-bytes");
+        bulkSendCompressedBytes = newHistogram(adaptor, "bulk-send-compressed-bytes");
         triggerFlushCmd = newCounter("bulk-send-trigger-flush-cmd");
         triggerMaxActions = newCounter("bulk-send-trigger-max-actions");
+        triggerMaxBytes = newCounter("bulk-send-trigger-max-bytes");
         triggerMaxInterval = newCounter("bulk-send-trigger-max-interval");
         lagFromReceiveMs = newHistogram(adaptor, "lag-from-receive-ms");
         lagFromOriginMs = newHistogram(adaptor, "lag-from-origin-ms");
@@ -42,12 +73,80 @@ public class ElasticsearchSystemProducerMetrics {
         updates = newCounter("updates");
         deletes = newCounter("deletes");
         conflicts = newCounter("version-conflicts");
+        retries = newCounter("bulk-send-retries");
+        retriedItems = newCounter("bulk-send-retried-items");
+        failedItems = newCounter("bulk-send-failed-items");
+        coalescedActions = newCounter("bulk-send-coalesced-actions");
+        effectiveMaxActions = newGauge("bulk-send-effective-max-actions", 0);
+        nodeEjections = newCounter("bulk-send-node-ejections");
+        cmdQueueDepth = newGauge("bulk-send-cmd-queue-depth", 0);
+        cmdBlockedMs = newHistogram(adaptor, "bulk-send-cmd-blocked-ms");
+        writerBusyRatio = newGauge("bulk-send-writer-busy-ratio", 0.0);
+        triggerToAckMs = newHistogram(adaptor, "bulk-send-trigger-to-ack-ms");
+        indexesPreCreated = newCounter("index-precreated");
+        indexPreCreateFailures = newCounter("index-precreate-failures");
+        circuitBreakerOpened = newCounter("circuit-breaker-opened");
+        circuitBreakerClosed = newCounter("circuit-breaker-closed");
+        divertedActions = newCounter("circuit-breaker-diverted-actions");
+    }
+
+    /**
+     * Per node request latency, registered on the first response from the node
+     */
+    public Histogram nodeWaitMs(String url) {
+        return nodeWaitMs.computeIfAbsent(url, u -> newHistogram(adaptor, "bulk-send-node-wait-ms-" + getNodeName(u)));
+    }
+
+    /**
+     * Latency and throughput of the bulk requests for an index group, registered on first use
+     */
+    public IndexGroupMetrics indexGroup(String group) {
+        return indexGroups.computeIfAbsent(group, g -> new IndexGroupMetrics(
+            newHistogram(adaptor, "bulk-send-group-wait-ms-" + g),
+            newCounter("bulk-send-group-success-" + g),
+            newCounter("bulk-send-group-actions-" + g),
+            newGauge("bulk-send-group-cmd-queue-depth-" + g, 0),
+            newGauge("bulk-send-group-writer-busy-ratio-" + g, 0.0)));
+    }
+
+    public static class IndexGroupMetrics {
+        public final Histogram bulkSendWaitMs;
+        public final Counter bulkSendSuccess;
+        public final Counter actions;
+        public final Gauge<Integer> cmdQueueDepth;
+        public final Gauge<Double> writerBusyRatio;
+
+        public IndexGroupMetrics(Histogram bulkSendWaitMs, Counter bulkSendSuccess, Counter actions,
+                                 Gauge<Integer> cmdQueueDepth, Gauge<Double> writerBusyRatio) {
+            this.bulkSendWaitMs = bulkSendWaitMs;
+            this.bulkSendSuccess = bulkSendSuccess;
+            this.actions = actions;
+            this.cmdQueueDepth = cmdQueueDepth;
+            this.writerBusyRatio = writerBusyRatio;
+        }
+    }
+
+    protected static String getNodeName(String url) {
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() != null) {
+                return uri.getPort() < 0 ? uri.getHost() : uri.getHost() + "-" + uri.getPort();
+            }
+        }
+        catch (Exception e) {
+            //Fall back on the raw URL
+        }
+        return url.replaceAll("[^A-Za-z0-9.]+", "-");
     }
 
     private Histogram newHistogram(MetricAdaptor adaptor, String name) {
         return adaptor.histogram((systemName + "-" + name).toLowerCase());
     }
 
+    private <T> Gauge<T> newGauge(String name, T value) {
+        return registry.newGauge(group, (systemName + "-" + name).toLowerCase(), value);
+    }
+
     private Counter newCounter(String name) {
         return registry.newCounter(group, (systemName + "-" + name).toLowerCase());
     }
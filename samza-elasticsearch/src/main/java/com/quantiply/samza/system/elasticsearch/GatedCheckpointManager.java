@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.samza.system.elasticsearch;
+
+import org.apache.samza.checkpoint.Checkpoint;
+import org.apache.samza.checkpoint.CheckpointManager;
+import org.apache.samza.container.TaskName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds checkpoints back until the async flushes before them have been acknowledged by Elasticsearch
+ *
+ * Samza writes the checkpoint right after flushing the producers. With flush.async, the flush has only
+ * been started by then so each checkpoint is kept along with the flushes pending at that point (see
+ * {@link PendingFlushes}). The latest checkpoint whose flushes are done is written to the real checkpoint
+ * manager on the next commit, so checkpoints lag by about one commit interval. On stop, it waits for the
+ * flushes of the last checkpoint.
+ *
+ * If an async flush fails, no further checkpoints are written. The producer fails the task on its next send
+ * or flush and the job restarts from the last checkpoint written.
+ *
+ * Only called from the Samza container thread.
+ */
+public class GatedCheckpointManager implements CheckpointManager {
+  protected static class HeldCheckpoint {
+    public final Checkpoint checkpoint;
+    public final CompletableFuture<Void> flushes;
+
+    public HeldCheckpoint(Checkpoint checkpoint, CompletableFuture<Void> flushes) {
+      this.checkpoint = checkpoint;
+      this.flushes = flushes;
+    }
+  }
+
+  private Logger LOGGER = LoggerFactory.getLogger(new Object() {}.getClass().getEnclosingClass());
+  protected final CheckpointManager delegate;
+  protected final PendingFlushes pendingFlushes;
+  protected final long stopWaitMs;
+  /* Oldest first. A checkpoint's flushes include those of the checkpoints before it that were still pending */
+  protected final Map<TaskName, Deque<HeldCheckpoint>> held = new HashMap<>();
+  protected boolean failed = false;
+
+  public GatedCheckpointManager(CheckpointManager delegate, PendingFlushes pendingFlushes, long stopWaitMs) {
+    this.delegate = delegate;
+    this.pendingFlushes = pendingFlushes;
+    this.stopWaitMs = stopWaitMs;
+  }
+
+  @Override
+  public void start() {
+    failed = false;
+    delegate.start();
+  }
+
+  @Override
+  public void register(TaskName taskName) {
+    delegate.register(taskName);
+  }
+
+  @Override
+  public void writeCheckpoint(TaskName taskName, Checkpoint checkpoint) {
+    Deque<HeldCheckpoint> checkpoints = held.computeIfAbsent(taskName, name -> new ArrayDeque<>());
+    checkpoints.addLast(new HeldCheckpoint(checkpoint, pendingFlushes.snapshot()));
+    writeReady(taskName, checkpoints);
+  }
+
+  @Override
+  public Checkpoint readLastCheckpoint(TaskName taskName) {
+    return delegate.readLastCheckpoint(taskName);
+  }
+
+  @Override
+  public Map<TaskName, Integer> readChangeLogPartitionMapping() {
+    return delegate.readChangeLogPartitionMapping();
+  }
+
+  @Override
+  public void writeChangeLogPartitionMapping(Map<TaskName, Integer> mapping) {
+    delegate.writeChangeLogPartitionMapping(mapping);
+  }
+
+  @Override
+  public void stop() {
+    held.forEach((taskName, checkpoints) -> {
+      if (!checkpoints.isEmpty()) {
+        try {
+          checkpoints.peekLast().flushes.get(stopWaitMs, TimeUnit.MILLISECONDS);
+        }
+        catch (Exception e) {
+          LOGGER.warn(String.format("Async Elasticsearch flush did not complete for %s", taskName), e);
+        }
+        writeReady(taskName, checkpoints);
+      }
+    });
+    held.clear();
+    pendingFlushes.release();
+    delegate.stop();
+  }
+
+  /**
+   * Number of checkpoints held back for the task
+   */
+  public int getHeldCount(TaskName taskName) {
+    Deque<HeldCheckpoint> checkpoints = held.get(taskName);
+    return checkpoints == null ? 0 : checkpoints.size();
+  }
+
+  /**
+   * Writes the latest checkpoint whose flushes are all done
+   */
+  protected void writeReady(TaskName taskName, Deque<HeldCheckpoint> checkpoints) {
+    Checkpoint latest = null;
+    while (!failed && !checkpoints.isEmpty() && checkpoints.peekFirst().flushes.isDone()) {
+      HeldCheckpoint next = checkpoints.removeFirst();
+      if (next.flushes.isCompletedExceptionally() || pendingFlushes.getError().isPresent()) {
+        LOGGER.error("Async Elasticsearch flush failed. No more checkpoints will be written");
+        failed = true;
+        latest = null;
+      }
+      else {
+        latest = next.checkpoint;
+      }
+    }
+    if (failed) {
+      checkpoints.clear();
+      return;
+    }
+    if (latest != null) {
+      delegate.writeCheckpoint(taskName, latest);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.samza.system.elasticsearch;
+
+import org.apache.samza.checkpoint.CheckpointManager;
+import org.apache.samza.checkpoint.CheckpointManagerFactory;
+import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.metrics.MetricsRegistry;
+
+/**
+ * Wraps the checkpoint manager from task.checkpoint.gated.factory in a {@link GatedCheckpointManager}
+ *
+ * Set task.checkpoint.factory to this class when using flush.async
+ */
+public class GatedCheckpointManagerFactory implements CheckpointManagerFactory {
+  public static final String CONFIG_KEY_CHECKPOINT_FACTORY = "task.checkpoint.factory";
+  public static final String CONFIG_KEY_GATED_FACTORY = "task.checkpoint.gated.factory";
+  public static final String CONFIG_KEY_GATED_STOP_WAIT_MS = "task.checkpoint.gated.stop.wait.ms";
+
+  @Override
+  public CheckpointManager getCheckpointManager(Config config, MetricsRegistry metricsRegistry) {
+    long stopWaitMs = config.getLong(CONFIG_KEY_GATED_STOP_WAIT_MS, 60000L);
+    if (stopWaitMs < 0) {
+      throw new ConfigException(String.format("%s must be >= 0", CONFIG_KEY_GATED_STOP_WAIT_MS));
+    }
+    return new GatedCheckpointManager(getDelegateFactory(config).getCheckpointManager(config, metricsRegistry),
+        PendingFlushes.forContainer(config), stopWaitMs);
+  }
+
+  protected CheckpointManagerFactory getDelegateFactory(Config config) {
+    String factoryClass = config.get(CONFIG_KEY_GATED_FACTORY);
+    if (factoryClass == null) {
+      throw new ConfigException(String.format("%s must be set to the checkpoint manager factory to wrap", CONFIG_KEY_GATED_FACTORY));
+    }
+    try {
+      Class<CheckpointManagerFactory> klass = (Class<CheckpointManagerFactory>)Class.forName(factoryClass.trim());
+      return klass.newInstance();
+    } catch (ClassNotFoundException e) {
+      throw new ConfigException("Checkpoint manager factory class not found: " + factoryClass);
+    } catch (InstantiationException e) {
+      throw new ConfigException("Could not instantiate checkpoint manager factory class: " + factoryClass);
+    } catch (IllegalAccessException e) {
+      throw new ConfigException("Could not access checkpoint manager factory class: " + factoryClass);
+    }
+  }
+}
@@ -19,9 +19,13 @@
 
 package com.quantiply.samza.system.elasticsearch;
 
+import com.quantiply.elasticsearch.BulkTransport;
+import com.quantiply.elasticsearch.CircuitBreaker;
 import com.quantiply.elasticsearch.HTTPBulkLoader;
-import io.searchbox.client.JestClient;
 
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
 
@@ -35,11 +39,59 @@ public class HTTPBulkLoaderFactory {
     this.config = config;
   }
 
-  public HTTPBulkLoader getBulkLoader(String systemName, JestClient client, Consumer<HTTPBulkLoader.BulkReport> onFlush) {
-    HTTPBulkLoader.Config loaderConf = new HTTPBulkLoader.Config(
-        systemName, config.getBulkFlushMaxActions(),
-        config.getBulkFlushIntervalMS()
-    );
-    return new HTTPBulkLoader(loaderConf, client, Optional.of(onFlush));
+  public HTTPBulkLoader getBulkLoader(String systemName, BulkTransport transport, Consumer<HTTPBulkLoader.BulkReport> onFlush,
+                                      Optional<HTTPBulkLoader.QueueListener> queueListener, Optional<CircuitBreaker.Listener> breakerListener,
+                                      Optional<Consumer<HTTPBulkLoader.ActionRequest>> diverter) {
+    return getBulkLoader(systemName, config, transport, onFlush, queueListener, breakerListener, diverter);
+  }
+
+  /**
+   * Bulk loader for the actions on an index group, with the group's settings
+   */
+  public HTTPBulkLoader getBulkLoader(String systemName, String indexGroup, BulkTransport transport, Consumer<HTTPBulkLoader.BulkReport> onFlush,
+                                      Optional<HTTPBulkLoader.QueueListener> queueListener, Optional<CircuitBreaker.Listener> breakerListener,
+                                      Optional<Consumer<HTTPBulkLoader.ActionRequest>> diverter) {
+    return getBulkLoader(systemName + "-" + indexGroup, config.getIndexGroupConfig(indexGroup), transport, onFlush, queueListener,
+        breakerListener, diverter);
+  }
+
+  public boolean isFlushAsync() {
+    return config.getFlushAsync();
+  }
+
+  /**
+   * Index name prefix by group name
+   */
+  public Map<String, String> getIndexGroups() {
+    Map<String, String> groups = new LinkedHashMap<>();
+    config.getIndexGroups().forEach(group -> groups.put(group, config.getIndexGroupIndexPrefix(group)));
+    return groups;
+  }
+
+  protected HTTPBulkLoader getBulkLoader(String systemName, ElasticsearchConfig config, BulkTransport transport, Consumer<HTTPBulkLoader.BulkReport> onFlush,
+                                         Optional<HTTPBulkLoader.QueueListener> queueListener, Optional<CircuitBreaker.Listener> breakerListener,
+                                         Optional<Consumer<HTTPBulkLoader.ActionRequest>> diverter) {
+    HTTPBulkLoader.Config loaderConf = new HTTPBulkLoader.Config.Builder(systemName, config.getBulkFlushMaxActions())
+        .flushMaxIntervalMs(config.getBulkFlushIntervalMS())
+        .flushMaxBytes(config.getBulkFlushMaxBytes())
+        .maxInFlight(config.getBulkMaxInFlight())
+        .retry(new HTTPBulkLoader.RetryConfig(config.getBulkRetryMax(), config.getBulkRetryBackoffMs(), config.getBulkRetryBackoffMaxMs()))
+        .adaptive(config.getAdaptiveTargetLatencyMs().map(latencyMs -> new HTTPBulkLoader.AdaptiveConfig(
+            latencyMs,
+            config.getAdaptiveMinActions(),
+            config.getAdaptiveIncreaseActions(),
+            config.getAdaptiveDecreaseFactor())))
+        .coalesce(config.getBulkCoalesce())
+        .spill(config.getBulkSpillDir().map(dir -> new HTTPBulkLoader.SpillConfig(
+            Paths.get(dir),
+            config.getBulkSpillMaxBytes(),
+            config.getBulkSpillSegmentBytes())))
+        .circuitBreaker(config.getCircuitBreaker() ? Optional.of(new CircuitBreaker.Config(
+            config.getCircuitBreakerFailures(),
+            config.getCircuitBreakerLatencyMs(),
+            config.getCircuitBreakerOpenMs(),
+            config.getCircuitBreakerProbeActions())) : Optional.empty())
+        .build();
+    return new HTTPBulkLoader(loaderConf, transport, Optional.of(onFlush), queueListener, breakerListener, diverter);
   }
 }
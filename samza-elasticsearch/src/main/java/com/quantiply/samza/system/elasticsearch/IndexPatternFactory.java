@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.samza.system.elasticsearch;
+
+import com.quantiply.elasticsearch.IndexNameResolver;
+import org.apache.samza.config.Config;
+
+import java.util.List;
+
+/**
+ * Tells the producer which date partitioned indexes the job writes to so they can be pre-created
+ *
+ * Set index.precreate.factory to the implementation for the task, e.g. com.quantiply.samza.task.ESPushTaskIndexPatternFactory
+ * for ESPushTask. It must have a no-arg constructor
+ */
+public interface IndexPatternFactory {
+  /**
+   * @return a new resolver for each pattern. They are only used by the pre-creator thread
+   */
+  List<IndexNameResolver> getIndexPatterns(Config config);
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.samza.system.elasticsearch;
+
+import org.apache.samza.config.Config;
+import org.apache.samza.config.JobConfig;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Async flushes that Elasticsearch has not acknowledged yet
+ *
+ * Shared by all Elasticsearch system producers and the {@link GatedCheckpointManager} in the container. Samza
+ * writes the checkpoint right after the producers are flushed so the checkpoint manager takes the flushes pending
+ * at that point and holds the checkpoint back until they are done
+ *
+ * The factories get them with forContainer(), keyed by job name and id since that is all the config they
+ * share. The {@link GatedCheckpointManager} releases them when it stops, which Samza does after stopping the
+ * producers, so that a container started later in the same JVM gets its own
+ *
+ * Once any flush has failed, that error sticks. Nothing added after it may be checkpointed since actions
+ * before it were never written.
+ */
+public class PendingFlushes {
+  /* Job name and id -> pending flushes of the container running it */
+  private static final ConcurrentMap<String, PendingFlushes> byContainer = new ConcurrentHashMap<>();
+  protected final Optional<String> containerKey;
+  protected final Set<CompletableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+  protected volatile Throwable error = null;
+
+  public PendingFlushes() {
+    this(Optional.empty());
+  }
+
+  protected PendingFlushes(Optional<String> containerKey) {
+    this.containerKey = containerKey;
+  }
+
+  /**
+   * The pending flushes of the container running the job in the config
+   */
+  public static PendingFlushes forContainer(Config config) {
+    String key = String.format("%s-%s", config.get(JobConfig.JOB_NAME(), ""), config.get(JobConfig.JOB_ID(), "1"));
+    return byContainer.computeIfAbsent(key, k -> new PendingFlushes(Optional.of(k)));
+  }
+
+  public void add(CompletableFuture<Void> flush) {
+    pending.add(flush);
+    flush.whenComplete((result, e) -> {
+      if (e != null && error == null) {
+        error = e;
+      }
+      pending.remove(flush);
+    });
+  }
+
+  /**
+   * Completes when all flushes pending now are done. Completes exceptionally if any of them failed
+   */
+  public CompletableFuture<Void> snapshot() {
+    return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]));
+  }
+
+  public Optional<Throwable> getError() {
+    return Optional.ofNullable(error);
+  }
+
+  /**
+   * Called when the container stops. Does not touch the flushes of any other container
+   */
+  public void release() {
+    containerKey.ifPresent(key -> byContainer.remove(key, this));
+  }
+}
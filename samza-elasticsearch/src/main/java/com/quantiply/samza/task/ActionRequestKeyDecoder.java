@@ -0,0 +1,316 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.samza.task;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import com.quantiply.rico.elasticsearch.VersionType;
+import com.quantiply.samza.serde.AvroSerde;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.samza.SamzaException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes ActionRequestKey message keys without going through the generic JSON and Avro readers
+ *
+ * JSON keys are read with a streaming parser. As with the object mapper, field names are snake case, enum values are
+ * case insensitive, nulls are allowed and unknown fields are an error.
+ *
+ * Avro keys are in the schema registry wire format (magic byte, 4 byte schema id, binary record). If the writer schema
+ * for the id has the same parsing canonical form as ActionRequestKey, or as the previous version without routing and
+ * parent, the record is read field by field. The check is done once per schema id. Keys written with any other schema
+ * go through the Avro serde so they are still resolved against the reader schema.
+ *
+ * The decoded values are held in the decoder and only copied into a key once the whole input is read. Keys are not
+ * reused - they are handed on to the system producer with the action.
+ *
+ * Not thread safe. Each task has its own.
+ */
+public class ActionRequestKeyDecoder {
+    protected static final byte MAGIC_BYTE = 0x0;
+    protected static final int AVRO_HEADER_LENGTH = 5;
+    protected static final String KEY_SCHEMA_FORM = SchemaNormalization.toParsingForm(ActionRequestKey.getClassSchema());
+    /* Fields before routing and parent were added */
+    protected static final int PREV_KEY_SCHEMA_FIELDS = 6;
+    protected static final String PREV_KEY_SCHEMA_FORM = SchemaNormalization.toParsingForm(getPrevKeySchema());
+    protected static final int NOT_KEY_SCHEMA = 0;
+    protected static final Action[] ACTIONS = Action.values();
+    protected static final VersionType[] VERSION_TYPES = VersionType.values();
+    protected final JsonFactory jsonFactory = new JsonFactory();
+    /* Number of key fields written with each schema id or NOT_KEY_SCHEMA */
+    protected final Map<Integer, Integer> keyFieldsBySchemaId = new HashMap<>();
+
+    /* Holder for the fields of the key being decoded */
+    protected Action action;
+    protected String id;
+    protected Long version;
+    protected VersionType versionType;
+    protected Long partitionTsUnixMs;
+    protected Long eventTsUnixMs;
+    protected String routing;
+    protected String parent;
+    /* Read position in Avro input */
+    protected int pos;
+
+    public ActionRequestKey fromJson(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            throw new IOException("Invalid JSON key: missing");
+        }
+        reset();
+        try (JsonParser parser = jsonFactory.createParser(bytes)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid JSON key: expected an object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "action":
+                        action = token == JsonToken.VALUE_NULL ? null : Action.valueOf(getEnumText(parser, field));
+                        break;
+                    case "id":
+                        id = getText(parser, field);
+                        break;
+                    case "version":
+                        version = getLong(parser, field);
+                        break;
+                    case "version_type":
+                        versionType = token == JsonToken.VALUE_NULL ? null : VersionType.valueOf(getEnumText(parser, field));
+                        break;
+                    case "partition_ts_unix_ms":
+                        partitionTsUnixMs = getLong(parser, field);
+                        break;
+                    case "event_ts_unix_ms":
+                        eventTsUnixMs = getLong(parser, field);
+                        break;
+                    case "routing":
+                        routing = getText(parser, field);
+                        break;
+                    case "parent":
+                        parent = getText(parser, field);
+                        break;
+                    default:
+                        throw new IOException("Invalid JSON key: unknown field " + field);
+                }
+            }
+            if (parser.getCurrentToken() != JsonToken.END_OBJECT || parser.nextToken() != null) {
+                throw new IOException("Invalid JSON key: expected end of object");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Invalid JSON key: " + e.getMessage(), e);
+        }
+        return getKey();
+    }
+
+    /**
+     * Falls back to the Avro serde for missing keys and keys in other schemas
+     */
+    public ActionRequestKey fromAvro(byte[] bytes, AvroSerde avroSerde) {
+        int keyFields = NOT_KEY_SCHEMA;
+        if (bytes != null && bytes.length >= AVRO_HEADER_LENGTH && bytes[0] == MAGIC_BYTE) {
+            keyFields = getKeyFields(getSchemaId(bytes), avroSerde);
+        }
+        if (keyFields == NOT_KEY_SCHEMA) {
+            return (ActionRequestKey) avroSerde.fromBytes(bytes);
+        }
+        reset();
+        pos = AVRO_HEADER_LENGTH;
+        try {
+            action = ACTIONS[readIndex(bytes, ACTIONS.length)];
+            id = readOptionalString(bytes);
+            version = readOptionalLong(bytes);
+            if (readIndex(bytes, 2) == 1) {
+                versionType = VERSION_TYPES[readIndex(bytes, VERSION_TYPES.length)];
+            }
+            partitionTsUnixMs = readOptionalLong(bytes);
+            eventTsUnixMs = readOptionalLong(bytes);
+            if (keyFields > PREV_KEY_SCHEMA_FIELDS) {
+                routing = readOptionalString(bytes);
+                parent = readOptionalString(bytes);
+            }
+            if (pos != bytes.length) {
+                throw new IllegalArgumentException((bytes.length - pos) + " trailing bytes");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            throw new SamzaException("Invalid Avro key: " + e.getMessage(), e);
+        }
+        return getKey();
+    }
+
+    protected int getKeyFields(int schemaId, AvroSerde avroSerde) {
+        Integer keyFields = keyFieldsBySchemaId.get(schemaId);
+        if (keyFields == null) {
+            Schema schema = avroSerde.getSchema(schemaId);
+            String form = schema == null ? null : SchemaNormalization.toParsingForm(schema);
+            if (KEY_SCHEMA_FORM.equals(form)) {
+                keyFields = ActionRequestKey.getClassSchema().getFields().size();
+            }
+            else if (PREV_KEY_SCHEMA_FORM.equals(form)) {
+                keyFields = PREV_KEY_SCHEMA_FIELDS;
+            }
+            else {
+                keyFields = NOT_KEY_SCHEMA;
+            }
+            keyFieldsBySchemaId.put(schemaId, keyFields);
+        }
+        return keyFields;
+    }
+
+    /**
+     * ActionRequestKey as it was before routing and parent were added
+     */
+    protected static Schema getPrevKeySchema() {
+        Schema keySchema = ActionRequestKey.getClassSchema();
+        List<Schema.Field> fields = new ArrayList<>();
+        for (Schema.Field field : keySchema.getFields().subList(0, PREV_KEY_SCHEMA_FIELDS)) {
+            fields.add(new Schema.Field(field.name(), field.schema(), field.doc(), field.defaultValue()));
+        }
+        Schema schema = Schema.createRecord(keySchema.getName(), keySchema.getDoc(), keySchema.getNamespace(), false);
+        schema.setFields(fields);
+        return schema;
+    }
+
+    protected static int getSchemaId(byte[] bytes) {
+        return ((bytes[1] & 0xff) << 24) | ((bytes[2] & 0xff) << 16) | ((bytes[3] & 0xff) << 8) | (bytes[4] & 0xff);
+    }
+
+    protected void reset() {
+        action = null;
+        id = null;
+        version = null;
+        versionType = null;
+        partitionTsUnixMs = null;
+        eventTsUnixMs = null;
+        routing = null;
+        parent = null;
+    }
+
+    protected ActionRequestKey getKey() {
+        return new ActionRequestKey(action, id, version, versionType, partitionTsUnixMs, eventTsUnixMs, routing, parent);
+    }
+
+    protected static String getText(JsonParser parser, String field) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return parser.getText();
+            default:
+                throw new IOException("Invalid JSON key: unexpected value for " + field);
+        }
+    }
+
+    protected static String getEnumText(JsonParser parser, String field) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+            throw new IOException("Invalid JSON key: expected a string for " + field);
+        }
+        return parser.getText().toUpperCase();
+    }
+
+    protected static Long getLong(JsonParser parser, String field) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getLongValue();
+            case VALUE_STRING:
+                try {
+                    return Long.parseLong(parser.getText().trim());
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("Invalid JSON key: expected a number for " + field, e);
+                }
+            default:
+                throw new IOException("Invalid JSON key: expected a number for " + field);
+        }
+    }
+
+    protected Long readOptionalLong(byte[] bytes) {
+        return readIndex(bytes, 2) == 1 ? readLong(bytes) : null;
+    }
+
+    protected String readOptionalString(byte[] bytes) {
+        if (readIndex(bytes, 2) == 0) {
+            return null;
+        }
+        int length = readInt(bytes);
+        if (length < 0 || pos + length > bytes.length) {
+            throw new IllegalArgumentException("invalid string length " + length);
+        }
+        String str = new String(bytes, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return str;
+    }
+
+    /**
+     * Enum symbol or union branch
+     */
+    protected int readIndex(byte[] bytes, int count) {
+        int index = readInt(bytes);
+        if (index < 0 || index >= count) {
+            throw new IllegalArgumentException("invalid index " + index);
+        }
+        return index;
+    }
+
+    protected int readInt(byte[] bytes) {
+        long value = readLong(bytes);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid int " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Zig-zag encoded variable length long
+     */
+    protected long readLong(byte[] bytes) {
+        long raw = 0;
+        int shift = 0;
+        while (true) {
+            if (pos >= bytes.length) {
+                throw new IllegalArgumentException("unexpected end of input");
+            }
+            if (shift > 63) {
+                throw new IllegalArgumentException("invalid long");
+            }
+            byte b = bytes[pos++];
+            raw |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+}
@@ -15,7 +15,6 @@
  */
 package com.quantiply.samza.task;
 
-import com.quantiply.avro.AvroToJson;
 import com.quantiply.elasticsearch.HTTPBulkLoader;
 import com.quantiply.rico.elasticsearch.Action;
 import com.quantiply.rico.elasticsearch.ActionRequestKey;
@@ -23,8 +22,6 @@ import com.quantiply.rico.elasticsearch.VersionType;
 import com.quantiply.samza.MetricAdaptor;
 import com.quantiply.samza.serde.AvroSerde;
 import com.quantiply.samza.serde.AvroSerdeFactory;
-import com.quantiply.samza.serde.JsonSerde;
-import com.quantiply.samza.serde.JsonSerdeFactory;
 import org.apache.samza.SamzaException;
 import org.apache.samza.config.Config;
 import org.apache.samza.job.JobRunner;
@@ -39,10 +36,6 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.security.InvalidParameterException;
-import java.time.Instant;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Map;
 import java.util.Optional;
 import java.util.function.BiFunction;
 
@@ -54,12 +47,11 @@ import java.util.function.BiFunction;
 public class ESPushTask extends BaseTask {
     protected SystemStream esStream = new SystemStream(ESPushTaskConfig.CFS_ES_SYSTEM_NAME, ESPushTaskConfig.CFG_ES_STREAM_NAME);
     protected AvroSerde avroSerde;
-    protected JsonSerde jsonSerde;
-    protected final AvroToJson avroToJson = new AvroToJson();
+    protected final EmbeddedMetadataExtractor metadataExtractor = new EmbeddedMetadataExtractor();
+    protected final ActionRequestKeyDecoder keyDecoder = new ActionRequestKeyDecoder();
 
     @Override
     protected void _init(Config config, TaskContext context, MetricAdaptor metricAdaptor) throws Exception {
-        jsonSerde = new JsonSerdeFactory().getSerde("json", config);
         if (getErrorHandler().dropOnError()) {
             logger.warn("Task is configured to drop messages on error");
         }
@@ -110,7 +102,7 @@ public class ESPushTask extends BaseTask {
 
     protected OutgoingMessageEnvelope getSimpleOutMsg(IncomingMessageEnvelope envelope, ESPushTaskConfig.ESIndexSpec spec, Optional<Long> tsNowMsOpt) {
         long tsNowMs = tsNowMsOpt.orElse(System.currentTimeMillis());
-        String document = getDocumentAsString(envelope);
+        byte[] document = (byte[]) envelope.getMessage();
 
         //Message key is used for the document id if set
         String id = null;
@@ -130,8 +122,8 @@ public class ESPushTask extends BaseTask {
 
     protected OutgoingMessageEnvelope getAvroKeyOutMsg(IncomingMessageEnvelope envelope, ESPushTaskConfig.ESIndexSpec spec, Optional<Long> tsNowMsOpt) {
         long tsNowMs = tsNowMsOpt.orElse(System.currentTimeMillis());
-        String document = getDocumentAsString(envelope);
-        ActionRequestKey key = (ActionRequestKey) avroSerde.fromBytes((byte[]) envelope.getKey());
+        byte[] document = (byte[]) envelope.getMessage();
+        ActionRequestKey key = keyDecoder.fromAvro((byte[]) envelope.getKey(), avroSerde);
         return getOutMsg(envelope, key, spec, tsNowMs, document);
     }
 
@@ -141,10 +133,10 @@ public class ESPushTask extends BaseTask {
 
     protected OutgoingMessageEnvelope getJsonKeyOutMsg(IncomingMessageEnvelope envelope, ESPushTaskConfig.ESIndexSpec spec, Optional<Long> tsNowMsOpt) {
         long tsNowMs = tsNowMsOpt.orElse(System.currentTimeMillis());
-        String document = getDocumentAsString(envelope);
+        byte[] document = (byte[]) envelope.getMessage();
         ActionRequestKey key;
         try {
-            key = avroToJson.jsonToObject((byte[]) envelope.getKey(), ActionRequestKey.class);
+            key = keyDecoder.fromJson((byte[]) envelope.getKey());
         } catch (IOException e) {
             throw new SamzaException("Invalid JSON key input", e);
         }
@@ -157,56 +149,52 @@ public class ESPushTask extends BaseTask {
 
     protected OutgoingMessageEnvelope getEmbeddedOutMsg(IncomingMessageEnvelope envelope, ESPushTaskConfig.ESIndexSpec spec, Optional<Long> tsNowMsOpt) {
         long tsNowMs = tsNowMsOpt.orElse(System.currentTimeMillis());
-        Map<String, Object> document = (Map<String, Object>)jsonSerde.fromBytes((byte[]) envelope.getMessage());
+        EmbeddedMetadataExtractor.Extracted extracted;
+        try {
+            extracted = metadataExtractor.extract((byte[]) envelope.getMessage());
+        } catch (IOException e) {
+            throw new SamzaException("Invalid JSON document", e);
+        }
         ActionRequestKey.Builder keyBuilder = ActionRequestKey.newBuilder();
         keyBuilder.setAction(Action.INDEX);
-        if (document.containsKey("_id") && document.get("_id") instanceof String) {
-            keyBuilder.setId((String) document.get("_id"));
-            document.remove("_id");
+        if (extracted.id != null) {
+            keyBuilder.setId(extracted.id);
         }
-        if (document.containsKey("_version") && document.get("_version") instanceof Number) {
-            keyBuilder.setVersion(((Number) document.get("_version")).longValue());
-            document.remove("_version");
+        if (extracted.version != null) {
+            keyBuilder.setVersion(extracted.version);
         }
-        if (document.containsKey("_version_type") && document.get("_version_type") instanceof String) {
-            keyBuilder.setVersionType(VersionType.valueOf(((String) document.get("_version_type")).toUpperCase()));
-            document.remove("_version_type");
+        if (extracted.versionType != null) {
+            keyBuilder.setVersionType(VersionType.valueOf(extracted.versionType.toUpperCase()));
         }
-        if (document.containsKey("@timestamp") && document.get("@timestamp") instanceof Number) {
-            long msgTs = ((Number) document.get("@timestamp")).longValue();
-            keyBuilder.setPartitionTsUnixMs(msgTs);
-            keyBuilder.setEventTsUnixMs(msgTs);
-            document.remove("@timestamp");
+        if (extracted.timestampMs != null) {
+            keyBuilder.setPartitionTsUnixMs(extracted.timestampMs);
+            keyBuilder.setEventTsUnixMs(extracted.timestampMs);
         }
-        ActionRequestKey key = keyBuilder.build();
-        String docStr = jsonSerde.toString(document);
-        return getOutMsg(envelope, key, spec, tsNowMs, getDocForUpdate(key, docStr));
-    }
-
-    private String getDocumentAsString(IncomingMessageEnvelope envelope) {
-        String document = null;
-        if (envelope.getMessage() != null) {
-            document = new String((byte[]) envelope.getMessage(), StandardCharsets.UTF_8);
+        if (extracted.routing != null) {
+            keyBuilder.setRouting(extracted.routing);
         }
-        return document;
+        if (extracted.parent != null) {
+            keyBuilder.setParent(extracted.parent);
+        }
+        ActionRequestKey key = keyBuilder.build();
+        return getOutMsg(envelope, key, spec, tsNowMs, extracted.document);
     }
 
-    private OutgoingMessageEnvelope getOutMsg(IncomingMessageEnvelope envelope, ActionRequestKey key, ESPushTaskConfig.ESIndexSpec spec, long tsNowMs, String document) {
+    private OutgoingMessageEnvelope getOutMsg(IncomingMessageEnvelope envelope, ActionRequestKey key, ESPushTaskConfig.ESIndexSpec spec, long tsNowMs, byte[] document) {
         validateInput(key, spec, envelope, tsNowMs, document);
-        return new OutgoingMessageEnvelope(esStream, new HTTPBulkLoader.ActionRequest(key, getIndex(spec, key), spec.docType, tsNowMs, getDocForUpdate(key, document)));
+        //Documents are passed on as bytes. Updates are wrapped in {"doc": ...} when encoded
+        boolean partialDoc = key.getAction().equals(Action.UPDATE);
+        return new OutgoingMessageEnvelope(esStream, new HTTPBulkLoader.ActionRequest(key, getIndex(spec, key), spec.docType, tsNowMs, document, partialDoc));
     }
 
     private String getIndex(ESPushTaskConfig.ESIndexSpec spec, ActionRequestKey requestKey) {
         if (spec.indexNameDateFormat.isPresent()) {
-            ZonedDateTime dateTime = Instant.ofEpochMilli(requestKey.getPartitionTsUnixMs()).atZone(spec.indexNameDateZone);
-            //ES index names must be lowercase
-            String dateStr = dateTime.format(DateTimeFormatter.ofPattern(spec.indexNameDateFormat.get())).toLowerCase();
-            return spec.indexNamePrefix + dateStr;
+            return spec.indexNameResolver.getIndex(requestKey.getPartitionTsUnixMs());
         }
         return spec.indexNamePrefix;
     }
 
-    private void validateInput(ActionRequestKey key, ESPushTaskConfig.ESIndexSpec spec, IncomingMessageEnvelope envelope, long tsNowMs, String document) {
+    private void validateInput(ActionRequestKey key, ESPushTaskConfig.ESIndexSpec spec, IncomingMessageEnvelope envelope, long tsNowMs, byte[] document) {
         if (key.getAction() == null) {
             key.setAction(Action.INDEX);
         }
@@ -234,13 +222,6 @@ public class ESPushTask extends BaseTask {
         }
     }
 
-    private String getDocForUpdate(ActionRequestKey key, String documentIn) {
-        if (key.getAction().equals(Action.UPDATE)) {
-            return "{\"doc\":" + documentIn + "}";
-        }
-        return documentIn;
-    }
-
     /*
     *    For testing in the IDE
     */
@@ -15,6 +15,7 @@
  */
 package com.quantiply.samza.task;
 
+import com.quantiply.elasticsearch.IndexNameResolver;
 import com.quantiply.rico.elasticsearch.VersionType;
 import org.apache.samza.config.Config;
 import org.apache.samza.config.ConfigException;
@@ -44,6 +45,8 @@ public class ESPushTaskConfig {
         public final ZoneId indexNameDateZone;
         public final String docType;
         public final Optional<VersionType> defaultVersionType;
+        /* Caches the current index name, so specs are per task and must not be shared across tasks */
+        public final IndexNameResolver indexNameResolver;
 
         public ESIndexSpec(MetadataSrc metadataSrc, String indexNamePrefix, Optional<String> indexNameDateFormat, ZoneId indexNameDateZone, String docType, Optional<VersionType> defaultVersionType) {
             this.metadataSrc = metadataSrc;
@@ -52,6 +55,12 @@ public class ESPushTaskConfig {
             this.indexNameDateZone = indexNameDateZone;
             this.docType = docType;
             this.defaultVersionType = defaultVersionType;
+            try {
+                this.indexNameResolver = new IndexNameResolver(this.indexNamePrefix, indexNameDateFormat, indexNameDateZone);
+            }
+            catch (IllegalArgumentException e) {
+                throw new ConfigException("Invalid index date format: " + indexNameDateFormat.orElse(""), e);
+            }
         }
     }
 
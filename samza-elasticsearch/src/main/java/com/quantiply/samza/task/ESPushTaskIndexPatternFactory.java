@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014-2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.samza.task;
+
+import com.quantiply.elasticsearch.IndexNameResolver;
+import com.quantiply.samza.system.elasticsearch.IndexPatternFactory;
+import org.apache.samza.config.Config;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Date partitioned indexes of the ESPushTask streams, for index.precreate.factory
+ */
+public class ESPushTaskIndexPatternFactory implements IndexPatternFactory {
+
+    @Override
+    public List<IndexNameResolver> getIndexPatterns(Config config) {
+        Collection<ESPushTaskConfig.ESIndexSpec> specs = ESPushTaskConfig.isStreamConfig(config) ?
+            ESPushTaskConfig.getStreamMap(config).values() : Collections.singletonList(ESPushTaskConfig.getDefaultConfig(config));
+        //Each spec parsed here has its own resolver, not shared with the tasks
+        return specs.stream()
+            .filter(spec -> spec.indexNameDateFormat.isPresent())
+            .map(spec -> spec.indexNameResolver)
+            .collect(Collectors.toList());
+    }
+}
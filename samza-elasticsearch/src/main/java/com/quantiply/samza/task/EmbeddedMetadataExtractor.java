@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016 Quantiply Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.quantiply.samza.task;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pulls the embedded metadata fields (_id, _version, _version_type, _routing, _parent and @timestamp) out of a JSON document
+ * without building an object tree
+ *
+ * Only the top-level fields are tokenized. Nested objects, arrays and strings are skipped over by matching
+ * brackets and quotes, which also means they are not validated - Elasticsearch still rejects a malformed document.
+ * The metadata fields are cut out at byte level and the rest of the document is copied through as is. A document
+ * without metadata fields is returned as the same array.
+ *
+ * As before, a field is only treated as metadata if its value has the expected type (string id, version type, routing
+ * and parent, numeric version and timestamp). Otherwise, it stays in the document.
+ *
+ * Thread safe
+ */
+public class EmbeddedMetadataExtractor {
+
+    public static class Extracted {
+        /* The original bytes if nothing was cut out */
+        public final byte[] document;
+        public final String id;
+        public final Long version;
+        public final String versionType;
+        public final Long timestampMs;
+        public final String routing;
+        public final String parent;
+
+        public Extracted(byte[] document, String id, Long version, String versionType, Long timestampMs, String routing, String parent) {
+            this.document = document;
+            this.id = id;
+            this.version = version;
+            this.versionType = versionType;
+            this.timestampMs = timestampMs;
+            this.routing = routing;
+            this.parent = parent;
+        }
+    }
+
+    /* Only used for strings with escapes */
+    protected final JsonFactory jsonFactory = new JsonFactory();
+
+    public Extracted extract(byte[] bytes) throws IOException {
+        String id = null;
+        Long version = null;
+        String versionType = null;
+        Long timestampMs = null;
+        String routing = null;
+        String parent = null;
+        /* Spans [start, end) to cut out for the metadata fields, including the commas that separate them */
+        int[] cuts = new int[8];
+        int nCuts = 0;
+
+        int pos = skipWhitespace(bytes, 0);
+        pos = expect(bytes, pos, '{');
+        pos = skipWhitespace(bytes, pos);
+        boolean empty = peek(bytes, pos) == '}';
+        /* End of the last value that is kept */
+        int keptEnd = -1;
+        while (!empty) {
+            int fieldStart = pos;
+            int keyEnd = skipString(bytes, pos);
+            pos = expect(bytes, skipWhitespace(bytes, keyEnd), ':');
+            int valueStart = skipWhitespace(bytes, pos);
+            int valueEnd = skipValue(bytes, valueStart);
+            byte first = bytes[valueStart];
+            boolean isString = first == '"';
+            boolean isNumber = first == '-' || (first >= '0' && first <= '9');
+
+            boolean isMetadata = false;
+            if ((isString || isNumber) && (bytes[fieldStart + 1] == '_' || bytes[fieldStart + 1] == '@' || bytes[fieldStart + 1] == '\\')) {
+                String key = decodeString(bytes, fieldStart, keyEnd);
+                isMetadata = true;
+                if (key.equals("_id") && isString) {
+                    id = decodeString(bytes, valueStart, valueEnd);
+                }
+                else if (key.equals("_version") && isNumber) {
+                    version = decodeLong(bytes, valueStart, valueEnd);
+                }
+                else if (key.equals("_version_type") && isString) {
+                    versionType = decodeString(bytes, valueStart, valueEnd);
+                }
+                else if (key.equals("@timestamp") && isNumber) {
+                    timestampMs = decodeLong(bytes, valueStart, valueEnd);
+                }
+                else if (key.equals("_routing") && isString) {
+                    routing = decodeString(bytes, valueStart, valueEnd);
+                }
+                else if (key.equals("_parent") && isString) {
+                    parent = decodeString(bytes, valueStart, valueEnd);
+                }
+                else {
+                    isMetadata = false;
+                }
+            }
+
+            pos = skipWhitespace(bytes, valueEnd);
+            boolean last = peek(bytes, pos) == '}';
+            if (isMetadata) {
+                if (nCuts == cuts.length) {
+                    int[] grown = new int[cuts.length * 2];
+                    System.arraycopy(cuts, 0, grown, 0, cuts.length);
+                    cuts = grown;
+                }
+                if (last && keptEnd >= 0) {
+                    //Take everything after the last field kept, including the metadata fields before this one
+                    while (nCuts > 0 && cuts[nCuts - 2] > keptEnd) {
+                        nCuts -= 2;
+                    }
+                    cuts[nCuts++] = keptEnd;
+                    cuts[nCuts++] = pos;
+                }
+                else {
+                    //Take the following comma
+                    cuts[nCuts++] = fieldStart;
+                    cuts[nCuts++] = last ? pos : pos + 1;
+                }
+            }
+            else {
+                keptEnd = valueEnd;
+            }
+            if (last) {
+                break;
+            }
+            pos = expect(bytes, pos, ',');
+            pos = skipWhitespace(bytes, pos);
+        }
+
+        //Nothing but whitespace may follow the document
+        int end = skipWhitespace(bytes, pos + 1);
+        if (end != bytes.length) {
+            throw error(bytes, end);
+        }
+
+        byte[] document = nCuts == 0 ? bytes : splice(bytes, cuts, nCuts);
+        return new Extracted(document, id, version, versionType, timestampMs, routing, parent);
+    }
+
+    /**
+     * Copies everything outside of the cuts, which are in order
+     */
+    protected byte[] splice(byte[] bytes, int[] cuts, int nCuts) {
+        int length = bytes.length;
+        for (int i = 0; i < nCuts; i += 2) {
+            length -= cuts[i + 1] - cuts[i];
+        }
+        byte[] out = new byte[length];
+        length = 0;
+        int pos = 0;
+        for (int i = 0; i < nCuts; i += 2) {
+            System.arraycopy(bytes, pos, out, length, cuts[i] - pos);
+            length += cuts[i] - pos;
+            pos = cuts[i + 1];
+        }
+        System.arraycopy(bytes, pos, out, length, bytes.length - pos);
+        return out;
+    }
+
+    /**
+     * @return offset after the value starting at pos
+     */
+    protected int skipValue(byte[] bytes, int pos) throws IOException {
+        switch (peek(bytes, pos)) {
+            case '"':
+                return skipString(bytes, pos);
+            case '{':
+            case '[':
+                return skipContainer(bytes, pos);
+            default:
+                int end = pos;
+                while (end < bytes.length && !isDelimiter(bytes[end])) {
+                    end++;
+                }
+                if (end == pos) {
+                    throw error(bytes, pos);
+                }
+                return end;
+        }
+    }
+
+    protected int skipString(byte[] bytes, int pos) throws IOException {
+        pos = expect(bytes, pos, '"');
+        while (pos < bytes.length) {
+            byte b = bytes[pos++];
+            if (b == '\\') {
+                pos++;
+            }
+            else if (b == '"') {
+                return pos;
+            }
+        }
+        throw error(bytes, pos);
+    }
+
+    protected int skipContainer(byte[] bytes, int pos) throws IOException {
+        int depth = 0;
+        while (pos < bytes.length) {
+            byte b = bytes[pos];
+            if (b == '"') {
+                pos = skipString(bytes, pos);
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            }
+            else if (b == '}' || b == ']') {
+                depth--;
+                if (depth == 0) {
+                    return pos + 1;
+                }
+            }
+            pos++;
+        }
+        throw error(bytes, pos);
+    }
+
+    protected String decodeString(byte[] bytes, int start, int end) throws IOException {
+        for (int i = start + 1; i < end - 1; i++) {
+            if (bytes[i] == '\\') {
+                try (JsonParser parser = jsonFactory.createParser(bytes, start, end - start)) {
+                    parser.nextToken();
+                    return parser.getText();
+                }
+            }
+        }
+        return new String(bytes, start + 1, end - start - 2, StandardCharsets.UTF_8);
+    }
+
+    protected long decodeLong(byte[] bytes, int start, int end) throws IOException {
+        String text = new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+        try {
+            return Long.parseLong(text);
+        }
+        catch (NumberFormatException e) {
+            try {
+                return new BigDecimal(text).longValue();
+            }
+            catch (NumberFormatException e2) {
+                throw error(bytes, start);
+            }
+        }
+    }
+
+    protected static int skipWhitespace(byte[] bytes, int pos) {
+        while (pos < bytes.length && (bytes[pos] == ' ' || bytes[pos] == '\n' || bytes[pos] == '\r' || bytes[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    protected static boolean isDelimiter(byte b) {
+        return b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    protected static int peek(byte[] bytes, int pos) throws IOException {
+        if (pos >= bytes.length) {
+            throw error(bytes, pos);
+        }
+        return bytes[pos];
+    }
+
+    protected static int expect(byte[] bytes, int pos, char c) throws IOException {
+        if (peek(bytes, pos) != c) {
+            throw error(bytes, pos);
+        }
+        return pos + 1;
+    }
+
+    protected static IOException error(byte[] bytes, int pos) {
+        return new IOException(pos >= bytes.length ?
+            "Invalid JSON document: unexpected end of input" :
+            String.format("Invalid JSON document: unexpected character '%c' at byte %d", (char) bytes[pos], pos));
+    }
+}
@@ -0,0 +1,69 @@
+package com.quantiply.elasticsearch;
+
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ActionCoalescerTest {
+  private final ActionCoalescer coalescer = new ActionCoalescer();
+
+  @Test
+  public void testIndexWins() throws Exception {
+    HTTPBulkLoader.ActionRequest first = getRequest(Action.INDEX, "{\"a\":1}", 1L);
+    HTTPBulkLoader.ActionRequest second = getRequest(Action.INDEX, "{\"a\":2}", 2L);
+    assertSame(second, coalescer.merge(first, second));
+    assertSame(second, coalescer.merge(getRequest(Action.UPDATE, "{\"doc\":{\"a\":1}}", 1L), second));
+    assertSame(second, coalescer.merge(getRequest(Action.DELETE, null, 1L), second));
+  }
+
+  @Test
+  public void testDeleteWipesEarlierActions() throws Exception {
+    HTTPBulkLoader.ActionRequest delete = getRequest(Action.DELETE, null, 2L);
+    assertSame(delete, coalescer.merge(getRequest(Action.INDEX, "{\"a\":1}", 1L), delete));
+    assertSame(delete, coalescer.merge(getRequest(Action.UPDATE, "{\"doc\":{\"a\":1}}", 1L), delete));
+  }
+
+  @Test
+  public void testMergeUpdates() throws Exception {
+    HTTPBulkLoader.ActionRequest first = getRequest(Action.UPDATE, "{\"doc\":{\"a\":1,\"b\":{\"x\":1,\"y\":1},\"c\":[1,2]}}", 1L);
+    HTTPBulkLoader.ActionRequest second = getRequest(Action.UPDATE, "{\"doc\":{\"b\":{\"y\":2},\"c\":[3],\"d\":null}}", 2L);
+    HTTPBulkLoader.ActionRequest merged = coalescer.merge(first, second);
+    assertEquals("{\"doc\":{\"a\":1,\"b\":{\"x\":1,\"y\":2},\"c\":[3],\"d\":null}}", merged.document);
+    assertSame(second.key, merged.key);
+    assertEquals(2L, merged.receivedTsMs);
+  }
+
+  @Test
+  public void testNotMerged() throws Exception {
+    HTTPBulkLoader.ActionRequest update = getRequest(Action.UPDATE, "{\"doc\":{\"a\":1}}", 2L);
+    //Update after index or delete
+    assertNull(coalescer.merge(getRequest(Action.INDEX, "{\"a\":1}", 1L), update));
+    assertNull(coalescer.merge(getRequest(Action.DELETE, null, 1L), update));
+    //Scripted update
+    assertNull(coalescer.merge(getRequest(Action.UPDATE, "{\"script\":\"ctx._source.a += 1\"}", 1L), update));
+    assertNull(coalescer.merge(getRequest(Action.UPDATE, "{\"doc\":{\"a\":1},\"doc_as_upsert\":true}", 1L), update));
+    //Explicit version
+    HTTPBulkLoader.ActionRequest versioned = getRequest(Action.INDEX, "{\"a\":1}", 1L);
+    versioned.key.setVersion(5L);
+    assertNull(coalescer.merge(versioned, getRequest(Action.INDEX, "{\"a\":2}", 2L)));
+  }
+
+  @Test
+  public void testPositions() throws Exception {
+    assertEquals(-1, coalescer.getPosition("testindex/testtype/1"));
+    coalescer.setPosition("testindex/testtype/1", 3);
+    assertEquals(3, coalescer.getPosition("testindex/testtype/1"));
+    coalescer.clear();
+    assertEquals(-1, coalescer.getPosition("testindex/testtype/1"));
+  }
+
+  private HTTPBulkLoader.ActionRequest getRequest(Action action, String document, long receivedTsMs) {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(action)
+        .setId("1")
+        .build();
+    return new HTTPBulkLoader.ActionRequest(key, "testindex", "testtype", receivedTsMs, document);
+  }
+}
@@ -0,0 +1,42 @@
+package com.quantiply.elasticsearch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveBatchSizerTest {
+
+  @Test
+  public void testAdditiveIncrease() throws Exception {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(new HTTPBulkLoader.AdaptiveConfig(100L, 10, 5, 0.5), 30);
+    assertEquals(10, sizer.getBatchSize());
+    sizer.onResponse(10, 50L, 0);
+    assertEquals(15, sizer.getBatchSize());
+    sizer.onResponse(15, 100L, 0);
+    assertEquals(20, sizer.getBatchSize());
+    //Partial batches say nothing about full ones
+    sizer.onResponse(3, 10L, 0);
+    assertEquals(20, sizer.getBatchSize());
+    sizer.onResponse(20, 10L, 0);
+    sizer.onResponse(25, 10L, 0);
+    sizer.onResponse(30, 10L, 0);
+    assertEquals(30, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testMultiplicativeDecrease() throws Exception {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(new HTTPBulkLoader.AdaptiveConfig(100L, 4, 20, 0.5), 100);
+    sizer.onResponse(4, 10L, 0);
+    sizer.onResponse(24, 10L, 0);
+    assertEquals(44, sizer.getBatchSize());
+    sizer.onResponse(44, 101L, 0);
+    assertEquals(22, sizer.getBatchSize());
+    sizer.onResponse(22, 10L, 1);
+    assertEquals(11, sizer.getBatchSize());
+    sizer.onResponse(1, 500L, 0);
+    assertEquals(5, sizer.getBatchSize());
+    sizer.onResponse(5, 500L, 0);
+    assertEquals(4, sizer.getBatchSize());
+  }
+
+}
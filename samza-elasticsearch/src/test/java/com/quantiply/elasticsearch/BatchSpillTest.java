@@ -0,0 +1,68 @@
+package com.quantiply.elasticsearch;
+
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchSpillTest {
+
+  @Test
+  public void testSpillInOrder() throws Exception {
+    Path spillDir = Files.createTempDirectory("spill-test");
+    BatchSpill spill = new BatchSpill(new HTTPBulkLoader.SpillConfig(spillDir, 1024 * 1024L, 4096), "Test/Spill");
+    assertTrue(spill.isEmpty());
+
+    assertTrue(spill.offer(spill.encode(getBatch("a"), 10L, HTTPBulkLoader.TriggerType.MAX_ACTIONS, 100L), 3L));
+    assertTrue(spill.offer(spill.encode(getBatch("b"), 20L, HTTPBulkLoader.TriggerType.FLUSH_CMD, 200L), 4L));
+
+    //The head stays until it is removed
+    SpilledBatchCodec.SpilledBatch head = spill.peek();
+    assertSame(head, spill.peek());
+    assertEquals("a", head.requests.get(0).request.key.getId().toString());
+    assertEquals(10L, head.batchBytes);
+    assertEquals(3L, spill.remove());
+    assertFalse(spill.isEmpty());
+
+    head = spill.peek();
+    assertEquals("b", head.requests.get(0).request.key.getId().toString());
+    assertEquals(HTTPBulkLoader.TriggerType.FLUSH_CMD, head.triggerType);
+    assertEquals(200L, head.triggerTsMs);
+    assertEquals(4L, spill.remove());
+    assertTrue(spill.isEmpty());
+
+    spill.close();
+    assertEquals(0, Files.list(spillDir).count());
+    Files.delete(spillDir);
+  }
+
+  @Test
+  public void testFull() throws Exception {
+    Path spillDir = Files.createTempDirectory("spill-test");
+    BatchSpill spill = new BatchSpill(new HTTPBulkLoader.SpillConfig(spillDir, 150L, 4096), "Test");
+    byte[] record = spill.encode(getBatch("a"), 10L, HTTPBulkLoader.TriggerType.MAX_ACTIONS, 100L);
+    assertTrue(spill.offer(record, 0L));
+    while (spill.offer(record, 1L)) {}
+    spill.peek();
+    spill.remove();
+    //Room again once the head has been read back
+    assertTrue(spill.offer(record, 2L));
+    spill.close();
+    Files.delete(spillDir);
+  }
+
+  private List<HTTPBulkLoader.SourcedActionRequest> getBatch(String id) {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(Action.INDEX)
+        .setId(id)
+        .build();
+    return Collections.singletonList(new HTTPBulkLoader.SourcedActionRequest("test",
+        new HTTPBulkLoader.ActionRequest(key, "testindex", "testtype", 12345L, "{}"), null));
+  }
+}
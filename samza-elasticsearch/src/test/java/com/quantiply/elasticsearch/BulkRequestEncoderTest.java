@@ -0,0 +1,137 @@
+package com.quantiply.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import com.quantiply.rico.elasticsearch.VersionType;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.Index;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BulkRequestEncoderTest {
+
+  @Test
+  public void testEncodeIndex() throws Exception {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(Action.INDEX)
+        .setId("myId")
+        .setVersion(123L)
+        .setVersionType(VersionType.EXTERNAL)
+        .build();
+    assertEquals("{\"index\":{\"_index\":\"fakeindex\",\"_type\":\"faketype\",\"_id\":\"myId\",\"_version\":123,\"_version_type\":\"external\"}}\n" +
+        "{\"foo\":1}\n", encode(key, "{\"foo\":1}"));
+  }
+
+  @Test
+  public void testEncodeUpdate() throws Exception {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(Action.UPDATE)
+        .setId("myId")
+        .build();
+    assertEquals("{\"update\":{\"_index\":\"fakeindex\",\"_type\":\"faketype\",\"_id\":\"myId\"}}\n" +
+        "{\"doc\":{}}\n", encode(key, "{\"doc\":{}}"));
+  }
+
+  @Test
+  public void testEncodeBytes() throws Exception {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(Action.UPDATE)
+        .setId("myId")
+        .build();
+    byte[] doc = "{\"name\":\"café\"}".getBytes(StandardCharsets.UTF_8);
+    HTTPBulkLoader.ActionRequest req = new HTTPBulkLoader.ActionRequest(key, "fakeindex", "faketype", 100L, doc, true);
+    String expected = "{\"update\":{\"_index\":\"fakeindex\",\"_type\":\"faketype\",\"_id\":\"myId\"}}\n" +
+        "{\"doc\":{\"name\":\"café\"}}\n";
+    assertEquals(expected, encode(req));
+    assertEquals("{\"doc\":{\"name\":\"café\"}}", req.getDocument());
+    assertEquals(req.getDocument().getBytes(StandardCharsets.UTF_8).length, req.getDocumentLength());
+    //Same as the String document
+    assertEquals(expected, encode(key, req.getDocument()));
+    assertEquals(HTTPBulkLoader.getActionBytes(new HTTPBulkLoader.ActionRequest(key, "fakeindex", "faketype", 100L, req.getDocument())),
+        HTTPBulkLoader.getActionBytes(req));
+  }
+
+  @Test
+  public void testEncodeDelete() throws Exception {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(Action.DELETE)
+        .setId("myId")
+        .setVersion(5L)
+        .setVersionType(VersionType.FORCE)
+        .build();
+    assertEquals("{\"delete\":{\"_index\":\"fakeindex\",\"_type\":\"faketype\",\"_id\":\"myId\",\"_version\":5,\"_version_type\":\"force\"}}\n",
+        encode(key, null));
+  }
+
+  @Test
+  public void testEncodeRouting() throws Exception {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(Action.INDEX)
+        .setId("myId")
+        .setRouting("tenant1")
+        .setParent("p\"1")
+        .build();
+    String doc = "{\"foo\":1}";
+    assertEquals("{\"index\":{\"_index\":\"fakeindex\",\"_type\":\"faketype\",\"_id\":\"myId\",\"_routing\":\"tenant1\",\"_parent\":\"p\\\"1\"}}\n" +
+        doc + "\n", encode(key, doc));
+  }
+
+  @Test
+  public void testEncodeMatchesJest() throws Exception {
+    String doc = "{\"name\":\"café 東京 😀\"}";
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(Action.INDEX)
+        .setId("a\"b\\c\nd\u0001")
+        .build();
+    Index index = new Index.Builder(doc).index("fakeindex").type("faketype").id(key.getId().toString()).build();
+    String[] expected = new Bulk.Builder().addAction(index).build().getData(new Gson()).split("\n");
+    String[] actual = encode(key, doc).split("\n");
+    assertEquals(expected.length, actual.length);
+    JsonParser parser = new JsonParser();
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(parser.parse(expected[i]), parser.parse(actual[i]));
+    }
+  }
+
+  @Test
+  public void testWriteUTF8() throws Exception {
+    List<String> strs = Arrays.asList("", "plain ascii", "café", "東京", "😀 smile", "unpaired \ud83d end", "end \ude00");
+    BulkBuffer buf = new BulkBuffer(1);
+    for (String str : strs) {
+      buf.reset();
+      buf.writeUTF8(str);
+      assertArrayEquals(str.getBytes(StandardCharsets.UTF_8), buf.toByteArray());
+    }
+  }
+
+  @Test
+  public void testBufferReuse() throws Exception {
+    BulkBuffer buf = new BulkBuffer(4);
+    buf.writeUTF8("a longer string that forces the buffer to grow");
+    int capacity = buf.capacity();
+    buf.reset();
+    buf.writeUTF8("short");
+    assertEquals(capacity, buf.capacity());
+    assertEquals("short", new String(buf.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private String encode(ActionRequestKey key, String document) {
+    return encode(new HTTPBulkLoader.ActionRequest(key, "fakeindex", "faketype", 100L, document));
+  }
+
+  private String encode(HTTPBulkLoader.ActionRequest req) {
+    BulkBuffer buf = new BulkBuffer(16);
+    new BulkRequestEncoder().encode(Collections.singletonList(new HTTPBulkLoader.SourcedActionRequest("src", req, null)), buf);
+    return new String(buf.array(), 0, buf.size(), StandardCharsets.UTF_8);
+  }
+
+}
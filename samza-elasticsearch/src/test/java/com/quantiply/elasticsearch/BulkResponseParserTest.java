@@ -0,0 +1,80 @@
+package com.quantiply.elasticsearch;
+
+import io.searchbox.core.BulkResult;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assert.*;
+
+public class BulkResponseParserTest {
+  private final BulkResponseParser parser = new BulkResponseParser();
+
+  @Test
+  public void testNoErrors() throws Exception {
+    BulkItemCounts counts = new BulkItemCounts();
+    BulkResult result = parser.parse(getResponse(200, "{\"took\":3,\"errors\":false,\"items\":[" +
+        "{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"1\",\"status\":201}}," +
+        "{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"2\",\"status\":200}}," +
+        "{\"delete\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"3\",\"status\":404}}," +
+        "{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"4\",\"status\":201}}]}"), counts);
+
+    assertTrue(result.isSucceeded());
+    assertEquals(200, result.getResponseCode());
+    //Items are only counted
+    assertTrue(result.getItems().isEmpty());
+    assertEquals(4, counts.getTotal());
+    assertEquals(2, counts.get("index", 201));
+    assertEquals(1, counts.get("index", 200));
+    assertEquals(1, counts.get("delete", 404));
+    assertEquals(3, counts.getCounts().size());
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    BulkItemCounts counts = new BulkItemCounts();
+    BulkResult result = parser.parse(getResponse(200, "{\"took\":3,\"errors\":true,\"items\":[" +
+        "{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"1\",\"status\":201}}," +
+        "{\"update\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"2\",\"status\":409," +
+        "\"error\":{\"type\":\"version_conflict_engine_exception\",\"reason\":\"conflict\"}}}]}"), counts);
+
+    assertFalse(result.isSucceeded());
+    assertNotNull(result.getErrorMessage());
+    assertEquals(2, result.getItems().size());
+    assertEquals(1, result.getFailedItems().size());
+    BulkResult.BulkResultItem failed = result.getFailedItems().get(0);
+    assertEquals("update", failed.operation);
+    assertEquals("2", failed.id);
+    assertEquals(409, failed.status);
+    assertTrue(failed.error.contains("version_conflict_engine_exception"));
+    assertEquals(1, counts.get("index", 201));
+    assertEquals(1, counts.get("update", 409));
+  }
+
+  @Test
+  public void testApiError() throws Exception {
+    BulkItemCounts counts = new BulkItemCounts();
+    BulkResult result = parser.parse(getResponse(400, "{\"error\":\"bad request\",\"status\":400}"), counts);
+    assertFalse(result.isSucceeded());
+    assertEquals(400, result.getResponseCode());
+    assertTrue(result.getItems().isEmpty());
+    assertEquals(0, counts.getTotal());
+  }
+
+  @Test
+  public void testInvalidResponse() throws Exception {
+    assertThatThrownBy(() -> parser.parse(getResponse(200, "{\"took\":\"x\",\"items\":{}}"), new BulkItemCounts()))
+        .isInstanceOf(IOException.class);
+  }
+
+  private BasicHttpResponse getResponse(int status, String body) {
+    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "");
+    response.setEntity(new StringEntity(body, StandardCharsets.UTF_8));
+    return response;
+  }
+}
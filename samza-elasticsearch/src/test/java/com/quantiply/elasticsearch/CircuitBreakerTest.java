@@ -0,0 +1,53 @@
+package com.quantiply.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensOnFailures() throws Exception {
+    List<CircuitBreaker.State> changes = new ArrayList<>();
+    CircuitBreaker breaker = new CircuitBreaker(new CircuitBreaker.Config(2, Optional.empty(), 1000L, 5), Optional.of(changes::add));
+    assertTrue(breaker.tryAcquire(0L));
+    breaker.onFailure(0L);
+    //A success in between starts over
+    breaker.onSuccess(10L, 10L);
+    breaker.onFailure(20L);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(20L));
+    breaker.onFailure(30L);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(30L));
+    assertFalse(breaker.tryAcquire(1029L));
+
+    //One probe at a time once half-open
+    assertTrue(breaker.tryAcquire(1030L));
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(1030L));
+    assertFalse(breaker.tryAcquire(1031L));
+    breaker.onFailure(1040L);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(1040L));
+
+    assertTrue(breaker.tryAcquire(2040L));
+    breaker.onSuccess(10L, 2050L);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(2050L));
+    assertTrue(breaker.tryAcquire(2050L));
+    assertTrue(breaker.tryAcquire(2050L));
+    assertEquals(Arrays.asList(CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.OPEN,
+        CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.CLOSED), changes);
+  }
+
+  @Test
+  public void testSlowRequests() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(new CircuitBreaker.Config(2, Optional.of(500L), 1000L, 5), Optional.empty());
+    breaker.onSuccess(500L, 0L);
+    breaker.onSuccess(501L, 0L);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(0L));
+    breaker.onSuccess(900L, 0L);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(0L));
+  }
+}
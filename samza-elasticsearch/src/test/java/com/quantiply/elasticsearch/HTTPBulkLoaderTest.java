@@ -1,29 +1,41 @@
 package com.quantiply.elasticsearch;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.quantiply.io.UTF8;
 import com.quantiply.rico.elasticsearch.Action;
 import com.quantiply.rico.elasticsearch.ActionRequestKey;
 import com.quantiply.rico.elasticsearch.VersionType;
 import io.searchbox.action.BulkableAction;
 import io.searchbox.client.JestClient;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
 import io.searchbox.core.DocumentResult;
 import io.searchbox.params.Parameters;
 import org.junit.Test;
 
 import java.io.IOException;
-import java.security.InvalidParameterException;
-import java.util.Optional;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static com.jayway.awaitility.Awaitility.await;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
-import static org.junit.Assert.assertEquals;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
 
 public class HTTPBulkLoaderTest {
 
@@ -54,6 +66,35 @@ public class HTTPBulkLoaderTest {
     assertEquals(123L, actionWithVersion.getParameter(Parameters.VERSION).toArray()[0]);
   }
 
+  @Test
+  public void testConvertToJestActionRouting() throws Exception {
+    HTTPBulkLoader loader = getBulkLoader();
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(Action.INDEX)
+        .setId("myId")
+        .setRouting("tenant1")
+        .setParent("p1")
+        .build();
+    HTTPBulkLoader.ActionRequest req = new HTTPBulkLoader.ActionRequest(key, "fakeindex", "faketype", 100L, "{}");
+    BulkableAction<DocumentResult> action = loader.convertToJestAction(req);
+    assertEquals("tenant1", action.getParameter(Parameters.ROUTING).toArray()[0]);
+    assertEquals("p1", action.getParameter(Parameters.PARENT).toArray()[0]);
+
+    //Native encoder writes the same metadata
+    String expected = new Bulk.Builder().addAction(action).build().getData(new Gson()).split("\n")[0];
+    BulkBuffer buf = new BulkBuffer(16);
+    new BulkRequestEncoder().encode(req, buf);
+    String actual = new String(buf.array(), 0, buf.size(), StandardCharsets.UTF_8).split("\n")[0];
+    JsonParser parser = new JsonParser();
+    assertEquals(parser.parse(expected), parser.parse(actual));
+
+    //Same id with other routing is another document
+    ActionRequestKey otherKey = ActionRequestKey.newBuilder(key).setRouting(null).build();
+    HTTPBulkLoader.ActionRequest parentRouted = new HTTPBulkLoader.ActionRequest(otherKey, "fakeindex", "faketype", 100L, "{}");
+    assertNotEquals(loader.writer.getDocKey(req), loader.writer.getDocKey(parentRouted));
+    assertEquals("fakeindex/faketype/myId?p1", loader.writer.getDocKey(parentRouted));
+  }
+
   @Test
   public void testConvertToJestActionUpdate() throws Exception {
     HTTPBulkLoader loader = getBulkLoader();
@@ -143,7 +184,7 @@ public class HTTPBulkLoaderTest {
     HTTPBulkLoader loader = new HTTPBulkLoader(config, client, Optional.of(bulkReport -> numFlushes.incrementAndGet()));
 
     loader.start();
-    IntStream.range(0, 10).forEach(i -> {
+    IntStream.range(0, maxActions - 1).forEach(i -> {
       try {
         loader.addAction("test", getRequest());
       } catch (Throwable throwable) {}
@@ -199,6 +240,734 @@ public class HTTPBulkLoaderTest {
     loader.stop();
   }
 
+  @Test
+  public void testWriterMaxBytes() throws Throwable {
+    HTTPBulkLoader.ActionRequest req = getRequest();
+    long actionBytes = HTTPBulkLoader.getActionBytes(req);
+    //Room for two actions but not three
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 10)
+        .flushMaxBytes(Optional.of(actionBytes * 3 - 1))
+        .build();
+    JestClient client = mock(JestClient.class);
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, client, Optional.of(report -> reports.add(report.copy())));
+
+    loader.start();
+    loader.addAction("test", req);
+    loader.addAction("test", req);
+    assertEquals(0, reports.size());
+    //Third action does not fit so the first two are sent without it
+    loader.addAction("test", req);
+    await().atMost(150, TimeUnit.MILLISECONDS).until(() -> reports.size() == 1);
+    assertEquals(HTTPBulkLoader.TriggerType.MAX_BYTES, reports.get(0).triggerType);
+    assertEquals(2, reports.get(0).requests.size());
+    assertEquals(actionBytes * 2, reports.get(0).batchBytes);
+    loader.stop();
+  }
+
+  @Test
+  public void testCoalesce() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 10)
+        .coalesce(true)
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    List<List<HTTPBulkLoader.SourcedActionRequest>> batches = Collections.synchronizedList(new ArrayList<>());
+    when(transport.execute(any())).thenAnswer(invocation -> {
+      batches.add(new ArrayList<>((List<HTTPBulkLoader.SourcedActionRequest>) invocation.getArguments()[0]));
+      return new BulkTransport.Response(getBulkResult(200, getItem("a", 201), getItem("b", 200)));
+    });
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())));
+    loader.start();
+
+    loader.addAction("test", getRequest("a", Action.INDEX, "{\"v\":1}"));
+    loader.addAction("test", getRequest("b", Action.UPDATE, "{\"doc\":{\"x\":1}}"));
+    loader.addAction("test", getRequest("b", Action.UPDATE, "{\"doc\":{\"y\":2}}"));
+    loader.addAction("test", getRequest("a", Action.INDEX, "{\"v\":2}"));
+    loader.flush();
+
+    assertEquals(1, batches.size());
+    List<HTTPBulkLoader.SourcedActionRequest> batch = batches.get(0);
+    assertEquals(2, batch.size());
+    assertEquals("a", batch.get(0).request.key.getId().toString());
+    assertEquals("{\"v\":2}", batch.get(0).request.document);
+    assertEquals(1, batch.get(0).coalesced.size());
+    assertEquals("{\"v\":1}", batch.get(0).coalesced.get(0).document);
+    assertEquals("{\"doc\":{\"x\":1,\"y\":2}}", batch.get(1).request.document);
+    assertEquals(1, batch.get(1).coalesced.size());
+    assertEquals(2, reports.get(0).requests.size());
+
+    //New batch starts from scratch
+    loader.addAction("test", getRequest("a", Action.INDEX, "{\"v\":3}"));
+    loader.flush();
+    assertEquals(1, batches.get(1).size());
+    assertTrue(batches.get(1).get(0).coalesced.isEmpty());
+    loader.stop();
+  }
+
+  @Test
+  public void testBatchTimes() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 10)
+        .coalesce(true)
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.execute(any())).thenReturn(new BulkTransport.Response(getBulkResult(200, getItem("a", 201))));
+    List<ActionBatch> batches = Collections.synchronizedList(new ArrayList<>());
+    List<Long> times = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> {
+      batches.add(report.batch);
+      for (int i = 0; i < report.batch.getActionCount(); i++) {
+        times.add(report.batch.getReceivedTsMs(i));
+        times.add(report.batch.getEventTsMs(i));
+      }
+    }));
+    loader.start();
+
+    ActionRequestKey key = ActionRequestKey.newBuilder().setAction(Action.INDEX).setId("a").setEventTsUnixMs(100L).build();
+    loader.addAction("test", new HTTPBulkLoader.ActionRequest(key, "testindex", "testtype", 200L, "{\"v\":1}"));
+    //Coalesced into the first one but its times are still reported
+    loader.addAction("test", getRequest("a", Action.INDEX, "{\"v\":2}"));
+    loader.flush();
+    assertEquals(Arrays.asList(200L, 100L, 12345L, ActionBatch.NO_EVENT_TS), times);
+
+    //Batches are reused once they have been reported
+    loader.addAction("test", getRequest("a"));
+    loader.flush();
+    loader.addAction("test", getRequest("a"));
+    loader.flush();
+    assertEquals(3, batches.size());
+    assertSame(batches.get(0), batches.get(2));
+    loader.stop();
+  }
+
+  @Test
+  public void testCircuitBreaker() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 10)
+        .circuitBreaker(Optional.of(new CircuitBreaker.Config(2, Optional.empty(), 50L, 2)))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger calls = new AtomicInteger();
+    when(transport.execute(any())).thenAnswer(invocation -> {
+      List<HTTPBulkLoader.SourcedActionRequest> batch = (List<HTTPBulkLoader.SourcedActionRequest>) invocation.getArguments()[0];
+      batchSizes.add(batch.size());
+      switch (calls.incrementAndGet()) {
+        case 1:
+          throw new IOException("TEST");
+        case 2:
+          return new BulkTransport.Response(getBulkResult(503));
+        default:
+          return new BulkTransport.Response(getBulkResult(200,
+              batch.stream().map(req -> getItem(req.request.key.getId().toString(), 201)).toArray(String[]::new)));
+      }
+    });
+    List<CircuitBreaker.State> changes = Collections.synchronizedList(new ArrayList<>());
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())),
+        Optional.empty(), Optional.of(changes::add), Optional.empty());
+    loader.start();
+
+    loader.addAction("test", getRequest("a"));
+    loader.addAction("test", getRequest("b"));
+    loader.addAction("test", getRequest("c"));
+    //The failed request is resent once the breaker lets a probe through instead of failing the writer. The probe
+    //only has probeActions of it, the rest goes once the breaker has closed
+    loader.flush();
+    assertEquals(Arrays.asList(3, 3, 2, 1), batchSizes);
+    assertEquals(1, reports.size());
+    assertEquals(3, reports.get(0).requests.size());
+    assertEquals(Arrays.asList("a", "b", "c"),
+        reports.get(0).bulkResult.getItems().stream().map(item -> item.id).collect(Collectors.toList()));
+    assertEquals(3, reports.get(0).itemCounts.get("index", 201));
+    assertEquals(Arrays.asList(CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.CLOSED), changes);
+    assertFalse(loader.isCircuitOpen());
+    loader.stop();
+  }
+
+  @Test
+  public void testCircuitBreakerDivert() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 2)
+        .circuitBreaker(Optional.of(new CircuitBreaker.Config(1, Optional.empty(), 60000L, 1)))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.execute(any())).thenThrow(new IOException("TEST"));
+    List<String> diverted = Collections.synchronizedList(new ArrayList<>());
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())),
+        Optional.empty(), Optional.empty(), Optional.of(req -> diverted.add(req.key.getId().toString())));
+    loader.start();
+
+    //The failed request and the ones after it go to the diverter instead of waiting out the outage
+    loader.addAction("test", getRequest("a"));
+    loader.addAction("test", getRequest("b"));
+    loader.addAction("test", getRequest("c"));
+    loader.flush();
+    verify(transport, times(1)).execute(any());
+    assertTrue(loader.isCircuitOpen());
+    assertEquals(Arrays.asList("a", "b", "c"), diverted);
+    assertEquals(2, reports.size());
+    assertEquals(2, reports.get(0).itemCounts.get(HTTPBulkLoader.DIVERTED_OPERATION, 200));
+    assertEquals(1, reports.get(1).itemCounts.get(HTTPBulkLoader.DIVERTED_OPERATION, 200));
+    assertTrue(reports.get(1).bulkResult.isSucceeded());
+    loader.stop();
+  }
+
+  @Test
+  public void testUTF8Length() throws Exception {
+    String str = "a\u00e9\u20ac\ud83d\ude00";
+    assertEquals(str.getBytes(StandardCharsets.UTF_8).length, UTF8.getLength(str));
+
+    //Ids are counted in bytes like the document
+    ActionRequestKey asciiKey = ActionRequestKey.newBuilder().setAction(Action.INDEX).setId("ab").build();
+    ActionRequestKey utf8Key = ActionRequestKey.newBuilder().setAction(Action.INDEX).setId("\u00e9\u20ac").build();
+    assertEquals(3, HTTPBulkLoader.getActionBytes(new HTTPBulkLoader.ActionRequest(utf8Key, "fakeindex", "faketype", 100L, "{}")) -
+        HTTPBulkLoader.getActionBytes(new HTTPBulkLoader.ActionRequest(asciiKey, "fakeindex", "faketype", 100L, "{}")));
+  }
+
+  @Test
+  public void testPipelinedWriterKeepsDocumentOrder() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 1)
+        .maxInFlight(2)
+        .build();
+    JestClient client = mock(JestClient.class);
+    CountDownLatch firstSendStarted = new CountDownLatch(1);
+    CountDownLatch firstSendReleased = new CountDownLatch(1);
+    AtomicInteger inFlight = new AtomicInteger(0);
+    AtomicInteger maxInFlight = new AtomicInteger(0);
+    List<String> sentIds = Collections.synchronizedList(new ArrayList<>());
+    when(client.execute(any())).thenAnswer(invocation -> {
+      Bulk bulk = (Bulk) invocation.getArguments()[0];
+      String data = bulk.getData(new Gson());
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      if (data.contains("\"first\"")) {
+        firstSendStarted.countDown();
+        firstSendReleased.await(1, TimeUnit.SECONDS);
+      }
+      else {
+        firstSendStarted.await(1, TimeUnit.SECONDS);
+      }
+      sentIds.add(data.contains("\"first\"") ? "first" : data.contains("\"second\"") ? "second" : "other");
+      inFlight.decrementAndGet();
+      return null;
+    });
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, client, Optional.empty());
+    loader.start();
+
+    loader.addAction("test", getRequest("first"));
+    loader.addAction("test", getRequest("second"));
+    //Second doc does not have to wait on the first
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> sentIds.contains("second"));
+    assertEquals(2, maxInFlight.get());
+
+    //Another action on the first doc must wait until the first request is acknowledged
+    loader.addAction("test", getRequest("first"));
+    Thread.sleep(50);
+    assertEquals(1, sentIds.size());
+    firstSendReleased.countDown();
+    loader.flush();
+    assertEquals(Arrays.asList("second", "first", "first"), sentIds);
+    loader.stop();
+  }
+
+  @Test
+  public void testWriterFillsNextBatchWhileSending() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config("Test", 2, Optional.empty());
+    BulkTransport transport = mock(BulkTransport.class);
+    CountDownLatch sendReleased = new CountDownLatch(1);
+    AtomicInteger sends = new AtomicInteger(0);
+    when(transport.execute(any())).thenAnswer(invocation -> {
+      sends.incrementAndGet();
+      sendReleased.await(1, TimeUnit.SECONDS);
+      return new BulkTransport.Response(getBulkResult(200, getItem("a", 201), getItem("b", 201)));
+    });
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())));
+    loader.start();
+
+    //One batch in flight, one batch filled by the writer and a full cmd buffer - none of this blocks the client
+    for (int i = 0; i < 6; i++) {
+      loader.addAction("test", getRequest(Integer.toString(i)));
+    }
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> sends.get() == 1);
+    Thread.sleep(50);
+    assertEquals(1, sends.get());
+    assertEquals(0, reports.size());
+
+    sendReleased.countDown();
+    loader.flush();
+    assertEquals(3, reports.size());
+    assertEquals(Arrays.asList("0", "1"), reports.get(0).requests.stream().map(r -> r.request.key.getId()).collect(Collectors.toList()));
+    assertEquals(Arrays.asList("4", "5"), reports.get(2).requests.stream().map(r -> r.request.key.getId()).collect(Collectors.toList()));
+    loader.stop();
+  }
+
+  @Test
+  public void testAsyncTransport() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 1)
+        .maxInFlight(3)
+        .retry(new HTTPBulkLoader.RetryConfig(1, 1L, 10L))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.isAsync()).thenReturn(true);
+    List<CompletableFuture<BulkTransport.Response>> pending = Collections.synchronizedList(new ArrayList<>());
+    when(transport.executeAsync(any())).thenAnswer(invocation -> {
+      CompletableFuture<BulkTransport.Response> future = new CompletableFuture<>();
+      pending.add(future);
+      return future;
+    });
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())));
+    assertNull(loader.senderExecSvc);
+    loader.start();
+
+    //All three requests are started without waiting on each other or on sender threads
+    loader.addAction("test", getRequest("a"));
+    loader.addAction("test", getRequest("b"));
+    loader.addAction("test", getRequest("c"));
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> pending.size() == 3);
+    verify(transport, never()).execute(any());
+
+    pending.get(0).complete(new BulkTransport.Response(getBulkResult(200, getItem("a", 201))));
+    //Rejected item is resent after the backoff
+    pending.get(1).complete(new BulkTransport.Response(getBulkResult(200, getItem("b", 429))));
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> pending.size() == 4);
+    pending.get(3).complete(new BulkTransport.Response(getBulkResult(200, getItem("b", 201))));
+    pending.get(2).complete(new BulkTransport.Response(getBulkResult(200, getItem("c", 201))));
+
+    loader.flush();
+    assertEquals(3, reports.size());
+    assertEquals(1, reports.stream().mapToInt(r -> r.retries).sum());
+    assertTrue(reports.stream().allMatch(r -> r.bulkResult.getFailedItems().isEmpty()));
+    loader.stop();
+  }
+
+  @Test
+  public void testAsyncTransportHandsOffResponses() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 1)
+        .retry(new HTTPBulkLoader.RetryConfig(1, 1L, 10L))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.isAsync()).thenReturn(true);
+    List<CompletableFuture<BulkTransport.Response>> pending = Collections.synchronizedList(new ArrayList<>());
+    when(transport.executeAsync(any())).thenAnswer(invocation -> {
+      CompletableFuture<BulkTransport.Response> future = new CompletableFuture<>();
+      pending.add(future);
+      return future;
+    });
+    List<String> flushThreads = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> flushThreads.add(Thread.currentThread().getName())));
+    loader.start();
+
+    loader.addAction("test", getRequest("a"));
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> pending.size() == 1);
+    //Stands in for the HTTP client's I/O thread
+    Thread ioThread = new Thread(() -> pending.get(0).complete(new BulkTransport.Response(getBulkResult(200, getItem("a", 429)))), "TEST I/O");
+    ioThread.start();
+    ioThread.join();
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> pending.size() == 2);
+    ioThread = new Thread(() -> pending.get(1).complete(new BulkTransport.Response(getBulkResult(200, getItem("a", 201)))), "TEST I/O");
+    ioThread.start();
+    ioThread.join();
+
+    loader.flush();
+    assertEquals(Collections.singletonList("Test Elasticsearch Response"), flushThreads);
+    loader.stop();
+  }
+
+  @Test
+  public void testAsyncTransportError() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 1)
+        .maxInFlight(2)
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.isAsync()).thenReturn(true);
+    CompletableFuture<BulkTransport.Response> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IOException("TEST"));
+    when(transport.executeAsync(any())).thenReturn(failed);
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.empty());
+    loader.start();
+
+    loader.addAction("test", getRequest());
+    assertThatThrownBy(loader::flush).isInstanceOf(IOException.class)
+        .hasMessageContaining("TEST");
+    loader.stop();
+  }
+
+  @Test
+  public void testPipelinedWriterSenderError() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 1)
+        .maxInFlight(2)
+        .build();
+    JestClient client = mock(JestClient.class);
+    when(client.execute(any())).thenThrow(new IOException("TEST"));
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, client, Optional.empty());
+    loader.start();
+
+    loader.addAction("test", getRequest());
+    assertThatThrownBy(loader::flush).isInstanceOf(IOException.class)
+        .hasMessageContaining("TEST");
+    loader.stop();
+  }
+
+  @Test
+  public void testRetryRejectedItems() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 3)
+        .retry(new HTTPBulkLoader.RetryConfig(3, 1L, 10L))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    List<List<String>> sentIds = Collections.synchronizedList(new ArrayList<>());
+    when(transport.execute(any())).thenAnswer(invocation -> {
+      List<HTTPBulkLoader.SourcedActionRequest> batch = (List<HTTPBulkLoader.SourcedActionRequest>) invocation.getArguments()[0];
+      sentIds.add(batch.stream().map(req -> req.request.key.getId().toString()).collect(Collectors.toList()));
+      switch (sentIds.size()) {
+        case 1:
+          return new BulkTransport.Response(getBulkResult(200, getItem("a", 201), getItem("b", 429), getItem("c", 503)));
+        case 2:
+          return new BulkTransport.Response(getBulkResult(200, getItem("b", 201), getItem("c", 429)));
+        default:
+          return new BulkTransport.Response(getBulkResult(200, getItem("c", 200)));
+      }
+    });
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())));
+    loader.start();
+
+    loader.addAction("test", getRequest("a"));
+    loader.addAction("test", getRequest("b"));
+    loader.addAction("test", getRequest("c"));
+    loader.flush();
+
+    assertEquals(Arrays.asList(Arrays.asList("a", "b", "c"), Arrays.asList("b", "c"), Arrays.asList("c")), sentIds);
+    assertEquals(1, reports.size());
+    HTTPBulkLoader.BulkReport report = reports.get(0);
+    assertEquals(2, report.retries);
+    assertEquals(3, report.retriedItems);
+    assertTrue(report.bulkResult.isSucceeded());
+    assertEquals(Arrays.asList(201, 201, 200), report.bulkResult.getItems().stream().map(item -> item.status).collect(Collectors.toList()));
+    assertEquals(3, report.itemCounts.getTotal());
+    assertEquals(2, report.itemCounts.get("index", 201));
+    assertEquals(1, report.itemCounts.get("index", 200));
+    assertEquals(0, report.itemCounts.get("index", 429));
+    loader.stop();
+  }
+
+  @Test
+  public void testWaitExcludesBackoff() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 1)
+        .retry(new HTTPBulkLoader.RetryConfig(1, 200L, 200L))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.execute(any())).thenReturn(
+        new BulkTransport.Response(getBulkResult(429)),
+        new BulkTransport.Response(getBulkResult(200, getItem("a", 201))));
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())));
+    loader.start();
+
+    loader.addAction("test", getRequest("a"));
+    loader.flush();
+
+    HTTPBulkLoader.BulkReport report = reports.get(0);
+    assertEquals(1, report.retries);
+    //Backoff is at least 100 ms
+    assertThat(report.triggerToAckMs).isGreaterThanOrEqualTo(100L);
+    assertThat(report.esWaitMs).isLessThan(100L);
+    loader.stop();
+  }
+
+  @Test
+  public void testRetryResponseWithoutItems() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 2)
+        .retry(new HTTPBulkLoader.RetryConfig(3, 1L, 10L))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.execute(any())).thenReturn(
+        getParsedResponse(String.format("{\"took\":1,\"errors\":true,\"items\":[%s,%s]}", getItem("a", 201), getItem("b", 429))),
+        getParsedResponse(String.format("{\"took\":1,\"errors\":false,\"items\":[%s]}", getItem("b", 201))));
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())));
+    loader.start();
+
+    loader.addAction("test", getRequest("a"));
+    loader.addAction("test", getRequest("b"));
+    loader.flush();
+
+    verify(transport, times(2)).execute(any());
+    HTTPBulkLoader.BulkReport report = reports.get(0);
+    assertEquals(1, report.retries);
+    assertTrue(report.bulkResult.isSucceeded());
+    assertTrue(report.bulkResult.getFailedItems().isEmpty());
+    assertEquals(2, report.itemCounts.getTotal());
+    assertEquals(2, report.itemCounts.get("index", 201));
+    loader.stop();
+  }
+
+  @Test
+  public void testRetryExhausted() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 2)
+        .retry(new HTTPBulkLoader.RetryConfig(2, 1L, 10L))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.execute(any())).thenReturn(
+        new BulkTransport.Response(getBulkResult(429)),
+        new BulkTransport.Response(getBulkResult(200, getItem("a", 201), getItem("b", 429))),
+        new BulkTransport.Response(getBulkResult(200, getItem("b", 429))));
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())));
+    loader.start();
+
+    loader.addAction("test", getRequest("a"));
+    loader.addAction("test", getRequest("b"));
+    loader.flush();
+
+    verify(transport, times(3)).execute(any());
+    HTTPBulkLoader.BulkReport report = reports.get(0);
+    assertEquals(2, report.retries);
+    assertEquals(3, report.retriedItems);
+    assertFalse(report.bulkResult.isSucceeded());
+    assertEquals(1, report.bulkResult.getFailedItems().size());
+    assertEquals("b", report.bulkResult.getFailedItems().get(0).id);
+    loader.stop();
+  }
+
+  @Test
+  public void testBackoff() throws Exception {
+    HTTPBulkLoader.RetryConfig retry = new HTTPBulkLoader.RetryConfig(10, 100L, 1000L);
+    for (int i = 0; i < 100; i++) {
+      assertThat(retry.getBackoffMs(1)).isBetween(50L, 100L);
+      assertThat(retry.getBackoffMs(3)).isBetween(200L, 400L);
+      assertThat(retry.getBackoffMs(10)).isBetween(500L, 1000L);
+    }
+  }
+
+  @Test
+  public void testAdaptiveMaxActions() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 10)
+        .adaptive(Optional.of(new HTTPBulkLoader.AdaptiveConfig(1000L, 2, 3, 0.5)))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.execute(any())).thenReturn(new BulkTransport.Response(getBulkResult(200, getItem("a", 201))));
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())));
+    loader.start();
+
+    //Starts at the min size and grows after each fast, full batch
+    loader.addAction("test", getRequest("a"));
+    loader.addAction("test", getRequest("b"));
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> reports.size() == 1);
+    assertEquals(2, reports.get(0).requests.size());
+    assertEquals(HTTPBulkLoader.TriggerType.MAX_ACTIONS, reports.get(0).triggerType);
+    assertEquals(5, reports.get(0).maxActions);
+    IntStream.range(0, 5).forEach(i -> {
+      try {
+        loader.addAction("test", getRequest(Integer.toString(i)));
+      } catch (Throwable throwable) {}
+    });
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> reports.size() == 2);
+    assertEquals(5, reports.get(1).requests.size());
+    assertEquals(8, reports.get(1).maxActions);
+    loader.stop();
+  }
+
+  @Test
+  public void testQueueListener() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config("Test", 1, Optional.empty());
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.execute(any())).thenAnswer(invocation -> {
+      Thread.sleep(20);
+      return new BulkTransport.Response(getBulkResult(200, getItem("a", 201)));
+    });
+    List<Long> blockedMs = Collections.synchronizedList(new ArrayList<>());
+    List<Double> busyRatios = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader.QueueListener listener = new HTTPBulkLoader.QueueListener() {
+      @Override
+      public void onBlocked(long ms) {
+        blockedMs.add(ms);
+      }
+
+      @Override
+      public void onWriterStats(int queueDepth, double busyRatio) {
+        busyRatios.add(busyRatio);
+      }
+    };
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())),
+        Optional.of(listener), Optional.empty(), Optional.empty());
+    loader.start();
+
+    //Sends take longer than adding so the client ends up waiting on the cmd buffer
+    for (int i = 0; i < 5; i++) {
+      loader.addAction("test", getRequest(Integer.toString(i)));
+    }
+    loader.flush();
+    assertThat(blockedMs).isNotEmpty();
+    assertEquals(5, reports.size());
+    //The last batch waited on the ones before it
+    assertThat(reports.get(4).triggerToAckMs).isGreaterThanOrEqualTo(reports.get(4).esWaitMs);
+
+    await().atMost(3, TimeUnit.SECONDS).until(() -> !busyRatios.isEmpty());
+    assertThat(busyRatios.get(0)).isBetween(0.0, 1.0);
+    loader.stop();
+  }
+
+  @Test
+  public void testSpillWhileElasticsearchIsSlow() throws Throwable {
+    Path spillDir = Files.createTempDirectory("spill-test");
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 1)
+        .spill(Optional.of(new HTTPBulkLoader.SpillConfig(spillDir, 1024 * 1024L, 4096)))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    CountDownLatch sendReleased = new CountDownLatch(1);
+    AtomicInteger sends = new AtomicInteger(0);
+    when(transport.execute(any())).thenAnswer(invocation -> {
+      sends.incrementAndGet();
+      sendReleased.await(1, TimeUnit.SECONDS);
+      return new BulkTransport.Response(getBulkResult(200, getItem("a", 201)));
+    });
+    List<HTTPBulkLoader.BulkReport> reports = Collections.synchronizedList(new ArrayList<>());
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.of(report -> reports.add(report.copy())));
+    loader.start();
+
+    //Without the spill, the client would block once the cmd buffer is full
+    long startMs = System.currentTimeMillis();
+    for (int i = 0; i < 20; i++) {
+      loader.addAction("test", getRequest(Integer.toString(i)));
+    }
+    assertThat(System.currentTimeMillis() - startMs).isLessThan(500L);
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> sends.get() == 1);
+    assertEquals(0, reports.size());
+
+    sendReleased.countDown();
+    loader.flush();
+    assertEquals(20, reports.size());
+    assertEquals(IntStream.range(0, 20).mapToObj(Integer::toString).collect(Collectors.toList()),
+        reports.stream().map(r -> r.requests.get(0).request.key.getId().toString()).collect(Collectors.toList()));
+    assertEquals(HTTPBulkLoader.TriggerType.MAX_ACTIONS, reports.get(19).triggerType);
+    loader.stop();
+    assertEquals(0, Files.list(spillDir).count());
+    Files.delete(spillDir);
+  }
+
+  @Test
+  public void testSpillFullBlocksUntilSent() throws Throwable {
+    Path spillDir = Files.createTempDirectory("spill-test");
+    //Room for about one spilled batch
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 1)
+        .spill(Optional.of(new HTTPBulkLoader.SpillConfig(spillDir, 150L, 4096)))
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    List<String> sentIds = Collections.synchronizedList(new ArrayList<>());
+    when(transport.execute(any())).thenAnswer(invocation -> {
+      List<HTTPBulkLoader.SourcedActionRequest> batch = (List<HTTPBulkLoader.SourcedActionRequest>) invocation.getArguments()[0];
+      Thread.sleep(20);
+      sentIds.add(batch.get(0).request.key.getId().toString());
+      return new BulkTransport.Response(getBulkResult(200, getItem("a", 201)));
+    });
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.empty());
+    loader.start();
+    for (int i = 0; i < 10; i++) {
+      loader.addAction("test", getRequest(Integer.toString(i)));
+    }
+    loader.flush();
+    assertEquals(IntStream.range(0, 10).mapToObj(Integer::toString).collect(Collectors.toList()), sentIds);
+    loader.stop();
+    Files.delete(spillDir);
+  }
+
+  @Test
+  public void testFlushAsync() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 1)
+        .maxInFlight(3)
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.isAsync()).thenReturn(true);
+    List<CompletableFuture<BulkTransport.Response>> pending = Collections.synchronizedList(new ArrayList<>());
+    when(transport.executeAsync(any())).thenAnswer(invocation -> {
+      CompletableFuture<BulkTransport.Response> future = new CompletableFuture<>();
+      pending.add(future);
+      return future;
+    });
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.empty());
+    loader.start();
+
+    loader.addAction("test", getRequest("a"));
+    loader.addAction("test", getRequest("b"));
+    CompletableFuture<Void> firstFlush = loader.flushAsync();
+    //The writer keeps going after the flush
+    loader.addAction("test", getRequest("c"));
+    CompletableFuture<Void> secondFlush = loader.flushAsync();
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> pending.size() == 3);
+
+    //Requests complete out of order - the flush waits for all requests before it
+    pending.get(1).complete(new BulkTransport.Response(getBulkResult(200, getItem("b", 201))));
+    Thread.sleep(50);
+    assertFalse(firstFlush.isDone());
+    pending.get(0).complete(new BulkTransport.Response(getBulkResult(200, getItem("a", 201))));
+    firstFlush.get(500, TimeUnit.MILLISECONDS);
+    assertFalse(secondFlush.isDone());
+    pending.get(2).complete(new BulkTransport.Response(getBulkResult(200, getItem("c", 201))));
+    secondFlush.get(500, TimeUnit.MILLISECONDS);
+
+    //Nothing to wait for
+    loader.flushAsync().get(500, TimeUnit.MILLISECONDS);
+    loader.stop();
+  }
+
+  @Test
+  public void testFlushAsyncError() throws Throwable {
+    HTTPBulkLoader.Config config = new HTTPBulkLoader.Config.Builder("Test", 1)
+        .maxInFlight(2)
+        .build();
+    BulkTransport transport = mock(BulkTransport.class);
+    when(transport.isAsync()).thenReturn(true);
+    CompletableFuture<BulkTransport.Response> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IOException("TEST"));
+    when(transport.executeAsync(any())).thenReturn(failed);
+    HTTPBulkLoader loader = new HTTPBulkLoader(config, transport, Optional.empty());
+    loader.start();
+
+    loader.addAction("test", getRequest());
+    CompletableFuture<Void> flush = loader.flushAsync();
+    assertThatThrownBy(() -> flush.get(1, TimeUnit.SECONDS)).hasCauseInstanceOf(IOException.class);
+    await().atMost(500, TimeUnit.MILLISECONDS).until(() -> loader.writerFuture.isDone());
+    assertThatThrownBy(loader::flushAsync).isInstanceOf(IOException.class)
+        .hasMessageContaining("TEST");
+    loader.stop();
+  }
+
+  private String getItem(String id, int status) {
+    String error = status >= 300 ? ",\"error\":\"rejected\"" : "";
+    return String.format("{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"%s\",\"status\":%s%s}}", id, status, error);
+  }
+
+  private BulkResult getBulkResult(int responseCode, String... items) {
+    String json = items.length == 0 ? "{\"error\":\"rejected\",\"status\":" + responseCode + "}" :
+        String.format("{\"took\":1,\"errors\":true,\"items\":[%s]}", String.join(",", items));
+    return new Bulk.Builder().build().createNewElasticSearchResult(json, responseCode, null, new Gson());
+  }
+
+  private BulkTransport.Response getParsedResponse(String json) throws IOException {
+    BulkItemCounts counts = new BulkItemCounts();
+    BulkResult result = new BulkResponseParser().parse(new JsonReader(new StringReader(json)), 200, counts);
+    return new BulkTransport.Response(result, counts, 0L, 0L);
+  }
+
+  private HTTPBulkLoader.ActionRequest getRequest(String id, Action action, String document) {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+            .setAction(action)
+            .setId(id)
+            .build();
+    return new HTTPBulkLoader.ActionRequest(key, "testindex", "testtype", 12345L, document);
+  }
+
+  private HTTPBulkLoader.ActionRequest getRequest(String id) {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+            .setAction(Action.INDEX)
+            .setId(id)
+            .build();
+    return new HTTPBulkLoader.ActionRequest(key, "testindex", "testtype", 12345L, "{}");
+  }
+
   private HTTPBulkLoader.ActionRequest getRequest() {
     long tsNow = 12345L;
     ActionRequestKey key = ActionRequestKey.newBuilder()
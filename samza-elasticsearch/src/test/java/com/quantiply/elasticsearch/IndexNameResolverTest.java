@@ -0,0 +1,63 @@
+package com.quantiply.elasticsearch;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class IndexNameResolverTest {
+
+  @Test
+  public void testNoDateFormat() throws Exception {
+    IndexNameResolver resolver = new IndexNameResolver("slow_svc", Optional.empty(), ZoneId.of("Etc/UTC"));
+    assertEquals("slow_svc", resolver.getIndex(0L));
+  }
+
+  @Test
+  public void testBucket() throws Exception {
+    IndexNameResolver resolver = new IndexNameResolver("slow_svc", Optional.of(".yyyy-MM-dd"), ZoneId.of("Etc/UTC"));
+    long tsMs = ZonedDateTime.parse("2016-03-13T05:30:00Z").toInstant().toEpochMilli();
+    assertEquals("slow_svc.2016-03-13", resolver.getIndex(tsMs));
+    assertEquals(ZonedDateTime.parse("2016-03-13T00:00:00Z").toInstant().toEpochMilli(), resolver.bucketStartMs);
+    assertEquals(ZonedDateTime.parse("2016-03-14T00:00:00Z").toInstant().toEpochMilli(), resolver.bucketEndMs);
+    assertEquals("slow_svc.2016-03-14", resolver.getIndex(resolver.bucketEndMs));
+  }
+
+  @Test
+  public void testBucketUnit() throws Exception {
+    assertEquals(Optional.of(ChronoUnit.YEARS), IndexNameResolver.getBucketUnit(".yyyy"));
+    assertEquals(Optional.of(ChronoUnit.MONTHS), IndexNameResolver.getBucketUnit(".yyyy-MM"));
+    assertEquals(Optional.of(ChronoUnit.DAYS), IndexNameResolver.getBucketUnit(".YYYY-'w'ww"));
+    assertEquals(Optional.of(ChronoUnit.HOURS), IndexNameResolver.getBucketUnit(".yyyy.MM.dd.HH"));
+    assertEquals(Optional.of(ChronoUnit.DAYS), IndexNameResolver.getBucketUnit("'.day'-yyyy-MM-dd"));
+    assertEquals(Optional.empty(), IndexNameResolver.getBucketUnit(".yyyy.MM.dd.HH.z"));
+  }
+
+  @Test
+  public void testMatchesFormatter() throws Exception {
+    String[] formats = {".yyyy", ".yyyy-MM", ".yyyy.MM.dd", ".YYYY-ww", ".yyyy.MM.dd.HH", ".yyyy.MM.dd.HH.mm", ".yyyy.MM.dd.HHX"};
+    //DST at 2am, at midnight and by 30 minutes
+    String[] zones = {"Etc/UTC", "America/New_York", "America/Sao_Paulo", "Australia/Lord_Howe"};
+    String[] transitions = {"2016-03-13T00:00:00Z", "2016-11-06T00:00:00Z", "2016-10-15T12:00:00Z", "2017-02-18T12:00:00Z",
+        "2016-04-02T12:00:00Z", "2016-10-01T12:00:00Z", "2016-12-31T20:00:00Z"};
+    for (String format : formats) {
+      for (String zone : zones) {
+        IndexNameResolver resolver = new IndexNameResolver("idx", Optional.of(format), ZoneId.of(zone));
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern(format);
+        for (String transition : transitions) {
+          long startMs = ZonedDateTime.parse(transition).toInstant().toEpochMilli();
+          for (long tsMs = startMs; tsMs < startMs + 24 * 3600 * 1000L; tsMs += 7 * 60 * 1000L + 1) {
+            String expected = "idx" + Instant.ofEpochMilli(tsMs).atZone(ZoneId.of(zone)).format(formatter).toLowerCase();
+            assertEquals(String.format("%s %s %d", format, zone, tsMs), expected, resolver.getIndex(tsMs));
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.quantiply.elasticsearch;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.indices.CreateIndex;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class IndexPreCreatorTest {
+  private static final ZoneId UTC = ZoneId.of("UTC");
+  private static final long LEAD_MS = 15 * 60 * 1000L;
+
+  @Test
+  public void testCreatesUpcomingIndex() throws Exception {
+    JestClient client = mock(JestClient.class);
+    List<String> created = new ArrayList<>();
+    when(client.execute(any(CreateIndex.class))).thenAnswer(invocation -> {
+      created.add(((CreateIndex) invocation.getArguments()[0]).getURI());
+      return getResult(200, null);
+    });
+    IndexPreCreator preCreator = new IndexPreCreator(Collections.singletonList(
+        new IndexNameResolver("logs_", Optional.of("yyyy-MM-dd"), UTC)), client, LEAD_MS, 60000L, Optional.empty());
+
+    preCreator.check(getTsMs(2016, 1, 1, 12, 0));
+    assertEquals(Arrays.asList("logs_2016-01-01"), created);
+    //Known to exist so not created again
+    preCreator.check(getTsMs(2016, 1, 1, 23, 30));
+    assertEquals(Arrays.asList("logs_2016-01-01"), created);
+    //Within the lead time of the next day
+    preCreator.check(getTsMs(2016, 1, 1, 23, 50));
+    assertEquals(Arrays.asList("logs_2016-01-01", "logs_2016-01-02"), created);
+    preCreator.check(getTsMs(2016, 1, 2, 0, 10));
+    assertEquals(Arrays.asList("logs_2016-01-01", "logs_2016-01-02"), created);
+  }
+
+  @Test
+  public void testAlreadyExists() throws Exception {
+    JestClient client = mock(JestClient.class);
+    JestResult exists = getResult(400, "{\"root_cause\":[{\"type\":\"index_already_exists_exception\"}]}");
+    when(client.execute(any(CreateIndex.class))).thenReturn(exists);
+    IndexPreCreator preCreator = new IndexPreCreator(Collections.singletonList(
+        new IndexNameResolver("logs_", Optional.of("yyyy-MM-dd-HH"), UTC)), client, LEAD_MS, 60000L, Optional.empty());
+    preCreator.check(getTsMs(2016, 1, 1, 12, 0));
+    preCreator.check(getTsMs(2016, 1, 1, 12, 10));
+    verify(client, times(1)).execute(any(CreateIndex.class));
+  }
+
+  @Test
+  public void testFailureIsRetried() throws Exception {
+    JestClient client = mock(JestClient.class);
+    JestResult created = getResult(200, null);
+    when(client.execute(any(CreateIndex.class)))
+        .thenThrow(new IOException("TEST"))
+        .thenReturn(getResult(500, "TEST"))
+        .thenReturn(created);
+    List<String> failed = new ArrayList<>();
+    List<String> createdIndexes = new ArrayList<>();
+    IndexPreCreator.Listener listener = new IndexPreCreator.Listener() {
+      @Override
+      public void onCreated(String index) {
+        createdIndexes.add(index);
+      }
+
+      @Override
+      public void onFailed(String index) {
+        failed.add(index);
+      }
+    };
+    IndexPreCreator preCreator = new IndexPreCreator(Collections.singletonList(
+        new IndexNameResolver("logs_", Optional.of("yyyy-MM-dd"), UTC)), client, LEAD_MS, 60000L, Optional.of(listener));
+    //The current and upcoming index are the same one until the lead time
+    long tsMs = getTsMs(2016, 1, 1, 12, 0);
+    preCreator.check(tsMs);
+    verify(client, times(2)).execute(any(CreateIndex.class));
+    preCreator.check(tsMs);
+    verify(client, times(3)).execute(any(CreateIndex.class));
+    //Known to exist once created
+    preCreator.check(tsMs);
+    verify(client, times(3)).execute(any(CreateIndex.class));
+    assertEquals(Arrays.asList("logs_2016-01-01", "logs_2016-01-01"), failed);
+    assertEquals(Arrays.asList("logs_2016-01-01"), createdIndexes);
+  }
+
+  private JestResult getResult(int status, String error) {
+    JestResult result = mock(JestResult.class);
+    when(result.isSucceeded()).thenReturn(status < 300);
+    when(result.getResponseCode()).thenReturn(status);
+    when(result.getErrorMessage()).thenReturn(error);
+    return result;
+  }
+
+  private long getTsMs(int year, int month, int day, int hour, int minute) {
+    return ZonedDateTime.of(year, month, day, hour, minute, 0, 0, UTC).toInstant().toEpochMilli();
+  }
+}
@@ -0,0 +1,145 @@
+package com.quantiply.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assert.*;
+
+public class JoinedBulkResponseTest {
+
+  @Test
+  public void testWholeResponse() throws Exception {
+    List<HTTPBulkLoader.SourcedActionRequest> reqs = getRequests("a", "b");
+    BulkTransport.Response response = getParsedResponse(getItem("a", 201), getItem("b", 201));
+    JoinedBulkResponse joined = new JoinedBulkResponse(reqs, response);
+    assertSame(response, joined.toResponse());
+    assertTrue(joined.getPositions(status -> status >= 300).isEmpty());
+
+    //Rejected as a whole, the status stands for every action
+    joined = new JoinedBulkResponse(reqs, new BulkTransport.Response(getBulkResult(429)));
+    assertEquals(Arrays.asList(0, 1), joined.getPositions(status -> status == 429));
+
+    //Items are only checked once they are needed
+    JoinedBulkResponse missingItems = new JoinedBulkResponse(reqs, new BulkTransport.Response(getBulkResult(200, getItem("a", 201))));
+    assertThatThrownBy(() -> missingItems.getPositions(status -> status == 429))
+        .isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void testAppend() throws Exception {
+    List<HTTPBulkLoader.SourcedActionRequest> probeReqs = getRequests("a", "b");
+    List<HTTPBulkLoader.SourcedActionRequest> restReqs = getRequests("c");
+    BulkTransport.Response probe = getParsedResponse(getItem("a", 201), getItem("b", 201));
+
+    //Nothing failed so items are still left out
+    BulkTransport.Response joined = new JoinedBulkResponse(probeReqs, probe)
+        .append(new JoinedBulkResponse(restReqs, getParsedResponse(getItem("c", 200))))
+        .toResponse();
+    assertTrue(joined.bulkResult.isSucceeded());
+    assertTrue(joined.bulkResult.getItems().isEmpty());
+    assertEquals(2, joined.itemCounts.get("index", 201));
+    assertEquals(1, joined.itemCounts.get("index", 200));
+
+    //The rest was rejected as a whole after the probe was written
+    JoinedBulkResponse joinedRejected = new JoinedBulkResponse(probeReqs, probe)
+        .append(new JoinedBulkResponse(restReqs, new BulkTransport.Response(getBulkResult(429))));
+    joined = joinedRejected.toResponse();
+    assertFalse(joined.bulkResult.isSucceeded());
+    //Left out items take the status of their response but are still counted with their own
+    assertEquals(Arrays.asList(200, 200, 429), joined.bulkResult.getItems().stream().map(item -> item.status).collect(Collectors.toList()));
+    assertEquals(2, joined.itemCounts.get("index", 201));
+    assertEquals(1, joined.itemCounts.get("index", 429));
+    assertEquals(Arrays.asList("a", "b", "c"), joined.bulkResult.getItems().stream().map(item -> item.id).collect(Collectors.toList()));
+    assertEquals(1, joined.bulkResult.getFailedItems().size());
+    assertEquals(BulkResponseParser.ITEMS_FAILED_MSG, joined.bulkResult.getErrorMessage());
+    assertEquals(Collections.singletonList(2), joinedRejected.getPositions(status -> status == 429));
+  }
+
+  @Test
+  public void testReplace() throws Exception {
+    List<HTTPBulkLoader.SourcedActionRequest> reqs = getRequests("a", "b", "c");
+    JoinedBulkResponse joined = new JoinedBulkResponse(reqs, new BulkTransport.Response(
+        getBulkResult(200, getItem("a", 201), getItem("b", 429), getItem("c", 503))));
+
+    joined.replace(Arrays.asList(1, 2), new JoinedBulkResponse(getRequests("b", "c"), new BulkTransport.Response(
+        getBulkResult(200, getItem("b", 201), getItem("c", 429)))));
+    assertEquals(Collections.singletonList(2), joined.getPositions(status -> status == 429));
+
+    //Resent without items, the action takes the status of the response
+    joined.replace(Collections.singletonList(2), new JoinedBulkResponse(getRequests("c"), getParsedResponse(getItem("c", 201))));
+    BulkTransport.Response response = joined.toResponse();
+    assertTrue(response.bulkResult.isSucceeded());
+    assertTrue(response.bulkResult.getFailedItems().isEmpty());
+    assertEquals(Arrays.asList(201, 201, 200), response.bulkResult.getItems().stream().map(item -> item.status).collect(Collectors.toList()));
+    assertEquals(3, response.itemCounts.getTotal());
+    assertEquals(3, response.itemCounts.get("index", 201));
+    assertEquals(0, response.itemCounts.get("index", 429));
+  }
+
+  @Test
+  public void testReplaceWhole() throws Exception {
+    List<HTTPBulkLoader.SourcedActionRequest> reqs = getRequests("a", "b");
+    JoinedBulkResponse joined = new JoinedBulkResponse(reqs, new BulkTransport.Response(getBulkResult(429), 10L, 5L));
+
+    //Everything was resent so the response to that stands for the request
+    BulkTransport.Response resent = new BulkTransport.Response(getBulkResult(200, getItem("a", 201), getItem("b", 429)));
+    joined.replace(Arrays.asList(0, 1), new JoinedBulkResponse(reqs, resent));
+    assertEquals(Collections.singletonList(1), joined.getPositions(status -> status == 429));
+
+    //Still failing after the last retry
+    joined.replace(Collections.singletonList(1), new JoinedBulkResponse(getRequests("b"), new BulkTransport.Response(getBulkResult(429))));
+    BulkTransport.Response response = joined.toResponse();
+    assertFalse(response.bulkResult.isSucceeded());
+    assertEquals(1, response.bulkResult.getFailedItems().size());
+    assertEquals("b", response.bulkResult.getFailedItems().get(0).id);
+    assertEquals(1, response.itemCounts.get("index", 201));
+    assertEquals(1, response.itemCounts.get("index", 429));
+    //Bytes of the first request
+    assertEquals(10L, response.rawBytes);
+    assertEquals(5L, response.compressedBytes);
+  }
+
+  private String getItem(String id, int status) {
+    String error = status >= 300 ? ",\"error\":\"rejected\"" : "";
+    return String.format("{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"%s\",\"status\":%s%s}}", id, status, error);
+  }
+
+  private BulkResult getBulkResult(int responseCode, String... items) {
+    String json = items.length == 0 ? "{\"error\":\"rejected\",\"status\":" + responseCode + "}" :
+        String.format("{\"took\":1,\"errors\":true,\"items\":[%s]}", String.join(",", items));
+    return new Bulk.Builder().build().createNewElasticSearchResult(json, responseCode, null, new Gson());
+  }
+
+  /**
+   * Response without errors, so the parser leaves the items out
+   */
+  private BulkTransport.Response getParsedResponse(String... items) throws IOException {
+    String json = String.format("{\"took\":1,\"errors\":false,\"items\":[%s]}", String.join(",", items));
+    BulkItemCounts counts = new BulkItemCounts();
+    BulkResult result = new BulkResponseParser().parse(new JsonReader(new StringReader(json)), 200, counts);
+    return new BulkTransport.Response(result, counts, 0L, 0L);
+  }
+
+  private List<HTTPBulkLoader.SourcedActionRequest> getRequests(String... ids) {
+    return Arrays.stream(ids).map(id -> {
+      ActionRequestKey key = ActionRequestKey.newBuilder()
+          .setAction(Action.INDEX)
+          .setId(id)
+          .build();
+      return new HTTPBulkLoader.SourcedActionRequest("test", new HTTPBulkLoader.ActionRequest(key, "testindex", "testtype", 12345L, "{}"), null);
+    }).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,199 @@
+package com.quantiply.elasticsearch;
+
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import io.searchbox.core.BulkResult;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class NDJSONBulkTransportTest {
+
+  @Test
+  public void testExecute() throws Exception {
+    String responseBody = "{\"took\":3,\"errors\":true,\"items\":[" +
+        "{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"1\",\"_version\":1,\"status\":201}}," +
+        "{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"2\",\"status\":409,\"error\":\"conflict\"}}]}";
+    CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(response.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+    when(response.getEntity()).thenReturn(new StringEntity(responseBody, StandardCharsets.UTF_8));
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    //Body buffer is reused once execute returns so capture it during the request
+    when(httpClient.execute(any(HttpUriRequest.class))).thenAnswer(invocation -> {
+      ((HttpPost) invocation.getArguments()[0]).getEntity().writeTo(sent);
+      return response;
+    });
+
+    NDJSONBulkTransport transport = new NDJSONBulkTransport("http://localhost:9200/", httpClient, 1);
+    List<HTTPBulkLoader.SourcedActionRequest> batch = Arrays.asList(getRequest("1"), getRequest("2"));
+    BulkResult result = transport.execute(batch).bulkResult;
+
+    ArgumentCaptor<HttpUriRequest> captor = ArgumentCaptor.forClass(HttpUriRequest.class);
+    verify(httpClient).execute(captor.capture());
+    HttpPost post = (HttpPost) captor.getValue();
+    assertEquals("http://localhost:9200/_bulk?filter_path=" + BulkResponseParser.FILTER_PATH, post.getURI().toString());
+    assertEquals("{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"1\"}}\n{}\n" +
+        "{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"2\"}}\n{}\n",
+        new String(sent.toByteArray(), StandardCharsets.UTF_8));
+    verify(response).close();
+
+    assertFalse(result.isSucceeded());
+    assertEquals(2, result.getItems().size());
+    assertEquals(201, result.getItems().get(0).status);
+    assertEquals(1, result.getFailedItems().size());
+    assertEquals(409, result.getFailedItems().get(0).status);
+  }
+
+  @Test
+  public void testGzip() throws Exception {
+    CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(response.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+    when(response.getEntity()).thenReturn(new StringEntity("{\"took\":3,\"errors\":false,\"items\":[]}", StandardCharsets.UTF_8));
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    when(httpClient.execute(any(HttpUriRequest.class))).thenAnswer(invocation -> {
+      ((HttpPost) invocation.getArguments()[0]).getEntity().writeTo(sent);
+      return response;
+    });
+
+    NDJSONBulkTransport transport = new NDJSONBulkTransport("http://localhost:9200", httpClient, 1, true);
+    List<HTTPBulkLoader.SourcedActionRequest> batch = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      batch.add(getRequest(Integer.toString(i)));
+    }
+    BulkTransport.Response result = transport.execute(batch);
+
+    ArgumentCaptor<HttpUriRequest> captor = ArgumentCaptor.forClass(HttpUriRequest.class);
+    verify(httpClient).execute(captor.capture());
+    HttpEntity entity = ((HttpPost) captor.getValue()).getEntity();
+    assertEquals("gzip", entity.getContentEncoding().getValue());
+    assertTrue(entity.isChunked());
+
+    ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(sent.toByteArray()))) {
+      byte[] chunk = new byte[1024];
+      for (int n = in.read(chunk); n > 0; n = in.read(chunk)) {
+        decompressed.write(chunk, 0, n);
+      }
+    }
+    byte[] body = decompressed.toByteArray();
+    String bodyStr = new String(body, StandardCharsets.UTF_8);
+    assertTrue(bodyStr.startsWith("{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"0\"}}\n{}\n"));
+    assertEquals(body.length, result.rawBytes);
+    assertEquals(sent.size(), result.compressedBytes);
+    assertTrue(result.compressedBytes < result.rawBytes);
+  }
+
+  @Test
+  public void testApiError() throws Exception {
+    CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(response.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 503, "Service Unavailable"));
+    when(response.getEntity()).thenReturn(new StringEntity("", StandardCharsets.UTF_8));
+    when(httpClient.execute(any(HttpUriRequest.class))).thenReturn(response);
+
+    NDJSONBulkTransport transport = new NDJSONBulkTransport("http://localhost:9200", httpClient, 1);
+    BulkResult result = transport.execute(Arrays.asList(getRequest("1"))).bulkResult;
+    assertFalse(result.isSucceeded());
+    assertEquals(0, result.getItems().size());
+    assertEquals(503, result.getResponseCode());
+  }
+
+  @Test
+  public void testFailover() throws Exception {
+    CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+    when(response.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+    when(response.getEntity()).thenReturn(new StringEntity("{\"took\":3,\"errors\":false,\"items\":[]}", StandardCharsets.UTF_8));
+    List<String> urls = new ArrayList<>();
+    when(httpClient.execute(any(HttpUriRequest.class))).thenAnswer(invocation -> {
+      String url = ((HttpPost) invocation.getArguments()[0]).getURI().toString();
+      urls.add(url);
+      if (url.startsWith("http://node1")) {
+        throw new ConnectException("TEST");
+      }
+      return response;
+    });
+
+    NodeSelector nodes = new NodeSelector(Arrays.asList("http://node1:9200", "http://node2:9200"),
+        NodeSelector.Strategy.ROUND_ROBIN, 60000L, Optional.empty());
+    NDJSONBulkTransport transport = new NDJSONBulkTransport(nodes, httpClient, 1, false);
+    assertTrue(transport.execute(Arrays.asList(getRequest("1"))).bulkResult.isSucceeded());
+    String query = "/_bulk?filter_path=" + BulkResponseParser.FILTER_PATH;
+    assertEquals(Arrays.asList("http://node1:9200" + query, "http://node2:9200" + query), urls);
+    assertTrue(nodes.getNodes().get(0).isEjected());
+
+    //Ejected node is skipped
+    transport.execute(Arrays.asList(getRequest("2")));
+    assertEquals("http://node2:9200" + query, urls.get(2));
+  }
+
+  @Test
+  public void testAllNodesFail() throws Exception {
+    CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+    when(httpClient.execute(any(HttpUriRequest.class))).thenThrow(new ConnectException("TEST"));
+
+    NodeSelector nodes = new NodeSelector(Arrays.asList("http://node1:9200", "http://node2:9200"),
+        NodeSelector.Strategy.ROUND_ROBIN, 60000L, Optional.empty());
+    NDJSONBulkTransport transport = new NDJSONBulkTransport(nodes, httpClient, 1, false);
+    assertThatThrownBy(() -> transport.execute(Arrays.asList(getRequest("1")))).isInstanceOf(ConnectException.class);
+    verify(httpClient, times(2)).execute(any(HttpUriRequest.class));
+  }
+
+  @Test
+  public void testNoFailoverAfterSend() throws Exception {
+    CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+    when(httpClient.execute(any(HttpUriRequest.class))).thenThrow(new SocketTimeoutException("TEST"));
+
+    NodeSelector nodes = new NodeSelector(Arrays.asList("http://node1:9200", "http://node2:9200"),
+        NodeSelector.Strategy.ROUND_ROBIN, 60000L, Optional.empty());
+    NDJSONBulkTransport transport = new NDJSONBulkTransport(nodes, httpClient, 1, false);
+    //The node may have applied the request so it's not sent to the other one
+    assertThatThrownBy(() -> transport.execute(Arrays.asList(getRequest("1")))).isInstanceOf(SocketTimeoutException.class);
+    verify(httpClient, times(1)).execute(any(HttpUriRequest.class));
+    assertTrue(nodes.getNodes().get(0).isEjected());
+  }
+
+  @Test
+  public void testBufferIsPooled() throws Exception {
+    NDJSONBulkTransport transport = new NDJSONBulkTransport("http://localhost:9200", mock(CloseableHttpClient.class), 1);
+    BulkBuffer buf = transport.acquireBuffer();
+    buf.write(1);
+    transport.releaseBuffer(buf);
+    BulkBuffer reused = transport.acquireBuffer();
+    assertSame(buf, reused);
+    assertEquals(0, reused.size());
+  }
+
+  private HTTPBulkLoader.SourcedActionRequest getRequest(String id) {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(Action.INDEX)
+        .setId(id)
+        .build();
+    return new HTTPBulkLoader.SourcedActionRequest("src", new HTTPBulkLoader.ActionRequest(key, "testindex", "testtype", 12345L, "{}"), null);
+  }
+
+}
@@ -0,0 +1,110 @@
+package com.quantiply.elasticsearch;
+
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class NIOBulkTransportTest {
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testExecuteAsync() throws Exception {
+    CloseableHttpAsyncClient httpClient = mock(CloseableHttpAsyncClient.class);
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    AtomicReference<FutureCallback<HttpResponse>> callback = new AtomicReference<>();
+    when(httpClient.execute(any(HttpUriRequest.class), any(FutureCallback.class))).thenAnswer(invocation -> {
+      HttpPost post = (HttpPost) invocation.getArguments()[0];
+      assertEquals("http://localhost:9200/_bulk?filter_path=" + BulkResponseParser.FILTER_PATH, post.getURI().toString());
+      post.getEntity().writeTo(sent);
+      callback.set((FutureCallback<HttpResponse>) invocation.getArguments()[1]);
+      return null;
+    });
+
+    NIOBulkTransport transport = new NIOBulkTransport("http://localhost:9200", httpClient, 1, false);
+    verify(httpClient).start();
+    assertTrue(transport.isAsync());
+    CompletableFuture<BulkTransport.Response> future = transport.executeAsync(Arrays.asList(getRequest("1")));
+    //Does not wait on the response
+    assertFalse(future.isDone());
+    assertEquals("{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"1\"}}\n{}\n",
+        new String(sent.toByteArray(), StandardCharsets.UTF_8));
+
+    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new StringEntity("{\"took\":3,\"errors\":false,\"items\":[" +
+        "{\"index\":{\"_index\":\"testindex\",\"_type\":\"testtype\",\"_id\":\"1\",\"status\":201}}]}", StandardCharsets.UTF_8));
+    callback.get().completed(response);
+    BulkTransport.Response result = future.get();
+    assertTrue(result.bulkResult.isSucceeded());
+    //No errors so the items are only counted
+    assertEquals(1, result.itemCounts.get("index", 201));
+    assertEquals(sent.size(), result.rawBytes);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testConnectionError() throws Exception {
+    CloseableHttpAsyncClient httpClient = mock(CloseableHttpAsyncClient.class);
+    when(httpClient.isRunning()).thenReturn(true);
+    when(httpClient.execute(any(HttpUriRequest.class), any(FutureCallback.class))).thenAnswer(invocation -> {
+      ((FutureCallback<HttpResponse>) invocation.getArguments()[1]).failed(new ConnectException("TEST"));
+      return null;
+    });
+
+    NIOBulkTransport transport = new NIOBulkTransport("http://localhost:9200", httpClient, 1, false);
+    verify(httpClient, never()).start();
+    assertThatThrownBy(() -> transport.execute(Arrays.asList(getRequest("1")))).isInstanceOf(IOException.class)
+        .hasMessageContaining("TEST");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testFailoverOnConnectErrorOnly() throws Exception {
+    CloseableHttpAsyncClient httpClient = mock(CloseableHttpAsyncClient.class);
+    when(httpClient.isRunning()).thenReturn(true);
+    when(httpClient.execute(any(HttpUriRequest.class), any(FutureCallback.class))).thenAnswer(invocation -> {
+      String url = ((HttpPost) invocation.getArguments()[0]).getURI().toString();
+      Exception e = url.startsWith("http://node1") ? new ConnectException("TEST") : new SocketTimeoutException("TEST");
+      ((FutureCallback<HttpResponse>) invocation.getArguments()[1]).failed(e);
+      return null;
+    });
+
+    NodeSelector nodes = new NodeSelector(Arrays.asList("http://node1:9200", "http://node2:9200", "http://node3:9200"),
+        NodeSelector.Strategy.ROUND_ROBIN, 60000L, Optional.empty());
+    NIOBulkTransport transport = new NIOBulkTransport(nodes, httpClient, 1, false);
+    //Fails over from node1 but not from node2, which may have applied the request
+    assertThatThrownBy(() -> transport.execute(Arrays.asList(getRequest("1")))).isInstanceOf(SocketTimeoutException.class);
+    verify(httpClient, times(2)).execute(any(HttpUriRequest.class), any(FutureCallback.class));
+  }
+
+  private HTTPBulkLoader.SourcedActionRequest getRequest(String id) {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(Action.INDEX)
+        .setId(id)
+        .build();
+    return new HTTPBulkLoader.SourcedActionRequest("src", new HTTPBulkLoader.ActionRequest(key, "testindex", "testtype", 12345L, "{}"), null);
+  }
+
+}
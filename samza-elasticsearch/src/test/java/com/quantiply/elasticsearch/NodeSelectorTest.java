@@ -0,0 +1,133 @@
+package com.quantiply.elasticsearch;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.HttpHostConnectException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class NodeSelectorTest {
+  private static final List<String> URLS = Arrays.asList("http://node1:9200", "http://node2:9200", "http://node3:9200");
+
+  @Test
+  public void testRoundRobin() throws Exception {
+    NodeSelector selector = new NodeSelector(URLS, NodeSelector.Strategy.ROUND_ROBIN, 60000L, Optional.empty());
+    List<String> selected = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      NodeSelector.Node node = selector.acquire();
+      selected.add(node.url);
+      selector.onSuccess(node, 1L);
+    }
+    assertEquals(Arrays.asList("http://node1:9200", "http://node2:9200", "http://node3:9200",
+        "http://node1:9200", "http://node2:9200", "http://node3:9200"), selected);
+    assertEquals("http://node1:9200/_bulk?filter_path=" + BulkResponseParser.FILTER_PATH, selector.getNodes().get(0).bulkUrl);
+  }
+
+  @Test
+  public void testLeastLoaded() throws Exception {
+    NodeSelector selector = new NodeSelector(URLS, NodeSelector.Strategy.LEAST_LOADED, 60000L, Optional.empty());
+    NodeSelector.Node first = selector.acquire();
+    NodeSelector.Node second = selector.acquire();
+    NodeSelector.Node third = selector.acquire();
+    assertEquals(3, Arrays.asList(first.url, second.url, third.url).stream().distinct().count());
+
+    //Only the second node is free
+    selector.onSuccess(second, 1L);
+    for (int i = 0; i < 3; i++) {
+      assertSame(second, selector.acquire());
+      selector.onSuccess(second, 1L);
+    }
+    assertEquals(1, first.getInFlight());
+    assertEquals(0, second.getInFlight());
+  }
+
+  @Test
+  public void testEjectAndProbe() throws Exception {
+    List<String> responses = new ArrayList<>();
+    List<String> ejected = new ArrayList<>();
+    NodeSelector.Listener listener = new NodeSelector.Listener() {
+      @Override
+      public void onResponse(String url, long latencyMs) {
+        responses.add(url);
+      }
+
+      @Override
+      public void onEjected(String url) {
+        ejected.add(url);
+      }
+    };
+    NodeSelector selector = new NodeSelector(URLS.subList(0, 2), NodeSelector.Strategy.ROUND_ROBIN, 50L, Optional.of(listener));
+    NodeSelector.Node node1 = selector.acquire();
+    selector.onFailure(node1);
+    assertTrue(node1.isEjected());
+    assertEquals(Arrays.asList("http://node1:9200"), ejected);
+
+    for (int i = 0; i < 4; i++) {
+      NodeSelector.Node node = selector.acquire();
+      assertEquals("http://node2:9200", node.url);
+      selector.onSuccess(node, 5L);
+    }
+    assertEquals(4, responses.size());
+
+    //After the ejection period, a single request re-probes the node
+    Thread.sleep(100L);
+    NodeSelector.Node probe = null;
+    for (int i = 0; i < 2 && probe == null; i++) {
+      NodeSelector.Node node = selector.acquire();
+      if (node == node1) {
+        probe = node;
+      }
+      else {
+        selector.onSuccess(node, 1L);
+      }
+    }
+    assertSame(node1, probe);
+    NodeSelector.Node other = selector.acquire();
+    assertEquals("http://node2:9200", other.url);
+    selector.onSuccess(other, 1L);
+
+    selector.onSuccess(probe, 1L);
+    assertFalse(node1.isEjected());
+  }
+
+  @Test
+  public void testAllEjected() throws Exception {
+    NodeSelector selector = new NodeSelector(URLS.subList(0, 2), NodeSelector.Strategy.ROUND_ROBIN, 60000L, Optional.empty());
+    NodeSelector.Node node1 = selector.acquire();
+    NodeSelector.Node node2 = selector.acquire();
+    selector.onFailure(node1);
+    Thread.sleep(5L);
+    selector.onFailure(node2);
+    //Falls back on the node that is due back first
+    assertSame(node1, selector.acquire());
+  }
+
+  @Test
+  public void testSingleNodeIsNeverEjected() throws Exception {
+    NodeSelector selector = new NodeSelector("http://localhost:9200");
+    NodeSelector.Node node = selector.acquire();
+    selector.onFailure(node);
+    assertFalse(node.isEjected());
+    assertSame(node, selector.acquire());
+  }
+
+  @Test
+  public void testIsConnectError() throws Exception {
+    assertTrue(NodeSelector.isConnectError(new ConnectException("TEST")));
+    assertTrue(NodeSelector.isConnectError(new HttpHostConnectException(new ConnectException("TEST"), null)));
+    assertTrue(NodeSelector.isConnectError(new ConnectTimeoutException("TEST")));
+    assertTrue(NodeSelector.isConnectError(new IOException(new ConnectException("TEST"))));
+    assertFalse(NodeSelector.isConnectError(new SocketTimeoutException("TEST")));
+    assertFalse(NodeSelector.isConnectError(new SocketException("Connection reset")));
+    assertFalse(NodeSelector.isConnectError(new IOException("TEST")));
+  }
+}
@@ -0,0 +1,71 @@
+package com.quantiply.elasticsearch;
+
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import com.quantiply.rico.elasticsearch.VersionType;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SpilledBatchCodecTest {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    ActionRequestKey indexKey = ActionRequestKey.newBuilder()
+        .setAction(Action.INDEX)
+        .setId("doc1")
+        .setVersion(5L)
+        .setVersionType(VersionType.EXTERNAL)
+        .setEventTsUnixMs(1000L)
+        .build();
+    ActionRequestKey updateKey = ActionRequestKey.newBuilder()
+        .setAction(Action.UPDATE)
+        .setId("doc2")
+        .build();
+    ActionRequestKey deleteKey = ActionRequestKey.newBuilder()
+        .setAction(Action.DELETE)
+        .setId("doc3")
+        .build();
+    HTTPBulkLoader.ActionRequest index = new HTTPBulkLoader.ActionRequest(indexKey, "index1", "type1", 1L, "{\"name\":\"été\"}");
+    //Partial document as bytes is written with the update wrapper
+    HTTPBulkLoader.ActionRequest update1 = new HTTPBulkLoader.ActionRequest(updateKey, "index1", "type1", 2L, "{\"a\":1}".getBytes(StandardCharsets.UTF_8), true);
+    HTTPBulkLoader.ActionRequest update2 = new HTTPBulkLoader.ActionRequest(updateKey, "index1", "type1", 3L, "{\"doc\":{\"a\":1,\"b\":2}}");
+    HTTPBulkLoader.ActionRequest delete = new HTTPBulkLoader.ActionRequest(deleteKey, "index2", "type2", 4L, null);
+    List<HTTPBulkLoader.SourcedActionRequest> batch = Arrays.asList(
+        new HTTPBulkLoader.SourcedActionRequest("p0", index, null),
+        new HTTPBulkLoader.SourcedActionRequest("p1", update2, null, Collections.singletonList(update1)),
+        new HTTPBulkLoader.SourcedActionRequest("p0", delete, null)
+    );
+
+    SpilledBatchCodec codec = new SpilledBatchCodec();
+    SpilledBatchCodec.SpilledBatch decoded = codec.decode(codec.encode(batch, 123L, HTTPBulkLoader.TriggerType.MAX_BYTES, 456L));
+    assertEquals(123L, decoded.batchBytes);
+    assertEquals(HTTPBulkLoader.TriggerType.MAX_BYTES, decoded.triggerType);
+    assertEquals(456L, decoded.triggerTsMs);
+    assertEquals(3, decoded.requests.size());
+    for (int i = 0; i < batch.size(); i++) {
+      HTTPBulkLoader.SourcedActionRequest expected = batch.get(i);
+      HTTPBulkLoader.SourcedActionRequest actual = decoded.requests.get(i);
+      assertEquals(expected.source, actual.source);
+      assertNull(actual.action);
+      assertRequestEquals(expected.request, actual.request);
+      assertEquals(expected.coalesced.size(), actual.coalesced.size());
+      for (int j = 0; j < expected.coalesced.size(); j++) {
+        assertRequestEquals(expected.coalesced.get(j), actual.coalesced.get(j));
+      }
+    }
+  }
+
+  private void assertRequestEquals(HTTPBulkLoader.ActionRequest expected, HTTPBulkLoader.ActionRequest actual) {
+    assertEquals(expected.key.toString(), actual.key.toString());
+    assertEquals(expected.index, actual.index);
+    assertEquals(expected.docType, actual.docType);
+    assertEquals(expected.receivedTsMs, actual.receivedTsMs);
+    assertEquals(expected.getDocument(), actual.getDocument());
+  }
+}
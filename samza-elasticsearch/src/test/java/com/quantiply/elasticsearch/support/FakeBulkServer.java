@@ -0,0 +1,270 @@
+package com.quantiply.elasticsearch.support;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stand-in for the Elasticsearch bulk API to test the producer over real HTTP without a cluster
+ *
+ * Accepts POSTs to any path ending in /_bulk, parses the NDJSON body (gzipped or not) and answers with an Elasticsearch
+ * 2.x style response with one item per action. Documents are not stored. Index and create actions are reported as
+ * created, updates and deletes as found. Actions without an id get a generated one.
+ *
+ * Trouble can be injected at any time, which is how load and soak tests vary it during a run:
+ *   - latencyMs (plus up to latencyJitterMs) before each response
+ *   - requestRejectRatio of whole requests rejected with 429 and requestErrorRatio failed with 503
+ *   - itemRejectRatio of items rejected with 429 (es_rejected_execution_exception)
+ *   - itemFailRatio of items failed with itemFailStatus (400 mapper_parsing_exception by default, 409 for
+ *     version conflicts, which the producer ignores)
+ */
+public class FakeBulkServer implements Closeable {
+  protected static final int DEFAULT_THREADS = 16;
+  protected final HttpServer server;
+  protected final ExecutorService execSvc;
+  protected final AtomicLong requests = new AtomicLong();
+  protected final AtomicLong items = new AtomicLong();
+  protected final AtomicLong rejectedRequests = new AtomicLong();
+  protected final AtomicLong rejectedItems = new AtomicLong();
+  protected final AtomicLong failedItems = new AtomicLong();
+  protected final AtomicLong generatedIds = new AtomicLong();
+  protected volatile long latencyMs = 0L;
+  protected volatile long latencyJitterMs = 0L;
+  protected volatile double requestRejectRatio = 0.0;
+  protected volatile double requestErrorRatio = 0.0;
+  protected volatile double itemRejectRatio = 0.0;
+  protected volatile double itemFailRatio = 0.0;
+  protected volatile int itemFailStatus = 400;
+
+  public FakeBulkServer() throws IOException {
+    this(DEFAULT_THREADS);
+  }
+
+  public FakeBulkServer(int threads) throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    this.execSvc = Executors.newFixedThreadPool(threads, r -> new Thread(r, "Fake Elasticsearch"));
+    server.setExecutor(execSvc);
+    server.createContext("/", this::handle);
+  }
+
+  public FakeBulkServer start() {
+    server.start();
+    return this;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    execSvc.shutdownNow();
+    try {
+      execSvc.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public String getUrl() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  public FakeBulkServer setLatencyMs(long latencyMs, long latencyJitterMs) {
+    this.latencyMs = latencyMs;
+    this.latencyJitterMs = latencyJitterMs;
+    return this;
+  }
+
+  public FakeBulkServer setRequestRejectRatio(double ratio) {
+    this.requestRejectRatio = ratio;
+    return this;
+  }
+
+  public FakeBulkServer setRequestErrorRatio(double ratio) {
+    this.requestErrorRatio = ratio;
+    return this;
+  }
+
+  public FakeBulkServer setItemRejectRatio(double ratio) {
+    this.itemRejectRatio = ratio;
+    return this;
+  }
+
+  public FakeBulkServer setItemFailRatio(double ratio, int status) {
+    this.itemFailRatio = ratio;
+    this.itemFailStatus = status;
+    return this;
+  }
+
+  /**
+   * Bulk requests received, including rejected ones
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Actions received, including rejected and failed ones
+   */
+  public long getItems() {
+    return items.get();
+  }
+
+  public long getRejectedRequests() {
+    return rejectedRequests.get();
+  }
+
+  public long getRejectedItems() {
+    return rejectedItems.get();
+  }
+
+  public long getFailedItems() {
+    return failedItems.get();
+  }
+
+  protected void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod()) || !exchange.getRequestURI().getPath().endsWith("/_bulk")) {
+        drain(exchange.getRequestBody());
+        respond(exchange, 404, "{\"error\":\"no handler found for uri [" + exchange.getRequestURI().getPath() + "]\",\"status\":404}");
+        return;
+      }
+      requests.incrementAndGet();
+      InputStream body = exchange.getRequestBody();
+      if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+        body = new GZIPInputStream(body);
+      }
+      String response = getBulkResponse(new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8)));
+      sleep();
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      if (random.nextDouble() < requestRejectRatio) {
+        rejectedRequests.incrementAndGet();
+        respond(exchange, 429, getErrorResponse("es_rejected_execution_exception", "rejected execution of bulk request", 429));
+      }
+      else if (random.nextDouble() < requestErrorRatio) {
+        rejectedRequests.incrementAndGet();
+        respond(exchange, 503, getErrorResponse("unavailable_shards_exception", "primary shard is not active", 503));
+      }
+      else {
+        respond(exchange, 200, response);
+      }
+    }
+    catch (RuntimeException e) {
+      respond(exchange, 400, getErrorResponse("parse_exception", String.valueOf(e.getMessage()), 400));
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  protected String getBulkResponse(BufferedReader reader) throws IOException {
+    long startNs = System.nanoTime();
+    StringBuilder itemsJson = new StringBuilder();
+    boolean errors = false;
+    JsonParser parser = new JsonParser();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      JsonObject action = parser.parse(line).getAsJsonObject();
+      Map.Entry<String, com.google.gson.JsonElement> entry = action.entrySet().iterator().next();
+      String op = entry.getKey();
+      JsonObject meta = entry.getValue().getAsJsonObject();
+      if (!op.equals("delete")) {
+        //Document or update body
+        reader.readLine();
+      }
+      items.incrementAndGet();
+      JsonObject item = new JsonObject();
+      item.addProperty("_index", getString(meta, "_index"));
+      item.addProperty("_type", getString(meta, "_type"));
+      item.addProperty("_id", meta.has("_id") ? meta.get("_id").getAsString() : "gen-" + generatedIds.incrementAndGet());
+      if (random.nextDouble() < itemRejectRatio) {
+        rejectedItems.incrementAndGet();
+        errors = true;
+        item.addProperty("status", 429);
+        item.add("error", getError("es_rejected_execution_exception", "rejected execution of bulk shard request"));
+      }
+      else if (random.nextDouble() < itemFailRatio) {
+        failedItems.incrementAndGet();
+        errors = true;
+        item.addProperty("status", itemFailStatus);
+        item.add("error", itemFailStatus == 409 ?
+            getError("version_conflict_engine_exception", "version conflict") :
+            getError("mapper_parsing_exception", "failed to parse"));
+      }
+      else {
+        item.addProperty("_version", 1);
+        item.addProperty("status", op.equals("index") || op.equals("create") ? 201 : 200);
+      }
+      JsonObject wrapper = new JsonObject();
+      wrapper.add(op, item);
+      if (itemsJson.length() > 0) {
+        itemsJson.append(',');
+      }
+      itemsJson.append(wrapper.toString());
+    }
+    long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs) + latencyMs;
+    return "{\"took\":" + tookMs + ",\"errors\":" + errors + ",\"items\":[" + itemsJson + "]}";
+  }
+
+  protected void sleep() {
+    long sleepMs = latencyMs + (latencyJitterMs > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMs + 1) : 0L);
+    if (sleepMs > 0) {
+      try {
+        Thread.sleep(sleepMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  protected static String getString(JsonObject meta, String field) {
+    return meta.has(field) ? meta.get(field).getAsString() : null;
+  }
+
+  protected static JsonObject getError(String type, String reason) {
+    JsonObject error = new JsonObject();
+    error.addProperty("type", type);
+    error.addProperty("reason", reason);
+    return error;
+  }
+
+  protected static String getErrorResponse(String type, String reason, int status) {
+    JsonObject response = new JsonObject();
+    response.add("error", getError(type, reason));
+    response.addProperty("status", status);
+    return response.toString();
+  }
+
+  protected static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  protected static void drain(InputStream in) throws IOException {
+    byte[] buf = new byte[4096];
+    while (in.read(buf) >= 0) { }
+  }
+}
@@ -0,0 +1,98 @@
+package com.quantiply.elasticsearch.support;
+
+import com.quantiply.elasticsearch.BulkTransport;
+import com.quantiply.elasticsearch.HTTPBulkLoader;
+import com.quantiply.elasticsearch.NDJSONBulkTransport;
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import io.searchbox.core.BulkResult;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FakeBulkServerTest {
+  private FakeBulkServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeBulkServer(2).start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  public void testBulk() throws Exception {
+    for (boolean gzip : Arrays.asList(false, true)) {
+      NDJSONBulkTransport transport = new NDJSONBulkTransport(server.getUrl(), HttpClients.createDefault(), 1, gzip);
+      BulkTransport.Response response = transport.execute(Arrays.asList(
+          getRequest(Action.INDEX, "1"),
+          getRequest(Action.UPDATE, "2"),
+          getRequest(Action.DELETE, "3"),
+          getRequest(Action.INDEX, null)
+      ));
+      transport.close();
+
+      assertTrue(response.bulkResult.isSucceeded());
+      assertEquals(4, response.itemCounts.getTotal());
+      assertEquals(2, response.itemCounts.get("index", 201));
+      assertEquals(1, response.itemCounts.get("update", 200));
+      assertEquals(1, response.itemCounts.get("delete", 200));
+    }
+    assertEquals(2, server.getRequests());
+    assertEquals(8, server.getItems());
+  }
+
+  @Test
+  public void testInjectedFailures() throws Exception {
+    NDJSONBulkTransport transport = new NDJSONBulkTransport(server.getUrl(), HttpClients.createDefault(), 1);
+    List<HTTPBulkLoader.SourcedActionRequest> batch = Arrays.asList(getRequest(Action.INDEX, "1"), getRequest(Action.INDEX, "2"));
+
+    server.setItemRejectRatio(1.0);
+    BulkResult result = transport.execute(batch).bulkResult;
+    assertEquals(2, result.getFailedItems().size());
+    BulkResult.BulkResultItem item = result.getItems().get(0);
+    assertEquals("index", item.operation);
+    assertEquals("testindex", item.index);
+    assertEquals("testtype", item.type);
+    assertEquals("1", item.id);
+    assertEquals(429, item.status);
+    assertTrue(item.error.contains("es_rejected_execution_exception"));
+    assertEquals(2, server.getRejectedItems());
+
+    server.setItemRejectRatio(0.0).setItemFailRatio(1.0, 409);
+    result = transport.execute(batch).bulkResult;
+    assertEquals(409, result.getItems().get(1).status);
+    assertEquals(2, server.getFailedItems());
+
+    server.setItemFailRatio(0.0, 400).setRequestRejectRatio(1.0);
+    result = transport.execute(batch).bulkResult;
+    assertFalse(result.isSucceeded());
+    assertEquals(429, result.getResponseCode());
+    assertEquals(0, result.getItems().size());
+    assertEquals(1, server.getRejectedRequests());
+
+    server.setRequestRejectRatio(0.0).setLatencyMs(50L, 0L);
+    long startMs = System.currentTimeMillis();
+    assertTrue(transport.execute(batch).bulkResult.isSucceeded());
+    assertTrue(System.currentTimeMillis() - startMs >= 50L);
+    transport.close();
+  }
+
+  private HTTPBulkLoader.SourcedActionRequest getRequest(Action action, String id) {
+    ActionRequestKey key = ActionRequestKey.newBuilder()
+        .setAction(action)
+        .setId(id)
+        .build();
+    String doc = action.equals(Action.DELETE) ? null : action.equals(Action.UPDATE) ? "{\"doc\":{}}" : "{}";
+    return new HTTPBulkLoader.SourcedActionRequest("src", new HTTPBulkLoader.ActionRequest(key, "testindex", "testtype", 12345L, doc), null);
+  }
+}
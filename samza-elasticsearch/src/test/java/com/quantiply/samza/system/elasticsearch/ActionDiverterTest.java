@@ -0,0 +1,55 @@
+package com.quantiply.samza.system.elasticsearch;
+
+import com.quantiply.elasticsearch.HTTPBulkLoader;
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.serializers.JsonSerdeFactory;
+import org.apache.samza.serializers.Serde;
+import org.apache.samza.system.OutgoingMessageEnvelope;
+import org.apache.samza.system.SystemProducer;
+import org.apache.samza.system.SystemStream;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ActionDiverterTest {
+
+  @Test
+  public void testDivert() throws Exception {
+    SystemProducer producer = mock(SystemProducer.class);
+    Serde<Object> serde = new JsonSerdeFactory().getSerde("json", new MapConfig(Collections.emptyMap()));
+    SystemStream stream = new SystemStream("kafka", "es-diverted");
+    ActionDiverter diverter = new ActionDiverter("es", producer, stream, serde);
+    diverter.start();
+    verify(producer).register(ActionDiverter.SYSTEM_PRODUCER_SOURCE);
+
+    ActionRequestKey key = ActionRequestKey.newBuilder().setAction(Action.UPDATE).setId("doc1").setEventTsUnixMs(50L).build();
+    diverter.divert(new HTTPBulkLoader.ActionRequest(key, "logs-2016.01.01", "log", 100L, "{\"doc\":{\"a\":1}}"));
+    ArgumentCaptor<OutgoingMessageEnvelope> captor = ArgumentCaptor.forClass(OutgoingMessageEnvelope.class);
+    verify(producer).send(eq(ActionDiverter.SYSTEM_PRODUCER_SOURCE), captor.capture());
+    OutgoingMessageEnvelope envelope = captor.getValue();
+    assertEquals(stream, envelope.getSystemStream());
+    assertArrayEquals("doc1".getBytes(StandardCharsets.UTF_8), (byte[]) envelope.getKey());
+    Map<String, Object> msg = (Map<String, Object>) serde.fromBytes((byte[]) envelope.getMessage());
+    assertEquals("es", msg.get("system"));
+    assertEquals("logs-2016.01.01", msg.get("index"));
+    assertEquals("log", msg.get("type"));
+    assertEquals("update", msg.get("action"));
+    assertEquals("doc1", msg.get("id"));
+    assertEquals(50, ((Number) msg.get("event_ts_unix_ms")).intValue());
+    assertEquals("{\"doc\":{\"a\":1}}", msg.get("document"));
+    assertFalse(msg.containsKey("version"));
+
+    diverter.stop();
+    verify(producer).flush(ActionDiverter.SYSTEM_PRODUCER_SOURCE);
+    verify(producer).stop();
+  }
+}
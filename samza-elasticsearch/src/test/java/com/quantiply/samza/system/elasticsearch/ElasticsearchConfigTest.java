@@ -4,9 +4,11 @@ import org.apache.samza.config.ConfigException;
 import org.apache.samza.config.MapConfig;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.Assert.*;
@@ -29,6 +31,28 @@ public class ElasticsearchConfigTest {
     assertEquals("http://example.org:9000", config.getHTTPURL());
   }
 
+  @Test
+  public void testHTTPURLs() throws Exception {
+    assertEquals(Arrays.asList("http://localhost:9200"), EMPTY_CONFIG.getHTTPURLs());
+    ElasticsearchConfig config = configForProperty("systems.es.http.url", "http://es1:9200, http://es2:9200");
+    assertEquals(Arrays.asList("http://es1:9200", "http://es2:9200"), config.getHTTPURLs());
+    assertEquals("http://es1:9200", config.getHTTPURL());
+
+    assertThatThrownBy(configForProperty("systems.es.http.url", " , ")::getHTTPURLs).isInstanceOf(ConfigException.class);
+  }
+
+  @Test
+  public void testNodeSelection() throws Exception {
+    assertEquals(ElasticsearchConfig.NodeSelection.ROUND_ROBIN, EMPTY_CONFIG.getNodeSelection());
+    assertEquals(30000L, EMPTY_CONFIG.getNodeEjectMs());
+
+    ElasticsearchConfig config = configForProperty("systems.es.http.node.selection", "least_loaded");
+    assertEquals(ElasticsearchConfig.NodeSelection.LEAST_LOADED, config.getNodeSelection());
+
+    assertEquals(5000L, configForProperty("systems.es.http.node.eject.ms", "5000").getNodeEjectMs());
+    assertThatThrownBy(configForProperty("systems.es.http.node.eject.ms", "0")::getNodeEjectMs).isInstanceOf(ConfigException.class);
+  }
+
   @Test
   public void testTimeoutParams() throws Exception {
     assertEquals(60000, EMPTY_CONFIG.getConnectTimeoutMs());
@@ -55,6 +79,28 @@ public class ElasticsearchConfigTest {
     assertEquals("bar", passConfig.getBasicAuthPassword());
   }
 
+  @Test
+  public void testCompression() throws Exception {
+    assertEquals(ElasticsearchConfig.Compression.NONE, EMPTY_CONFIG.getCompression());
+
+    ElasticsearchConfig config = configForProperty("systems.es.http.compression", "gzip");
+    assertEquals(ElasticsearchConfig.Compression.GZIP, config.getCompression());
+  }
+
+  @Test
+  public void testHttpClientType() throws Exception {
+    assertEquals(ElasticsearchConfig.HttpClientType.BLOCKING, EMPTY_CONFIG.getHttpClientType());
+
+    ElasticsearchConfig config = configForProperty("systems.es.http.client", "nio");
+    assertEquals(ElasticsearchConfig.HttpClientType.NIO, config.getHttpClientType());
+
+    Map<String, String> mapConfig = new HashMap<>();
+    mapConfig.put("systems.es.http.client", "nio");
+    mapConfig.put("systems.es.bulk.encoder", "jest");
+    assertThatThrownBy(new ElasticsearchConfig("es", new MapConfig(mapConfig))::getHttpClientType).isInstanceOf(ConfigException.class)
+        .hasMessageContaining("requires");
+  }
+
   @Test
   public void testFlushMaxActions() throws Exception {
     assertEquals(1000, EMPTY_CONFIG.getBulkFlushMaxActions());
@@ -77,4 +123,146 @@ public class ElasticsearchConfigTest {
 
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testFlushMaxBytes() throws Exception {
+    assertFalse(EMPTY_CONFIG.getBulkFlushMaxBytes().isPresent());
+
+    ElasticsearchConfig config = configForProperty("systems.es.flush.max.bytes", "5242880");
+    assertEquals(5242880L, config.getBulkFlushMaxBytes().get().longValue());
+
+    assertThatThrownBy(configForProperty("systems.es.flush.max.bytes", "0")::getBulkFlushMaxBytes).isInstanceOf(ConfigException.class)
+        .hasMessageContaining("must be > 0");
+  }
+
+  @Test
+  public void testBulkMaxInFlight() throws Exception {
+    assertEquals(1, EMPTY_CONFIG.getBulkMaxInFlight());
+
+    ElasticsearchConfig config = configForProperty("systems.es.bulk.max.inflight", "4");
+    assertEquals(4, config.getBulkMaxInFlight());
+
+    assertThatThrownBy(configForProperty("systems.es.bulk.max.inflight", "0")::getBulkMaxInFlight).isInstanceOf(ConfigException.class)
+        .hasMessageContaining("must be > 0");
+  }
+
+  @Test
+  public void testBulkEncoder() throws Exception {
+    assertEquals(ElasticsearchConfig.BulkEncoder.NATIVE, EMPTY_CONFIG.getBulkEncoder());
+
+    ElasticsearchConfig config = configForProperty("systems.es.bulk.encoder", "jest");
+    assertEquals(ElasticsearchConfig.BulkEncoder.JEST, config.getBulkEncoder());
+  }
+
+  @Test
+  public void testBulkRetry() throws Exception {
+    assertEquals(3, EMPTY_CONFIG.getBulkRetryMax());
+    assertEquals(100L, EMPTY_CONFIG.getBulkRetryBackoffMs());
+    assertEquals(10000L, EMPTY_CONFIG.getBulkRetryBackoffMaxMs());
+
+    assertEquals(0, configForProperty("systems.es.bulk.retry.max", "0").getBulkRetryMax());
+    assertEquals(500L, configForProperty("systems.es.bulk.retry.backoff.ms", "500").getBulkRetryBackoffMs());
+
+    assertThatThrownBy(configForProperty("systems.es.bulk.retry.max", "-1")::getBulkRetryMax).isInstanceOf(ConfigException.class)
+        .hasMessageContaining("must be >= 0");
+    assertThatThrownBy(configForProperty("systems.es.bulk.retry.backoff.max.ms", "10")::getBulkRetryBackoffMaxMs).isInstanceOf(ConfigException.class)
+        .hasMessageContaining("must be >=");
+  }
+
+  @Test
+  public void testBulkCoalesce() throws Exception {
+    assertFalse(EMPTY_CONFIG.getBulkCoalesce());
+    assertTrue(configForProperty("systems.es.bulk.coalesce", "true").getBulkCoalesce());
+  }
+
+  @Test
+  public void testBulkSpill() throws Exception {
+    assertFalse(EMPTY_CONFIG.getBulkSpillDir().isPresent());
+    assertEquals(1024L * 1024L * 1024L, EMPTY_CONFIG.getBulkSpillMaxBytes());
+    assertEquals(64 * 1024 * 1024, EMPTY_CONFIG.getBulkSpillSegmentBytes());
+
+    assertEquals("/tmp/es-spill", configForProperty("systems.es.bulk.spill.dir", "/tmp/es-spill").getBulkSpillDir().get());
+    assertEquals(1000000L, configForProperty("systems.es.bulk.spill.max.bytes", "1000000").getBulkSpillMaxBytes());
+    assertEquals(4096, configForProperty("systems.es.bulk.spill.segment.bytes", "4096").getBulkSpillSegmentBytes());
+    assertThatThrownBy(configForProperty("systems.es.bulk.spill.segment.bytes", "10")::getBulkSpillSegmentBytes).isInstanceOf(ConfigException.class);
+    assertThatThrownBy(configForProperty("systems.es.bulk.spill.max.bytes", "0")::getBulkSpillMaxBytes).isInstanceOf(ConfigException.class);
+  }
+
+  @Test
+  public void testIndexPreCreate() throws Exception {
+    assertFalse(EMPTY_CONFIG.getIndexPreCreate());
+    assertEquals(900000L, EMPTY_CONFIG.getIndexPreCreateLeadMs());
+    assertEquals(60000L, EMPTY_CONFIG.getIndexPreCreateCheckMs());
+
+    assertTrue(configForProperty("systems.es.index.precreate", "true").getIndexPreCreate());
+    assertEquals(3600000L, configForProperty("systems.es.index.precreate.lead.ms", "3600000").getIndexPreCreateLeadMs());
+    assertThatThrownBy(configForProperty("systems.es.index.precreate.lead.ms", "0")::getIndexPreCreateLeadMs).isInstanceOf(ConfigException.class);
+    //Must check at least once within the lead time
+    assertThatThrownBy(configForProperty("systems.es.index.precreate.check.ms", "900000")::getIndexPreCreateCheckMs).isInstanceOf(ConfigException.class);
+    assertThatThrownBy(EMPTY_CONFIG::getIndexPreCreateFactory).isInstanceOf(ConfigException.class);
+    assertEquals("com.example.Patterns", configForProperty("systems.es.index.precreate.factory", " com.example.Patterns ").getIndexPreCreateFactory());
+  }
+
+  @Test
+  public void testCircuitBreaker() throws Exception {
+    assertFalse(EMPTY_CONFIG.getCircuitBreaker());
+    assertEquals(5, EMPTY_CONFIG.getCircuitBreakerFailures());
+    assertFalse(EMPTY_CONFIG.getCircuitBreakerLatencyMs().isPresent());
+    assertEquals(30000L, EMPTY_CONFIG.getCircuitBreakerOpenMs());
+    assertEquals(10, EMPTY_CONFIG.getCircuitBreakerProbeActions());
+    assertEquals(ElasticsearchConfig.CircuitBreakerPolicy.BLOCK, EMPTY_CONFIG.getCircuitBreakerPolicy());
+
+    assertTrue(configForProperty("systems.es.circuit.breaker", "true").getCircuitBreaker());
+    assertEquals(Optional.of(2000L), configForProperty("systems.es.circuit.breaker.latency.ms", "2000").getCircuitBreakerLatencyMs());
+    assertEquals(ElasticsearchConfig.CircuitBreakerPolicy.DIVERT, configForProperty("systems.es.circuit.breaker.policy", "divert").getCircuitBreakerPolicy());
+    assertEquals("es-diverted", configForProperty("systems.es.circuit.breaker.divert.stream", "es-diverted").getCircuitBreakerDivertStream());
+    assertThatThrownBy(EMPTY_CONFIG::getCircuitBreakerDivertStream).isInstanceOf(ConfigException.class);
+    assertThatThrownBy(configForProperty("systems.es.circuit.breaker.failures", "0")::getCircuitBreakerFailures).isInstanceOf(ConfigException.class);
+    assertThatThrownBy(configForProperty("systems.es.circuit.breaker.open.ms", "0")::getCircuitBreakerOpenMs).isInstanceOf(ConfigException.class);
+    //Probes can't be bigger than a normal request
+    assertThatThrownBy(configForProperty("systems.es.circuit.breaker.probe.actions", "1001")::getCircuitBreakerProbeActions).isInstanceOf(ConfigException.class);
+  }
+
+  @Test
+  public void testIndexGroups() throws Exception {
+    assertTrue(EMPTY_CONFIG.getIndexGroups().isEmpty());
+    assertEquals(1, EMPTY_CONFIG.getBulkMaxInFlightTotal());
+
+    Map<String, String> mapConfig = new HashMap<>();
+    mapConfig.put("systems.es.index.groups", "logs, metrics");
+    mapConfig.put("systems.es.index.group.logs.index.prefix", "logs-");
+    mapConfig.put("systems.es.index.group.logs.flush.max.actions", "5000");
+    mapConfig.put("systems.es.index.group.logs.bulk.max.inflight", "3");
+    mapConfig.put("systems.es.flush.max.actions", "100");
+    mapConfig.put("systems.es.bulk.max.inflight", "2");
+    ElasticsearchConfig config = new ElasticsearchConfig("es", new MapConfig(mapConfig));
+    assertEquals(Arrays.asList("logs", "metrics"), config.getIndexGroups());
+    assertEquals("logs-", config.getIndexGroupIndexPrefix("logs"));
+    assertEquals("metrics", config.getIndexGroupIndexPrefix("metrics"));
+
+    ElasticsearchConfig logsConfig = config.getIndexGroupConfig("logs");
+    assertEquals(5000, logsConfig.getBulkFlushMaxActions());
+    assertEquals(3, logsConfig.getBulkMaxInFlight());
+    ElasticsearchConfig metricsConfig = config.getIndexGroupConfig("metrics");
+    assertEquals(100, metricsConfig.getBulkFlushMaxActions());
+    assertEquals(2, metricsConfig.getBulkMaxInFlight());
+    assertEquals(100, config.getBulkFlushMaxActions());
+    assertEquals(7, config.getBulkMaxInFlightTotal());
+  }
+
+  @Test
+  public void testAdaptive() throws Exception {
+    assertFalse(EMPTY_CONFIG.getAdaptiveTargetLatencyMs().isPresent());
+    assertEquals(100, EMPTY_CONFIG.getAdaptiveMinActions());
+    assertEquals(50, EMPTY_CONFIG.getAdaptiveIncreaseActions());
+    assertEquals(0.5, EMPTY_CONFIG.getAdaptiveDecreaseFactor(), 0.0001);
+
+    ElasticsearchConfig config = configForProperty("systems.es.flush.adaptive.target.latency.ms", "250");
+    assertEquals(250L, config.getAdaptiveTargetLatencyMs().get().longValue());
+
+    assertThatThrownBy(configForProperty("systems.es.flush.adaptive.min.actions", "1001")::getAdaptiveMinActions).isInstanceOf(ConfigException.class)
+        .hasMessageContaining("must be > 0 and <=");
+    assertThatThrownBy(configForProperty("systems.es.flush.adaptive.decrease.factor", "1.5")::getAdaptiveDecreaseFactor).isInstanceOf(ConfigException.class)
+        .hasMessageContaining("must be > 0 and < 1");
+  }
+
+}
@@ -0,0 +1,39 @@
+package com.quantiply.samza.system.elasticsearch;
+
+import org.apache.samza.config.Config;
+import org.apache.samza.config.ConfigException;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.metrics.MetricsRegistryMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ElasticsearchSystemFactoryTest {
+
+  @Test
+  public void testFlushAsyncRequiresGatedCheckpoints() throws Exception {
+    Map<String, String> map = new HashMap<>();
+    map.put("systems.es.flush.async", "true");
+    assertThatThrownBy(() -> new ElasticsearchSystemFactory().getProducer("es", new MapConfig(map), new MetricsRegistryMap()))
+        .isInstanceOf(ConfigException.class)
+        .hasMessageContaining("task.checkpoint.factory");
+
+    map.put("task.checkpoint.factory", "org.apache.samza.checkpoint.kafka.KafkaCheckpointManagerFactory");
+    Config otherFactory = new MapConfig(map);
+    assertThatThrownBy(() -> ElasticsearchSystemFactory.validateFlushAsync("es", new ElasticsearchConfig("es", otherFactory), otherFactory))
+        .isInstanceOf(ConfigException.class);
+
+    map.put("task.checkpoint.factory", GatedCheckpointManagerFactory.class.getName());
+    Config gated = new MapConfig(map);
+    ElasticsearchSystemFactory.validateFlushAsync("es", new ElasticsearchConfig("es", gated), gated);
+
+    //Sync flush does not care
+    map.remove("task.checkpoint.factory");
+    map.put("systems.es.flush.async", "false");
+    Config sync = new MapConfig(map);
+    ElasticsearchSystemFactory.validateFlushAsync("es", new ElasticsearchConfig("es", sync), sync);
+  }
+}
@@ -1,28 +1,48 @@
 package com.quantiply.samza.system.elasticsearch;
 
 import com.google.gson.Gson;
+import com.quantiply.elasticsearch.BulkItemCounts;
+import com.quantiply.elasticsearch.BulkTransport;
+import com.quantiply.elasticsearch.CircuitBreaker;
 import com.quantiply.elasticsearch.HTTPBulkLoader;
 import com.quantiply.rico.elasticsearch.Action;
 import com.quantiply.rico.elasticsearch.ActionRequestKey;
-import io.searchbox.client.JestClient;
 import io.searchbox.core.BulkResult;
 import io.searchbox.core.Index;
+import org.apache.samza.SamzaException;
 import org.apache.samza.metrics.MetricsRegistryMap;
+import org.apache.samza.system.OutgoingMessageEnvelope;
+import org.apache.samza.system.SystemStream;
 import org.apache.samza.util.SystemClock;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class ElasticsearchSystemProducerTest {
   private static final String SYSTEM_NAME = "es";
   private static final HTTPBulkLoaderFactory BULK_LOADER_FACTORY = mock(HTTPBulkLoaderFactory.class);
-  private static final JestClient CLIENT = mock(JestClient.class);
+  private static final BulkTransport TRANSPORT = mock(BulkTransport.class);
   private ElasticsearchSystemProducer producer;
   private ElasticsearchSystemProducerMetrics metrics;
   private ElasticsearchSystemProducer.FlushListener flushListener;
@@ -30,11 +50,11 @@ public class ElasticsearchSystemProducerTest {
   @Before
   public void setUp() throws Exception {
     metrics = new ElasticsearchSystemProducerMetrics("es", new MetricsRegistryMap());
-    producer = new ElasticsearchSystemProducer(SYSTEM_NAME,
+    producer = new ElasticsearchSystemProducer.Builder(SYSTEM_NAME,
         BULK_LOADER_FACTORY,
-        CLIENT,
+        TRANSPORT,
         ElasticsearchSystemFactory.MSG_TO_ACTION,
-        metrics);
+        metrics).build();
     flushListener = new ElasticsearchSystemProducer.FlushListener(metrics, SYSTEM_NAME, mock(SystemClock.class));
   }
 
@@ -60,7 +80,9 @@ public class ElasticsearchSystemProducerTest {
 
     BulkResult bulkResult = mock(BulkResult.class);
     when(bulkResult.getItems()).thenReturn(items);
-    HTTPBulkLoader.BulkReport report = new HTTPBulkLoader.BulkReport(bulkResult, HTTPBulkLoader.TriggerType.MAX_ACTIONS, esWaitMs, requests);
+    HTTPBulkLoader.BulkReport report = new HTTPBulkLoader.BulkReport.Builder(bulkResult, HTTPBulkLoader.TriggerType.MAX_ACTIONS, requests)
+        .esWaitMs(esWaitMs)
+        .build();
 
     when(flushListener.clock.currentTimeMillis()).thenReturn(tsNow);
     flushListener.accept(report);
@@ -76,6 +98,270 @@ public class ElasticsearchSystemProducerTest {
     assertEquals(0, metrics.triggerMaxInterval.getCount());
     assertEquals(tsNow - eventTsMs, metrics.lagFromOriginMs.getSnapshot().getMean(), 0.0001);
     assertEquals(tsNow - receivedMs, metrics.lagFromReceiveMs.getSnapshot().getMean(), 0.0001);
+    assertEquals(0, metrics.effectiveMaxActions.getValue().intValue());
+
+    flushListener.accept(new HTTPBulkLoader.BulkReport.Builder(bulkResult, HTTPBulkLoader.TriggerType.MAX_ACTIONS, requests)
+        .esWaitMs(esWaitMs)
+        .maxActions(250)
+        .build());
+    assertEquals(250, metrics.effectiveMaxActions.getValue().intValue());
+  }
+
+  @Test
+  public void testRetryMetrics() throws Exception {
+    List<HTTPBulkLoader.SourcedActionRequest> requests = new ArrayList<>();
+    requests.add(getIndexRequest(100, 50));
+    requests.add(getIndexRequest(100, 50));
+    List<BulkResult.BulkResultItem> items = new ArrayList<>();
+    items.add(getItemIndexInsert());
+    BulkResult.BulkResultItem rejected = new BulkResult(new Gson()).new BulkResultItem("index", "test", "test", "test", 429, "rejected");
+    items.add(rejected);
+
+    BulkResult bulkResult = mock(BulkResult.class);
+    when(bulkResult.isSucceeded()).thenReturn(false);
+    when(bulkResult.getItems()).thenReturn(items);
+    when(bulkResult.getFailedItems()).thenReturn(Collections.singletonList(rejected));
+    HTTPBulkLoader.BulkReport report = new HTTPBulkLoader.BulkReport.Builder(bulkResult, HTTPBulkLoader.TriggerType.MAX_ACTIONS, requests)
+        .esWaitMs(10L)
+        .retries(3, 4)
+        .build();
+
+    assertThatThrownBy(() -> flushListener.accept(report)).isInstanceOf(SamzaException.class);
+    assertEquals(3, metrics.retries.getCount());
+    assertEquals(4, metrics.retriedItems.getCount());
+    assertEquals(1, metrics.failedItems.getCount());
+    assertEquals(0, metrics.bulkSendSuccess.getCount());
+  }
+
+  @Test
+  public void testCoalescedMetrics() throws Exception {
+    HTTPBulkLoader.SourcedActionRequest merged = getIndexRequest(200, 150);
+    HTTPBulkLoader.SourcedActionRequest req = new HTTPBulkLoader.SourcedActionRequest(merged.source, merged.request, null,
+        Arrays.asList(getIndexRequest(100, 50).request, getIndexRequest(100, 50).request));
+    BulkResult bulkResult = mock(BulkResult.class);
+    when(bulkResult.getItems()).thenReturn(Collections.singletonList(getItemIndexInsert()));
+    when(flushListener.clock.currentTimeMillis()).thenReturn(300L);
+    flushListener.accept(new HTTPBulkLoader.BulkReport.Builder(bulkResult, HTTPBulkLoader.TriggerType.MAX_ACTIONS,
+        Collections.singletonList(req)).esWaitMs(10L).build());
+
+    assertEquals(1, metrics.inserts.getCount());
+    assertEquals(2, metrics.coalescedActions.getCount());
+    assertEquals(1.0, metrics.bulkSendBatchSize.getSnapshot().getMean(), 0.0001);
+    //Lag is reported for the merged requests too
+    assertEquals(3, metrics.lagFromReceiveMs.getSnapshot().size());
+    assertEquals(200, metrics.lagFromReceiveMs.getSnapshot().getMax());
+    assertEquals(100, metrics.lagFromReceiveMs.getSnapshot().getMin());
+    assertEquals(3, metrics.lagFromOriginMs.getSnapshot().size());
+  }
+
+  @Test
+  public void testIndexGroups() throws Throwable {
+    HTTPBulkLoaderFactory factory = mock(HTTPBulkLoaderFactory.class);
+    Map<String, String> groups = new LinkedHashMap<>();
+    groups.put("logs", "logs-");
+    groups.put("logsapp", "logs-app-");
+    when(factory.getIndexGroups()).thenReturn(groups);
+    HTTPBulkLoader defaultLoader = mock(HTTPBulkLoader.class);
+    HTTPBulkLoader logsLoader = mock(HTTPBulkLoader.class);
+    HTTPBulkLoader appLoader = mock(HTTPBulkLoader.class);
+    when(factory.getBulkLoader(eq(SYSTEM_NAME), any(BulkTransport.class), any(), any(), any(), any())).thenReturn(defaultLoader);
+    when(factory.getBulkLoader(eq(SYSTEM_NAME), eq("logs"), any(BulkTransport.class), any(), any(), any(), any())).thenReturn(logsLoader);
+    when(factory.getBulkLoader(eq(SYSTEM_NAME), eq("logsapp"), any(BulkTransport.class), any(), any(), any(), any())).thenReturn(appLoader);
+    ElasticsearchSystemProducer groupProducer = new ElasticsearchSystemProducer.Builder(SYSTEM_NAME, factory, TRANSPORT,
+        ElasticsearchSystemFactory.MSG_TO_ACTION, metrics).build();
+
+    HTTPBulkLoader.ActionRequest other = getIndexRequest(100, 50).request;
+    HTTPBulkLoader.ActionRequest logs = getRequest("logs-2016.01.01");
+    HTTPBulkLoader.ActionRequest app = getRequest("logs-app-2016.01.01");
+    groupProducer.send("src", new OutgoingMessageEnvelope(new SystemStream(SYSTEM_NAME, "bulk-http"), other));
+    groupProducer.send("src", new OutgoingMessageEnvelope(new SystemStream(SYSTEM_NAME, "bulk-http"), logs));
+    groupProducer.send("src", new OutgoingMessageEnvelope(new SystemStream(SYSTEM_NAME, "bulk-http"), app));
+    //Longest prefix wins
+    verify(defaultLoader).addAction("src", other);
+    verify(logsLoader).addAction("src", logs);
+    verify(appLoader).addAction("src", app);
+
+    groupProducer.flush("src");
+    verify(defaultLoader).flush();
+    verify(logsLoader).flush();
+    verify(appLoader).flush();
+  }
+
+  @Test
+  public void testIndexLoaderCacheIsBounded() throws Throwable {
+    HTTPBulkLoaderFactory factory = mock(HTTPBulkLoaderFactory.class);
+    when(factory.getIndexGroups()).thenReturn(Collections.singletonMap("logs", "logs-"));
+    HTTPBulkLoader defaultLoader = mock(HTTPBulkLoader.class);
+    HTTPBulkLoader logsLoader = mock(HTTPBulkLoader.class);
+    when(factory.getBulkLoader(eq(SYSTEM_NAME), any(BulkTransport.class), any(), any(), any(), any())).thenReturn(defaultLoader);
+    when(factory.getBulkLoader(eq(SYSTEM_NAME), eq("logs"), any(BulkTransport.class), any(), any(), any(), any())).thenReturn(logsLoader);
+    ElasticsearchSystemProducer groupProducer = new ElasticsearchSystemProducer.Builder(SYSTEM_NAME, factory, TRANSPORT,
+        ElasticsearchSystemFactory.MSG_TO_ACTION, metrics).build();
+
+    int numIndexes = ElasticsearchSystemProducer.MAX_CACHED_INDEXES + 10;
+    for (int i = 0; i < numIndexes; i++) {
+      assertSame(logsLoader, groupProducer.getBulkLoader("logs-" + i));
+      assertSame(logsLoader, groupProducer.getBulkLoader("logs-0"));
+    }
+    assertEquals(ElasticsearchSystemProducer.MAX_CACHED_INDEXES, groupProducer.loadersByIndex.size());
+    //Most recently used are kept
+    assertTrue(groupProducer.loadersByIndex.containsKey("logs-0"));
+    assertTrue(groupProducer.loadersByIndex.containsKey("logs-" + (numIndexes - 1)));
+    assertFalse(groupProducer.loadersByIndex.containsKey("logs-1"));
+    assertSame(defaultLoader, groupProducer.getBulkLoader("other"));
+  }
+
+  @Test
+  public void testFlushAsync() throws Throwable {
+    HTTPBulkLoaderFactory factory = mock(HTTPBulkLoaderFactory.class);
+    when(factory.isFlushAsync()).thenReturn(true);
+    HTTPBulkLoader loader = mock(HTTPBulkLoader.class);
+    when(factory.getBulkLoader(eq(SYSTEM_NAME), any(BulkTransport.class), any(), any(), any(), any())).thenReturn(loader);
+    CompletableFuture<Void> loaderFlush = new CompletableFuture<>();
+    when(loader.flushAsync()).thenReturn(loaderFlush);
+    PendingFlushes pendingFlushes = new PendingFlushes();
+    ElasticsearchSystemProducer asyncProducer = new ElasticsearchSystemProducer.Builder(SYSTEM_NAME, factory, TRANSPORT,
+        ElasticsearchSystemFactory.MSG_TO_ACTION, metrics).pendingFlushes(pendingFlushes).build();
+
+    //Returns without waiting on the bulk loader
+    asyncProducer.flush("src");
+    verify(loader).flushAsync();
+    CompletableFuture<Void> pending = pendingFlushes.snapshot();
+    assertFalse(pending.isDone());
+
+    //The failure is thrown on the next send
+    loaderFlush.completeExceptionally(new IllegalStateException("TEST"));
+    assertTrue(pending.isCompletedExceptionally());
+    assertTrue(pendingFlushes.getError().isPresent());
+    OutgoingMessageEnvelope envelope = new OutgoingMessageEnvelope(new SystemStream(SYSTEM_NAME, "bulk-http"), getRequest("test"));
+    assertThatThrownBy(() -> asyncProducer.send("src", envelope)).isInstanceOf(SamzaException.class)
+        .hasMessageContaining("Error writing to Elasticsearch system");
+  }
+
+  @Test
+  public void testDivertWhileCircuitOpen() throws Throwable {
+    HTTPBulkLoaderFactory factory = mock(HTTPBulkLoaderFactory.class);
+    HTTPBulkLoader loader = mock(HTTPBulkLoader.class);
+    when(factory.getBulkLoader(eq(SYSTEM_NAME), any(BulkTransport.class), any(), any(), any(), any())).thenReturn(loader);
+    ActionDiverter diverter = mock(ActionDiverter.class);
+    ElasticsearchSystemProducer divertProducer = new ElasticsearchSystemProducer.Builder(SYSTEM_NAME, factory, TRANSPORT,
+        ElasticsearchSystemFactory.MSG_TO_ACTION, metrics).diverter(Optional.of(diverter)).build();
+
+    HTTPBulkLoader.ActionRequest first = getRequest("test");
+    HTTPBulkLoader.ActionRequest second = getRequest("test");
+    divertProducer.send("src", new OutgoingMessageEnvelope(new SystemStream(SYSTEM_NAME, "bulk-http"), first));
+    when(loader.isCircuitOpen()).thenReturn(true);
+    divertProducer.send("src", new OutgoingMessageEnvelope(new SystemStream(SYSTEM_NAME, "bulk-http"), second));
+    verify(loader).addAction("src", first);
+    verify(loader, never()).addAction("src", second);
+    verify(diverter).divert(second);
+    assertEquals(1, metrics.divertedActions.getCount());
+
+    //Flushed after the bulk loader since it may divert the requests it was holding
+    divertProducer.flush("src");
+    InOrder flushOrder = inOrder(loader, diverter);
+    flushOrder.verify(loader).flush();
+    flushOrder.verify(diverter).flush();
+  }
+
+  @Test
+  public void testFlushAsyncDivertsOffCompletingThread() throws Throwable {
+    HTTPBulkLoaderFactory factory = mock(HTTPBulkLoaderFactory.class);
+    when(factory.isFlushAsync()).thenReturn(true);
+    HTTPBulkLoader loader = mock(HTTPBulkLoader.class);
+    when(factory.getBulkLoader(eq(SYSTEM_NAME), any(BulkTransport.class), any(), any(), any(), any())).thenReturn(loader);
+    CompletableFuture<Void> loaderFlush = new CompletableFuture<>();
+    when(loader.flushAsync()).thenReturn(loaderFlush);
+    ActionDiverter diverter = mock(ActionDiverter.class);
+    List<String> flushThreads = Collections.synchronizedList(new ArrayList<>());
+    doAnswer(invocation -> flushThreads.add(Thread.currentThread().getName())).when(diverter).flush();
+    ElasticsearchSystemProducer divertProducer = new ElasticsearchSystemProducer.Builder(SYSTEM_NAME, factory, TRANSPORT,
+        ElasticsearchSystemFactory.MSG_TO_ACTION, metrics).diverter(Optional.of(diverter)).build();
+
+    CompletableFuture<Void> flush = divertProducer.flushAllAsync();
+    //Stands in for the HTTP client's I/O thread
+    Thread ioThread = new Thread(() -> loaderFlush.complete(null), "TEST I/O");
+    ioThread.start();
+    ioThread.join();
+    flush.get(10, TimeUnit.SECONDS);
+    assertEquals(Collections.singletonList(SYSTEM_NAME + " Elasticsearch Divert Flush"), flushThreads);
+    divertProducer.stop();
+  }
+
+  @Test
+  public void testDivertedMetrics() throws Exception {
+    BulkResult bulkResult = mock(BulkResult.class);
+    when(bulkResult.isSucceeded()).thenReturn(true);
+    BulkItemCounts itemCounts = new BulkItemCounts();
+    itemCounts.add(HTTPBulkLoader.DIVERTED_OPERATION, 200, 2);
+    itemCounts.add("index", 201);
+    List<HTTPBulkLoader.SourcedActionRequest> requests = Arrays.asList(getIndexRequest(100, 50), getIndexRequest(100, 50),
+        getIndexRequest(100, 50));
+    flushListener.accept(new HTTPBulkLoader.BulkReport.Builder(bulkResult, HTTPBulkLoader.TriggerType.FLUSH_CMD, requests)
+        .itemCounts(itemCounts)
+        .esWaitMs(10L)
+        .build());
+    assertEquals(2, metrics.divertedActions.getCount());
+    assertEquals(1, metrics.inserts.getCount());
+    assertEquals(0, metrics.updates.getCount());
+  }
+
+  @Test
+  public void testBreakerMetrics() throws Exception {
+    ElasticsearchSystemProducer.BreakerListener listener = new ElasticsearchSystemProducer.BreakerListener(metrics);
+    listener.onStateChange(CircuitBreaker.State.OPEN);
+    listener.onStateChange(CircuitBreaker.State.HALF_OPEN);
+    listener.onStateChange(CircuitBreaker.State.CLOSED);
+    assertEquals(1, metrics.circuitBreakerOpened.getCount());
+    assertEquals(1, metrics.circuitBreakerClosed.getCount());
+  }
+
+  @Test
+  public void testIndexGroupMetrics() throws Exception {
+    ElasticsearchSystemProducerMetrics.IndexGroupMetrics groupMetrics = metrics.indexGroup("logs");
+    ElasticsearchSystemProducer.FlushListener groupListener = new ElasticsearchSystemProducer.FlushListener(metrics, SYSTEM_NAME,
+        Optional.of(groupMetrics), mock(SystemClock.class));
+    BulkResult bulkResult = mock(BulkResult.class);
+    when(bulkResult.isSucceeded()).thenReturn(true);
+    when(bulkResult.getItems()).thenReturn(Arrays.asList(getItemIndexInsert(), getItemIndexInsert()));
+    groupListener.accept(new HTTPBulkLoader.BulkReport.Builder(bulkResult, HTTPBulkLoader.TriggerType.MAX_ACTIONS,
+        Arrays.asList(getIndexRequest(100, 50), getIndexRequest(100, 50))).esWaitMs(30L).build());
+
+    assertSame(groupMetrics, metrics.indexGroup("logs"));
+    assertEquals(1, groupMetrics.bulkSendSuccess.getCount());
+    assertEquals(2, groupMetrics.actions.getCount());
+    assertEquals(30.0, groupMetrics.bulkSendWaitMs.getSnapshot().getMean(), 0.0001);
+    assertEquals(1, metrics.bulkSendSuccess.getCount());
+  }
+
+  @Test
+  public void testQueueMetrics() throws Exception {
+    ElasticsearchSystemProducer.QueueListener listener = new ElasticsearchSystemProducer.QueueListener(metrics);
+    listener.onBlocked(5L);
+    listener.onBlocked(15L);
+    listener.onWriterStats(7, 0.25);
+    assertEquals(2, metrics.cmdBlockedMs.getSnapshot().size());
+    assertEquals(10.0, metrics.cmdBlockedMs.getSnapshot().getMean(), 0.0001);
+    assertEquals(7, metrics.cmdQueueDepth.getValue().intValue());
+    assertEquals(0.25, metrics.writerBusyRatio.getValue(), 0.0001);
+
+    ElasticsearchSystemProducerMetrics.IndexGroupMetrics groupMetrics = metrics.indexGroup("logs");
+    new ElasticsearchSystemProducer.QueueListener(metrics, Optional.of(groupMetrics)).onWriterStats(3, 0.5);
+    assertEquals(3, groupMetrics.cmdQueueDepth.getValue().intValue());
+    assertEquals(0.5, groupMetrics.writerBusyRatio.getValue(), 0.0001);
+    assertEquals(7, metrics.cmdQueueDepth.getValue().intValue());
+
+    BulkResult bulkResult = mock(BulkResult.class);
+    when(bulkResult.isSucceeded()).thenReturn(true);
+    when(bulkResult.getItems()).thenReturn(Arrays.asList(getItemIndexInsert()));
+    flushListener.accept(new HTTPBulkLoader.BulkReport.Builder(bulkResult, HTTPBulkLoader.TriggerType.MAX_ACTIONS,
+        Arrays.asList(getIndexRequest(100, 50))).esWaitMs(30L).triggerToAckMs(250L).build());
+    assertEquals(250.0, metrics.triggerToAckMs.getSnapshot().getMean(), 0.0001);
+  }
+
+  private HTTPBulkLoader.ActionRequest getRequest(String index) {
+    ActionRequestKey key = ActionRequestKey.newBuilder().setAction(Action.INDEX).setId("foo").build();
+    return new HTTPBulkLoader.ActionRequest(key, index, "testtype", 100L, "{}");
   }
 
   private BulkResult.BulkResultItem getItemIndexInsert() {
@@ -0,0 +1,136 @@
+package com.quantiply.samza.system.elasticsearch;
+
+import org.apache.samza.Partition;
+import org.apache.samza.checkpoint.Checkpoint;
+import org.apache.samza.checkpoint.CheckpointManager;
+import org.apache.samza.config.Config;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.container.TaskName;
+import org.apache.samza.system.SystemStreamPartition;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class GatedCheckpointManagerTest {
+  private static final TaskName TASK = new TaskName("Partition 0");
+  private CheckpointManager delegate;
+  private PendingFlushes pendingFlushes;
+  private GatedCheckpointManager manager;
+
+  @Before
+  public void setUp() throws Exception {
+    delegate = mock(CheckpointManager.class);
+    pendingFlushes = new PendingFlushes();
+    manager = new GatedCheckpointManager(delegate, pendingFlushes, 100L);
+  }
+
+  @Test
+  public void testNothingPending() throws Exception {
+    manager.writeCheckpoint(TASK, getCheckpoint("1"));
+    verify(delegate).writeCheckpoint(TASK, getCheckpoint("1"));
+    assertEquals(0, manager.getHeldCount(TASK));
+  }
+
+  @Test
+  public void testHeldUntilFlushed() throws Exception {
+    CompletableFuture<Void> firstFlush = new CompletableFuture<>();
+    pendingFlushes.add(firstFlush);
+    manager.writeCheckpoint(TASK, getCheckpoint("1"));
+    CompletableFuture<Void> secondFlush = new CompletableFuture<>();
+    pendingFlushes.add(secondFlush);
+    manager.writeCheckpoint(TASK, getCheckpoint("2"));
+    verify(delegate, never()).writeCheckpoint(any(), any());
+    assertEquals(2, manager.getHeldCount(TASK));
+
+    //The second checkpoint also waits on the first flush
+    secondFlush.complete(null);
+    CompletableFuture<Void> thirdFlush = new CompletableFuture<>();
+    pendingFlushes.add(thirdFlush);
+    manager.writeCheckpoint(TASK, getCheckpoint("3"));
+    verify(delegate, never()).writeCheckpoint(any(), any());
+
+    //Only the latest checkpoint that is ready gets written
+    firstFlush.complete(null);
+    CompletableFuture<Void> fourthFlush = new CompletableFuture<>();
+    pendingFlushes.add(fourthFlush);
+    manager.writeCheckpoint(TASK, getCheckpoint("4"));
+    verify(delegate).writeCheckpoint(TASK, getCheckpoint("2"));
+    verify(delegate, times(1)).writeCheckpoint(any(), any());
+    assertEquals(2, manager.getHeldCount(TASK));
+
+    //Stop waits for the rest
+    thirdFlush.complete(null);
+    fourthFlush.complete(null);
+    manager.stop();
+    verify(delegate).writeCheckpoint(TASK, getCheckpoint("4"));
+    verify(delegate).stop();
+  }
+
+  @Test
+  public void testFailedFlush() throws Exception {
+    CompletableFuture<Void> flush = new CompletableFuture<>();
+    pendingFlushes.add(flush);
+    manager.writeCheckpoint(TASK, getCheckpoint("1"));
+    flush.completeExceptionally(new IllegalStateException("TEST"));
+    //Nothing pending but the earlier failure means this was never all written
+    manager.writeCheckpoint(TASK, getCheckpoint("2"));
+    manager.stop();
+    verify(delegate, never()).writeCheckpoint(any(), any());
+  }
+
+  @Test
+  public void testPendingFlushesPerContainer() throws Exception {
+    Map<String, String> map = new HashMap<>();
+    map.put("job.name", "test-job");
+    Config config = new MapConfig(map);
+    PendingFlushes containerFlushes = PendingFlushes.forContainer(config);
+    assertSame(containerFlushes, PendingFlushes.forContainer(config));
+    map.put("job.id", "2");
+    PendingFlushes otherJobFlushes = PendingFlushes.forContainer(new MapConfig(map));
+    assertNotSame(containerFlushes, otherJobFlushes);
+
+    CompletableFuture<Void> flush = new CompletableFuture<>();
+    containerFlushes.add(flush);
+    flush.completeExceptionally(new IllegalStateException("TEST"));
+    GatedCheckpointManager containerManager = new GatedCheckpointManager(delegate, containerFlushes, 100L);
+    containerManager.start();
+    containerManager.writeCheckpoint(TASK, getCheckpoint("1"));
+    verify(delegate, never()).writeCheckpoint(any(), any());
+    containerManager.stop();
+
+    //A container started later in the same JVM is not held back by the earlier failure
+    PendingFlushes nextFlushes = PendingFlushes.forContainer(config);
+    assertNotSame(containerFlushes, nextFlushes);
+    assertFalse(nextFlushes.getError().isPresent());
+    GatedCheckpointManager next = new GatedCheckpointManager(delegate, nextFlushes, 100L);
+    next.start();
+    next.writeCheckpoint(TASK, getCheckpoint("2"));
+    verify(delegate).writeCheckpoint(TASK, getCheckpoint("2"));
+    //Other jobs keep theirs
+    assertSame(otherJobFlushes, PendingFlushes.forContainer(new MapConfig(map)));
+    otherJobFlushes.release();
+    nextFlushes.release();
+  }
+
+  @Test
+  public void testStopTimesOut() throws Exception {
+    pendingFlushes.add(new CompletableFuture<>());
+    manager.writeCheckpoint(TASK, getCheckpoint("1"));
+    manager.stop();
+    verify(delegate, never()).writeCheckpoint(any(), any());
+    verify(delegate).stop();
+  }
+
+  private Checkpoint getCheckpoint(String offset) {
+    SystemStreamPartition ssp = new SystemStreamPartition("kafka", "test", new Partition(0));
+    return new Checkpoint(Collections.singletonMap(ssp, offset));
+  }
+}
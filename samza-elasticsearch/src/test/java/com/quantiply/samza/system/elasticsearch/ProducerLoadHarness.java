@@ -0,0 +1,137 @@
+package com.quantiply.samza.system.elasticsearch;
+
+import com.codahale.metrics.Snapshot;
+import com.quantiply.elasticsearch.HTTPBulkLoader;
+import com.quantiply.elasticsearch.support.FakeBulkServer;
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import org.apache.samza.config.MapConfig;
+import org.apache.samza.metrics.MetricsRegistryMap;
+import org.apache.samza.system.OutgoingMessageEnvelope;
+import org.apache.samza.system.SystemStream;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives an {@link ElasticsearchSystemProducer} against a {@link FakeBulkServer} and reports throughput and latency
+ *
+ * Not a unit test. Run it from the IDE or with
+ *
+ *   java -cp ... -Dload.docs=1000000 -Dfake.latency.ms=20 -Dsystems.es.flush.max.actions=5000 \
+ *     com.quantiply.samza.system.elasticsearch.ProducerLoadHarness
+ *
+ * Options:
+ *   load.docs             - actions to send (default 200000)
+ *   load.doc.bytes        - approximate size of each document (default 512)
+ *   load.commit.every     - actions between producer flushes, like a Samza commit (default 50000)
+ *   fake.latency.ms       - server latency per bulk request (default 5)
+ *   fake.latency.jitter.ms
+ *   fake.request.reject.ratio, fake.item.reject.ratio - 429s to inject
+ *   fake.item.fail.ratio, fake.item.fail.status       - partial failures to inject. Use 409 so the producer
+ *                                                       does not fail the run
+ *   systems.es.*          - any producer setting. http.url is set to the fake server
+ *
+ * Latency is from the time each action was sent to the producer until it was acknowledged (lag-from-receive-ms)
+ */
+public class ProducerLoadHarness {
+  public static final String SYSTEM_NAME = "es";
+  public static final String SOURCE = "load";
+
+  public static class Result {
+    public final long docs;
+    public final long elapsedMs;
+    public final long requests;
+    public final long retriedItems;
+    public final Snapshot ackLatencyMs;
+    public final Snapshot bulkWaitMs;
+
+    public Result(long docs, long elapsedMs, long requests, long retriedItems, Snapshot ackLatencyMs, Snapshot bulkWaitMs) {
+      this.docs = docs;
+      this.elapsedMs = elapsedMs;
+      this.requests = requests;
+      this.retriedItems = retriedItems;
+      this.ackLatencyMs = ackLatencyMs;
+      this.bulkWaitMs = bulkWaitMs;
+    }
+
+    public double getDocsPerSec() {
+      return elapsedMs == 0 ? docs : docs * 1000.0 / elapsedMs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d docs in %d ms (%.0f docs/s), %d bulk requests, %d retried items%n" +
+              "ack latency ms: p50=%.0f p95=%.0f p99=%.0f max=%d%n" +
+              "bulk wait ms:   p50=%.0f p95=%.0f p99=%.0f max=%d",
+          docs, elapsedMs, getDocsPerSec(), requests, retriedItems,
+          ackLatencyMs.getMedian(), ackLatencyMs.get95thPercentile(), ackLatencyMs.get99thPercentile(), ackLatencyMs.getMax(),
+          bulkWaitMs.getMedian(), bulkWaitMs.get95thPercentile(), bulkWaitMs.get99thPercentile(), bulkWaitMs.getMax());
+    }
+  }
+
+  public static Result run(FakeBulkServer server, Map<String, String> producerConfig, int docs, int docBytes, int commitEvery) {
+    Map<String, String> configMap = new HashMap<>(producerConfig);
+    configMap.put("systems." + SYSTEM_NAME + "." + ElasticsearchConfig.CONFIG_KEY_HTTP_URL, server.getUrl());
+    ElasticsearchConfig config = new ElasticsearchConfig(SYSTEM_NAME, new MapConfig(configMap));
+    ElasticsearchSystemProducerMetrics metrics = new ElasticsearchSystemProducerMetrics(SYSTEM_NAME, new MetricsRegistryMap());
+    ElasticsearchSystemProducer producer = new ElasticsearchSystemProducer.Builder(SYSTEM_NAME,
+        ElasticsearchSystemFactory.getBulkLoaderFactory(config),
+        ElasticsearchSystemFactory.getTransport(config),
+        ElasticsearchSystemFactory.MSG_TO_ACTION,
+        metrics).build();
+    SystemStream stream = new SystemStream(SYSTEM_NAME, "load-test");
+    String document = getDocument(docBytes);
+    long startRequests = server.getRequests();
+
+    producer.register(SOURCE);
+    producer.start();
+    long startNs = System.nanoTime();
+    try {
+      for (int i = 0; i < docs; i++) {
+        ActionRequestKey key = ActionRequestKey.newBuilder().setAction(Action.INDEX).setId("doc-" + i).build();
+        producer.send(SOURCE, new OutgoingMessageEnvelope(stream,
+            new HTTPBulkLoader.ActionRequest(key, "load-test", "doc", System.currentTimeMillis(), document)));
+        if ((i + 1) % commitEvery == 0) {
+          producer.flush(SOURCE);
+        }
+      }
+      producer.flushAll();
+    }
+    finally {
+      producer.stop();
+    }
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+    return new Result(docs, elapsedMs, server.getRequests() - startRequests, metrics.retriedItems.getCount(),
+        metrics.lagFromReceiveMs.getSnapshot(), metrics.bulkSendWaitMs.getSnapshot());
+  }
+
+  protected static String getDocument(int docBytes) {
+    char[] padding = new char[Math.max(0, docBytes - 32)];
+    Arrays.fill(padding, 'x');
+    return "{\"message\":\"" + new String(padding) + "\",\"level\":\"INFO\"}";
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> producerConfig = new HashMap<>();
+    System.getProperties().stringPropertyNames().stream()
+        .filter(name -> name.startsWith("systems." + SYSTEM_NAME + "."))
+        .forEach(name -> producerConfig.put(name, System.getProperty(name)));
+
+    try (FakeBulkServer server = new FakeBulkServer()) {
+      server.setLatencyMs(Long.getLong("fake.latency.ms", 5L), Long.getLong("fake.latency.jitter.ms", 0L))
+          .setRequestRejectRatio(Double.parseDouble(System.getProperty("fake.request.reject.ratio", "0")))
+          .setItemRejectRatio(Double.parseDouble(System.getProperty("fake.item.reject.ratio", "0")))
+          .setItemFailRatio(Double.parseDouble(System.getProperty("fake.item.fail.ratio", "0")),
+              Integer.getInteger("fake.item.fail.status", 409))
+          .start();
+      Result result = run(server, producerConfig,
+          Integer.getInteger("load.docs", 200000),
+          Integer.getInteger("load.doc.bytes", 512),
+          Integer.getInteger("load.commit.every", 50000));
+      System.out.println(result);
+    }
+  }
+}
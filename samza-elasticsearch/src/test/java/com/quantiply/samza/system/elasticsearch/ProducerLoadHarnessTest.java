@@ -0,0 +1,31 @@
+package com.quantiply.samza.system.elasticsearch;
+
+import com.quantiply.elasticsearch.support.FakeBulkServer;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ProducerLoadHarnessTest {
+
+  @Test
+  public void testRun() throws Exception {
+    Map<String, String> config = new HashMap<>();
+    config.put("systems.es.flush.max.actions", "100");
+    config.put("systems.es.bulk.retry.max", "10");
+    config.put("systems.es.bulk.retry.backoff.ms", "10");
+    try (FakeBulkServer server = new FakeBulkServer(4)) {
+      server.setLatencyMs(1L, 2L).setItemRejectRatio(0.1).start();
+      ProducerLoadHarness.Result result = ProducerLoadHarness.run(server, config, 2000, 256, 500);
+
+      assertEquals(2000, result.docs);
+      assertTrue(result.requests >= 20);
+      assertEquals(server.getRejectedItems(), result.retriedItems);
+      assertEquals(2000 + server.getRejectedItems(), server.getItems());
+      assertTrue(result.ackLatencyMs.size() > 0);
+      assertTrue(result.getDocsPerSec() > 0);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.quantiply.samza.task;
+
+import com.quantiply.avro.AvroToJson;
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import com.quantiply.rico.elasticsearch.VersionType;
+import com.quantiply.samza.serde.AvroSerde;
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import kafka.utils.VerifiableProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares ActionRequestKeyDecoder with the object mapper and schema registry decoder that ESPushTask used before
+ *
+ * Run main from the IDE or with the test classpath after test-compile, e.g.
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.quantiply.samza.task.ActionRequestKeyDecoderBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActionRequestKeyDecoderBenchmark {
+    private final ActionRequestKey key = new ActionRequestKey(Action.INDEX, "c7a9d2b4-5e1f-4a8b-9c3d-2f6e8a1b0d47", 12L,
+        VersionType.EXTERNAL, 1453952662000L, 1453952661500L, null, null);
+    private AvroToJson avroToJson;
+    private AvroSerde avroSerde;
+    private ActionRequestKeyDecoder decoder;
+    private byte[] jsonBytes;
+    private byte[] avroBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        avroToJson = new AvroToJson();
+        decoder = new ActionRequestKeyDecoder();
+        jsonBytes = ("{\"action\":\"index\",\"id\":\"c7a9d2b4-5e1f-4a8b-9c3d-2f6e8a1b0d47\",\"version\":12," +
+            "\"version_type\":\"external\",\"partition_ts_unix_ms\":1453952662000,\"event_ts_unix_ms\":1453952661500}")
+            .getBytes(StandardCharsets.UTF_8);
+        Properties props = new Properties();
+        props.setProperty("schema.registry.url", "http://localhost:8081");
+        props.setProperty("specific.avro.reader", "true");
+        avroSerde = new AvroSerde(new MockSchemaRegistryClient(), new VerifiableProperties(props));
+        avroBytes = avroSerde.toBytes(key);
+    }
+
+    @Benchmark
+    public ActionRequestKey jsonObjectMapper() throws Exception {
+        return avroToJson.jsonToObject(jsonBytes, ActionRequestKey.class);
+    }
+
+    @Benchmark
+    public ActionRequestKey jsonDecoder() throws Exception {
+        return decoder.fromJson(jsonBytes);
+    }
+
+    @Benchmark
+    public ActionRequestKey avroSerde() {
+        return (ActionRequestKey) avroSerde.fromBytes(avroBytes);
+    }
+
+    @Benchmark
+    public ActionRequestKey avroDecoder() {
+        return decoder.fromAvro(avroBytes, avroSerde);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(ActionRequestKeyDecoderBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
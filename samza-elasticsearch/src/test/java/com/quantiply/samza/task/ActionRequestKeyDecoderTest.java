@@ -0,0 +1,168 @@
+package com.quantiply.samza.task;
+
+import com.quantiply.avro.AvroToJson;
+import com.quantiply.rico.elasticsearch.Action;
+import com.quantiply.rico.elasticsearch.ActionRequestKey;
+import com.quantiply.rico.elasticsearch.VersionType;
+import com.quantiply.samza.serde.AvroSerde;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.samza.SamzaException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ActionRequestKeyDecoderTest {
+
+    @Test
+    public void testJsonSameAsObjectMapper() throws Exception {
+        ActionRequestKeyDecoder decoder = new ActionRequestKeyDecoder();
+        AvroToJson avroToJson = new AvroToJson();
+        for (String json : Arrays.asList(
+            "{\"action\":\"INDEX\",\"id\":null,\"version\":5,\"partition_ts_unix_ms\":4,\"event_ts_unix_ms\":3,\"version_type\":\"force\"}",
+            "{\"action\":\"update\",\"id\":\"doc\\\"1\\u00e9\",\"partition_ts_unix_ms\":1453952662000}",
+            "{\"action\":\"DELETE\",\"id\":\"doc2\",\"version\":null,\"version_type\":null}",
+            "{\"id\":\"doc3\",\"routing\":\"tenant1\",\"parent\":\"p1\"}",
+            " { } ")) {
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            ActionRequestKey expected = avroToJson.jsonToObject(bytes, ActionRequestKey.class);
+            assertEquals(json, expected, decoder.fromJson(bytes));
+        }
+    }
+
+    @Test
+    public void testJsonNewKeyEachTime() throws Exception {
+        ActionRequestKeyDecoder decoder = new ActionRequestKeyDecoder();
+        ActionRequestKey first = decoder.fromJson("{\"action\":\"UPDATE\",\"id\":\"doc1\",\"version\":2}".getBytes(StandardCharsets.UTF_8));
+        ActionRequestKey second = decoder.fromJson("{\"id\":\"doc2\"}".getBytes(StandardCharsets.UTF_8));
+        assertNotSame(first, second);
+        assertEquals(Action.UPDATE, first.getAction());
+        assertEquals("doc1", first.getId().toString());
+        assertEquals(2L, first.getVersion().longValue());
+        //Nothing carried over from the previous key
+        assertNull(second.getAction());
+        assertNull(second.getVersion());
+    }
+
+    @Test
+    public void testInvalidJson() throws Exception {
+        ActionRequestKeyDecoder decoder = new ActionRequestKeyDecoder();
+        for (String json : Arrays.asList(
+            "{\"action\":\"INDEX\",\"other\":1}",
+            "{\"action\":\"CREATE\"}",
+            "{\"version\":\"five\"}",
+            "{\"id\":{\"a\":1}}",
+            "[1]",
+            "{\"id\":\"doc1\"",
+            "{} {}")) {
+            assertThatThrownBy(() -> decoder.fromJson(json.getBytes(StandardCharsets.UTF_8)))
+                .as(json)
+                .isInstanceOf(IOException.class);
+        }
+        assertThatThrownBy(() -> decoder.fromJson(null)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void testAvro() throws Exception {
+        AvroSerde avroSerde = mock(AvroSerde.class);
+        when(avroSerde.getSchema(7)).thenReturn(ActionRequestKey.getClassSchema());
+        ActionRequestKeyDecoder decoder = new ActionRequestKeyDecoder();
+
+        ActionRequestKey full = new ActionRequestKey(Action.UPDATE, "doc1é", -5L, VersionType.EXTERNAL, 1453952662000L, Long.MAX_VALUE, "tenant1", "p1");
+        assertEquals(full, decoder.fromAvro(getAvroBytes(7, full), avroSerde));
+        ActionRequestKey empty = new ActionRequestKey(Action.DELETE, null, null, null, null, Long.MIN_VALUE, null, null);
+        assertEquals(empty, decoder.fromAvro(getAvroBytes(7, empty), avroSerde));
+
+        //Schema is only looked up once
+        verify(avroSerde, times(1)).getSchema(7);
+        verify(avroSerde, never()).fromBytes(any());
+    }
+
+    @Test
+    public void testAvroPrevSchema() throws Exception {
+        Schema prevSchema = new Schema.Parser().parse(
+            "{\"type\":\"record\",\"name\":\"ActionRequestKey\",\"namespace\":\"com.quantiply.rico.elasticsearch\",\"fields\":[" +
+            "{\"name\":\"action\",\"type\":{\"type\":\"enum\",\"name\":\"Action\",\"symbols\":[\"INDEX\",\"UPDATE\",\"DELETE\"]},\"default\":\"INDEX\"}," +
+            "{\"name\":\"id\",\"type\":[\"null\",\"string\"],\"default\":null}," +
+            "{\"name\":\"version\",\"type\":[\"null\",\"long\"],\"default\":null}," +
+            "{\"name\":\"version_type\",\"type\":[\"null\",{\"type\":\"enum\",\"name\":\"VersionType\",\"symbols\":[\"EXTERNAL\",\"FORCE\"]}],\"default\":null}," +
+            "{\"name\":\"partition_ts_unix_ms\",\"type\":[\"null\",\"long\"],\"default\":null}," +
+            "{\"name\":\"event_ts_unix_ms\",\"type\":[\"null\",\"long\"],\"default\":null}]}");
+        AvroSerde avroSerde = mock(AvroSerde.class);
+        when(avroSerde.getSchema(3)).thenReturn(prevSchema);
+        GenericRecord record = new GenericData.Record(prevSchema);
+        record.put("action", new GenericData.EnumSymbol(prevSchema.getField("action").schema(), "UPDATE"));
+        record.put("id", "doc1");
+        record.put("version", 5L);
+        record.put("version_type", null);
+        record.put("partition_ts_unix_ms", 1453952662000L);
+        record.put("event_ts_unix_ms", null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] {0, 0, 0, 0, 3});
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        new GenericDatumWriter<GenericRecord>(prevSchema).write(record, encoder);
+        encoder.flush();
+
+        ActionRequestKeyDecoder decoder = new ActionRequestKeyDecoder();
+        ActionRequestKey expected = new ActionRequestKey(Action.UPDATE, "doc1", 5L, null, 1453952662000L, null, null, null);
+        assertEquals(expected, decoder.fromAvro(out.toByteArray(), avroSerde));
+        //Read field by field, not through the serde
+        verify(avroSerde, never()).fromBytes(any());
+    }
+
+    @Test
+    public void testAvroOtherSchema() throws Exception {
+        Schema otherSchema = new Schema.Parser().parse(
+            "{\"type\":\"record\",\"name\":\"ActionRequestKey\",\"namespace\":\"com.quantiply.rico.elasticsearch\"," +
+            "\"fields\":[{\"name\":\"id\",\"type\":[\"null\",\"string\"]}]}");
+        AvroSerde avroSerde = mock(AvroSerde.class);
+        when(avroSerde.getSchema(8)).thenReturn(otherSchema);
+        ActionRequestKey key = ActionRequestKey.newBuilder().setId("doc1").build();
+        byte[] bytes = new byte[] {0, 0, 0, 0, 8, 2, 8, 'd', 'o', 'c', '1'};
+        when(avroSerde.fromBytes(bytes)).thenReturn(key);
+        when(avroSerde.fromBytes(null)).thenReturn(key);
+
+        ActionRequestKeyDecoder decoder = new ActionRequestKeyDecoder();
+        assertSame(key, decoder.fromAvro(bytes, avroSerde));
+        assertSame(key, decoder.fromAvro(null, avroSerde));
+    }
+
+    @Test
+    public void testInvalidAvro() throws Exception {
+        AvroSerde avroSerde = mock(AvroSerde.class);
+        when(avroSerde.getSchema(7)).thenReturn(ActionRequestKey.getClassSchema());
+        ActionRequestKeyDecoder decoder = new ActionRequestKeyDecoder();
+        byte[] valid = getAvroBytes(7, new ActionRequestKey(Action.INDEX, "doc1", null, null, null, null, null, null));
+
+        byte[] truncated = Arrays.copyOf(valid, valid.length - 1);
+        assertThatThrownBy(() -> decoder.fromAvro(truncated, avroSerde)).isInstanceOf(SamzaException.class);
+        byte[] trailing = Arrays.copyOf(valid, valid.length + 1);
+        assertThatThrownBy(() -> decoder.fromAvro(trailing, avroSerde)).isInstanceOf(SamzaException.class);
+        byte[] badEnum = valid.clone();
+        badEnum[5] = 6;
+        assertThatThrownBy(() -> decoder.fromAvro(badEnum, avroSerde)).isInstanceOf(SamzaException.class);
+    }
+
+    public static byte[] getAvroBytes(int schemaId, ActionRequestKey key) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(ByteBuffer.allocate(4).putInt(schemaId).array());
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        new SpecificDatumWriter<ActionRequestKey>(ActionRequestKey.getClassSchema()).write(key, encoder);
+        encoder.flush();
+        return out.toByteArray();
+    }
+}
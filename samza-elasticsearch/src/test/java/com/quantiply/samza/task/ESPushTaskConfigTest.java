@@ -15,12 +15,15 @@
  */
 package com.quantiply.samza.task;
 
+import com.quantiply.elasticsearch.IndexNameResolver;
 import com.quantiply.rico.elasticsearch.VersionType;
 import org.apache.samza.config.ConfigException;
 import org.apache.samza.config.MapConfig;
 import org.junit.Test;
 
+import java.time.ZonedDateTime;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -40,6 +43,16 @@ public class ESPushTaskConfigTest {
         ESPushTaskConfig.getStreamMap(new MapConfig(map));
     }
 
+    @Test(expected = ConfigException.class)
+    public void testInvalidDateFormat() throws Exception {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("rico.es.index.prefix", "slow_svc");
+        map.put("rico.es.index.date.format", ".yyyy-bb");
+        map.put("rico.es.metadata.source", "key_doc_id");
+        map.put("rico.es.doc.type", "slow_svc_type");
+        ESPushTaskConfig.getDefaultConfig(new MapConfig(map));
+    }
+
     @Test
     public void testDefaultConfig() throws Exception {
         Map<String, String> map = new HashMap<String, String>();
@@ -107,4 +120,19 @@ public class ESPushTaskConfigTest {
         assertFalse(repLatencyConfig.defaultVersionType.isPresent());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testIndexPatterns() throws Exception {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("rico.es.streams", "server_stats,rep_latency");
+        map.put("rico.es.index.date.zone", "Etc/UTC");
+        map.put("rico.es.doc.type", "doc");
+        map.put("rico.es.stream.server_stats.index.prefix", "db_server_stats_index");
+        map.put("rico.es.stream.server_stats.index.date.format", ".yyyy-MM");
+        map.put("rico.es.stream.rep_latency.index.prefix", "db_rep_latency_index");
+
+        List<IndexNameResolver> patterns = new ESPushTaskIndexPatternFactory().getIndexPatterns(new MapConfig(map));
+        //Only the date partitioned stream
+        assertEquals(1, patterns.size());
+        assertEquals("db_server_stats_index.2016-03", patterns.get(0).getIndex(ZonedDateTime.parse("2016-03-13T05:30:00Z").toInstant().toEpochMilli()));
+    }
+}
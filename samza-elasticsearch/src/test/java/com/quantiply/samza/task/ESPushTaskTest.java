@@ -5,8 +5,8 @@ import com.quantiply.rico.elasticsearch.Action;
 import com.quantiply.rico.elasticsearch.ActionRequestKey;
 import com.quantiply.rico.elasticsearch.VersionType;
 import com.quantiply.samza.serde.AvroSerde;
-import com.quantiply.samza.serde.JsonSerde;
 import org.apache.samza.Partition;
+import org.apache.samza.SamzaException;
 import org.apache.samza.config.MapConfig;
 import org.apache.samza.system.IncomingMessageEnvelope;
 import org.apache.samza.system.OutgoingMessageEnvelope;
@@ -156,7 +156,7 @@ public class ESPushTaskTest {
         assertNull("Do not default event time", req.key.getEventTsUnixMs());
         assertNull("No version set", req.key.getVersion());
         assertNull("No version type set", req.key.getVersionType());
-        assertEquals("{\"doc\":{}}", req.document);
+        assertEquals("{\"doc\":{}}", req.getDocument());
     }
 
     @Test
@@ -178,11 +178,8 @@ public class ESPushTaskTest {
     public void testDefaultDocIdWithEmbeddedConfig() throws Exception {
         ESPushTaskConfig.ESIndexSpec esConfig = getEsIndexSpec("embedded", true);
         ESPushTask task = getEsPushTask();
-        HashMap<String, Object> doc = new HashMap<>();
-        when(task.jsonSerde.fromBytes(null)).thenReturn(doc);
-        when(task.jsonSerde.toString(doc)).thenReturn("");
         long tsNowMs = 1453952662L;
-        OutgoingMessageEnvelope out = task.getEmbeddedOutMsg(getInMsg(null), esConfig, Optional.of(tsNowMs));
+        OutgoingMessageEnvelope out = task.getEmbeddedOutMsg(getInMsg("{}"), esConfig, Optional.of(tsNowMs));
         HTTPBulkLoader.ActionRequest req = (HTTPBulkLoader.ActionRequest) out.getMessage();
         assertEquals("fake-0-1234", req.key.getId().toString());
         assertEquals(Action.INDEX, req.key.getAction());
@@ -190,13 +187,43 @@ public class ESPushTaskTest {
         assertNull("Do not default event time", req.key.getEventTsUnixMs());
         assertNull("Version not set", req.key.getVersion());
         assertNull("Version type not set", req.key.getVersionType());
+        assertEquals("{}", req.getDocument());
     }
 
+    @Test
+    public void testEmbeddedMetadata() throws Exception {
+        ESPushTaskConfig.ESIndexSpec esConfig = getEsIndexSpec("embedded", true);
+        ESPushTask task = getEsPushTask();
+        String doc = "{\"_id\":\"doc1\",\"_version\":5,\"_version_type\":\"external\",\"msg\":{\"_id\":\"nested\"},\"@timestamp\":1453952662000}";
+        OutgoingMessageEnvelope out = task.getEmbeddedOutMsg(getInMsg(doc), esConfig, Optional.of(99L));
+        HTTPBulkLoader.ActionRequest req = (HTTPBulkLoader.ActionRequest) out.getMessage();
+        assertEquals("doc1", req.key.getId().toString());
+        assertEquals(5L, req.key.getVersion().longValue());
+        assertEquals(VersionType.EXTERNAL, req.key.getVersionType());
+        assertEquals(1453952662000L, req.key.getPartitionTsUnixMs().longValue());
+        assertEquals(1453952662000L, req.key.getEventTsUnixMs().longValue());
+        assertEquals("test.2016", req.index);
+        assertEquals("{\"msg\":{\"_id\":\"nested\"}}", req.getDocument());
+
+        assertThatThrownBy(() -> task.getEmbeddedOutMsg(getInMsg("[1]"), esConfig, Optional.of(99L)))
+            .isInstanceOf(SamzaException.class);
+    }
+
+    @Test
+    public void testEmbeddedRouting() throws Exception {
+        ESPushTaskConfig.ESIndexSpec esConfig = getEsIndexSpec("embedded", false);
+        ESPushTask task = getEsPushTask();
+        String doc = "{\"_id\":\"doc1\",\"_routing\":\"tenant1\",\"_parent\":\"p1\",\"msg\":1}";
+        OutgoingMessageEnvelope out = task.getEmbeddedOutMsg(getInMsg(doc), esConfig, Optional.of(99L));
+        HTTPBulkLoader.ActionRequest req = (HTTPBulkLoader.ActionRequest) out.getMessage();
+        assertEquals("tenant1", req.key.getRouting().toString());
+        assertEquals("p1", req.key.getParent().toString());
+        assertEquals("{\"msg\":1}", req.getDocument());
+    }
 
     private ESPushTask getEsPushTask() {
         ESPushTask task = new ESPushTask();
         task.avroSerde = mock(AvroSerde.class);
-        task.jsonSerde = mock(JsonSerde.class);
         return task;
     }
 
@@ -0,0 +1,91 @@
+package com.quantiply.samza.task;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assert.*;
+
+public class EmbeddedMetadataExtractorTest {
+    private final EmbeddedMetadataExtractor extractor = new EmbeddedMetadataExtractor();
+
+    @Test
+    public void testNoMetadata() throws Exception {
+        String doc = " {\"msg\" : \"hello\", \"nested\": {\"_id\": \"x\", \"list\": [1, {\"@timestamp\": 2}]}}\n";
+        EmbeddedMetadataExtractor.Extracted extracted = extract(doc);
+        assertNull(extracted.id);
+        assertNull(extracted.version);
+        assertNull(extracted.versionType);
+        assertNull(extracted.timestampMs);
+        assertEquals(doc, getDocument(extracted));
+    }
+
+    @Test
+    public void testMetadata() throws Exception {
+        EmbeddedMetadataExtractor.Extracted extracted = extract(
+            "{\"_id\":\"doc1\", \"msg\":\"h\u00e9llo \\\"}\\\"\", \"_version\" : 3, \"_version_type\":\"force\", \"n\":[1,2], \"@timestamp\":1453952662000}");
+        assertEquals("doc1", extracted.id);
+        assertEquals(3L, extracted.version.longValue());
+        assertEquals("force", extracted.versionType);
+        assertEquals(1453952662000L, extracted.timestampMs.longValue());
+        //Whitespace around the fields that were cut is left as is
+        assertEquals("{ \"msg\":\"h\u00e9llo \\\"}\\\"\",   \"n\":[1,2]}", getDocument(extracted));
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        EmbeddedMetadataExtractor.Extracted extracted = extract("{\"_routing\":\"tenant1\",\"a\":1,\"_parent\":\"p1\"}");
+        assertEquals("tenant1", extracted.routing);
+        assertEquals("p1", extracted.parent);
+        assertEquals("{\"a\":1}", getDocument(extracted));
+        //Numeric routing is left in the document
+        assertNull(extract("{\"_routing\":5}").routing);
+    }
+
+    @Test
+    public void testCommas() throws Exception {
+        assertEquals("{\"a\":1}", getDocument(extract("{\"a\":1,\"_id\":\"x\",\"_version\":2}")));
+        assertEquals("{\"a\":1,\"b\":2}", getDocument(extract("{\"_id\":\"x\",\"a\":1,\"_version\":2,\"b\":2,\"@timestamp\":3}")));
+        assertEquals("{ }", getDocument(extract("{\"_id\":\"x\", \"_version\":1 }")));
+        assertEquals("{}", getDocument(extract("{}")));
+    }
+
+    @Test
+    public void testTypes() throws Exception {
+        //Only taken as metadata with the expected types, like the map based version
+        EmbeddedMetadataExtractor.Extracted extracted = extract("{\"_id\":1,\"_version\":\"2\",\"@timestamp\":1.4539526620005E12,\"\\u005fversion_type\":\"a\\\"b\"}");
+        assertNull(extracted.id);
+        assertNull(extracted.version);
+        assertEquals(1453952662000L, extracted.timestampMs.longValue());
+        assertEquals("a\"b", extracted.versionType);
+        assertEquals("{\"_id\":1,\"_version\":\"2\"}", getDocument(extracted));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        assertThatThrownBy(() -> extract("[]")).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> extract("{\"a\":1")).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> extract("{\"a\" 1}")).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> extract("{\"a\":{\"b\":1}")).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> extract("")).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> extract("{\"a\":1}garbage")).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> extract("{} {}")).isInstanceOf(IOException.class);
+        assertEquals("{}\n", getDocument(extract("{}\n")));
+    }
+
+    @Test
+    public void testUnchangedIsSameArray() throws Exception {
+        byte[] doc = "{\"msg\":\"hello\"}".getBytes(StandardCharsets.UTF_8);
+        assertSame(doc, extractor.extract(doc).document);
+    }
+
+    private String getDocument(EmbeddedMetadataExtractor.Extracted extracted) {
+        return new String(extracted.document, StandardCharsets.UTF_8);
+    }
+
+    private EmbeddedMetadataExtractor.Extracted extract(String doc) throws IOException {
+        return extractor.extract(doc.getBytes(StandardCharsets.UTF_8));
+    }
+}